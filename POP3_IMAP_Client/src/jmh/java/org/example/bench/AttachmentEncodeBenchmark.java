@@ -0,0 +1,96 @@
+package org.example.bench;
+
+import org.example.Base64StreamEncoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of encoding an attachment for SMTP: the streaming {@link Base64StreamEncoder}
+ * against the former readAllBytes/encodeToString/BufferedWriter path.
+ *
+ * Run with {@code -prof gc} to see that the streaming encoder allocates the same
+ * amount per operation whatever the file size, while the old path grows with it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class AttachmentEncodeBenchmark {
+
+    @Param({"1048576", "67108864", "268435456"})
+    public int fileSize;
+
+    private Path file;
+    private Base64StreamEncoder encoder;
+    private final WritableByteChannel sink = new NullChannel();
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("attachment", ".bin");
+        byte[] block = new byte[1 << 20];
+        new Random(7).nextBytes(block);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (int written = 0; written < fileSize; written += block.length) {
+                channel.write(ByteBuffer.wrap(block, 0, Math.min(block.length, fileSize - written)));
+            }
+        }
+        encoder = new Base64StreamEncoder();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long streamingEncoder() throws IOException {
+        return encoder.encode(file, sink);
+    }
+
+    @Benchmark
+    public int legacyEncoder() throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream()));
+        byte[] fileBytes = Files.readAllBytes(file);
+        String encodedFile = Base64.getEncoder().encodeToString(fileBytes);
+        for (int i = 0; i < encodedFile.length(); i += 76) {
+            writer.write(encodedFile, i, Math.min(76, encodedFile.length() - i));
+            writer.write("\r\n");
+        }
+        writer.flush();
+        return encodedFile.length();
+    }
+
+    // Discards everything, standing in for the socket
+    static final class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package org.example.bench;
+
+import org.example.MimeHandler;
+import org.example.MimeParser;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal in-process IMAP server standing in for a real one when exercising
+ * {@link org.example.ImapClient}.
+ *
+ * It holds a single mailbox and understands CAPABILITY, LOGIN, ENABLE, SELECT/EXAMINE
+ * (with CONDSTORE and QRESYNC), UID FETCH (UID, FLAGS, MODSEQ, RFC822.SIZE, ENVELOPE,
+ * BODYSTRUCTURE and BODY[section]&lt;partial&gt; with CHANGEDSINCE), UID SEARCH ALL, IDLE,
+ * NOOP and LOGOUT. Tests change the mailbox with {@link #deliver(byte[])},
+ * {@link #expunge(long)} and {@link #setFlags(long, String...)}; sessions in IDLE are
+ * told about new and expunged messages right away.
+ *
+ * With {@link #setTls} the server speaks TLS, either from the first byte or after the
+ * client sends "STARTTLS", which CAPABILITY then advertises.
+ */
+public class FakeImapServer implements Closeable {
+
+    // A MIME entity with the position of its body in the raw message
+    private static final class Part {
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final List<Part> children = new ArrayList<>();
+        int bodyStart;
+        int bodyEnd;
+    }
+
+    private static final class Message {
+        final long uid;
+        final byte[] raw;
+        final Part structure;
+        Set<String> flags = new LinkedHashSet<>();
+        long modSeq;
+
+        Message(long uid, byte[] raw, long modSeq) {
+            this.uid = uid;
+            this.raw = raw;
+            this.structure = structure(raw);
+            this.modSeq = modSeq;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-imap");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Message> messages = new ArrayList<>();
+    private final Map<Long, Long> expunged = new LinkedHashMap<>();
+    private final List<OutputStream> idling = new CopyOnWriteArrayList<>();
+    private final long uidValidity = 1;
+    private long uidNext = 1;
+    private long highestModSeq = 1;
+    private volatile String capabilities = "IMAP4rev1 IDLE CONDSTORE QRESYNC ENABLE";
+    private volatile SSLContext tlsContext;
+    private volatile boolean implicitTls;
+
+    /**
+     * Starts the server on a free local port with the given messages in its mailbox.
+     */
+    public FakeImapServer(List<byte[]> mailbox) throws IOException {
+        for (byte[] raw : mailbox) {
+            messages.add(new Message(uidNext++, raw, highestModSeq));
+        }
+        serverSocket = new ServerSocket(0, 1024);
+        connections.submit(this::acceptLoop);
+    }
+
+    /**
+     * Replaces the capabilities announced to clients; leaving out QRESYNC also makes
+     * "ENABLE QRESYNC" fail, as it does on servers that only have CONDSTORE.
+     *
+     * @return this server
+     */
+    public FakeImapServer setCapabilities(String capabilities) {
+        this.capabilities = capabilities;
+        return this;
+    }
+
+    /**
+     * Encrypts new connections with a certificate from the context: from the start with
+     * {@code implicit}, otherwise after "STARTTLS".
+     *
+     * @return this server
+     */
+    public FakeImapServer setTls(SSLContext context, boolean implicit) {
+        this.tlsContext = context;
+        this.implicitTls = implicit;
+        return this;
+    }
+
+    // Sessions currently in IDLE, waiting to be told about changes
+    public int getIdleSessions() {
+        return idling.size();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    /**
+     * Adds a message to the mailbox and announces it to idling sessions.
+     *
+     * @return the UID of the new message
+     */
+    public long deliver(byte[] raw) {
+        int exists;
+        long uid;
+        synchronized (this) {
+            uid = uidNext++;
+            messages.add(new Message(uid, raw, ++highestModSeq));
+            exists = messages.size();
+        }
+        push("* " + exists + " EXISTS");
+        return uid;
+    }
+
+    /**
+     * Removes a message from the mailbox and announces it to idling sessions.
+     */
+    public void expunge(long uid) {
+        int sequence = -1;
+        synchronized (this) {
+            for (int i = 0; i < messages.size(); i++) {
+                if (messages.get(i).uid == uid) {
+                    messages.remove(i);
+                    expunged.put(uid, ++highestModSeq);
+                    sequence = i + 1;
+                    break;
+                }
+            }
+        }
+        if (sequence > 0) {
+            push("* " + sequence + " EXPUNGE");
+        }
+    }
+
+    /**
+     * Replaces the flags of a message, e.g. {@code setFlags(3, "\\Seen")}.
+     */
+    public synchronized void setFlags(long uid, String... flags) {
+        for (Message message : messages) {
+            if (message.uid == uid) {
+                message.flags = new LinkedHashSet<>(Arrays.asList(flags));
+                message.modSeq = ++highestModSeq;
+            }
+        }
+    }
+
+    private void push(String line) {
+        for (OutputStream out : idling) {
+            try {
+                synchronized (out) {
+                    out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                idling.remove(out);
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.submit(() -> serve(socket));
+            } catch (IOException e) {
+                return; // server closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        SSLContext tls = tlsContext;
+        try {
+            if (tls != null && implicitTls) {
+                socket = secure(tls, socket);
+            }
+            InputStream in = socket.getInputStream();
+            OutputStream out = writer(socket);
+            writeLine(out, "* OK fake IMAP server ready");
+            String line;
+            while ((line = readLine(in)) != null) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 2) {
+                    writeLine(out, "* BAD missing command");
+                    continue;
+                }
+                String tag = parts[0];
+                String command = parts[1].toUpperCase();
+                String arguments = parts.length > 2 ? parts[2] : "";
+                if (command.equals("UID") && !arguments.isEmpty()) {
+                    String[] uidCommand = arguments.split(" ", 2);
+                    command = "UID " + uidCommand[0].toUpperCase();
+                    arguments = uidCommand.length > 1 ? uidCommand[1] : "";
+                }
+
+                synchronized (out) {
+                    switch (command) {
+                        case "CAPABILITY":
+                            boolean startTls = tls != null && !(socket instanceof SSLSocket);
+                            writeLine(out, "* CAPABILITY " + capabilities + (startTls ? " STARTTLS" : ""));
+                            writeLine(out, tag + " OK CAPABILITY completed");
+                            break;
+                        case "LOGIN":
+                        case "NOOP":
+                            writeLine(out, tag + " OK " + command + " completed");
+                            break;
+                        case "ENABLE":
+                            if (!(" " + capabilities + " ").contains(" " + arguments.toUpperCase() + " ")) {
+                                writeLine(out, tag + " NO " + arguments + " not supported");
+                                break;
+                            }
+                            writeLine(out, "* ENABLED " + arguments);
+                            writeLine(out, tag + " OK ENABLE completed");
+                            break;
+                        case "SELECT":
+                        case "EXAMINE":
+                            select(out, tag, arguments);
+                            break;
+                        case "UID FETCH":
+                            fetch(out, tag, arguments);
+                            break;
+                        case "UID SEARCH":
+                            search(out, tag);
+                            break;
+                        case "IDLE":
+                            writeLine(out, "+ idling");
+                            break;
+                        case "STARTTLS":
+                            if (tls == null || socket instanceof SSLSocket) {
+                                writeLine(out, tag + " NO TLS not available");
+                            } else {
+                                writeLine(out, tag + " OK begin TLS negotiation now");
+                            }
+                            break;
+                        case "LOGOUT":
+                            writeLine(out, "* BYE logging out");
+                            writeLine(out, tag + " OK LOGOUT completed");
+                            return;
+                        default:
+                            writeLine(out, tag + " BAD unknown command");
+                            break;
+                    }
+                }
+
+                if (command.equals("STARTTLS") && tls != null && !(socket instanceof SSLSocket)) {
+                    socket = secure(tls, socket);
+                    in = socket.getInputStream();
+                    out = writer(socket);
+                } else if (command.equals("IDLE")) {
+                    idling.add(out);
+                    String done = readLine(in);
+                    idling.remove(out);
+                    synchronized (out) {
+                        writeLine(out, tag + ("DONE".equalsIgnoreCase(done) ? " OK IDLE terminated" : " BAD expected DONE"));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    // Run the server side of the TLS handshake on a connected socket
+    private static Socket secure(SSLContext context, Socket socket) throws IOException {
+        SSLSocket secure = (SSLSocket) context.getSocketFactory().createSocket(socket, null, socket.getPort(), true);
+        secure.setUseClientMode(false);
+        secure.startHandshake();
+        return secure;
+    }
+
+    private static OutputStream writer(Socket socket) throws IOException {
+        return new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+    }
+
+    private synchronized void select(OutputStream out, String tag, String arguments) throws IOException {
+        writeLine(out, "* " + messages.size() + " EXISTS");
+        writeLine(out, "* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft)");
+        writeLine(out, "* OK [UIDVALIDITY " + uidValidity + "] UIDs valid");
+        writeLine(out, "* OK [UIDNEXT " + uidNext + "] Predicted next UID");
+        writeLine(out, "* OK [HIGHESTMODSEQ " + highestModSeq + "] Highest");
+
+        int qresync = arguments.toUpperCase().indexOf("(QRESYNC (");
+        if (qresync >= 0) {
+            String[] known = arguments.substring(qresync + "(QRESYNC (".length()).replace(")", "").trim().split(" ");
+            long knownValidity = Long.parseLong(known[0]);
+            long knownModSeq = Long.parseLong(known[1]);
+            if (knownValidity == uidValidity) {
+                List<Long> vanished = new ArrayList<>();
+                for (Map.Entry<Long, Long> entry : expunged.entrySet()) {
+                    if (entry.getValue() > knownModSeq) {
+                        vanished.add(entry.getKey());
+                    }
+                }
+                if (!vanished.isEmpty()) {
+                    writeLine(out, "* VANISHED (EARLIER) " + uidSet(vanished));
+                }
+                for (int i = 0; i < messages.size(); i++) {
+                    Message message = messages.get(i);
+                    if (message.modSeq > knownModSeq) {
+                        writeLine(out, "* " + (i + 1) + " FETCH (UID " + message.uid + " FLAGS (" + String.join(" ", message.flags)
+                                + ") MODSEQ (" + message.modSeq + "))");
+                    }
+                }
+            }
+        }
+        writeLine(out, tag + " OK [READ-WRITE] SELECT completed");
+    }
+
+    private synchronized void search(OutputStream out, String tag) throws IOException {
+        StringBuilder sb = new StringBuilder("* SEARCH");
+        for (Message message : messages) {
+            sb.append(' ').append(message.uid);
+        }
+        writeLine(out, sb.toString());
+        writeLine(out, tag + " OK SEARCH completed");
+    }
+
+    private synchronized void fetch(OutputStream out, String tag, String arguments) throws IOException {
+        int space = arguments.indexOf(' ');
+        String set = arguments.substring(0, space);
+        String rest = arguments.substring(space + 1).trim();
+
+        long changedSince = -1;
+        int changed = rest.toUpperCase().indexOf("(CHANGEDSINCE ");
+        if (changed >= 0) {
+            changedSince = Long.parseLong(rest.substring(changed + "(CHANGEDSINCE ".length(), rest.indexOf(')', changed)).trim());
+            rest = rest.substring(0, changed).trim();
+        }
+        if (rest.startsWith("(")) {
+            rest = rest.substring(1, rest.lastIndexOf(')'));
+        }
+        List<String> items = items(rest);
+
+        long maxUid = messages.isEmpty() ? 0 : messages.get(messages.size() - 1).uid;
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            if (!inSet(set, message.uid, maxUid) || message.modSeq <= changedSince) {
+                continue;
+            }
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            write(response, "* " + (i + 1) + " FETCH (UID " + message.uid);
+            for (String item : items) {
+                String name = item.toUpperCase();
+                if (name.equals("UID")) {
+                    continue;
+                } else if (name.equals("FLAGS")) {
+                    write(response, " FLAGS (" + String.join(" ", message.flags) + ")");
+                } else if (name.equals("MODSEQ")) {
+                    write(response, " MODSEQ (" + message.modSeq + ")");
+                } else if (name.equals("RFC822.SIZE")) {
+                    write(response, " RFC822.SIZE " + message.raw.length);
+                } else if (name.equals("ENVELOPE")) {
+                    write(response, " ENVELOPE " + envelope(message.structure.headers));
+                } else if (name.equals("BODYSTRUCTURE") || name.equals("BODY")) {
+                    write(response, " " + name + " " + bodyStructure(message.structure, message.raw));
+                } else if (name.startsWith("BODY[") || name.startsWith("BODY.PEEK[")) {
+                    writeSection(response, message, item.substring(item.indexOf('[')));
+                }
+            }
+            if (changedSince >= 0 && !items.contains("MODSEQ")) {
+                write(response, " MODSEQ (" + message.modSeq + ")");
+            }
+            write(response, ")\r\n");
+            response.writeTo(out);
+        }
+        writeLine(out, tag + " OK FETCH completed");
+    }
+
+    // Write "BODY[section]<offset> {n}" followed by the requested bytes
+    private void writeSection(ByteArrayOutputStream response, Message message, String spec) throws IOException {
+        int close = spec.indexOf(']');
+        String section = spec.substring(1, close).toUpperCase();
+        String partial = spec.substring(close + 1);
+
+        byte[] raw = message.raw;
+        int start = 0;
+        int end = raw.length;
+        Part top = message.structure;
+        if (section.equals("HEADER")) {
+            end = top.bodyStart;
+        } else if (section.equals("TEXT")) {
+            start = top.bodyStart;
+            end = top.bodyEnd;
+        } else if (!section.isEmpty()) {
+            Part part = top;
+            for (String number : section.split("\\.")) {
+                int index = Integer.parseInt(number) - 1;
+                if (part.children.isEmpty() && index == 0) {
+                    continue; // section 1 of a single-part message is its body
+                }
+                part = index < part.children.size() ? part.children.get(index) : null;
+                if (part == null) {
+                    break;
+                }
+            }
+            if (part == null) {
+                write(response, " BODY[" + section + "] NIL");
+                return;
+            }
+            start = part.bodyStart;
+            end = part.bodyEnd;
+        }
+
+        String key = "BODY[" + section + "]";
+        if (partial.startsWith("<")) {
+            String[] range = partial.substring(1, partial.indexOf('>')).split("\\.");
+            long offset = Long.parseLong(range[0]);
+            long length = range.length > 1 ? Long.parseLong(range[1]) : Long.MAX_VALUE;
+            key += "<" + offset + ">";
+            start = (int) Math.min(end, start + offset);
+            end = (int) Math.min(end, start + length);
+        }
+        write(response, " " + key + " {" + (end - start) + "}\r\n");
+        response.write(raw, start, end - start);
+    }
+
+    // Split a fetch item list on spaces that are not inside brackets
+    private static List<String> items(String list) {
+        List<String> items = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= list.length(); i++) {
+            char c = i < list.length() ? list.charAt(i) : ' ';
+            if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            } else if (c == ' ' && depth == 0) {
+                if (i > start) {
+                    items.add(list.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return items;
+    }
+
+    private static boolean inSet(String set, long uid, long maxUid) {
+        for (String range : set.split(",")) {
+            String[] bounds = range.split(":");
+            long first = bounds[0].equals("*") ? maxUid : Long.parseLong(bounds[0]);
+            long last = bounds.length == 1 ? first : bounds[1].equals("*") ? maxUid : Long.parseLong(bounds[1]);
+            if (uid >= Math.min(first, last) && uid <= Math.max(first, last)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String uidSet(List<Long> uids) {
+        StringBuilder sb = new StringBuilder();
+        for (long uid : uids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(uid);
+        }
+        return sb.toString();
+    }
+
+    private static String envelope(Map<String, String> headers) {
+        return "(" + quoted(headers.get("Date")) + " " + quoted(headers.get("Subject")) + " "
+                + addresses(headers.get("From")) + " " + addresses(headers.get("Sender") != null ? headers.get("Sender") : headers.get("From")) + " "
+                + addresses(headers.get("Reply-To") != null ? headers.get("Reply-To") : headers.get("From")) + " "
+                + addresses(headers.get("To")) + " " + addresses(headers.get("Cc")) + " " + addresses(headers.get("Bcc")) + " "
+                + quoted(headers.get("In-Reply-To")) + " " + quoted(headers.get("Message-ID")) + ")";
+    }
+
+    // Turn "Name <a@b>, c@d" into ((\"Name\" NIL \"a\" \"b\")(NIL NIL \"c\" \"d\"))
+    private static String addresses(String header) {
+        if (header == null || header.isBlank()) {
+            return "NIL";
+        }
+        StringBuilder sb = new StringBuilder("(");
+        for (String address : header.split(",")) {
+            String name = null;
+            String email = address.trim();
+            int open = email.indexOf('<');
+            if (open >= 0) {
+                name = email.substring(0, open).trim().replace("\"", "");
+                email = email.substring(open + 1, email.indexOf('>', open));
+            }
+            int at = email.indexOf('@');
+            String mailbox = at < 0 ? email : email.substring(0, at);
+            String host = at < 0 ? "" : email.substring(at + 1);
+            sb.append('(').append(quoted(name == null || name.isEmpty() ? null : name)).append(" NIL ")
+                    .append(quoted(mailbox)).append(' ').append(quoted(host)).append(')');
+        }
+        return sb.append(')').toString();
+    }
+
+    private static String bodyStructure(Part part, byte[] raw) {
+        String contentType = part.headers.getOrDefault("Content-Type", "text/plain; charset=us-ascii");
+        String mediaType = MimeParser.mediaType(contentType);
+        int slash = mediaType.indexOf('/');
+        String type = slash < 0 ? mediaType : mediaType.substring(0, slash);
+        String subtype = slash < 0 ? "plain" : mediaType.substring(slash + 1);
+
+        if (!part.children.isEmpty()) {
+            StringBuilder sb = new StringBuilder("(");
+            for (Part child : part.children) {
+                sb.append(bodyStructure(child, raw));
+            }
+            return sb.append(' ').append(quoted(subtype)).append(" (\"BOUNDARY\" ")
+                    .append(quoted(MimeParser.parameter(contentType, "boundary"))).append(") NIL NIL NIL)").toString();
+        }
+
+        StringBuilder sb = new StringBuilder("(");
+        sb.append(quoted(type)).append(' ').append(quoted(subtype)).append(' ');
+        String name = MimeParser.parameter(contentType, "name");
+        String charset = MimeParser.parameter(contentType, "charset");
+        if (name != null) {
+            sb.append("(\"NAME\" ").append(quoted(name)).append(")");
+        } else if (charset != null) {
+            sb.append("(\"CHARSET\" ").append(quoted(charset)).append(")");
+        } else {
+            sb.append("NIL");
+        }
+        String encoding = part.headers.getOrDefault("Content-Transfer-Encoding", "7bit").trim();
+        sb.append(" NIL NIL ").append(quoted(encoding)).append(' ').append(part.bodyEnd - part.bodyStart);
+        if (type.equalsIgnoreCase("text")) {
+            int lines = 0;
+            for (int i = part.bodyStart; i < part.bodyEnd; i++) {
+                if (raw[i] == '\n') {
+                    lines++;
+                }
+            }
+            sb.append(' ').append(lines);
+        }
+        sb.append(" NIL ");
+        String disposition = part.headers.get("Content-Disposition");
+        if (disposition == null) {
+            sb.append("NIL");
+        } else {
+            String filename = MimeParser.parameter(disposition, "filename");
+            sb.append('(').append(quoted(MimeParser.mediaType(disposition))).append(' ')
+                    .append(filename == null ? "NIL" : "(\"FILENAME\" " + quoted(filename) + ")").append(')');
+        }
+        return sb.append(" NIL NIL)").toString();
+    }
+
+    private static String quoted(String value) {
+        if (value == null) {
+            return "NIL";
+        }
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    // Parse a message into its tree of parts with body offsets
+    private static Part structure(byte[] raw) {
+        List<Part> stack = new ArrayList<>();
+        Part[] top = new Part[1];
+        try {
+            new MimeParser().parse(new ByteArrayInputStream(raw), new MimeHandler() {
+                @Override
+                public void startPart(int depth) {
+                    Part part = new Part();
+                    if (depth == 0) {
+                        top[0] = part;
+                    } else {
+                        stack.get(depth - 1).children.add(part);
+                    }
+                    stack.add(part);
+                }
+
+                @Override
+                public void header(String name, String value) {
+                    stack.get(stack.size() - 1).headers.putIfAbsent(name, value);
+                }
+
+                @Override
+                public void startBody(long offset) {
+                    stack.get(stack.size() - 1).bodyStart = (int) offset;
+                }
+
+                @Override
+                public void endPart(long offset) {
+                    Part part = stack.remove(stack.size() - 1);
+                    part.bodyEnd = Math.max(part.bodyStart, (int) offset);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return top[0];
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
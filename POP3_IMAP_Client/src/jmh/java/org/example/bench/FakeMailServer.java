@@ -0,0 +1,91 @@
+package org.example.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * POP3, SMTP and IMAP servers in one, for exercising every client of this project
+ * without a real mail server.
+ *
+ * All three listen on free local ports and start with the same mailbox. Messages sent
+ * over SMTP are delivered to the IMAP mailbox (and announced to idling sessions); the
+ * POP3 maildrop keeps its initial messages, so fetch runs stay repeatable.
+ *
+ * <pre>{@code
+ * try (FakeMailServer server = new FakeMailServer(SizeDistribution.parse("lognormal:16384:1.5").mailbox(1000, 42), 2)) {
+ *     server.setFailureRate(0.01);
+ *     MailClient pop3 = new MailClient("localhost", server.getPop3Port(), "+OK");
+ *     ...
+ * }
+ * }</pre>
+ */
+public class FakeMailServer implements Closeable {
+    private final FakePop3Server pop3;
+    private final FakeSmtpServer smtp;
+    private final FakeImapServer imap;
+
+    /**
+     * @param mailbox       the raw messages every protocol starts with, with CRLF line endings
+     * @param latencyMillis delay added before the POP3 and SMTP responses a client waits for
+     */
+    public FakeMailServer(List<byte[]> mailbox, long latencyMillis) throws IOException {
+        pop3 = new FakePop3Server(mailbox, latencyMillis);
+        imap = new FakeImapServer(mailbox);
+        smtp = new FakeSmtpServer(latencyMillis).setListener(imap::deliver);
+    }
+
+    /**
+     * Answers this fraction of POP3 RETR/TOP commands with "-ERR", and of SMTP MAIL
+     * commands and messages with "451".
+     *
+     * @return this server
+     */
+    public FakeMailServer setFailureRate(double failureRate) {
+        pop3.setFailureRate(failureRate);
+        smtp.setFailureRate(failureRate);
+        return this;
+    }
+
+    /**
+     * Drops POP3 and SMTP connections instead of answering this fraction of commands.
+     *
+     * @return this server
+     */
+    public FakeMailServer setDisconnectRate(double disconnectRate) {
+        pop3.setDisconnectRate(disconnectRate);
+        smtp.setDisconnectRate(disconnectRate);
+        return this;
+    }
+
+    public int getPop3Port() {
+        return pop3.getPort();
+    }
+
+    public int getSmtpPort() {
+        return smtp.getPort();
+    }
+
+    public int getImapPort() {
+        return imap.getPort();
+    }
+
+    public FakePop3Server getPop3() {
+        return pop3;
+    }
+
+    public FakeSmtpServer getSmtp() {
+        return smtp;
+    }
+
+    public FakeImapServer getImap() {
+        return imap;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pop3.close();
+        smtp.close();
+        imap.close();
+    }
+}
@@ -0,0 +1,346 @@
+package org.example.bench;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal in-process POP3 server for driving {@link org.example.MailClient} in
+ * benchmarks and load tests.
+ *
+ * It accepts any USER/PASS, serves a fixed list of messages and answers CAPA, STAT,
+ * LIST, UIDL, RETR, TOP, DELE, NOOP, RSET and QUIT. Every connection gets its own
+ * thread, and an optional delay before each response simulates network latency.
+ * Messages marked with DELE are removed from the mailbox when their session ends with
+ * QUIT; message numbers stay those of the original list. Failures can be injected:
+ * a share of RETR/TOP commands answered with "-ERR", and a share of commands after
+ * which the connection is dropped without a response.
+ *
+ * With {@link #setTls} the server speaks TLS, either from the first byte or after the
+ * client sends "STLS", which CAPA then advertises.
+ */
+public class FakePop3Server implements Closeable {
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-pop3");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<byte[]> messages;
+    // Messages removed from the mailbox; sessions start with these already deleted
+    private final boolean[] removed;
+    private final long latencyMillis;
+    private volatile double failureRate;
+    private volatile double disconnectRate;
+    private volatile SSLContext tlsContext;
+    private volatile boolean implicitTls;
+
+    /**
+     * Starts the server on a free local port.
+     *
+     * @param messages      the raw messages of the mailbox, with CRLF line endings
+     * @param latencyMillis delay added before every response
+     */
+    public FakePop3Server(List<byte[]> messages, long latencyMillis) throws IOException {
+        this.messages = new ArrayList<>(messages);
+        this.removed = new boolean[messages.size()];
+        this.latencyMillis = latencyMillis;
+        // A deep backlog so that hundreds of simultaneous connects are not dropped
+        this.serverSocket = new ServerSocket(0, 1024);
+        connections.submit(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Answers this fraction of RETR and TOP commands with "-ERR".
+     *
+     * @return this server
+     */
+    public FakePop3Server setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /**
+     * Drops the connection instead of answering this fraction of commands.
+     *
+     * @return this server
+     */
+    public FakePop3Server setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+        return this;
+    }
+
+    /**
+     * Encrypts new connections with a certificate from the context: from the start with
+     * {@code implicit}, otherwise after "STLS".
+     *
+     * @return this server
+     */
+    public FakePop3Server setTls(SSLContext context, boolean implicit) {
+        this.tlsContext = context;
+        this.implicitTls = implicit;
+        return this;
+    }
+
+    /**
+     * Removes a message from the mailbox, as another client would.
+     *
+     * @param number the message number, from 1
+     */
+    public synchronized void remove(int number) {
+        removed[number - 1] = true;
+    }
+
+    private synchronized boolean[] snapshot() {
+        return removed.clone();
+    }
+
+    private synchronized void commit(boolean[] deleted) {
+        for (int i = 0; i < deleted.length; i++) {
+            removed[i] |= deleted[i];
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                // Responses are flushed one by one; without this, Nagle's algorithm holds
+                // each one back until the client's delayed ACK of the previous one
+                socket.setTcpNoDelay(true);
+                connections.submit(() -> serve(socket));
+            } catch (IOException e) {
+                return; // server closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        boolean[] deleted = snapshot();
+        SSLContext tls = tlsContext;
+        try {
+            if (tls != null && implicitTls) {
+                socket = secure(tls, socket);
+            }
+            BufferedReader in = reader(socket);
+            OutputStream out = writer(socket);
+            respond(out, "+OK fake POP3 server ready");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                String command = parts[0].toUpperCase();
+                // Only delay when the client is waiting, so pipelined batches pay it once
+                if (!in.ready()) {
+                    pause();
+                }
+                if (chance(disconnectRate)) {
+                    return;
+                }
+                switch (command) {
+                    case "USER":
+                    case "PASS":
+                    case "NOOP":
+                        respond(out, "+OK");
+                        break;
+                    case "CAPA":
+                        boolean stls = tls != null && !(socket instanceof SSLSocket);
+                        respond(out, "+OK capability list follows\r\nUSER\r\nUIDL\r\nTOP\r\nPIPELINING\r\n"
+                                + (stls ? "STLS\r\n" : "") + ".");
+                        break;
+                    case "STLS":
+                        if (tls == null || socket instanceof SSLSocket) {
+                            respond(out, "-ERR TLS not available");
+                            break;
+                        }
+                        respond(out, "+OK begin TLS negotiation");
+                        socket = secure(tls, socket);
+                        in = reader(socket);
+                        out = writer(socket);
+                        break;
+                    case "STAT":
+                        respond(out, "+OK " + messages.size() + " " + totalSize());
+                        break;
+                    case "LIST":
+                    case "UIDL":
+                        if (parts.length > 1) {
+                            int listed = Integer.parseInt(parts[1]) - 1;
+                            if (listed < 0 || listed >= messages.size() || deleted[listed]) {
+                                respond(out, "-ERR no such message");
+                            } else {
+                                String value = command.equals("LIST") ? String.valueOf(messages.get(listed).length) : uid(listed);
+                                respond(out, "+OK " + (listed + 1) + " " + value);
+                            }
+                        } else if (command.equals("LIST")) {
+                            listAll(out, deleted);
+                        } else {
+                            uidlAll(out, deleted);
+                        }
+                        break;
+                    case "RETR":
+                    case "TOP":
+                        int index = parts.length > 1 ? Integer.parseInt(parts[1]) - 1 : -1;
+                        if (index < 0 || index >= messages.size() || deleted[index]) {
+                            respond(out, "-ERR no such message");
+                        } else if (chance(failureRate)) {
+                            respond(out, "-ERR [SYS/TEMP] injected failure");
+                        } else {
+                            int bodyLines = command.equals("TOP") && parts.length > 2 ? Integer.parseInt(parts[2]) : -1;
+                            sendMessage(out, messages.get(index), bodyLines);
+                        }
+                        break;
+                    case "DELE":
+                        int deleteIndex = Integer.parseInt(parts[1]) - 1;
+                        if (deleteIndex < 0 || deleteIndex >= messages.size() || deleted[deleteIndex]) {
+                            respond(out, "-ERR no such message");
+                        } else {
+                            deleted[deleteIndex] = true;
+                            respond(out, "+OK message deleted");
+                        }
+                        break;
+                    case "RSET":
+                        deleted = snapshot();
+                        respond(out, "+OK");
+                        break;
+                    case "QUIT":
+                        commit(deleted);
+                        respond(out, "+OK bye");
+                        return;
+                    default:
+                        respond(out, "-ERR unknown command");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    // Run the server side of the TLS handshake on a connected socket
+    private static Socket secure(SSLContext context, Socket socket) throws IOException {
+        SSLSocket secure = (SSLSocket) context.getSocketFactory().createSocket(socket, null, socket.getPort(), true);
+        secure.setUseClientMode(false);
+        secure.startHandshake();
+        return secure;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+    }
+
+    private static OutputStream writer(Socket socket) throws IOException {
+        return new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+    }
+
+    private void listAll(OutputStream out, boolean[] deleted) throws IOException {
+        StringBuilder list = new StringBuilder("+OK scan listing follows\r\n");
+        for (int i = 0; i < messages.size(); i++) {
+            if (!deleted[i]) {
+                list.append(i + 1).append(' ').append(messages.get(i).length).append("\r\n");
+            }
+        }
+        respond(out, list.append('.').toString());
+    }
+
+    private void uidlAll(OutputStream out, boolean[] deleted) throws IOException {
+        StringBuilder uidl = new StringBuilder("+OK unique-id listing follows\r\n");
+        for (int i = 0; i < messages.size(); i++) {
+            if (!deleted[i]) {
+                uidl.append(i + 1).append(' ').append(uid(i)).append("\r\n");
+            }
+        }
+        respond(out, uidl.append('.').toString());
+    }
+
+    // Unique IDs are stable across sessions, derived from the message position
+    static String uid(int index) {
+        return "uid-" + (index + 1);
+    }
+
+    private long totalSize() {
+        long total = 0;
+        for (byte[] message : messages) {
+            total += message.length;
+        }
+        return total;
+    }
+
+    private void respond(OutputStream out, String response) throws IOException {
+        out.write((response + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    // Send a message dot-stuffed; with bodyLines >= 0 only headers and that many body lines
+    private void sendMessage(OutputStream out, byte[] message, int bodyLines) throws IOException {
+        out.write("+OK message follows\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        boolean inBody = false;
+        int bodyLinesSent = 0;
+        int begin = 0;
+        while (begin < message.length) {
+            int end = begin;
+            while (end < message.length && message[end] != '\n') {
+                end++;
+            }
+            if (inBody && bodyLines >= 0 && bodyLinesSent++ >= bodyLines) {
+                break;
+            }
+            if (message[begin] == '.') {
+                out.write('.');
+            }
+            out.write(message, begin, end - begin);
+            if (end == message.length) {
+                out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            } else {
+                out.write('\n');
+            }
+            if (!inBody && (end - begin == 0 || (end - begin == 1 && message[begin] == '\r'))) {
+                inBody = true;
+            }
+            begin = end + 1;
+        }
+        out.write(".\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    static boolean chance(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private void pause() {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.example.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A minimal in-process SMTP server for driving {@link org.example.MailClient} in
+ * benchmarks and load tests.
+ *
+ * It answers EHLO (advertising PIPELINING, 8BITMIME and SIZE), HELO, MAIL, RCPT, DATA,
+ * RSET, NOOP and QUIT, accepts any sender and recipient, and hands every accepted
+ * message, dot-unstuffed, to an optional listener. Like {@link FakePop3Server} it can
+ * add a delay before responses the client waits for, answer a share of MAIL commands
+ * and messages with a temporary failure, and drop a share of connections.
+ */
+public class FakeSmtpServer implements Closeable {
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-smtp");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long latencyMillis;
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private volatile double failureRate;
+    private volatile double disconnectRate;
+    private volatile Consumer<byte[]> listener;
+
+    /**
+     * Starts the server on a free local port.
+     *
+     * @param latencyMillis delay added before every response the client waits for
+     */
+    public FakeSmtpServer(long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.serverSocket = new ServerSocket(0, 1024);
+        connections.submit(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Answers this fraction of MAIL commands and of messages with "451".
+     *
+     * @return this server
+     */
+    public FakeSmtpServer setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /**
+     * Drops the connection instead of answering this fraction of commands.
+     *
+     * @return this server
+     */
+    public FakeSmtpServer setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+        return this;
+    }
+
+    /**
+     * Receives every accepted message, from the connection threads.
+     *
+     * @return this server
+     */
+    public FakeSmtpServer setListener(Consumer<byte[]> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    // Messages accepted with "250" after DATA
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    // Size of the accepted messages after dot-unstuffing
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.submit(() -> serve(socket));
+            } catch (IOException e) {
+                return; // server closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024)) {
+            respond(out, "220 fake SMTP server ready");
+            boolean sender = false;
+            int recipients = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+                // Only delay when the client is waiting, so pipelined envelopes pay it once
+                if (!in.ready()) {
+                    pause();
+                }
+                if (FakePop3Server.chance(disconnectRate)) {
+                    return;
+                }
+                switch (command) {
+                    case "EHLO":
+                        respond(out, "250-fake.example.com\r\n250-PIPELINING\r\n250-8BITMIME\r\n250 SIZE 52428800");
+                        break;
+                    case "HELO":
+                        respond(out, "250 fake.example.com");
+                        break;
+                    case "MAIL":
+                        sender = !FakePop3Server.chance(failureRate);
+                        recipients = 0;
+                        respond(out, sender ? "250 2.1.0 OK" : "451 4.3.0 Injected failure");
+                        break;
+                    case "RCPT":
+                        if (sender) {
+                            recipients++;
+                            respond(out, "250 2.1.5 OK");
+                        } else {
+                            respond(out, "503 5.5.1 MAIL first");
+                        }
+                        break;
+                    case "DATA":
+                        if (!sender || recipients == 0) {
+                            respond(out, "503 5.5.1 No valid recipients");
+                            break;
+                        }
+                        respond(out, "354 End data with <CR><LF>.<CR><LF>");
+                        byte[] message = readData(in);
+                        if (message == null) {
+                            return;
+                        }
+                        pause();
+                        sender = false;
+                        if (FakePop3Server.chance(failureRate)) {
+                            respond(out, "451 4.3.0 Injected failure");
+                        } else {
+                            accepted.incrementAndGet();
+                            receivedBytes.addAndGet(message.length);
+                            Consumer<byte[]> current = listener;
+                            if (current != null) {
+                                current.accept(message);
+                            }
+                            respond(out, "250 2.0.0 Queued");
+                        }
+                        break;
+                    case "RSET":
+                        sender = false;
+                        recipients = 0;
+                        respond(out, "250 2.0.0 OK");
+                        break;
+                    case "NOOP":
+                        respond(out, "250 2.0.0 OK");
+                        break;
+                    case "QUIT":
+                        respond(out, "221 2.0.0 Bye");
+                        return;
+                    default:
+                        respond(out, "500 5.5.2 Unknown command");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    // Read message lines up to the terminating "."; null if the client went away first
+    private static byte[] readData(BufferedReader in) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream(16 * 1024);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(".")) {
+                return message.toByteArray();
+            }
+            String content = line.startsWith(".") ? line.substring(1) : line;
+            message.writeBytes(content.getBytes(StandardCharsets.ISO_8859_1));
+            message.write('\r');
+            message.write('\n');
+        }
+        return null;
+    }
+
+    private void respond(OutputStream out, String response) throws IOException {
+        out.write((response + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private void pause() {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.example.bench;
+
+import org.example.ImapBodyPart;
+import org.example.ImapClient;
+import org.example.ImapMessageSummary;
+import org.example.ImapSyncResult;
+import org.example.ImapSyncState;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The IMAP operations a mail reader repeats all day, against a {@link FakeImapServer}
+ * holding 100 plain, HTML and attachment messages:
+ *
+ * <ul>
+ *     <li>{@code summaries}: SELECT, then envelope and body structure of every message;</li>
+ *     <li>{@code partialFetch}: the first 4 KB of the last part of every message with
+ *     BODY.PEEK, as a preview would;</li>
+ *     <li>{@code idle}: IDLE until the server announces a message delivered meanwhile;</li>
+ *     <li>{@code sync}: one flag change, one new and one expunged message, then a sync
+ *     from the previous state.</li>
+ * </ul>
+ * {@code capabilities} runs the sync with QRESYNC, and with CONDSTORE only, where the
+ * changes have to be asked for with CHANGEDSINCE and UID SEARCH.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImapSyncBenchmark {
+    private static final int MESSAGES = 100;
+    private static final String[] KINDS = {"plain", "html", "attachments"};
+
+    @Param({"QRESYNC", "CONDSTORE"})
+    public String capabilities;
+
+    private FakeImapServer server;
+    private ImapClient client;
+    private ExecutorService deliverer;
+    private List<ImapMessageSummary> summaries;
+    private ImapSyncState state;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<byte[]> mailbox = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            mailbox.add(MailCorpus.message(KINDS[i % KINDS.length]));
+        }
+        server = new FakeImapServer(mailbox).setCapabilities(capabilities.equals("QRESYNC")
+                ? "IMAP4rev1 IDLE CONDSTORE QRESYNC ENABLE" : "IMAP4rev1 IDLE CONDSTORE ENABLE");
+        client = new ImapClient("localhost", server.getPort());
+        client.login("user", "secret");
+        client.select("INBOX");
+        summaries = client.fetchSummaries("1:*");
+        state = client.sync("INBOX", null).getState();
+        deliverer = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        deliverer.shutdownNow();
+        client.logout();
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public int summaries() throws IOException {
+        client.select("INBOX");
+        return client.fetchSummaries("1:*").size();
+    }
+
+    @Benchmark
+    public long partialFetch() throws IOException {
+        long bytes = 0;
+        for (ImapMessageSummary summary : summaries) {
+            List<ImapBodyPart> parts = summary.getParts();
+            byte[] preview = client.fetchPartial(summary.getUid(), parts.get(parts.size() - 1).getSection(), 0, 4096);
+            bytes += preview == null ? 0 : preview.length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public long idle() throws Exception {
+        byte[] message = MailCorpus.message("plain");
+        Future<Long> delivered = deliverer.submit(() -> {
+            while (server.getIdleSessions() == 0) {
+                Thread.onSpinWait();
+            }
+            return server.deliver(message);
+        });
+        client.idle(response -> !response.getText().endsWith(" EXISTS"), 5000);
+        long uid = delivered.get();
+        // Keep the mailbox at its size; nobody is idling to be told
+        server.expunge(uid);
+        return uid;
+    }
+
+    @Benchmark
+    public ImapSyncResult sync() throws IOException {
+        server.setFlags(state.getUids().last(), "\\Seen");
+        server.deliver(MailCorpus.message("plain"));
+        server.expunge(state.getUids().first());
+        ImapSyncResult result = client.sync("INBOX", state);
+        state = result.getState();
+        return result;
+    }
+}
@@ -0,0 +1,345 @@
+package org.example.bench;
+
+import org.example.BufferPool;
+import org.example.Mail;
+import org.example.MailClient;
+import org.example.OutgoingMail;
+import org.example.SmtpMessageResult;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test of {@link MailClient} against an in-process {@link FakeMailServer}.
+ *
+ * A number of clients, each with its own session on its own thread, run a scenario:
+ * {@code fetch} retrieves random messages over POP3 and parses them completely,
+ * {@code send} sends messages over SMTP. The report gives throughput, latency
+ * percentiles per operation, errors, and heap use: the live heap before and after, the
+ * peak seen while running, the bytes allocated per operation and the allocation rate,
+ * the garbage collections with their total and longest pause, and how well the
+ * {@link BufferPool} reused its buffers.
+ *
+ * Usage: {@code java -cp target/benchmarks.jar org.example.bench.LoadGenerator [options]}
+ * <pre>
+ *   --scenario fetch|send     what the clients do (fetch)
+ *   --clients N               concurrent sessions (8)
+ *   --operations N            operations per client (200)
+ *   --messages N              mailbox size (1000)
+ *   --sizes DIST              message sizes, see SizeDistribution (lognormal:16384:1.0)
+ *   --latency MS              server delay per response (1)
+ *   --failure-rate R          share of fetches/sends the server fails (0)
+ *   --disconnect-rate R       share of commands after which the server hangs up (0)
+ * </pre>
+ */
+public class LoadGenerator {
+    private String scenario = "fetch";
+    private int clients = 8;
+    private int operations = 200;
+    private int messages = 1000;
+    private SizeDistribution sizes = SizeDistribution.parse("lognormal:16384:1.0");
+    private long latencyMillis = 1;
+    private double failureRate;
+    private double disconnectRate;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--scenario":
+                    if (!value.equals("fetch") && !value.equals("send")) {
+                        usage("Unknown scenario " + value);
+                    }
+                    generator.scenario = value;
+                    break;
+                case "--clients":
+                    generator.clients = Integer.parseInt(value);
+                    break;
+                case "--operations":
+                    generator.operations = Integer.parseInt(value);
+                    break;
+                case "--messages":
+                    generator.messages = Integer.parseInt(value);
+                    break;
+                case "--sizes":
+                    generator.sizes = SizeDistribution.parse(value);
+                    break;
+                case "--latency":
+                    generator.latencyMillis = Long.parseLong(value);
+                    break;
+                case "--failure-rate":
+                    generator.failureRate = Double.parseDouble(value);
+                    break;
+                case "--disconnect-rate":
+                    generator.disconnectRate = Double.parseDouble(value);
+                    break;
+                default:
+                    usage("Unknown option " + args[i]);
+            }
+        }
+        generator.run();
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Options: --scenario fetch|send --clients N --operations N --messages N --sizes DIST"
+                + " --latency MS --failure-rate R --disconnect-rate R");
+        System.exit(2);
+    }
+
+    private void run() throws Exception {
+        System.out.printf("Generating %d messages (%s)...%n", messages, sizes);
+        List<byte[]> mailbox = sizes.mailbox(messages, 42);
+        long mailboxBytes = 0;
+        for (byte[] message : mailbox) {
+            mailboxBytes += message.length;
+        }
+        System.out.printf("Mailbox: %d messages, %.1f MB, average %d bytes%n",
+                messages, mailboxBytes / 1e6, mailboxBytes / Math.max(1, messages));
+
+        try (FakeMailServer server = new FakeMailServer(mailbox, latencyMillis)) {
+            server.setFailureRate(failureRate).setDisconnectRate(disconnectRate);
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            System.gc();
+            long heapBefore = memory.getHeapMemoryUsage().getUsed();
+            long[] gcBefore = gcTotals();
+
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicLong peakHeap = new AtomicLong(heapBefore);
+            Thread sampler = new Thread(() -> {
+                while (running.get()) {
+                    peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "heap-sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            List<Future<ClientResult>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                int seed = i;
+                futures.add(pool.submit(() -> scenario.equals("fetch")
+                        ? fetch(server.getPop3Port(), new Random(seed))
+                        : send(server.getSmtpPort(), new Random(seed))));
+            }
+            List<ClientResult> results = new ArrayList<>();
+            try {
+                for (Future<ClientResult> future : futures) {
+                    results.add(future.get());
+                }
+            } finally {
+                pool.shutdownNow();
+                running.set(false);
+            }
+            long elapsed = System.nanoTime() - start;
+            sampler.join();
+
+            long[] gcAfter = gcTotals();
+            System.gc();
+            long heapAfter = memory.getHeapMemoryUsage().getUsed();
+            report(results, elapsed, heapBefore, peakHeap.get(), heapAfter);
+            System.out.printf("  gc          %d collections, %d ms paused in total, %.1f%% of the run%n",
+                    gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1],
+                    100.0 * (gcAfter[1] - gcBefore[1]) / (elapsed / 1e6));
+            System.out.println("  " + BufferPool.getHeap());
+            System.out.println("  " + BufferPool.getDirect());
+        }
+    }
+
+    // Collections and milliseconds spent in them so far, over all collectors
+    private static long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return new long[]{count, millis};
+    }
+
+    // Retrieve random messages and parse each completely
+    private ClientResult fetch(int port, Random random) {
+        ClientResult result = new ClientResult(operations);
+        MailClient client = null;
+        for (int i = 0; i < operations; i++) {
+            int emailId = random.nextInt(messages) + 1;
+            long start = System.nanoTime();
+            try {
+                if (client == null) {
+                    client = connect(port, "+OK");
+                    client.login("load", "secret");
+                }
+                Mail mail = client.fetchEmail(emailId);
+                if (mail == null) {
+                    result.errors++;
+                    continue;
+                }
+                mail.getTextBody();
+                mail.getAttachments();
+                result.bytes += mail.getRaw().remaining();
+                result.record(System.nanoTime() - start);
+            } catch (IOException e) {
+                // The server hung up; count it and carry on with a new session
+                result.errors++;
+                result.reconnects++;
+                close(client);
+                client = null;
+            }
+        }
+        close(client);
+        return result.finish();
+    }
+
+    // Send messages with a body drawn from the size distribution
+    private ClientResult send(int port, Random random) {
+        ClientResult result = new ClientResult(operations);
+        MailClient client = null;
+        for (int i = 0; i < operations; i++) {
+            String body = body(sizes.next(random));
+            OutgoingMail mail = new OutgoingMail("load@example.com", List.of("inbox@example.com"),
+                    "Load test " + i, body, List.of());
+            long start = System.nanoTime();
+            try {
+                if (client == null) {
+                    client = connect(port, "220");
+                }
+                SmtpMessageResult sent = client.sendBatch(List.of(mail)).getResults().get(0);
+                if (!sent.isAccepted()) {
+                    result.errors++;
+                    continue;
+                }
+                result.bytes += body.length();
+                result.record(System.nanoTime() - start);
+            } catch (IOException e) {
+                result.errors++;
+                result.reconnects++;
+                close(client);
+                client = null;
+            }
+        }
+        close(client);
+        return result.finish();
+    }
+
+    private static MailClient connect(int port, String greeting) throws IOException {
+        return new MailClient("localhost", port, greeting);
+    }
+
+    private static void close(MailClient client) {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    // Plain text lines of 72 characters, about the given size in total
+    private static String body(int size) {
+        StringBuilder body = new StringBuilder(size + 80);
+        String line = "The quick brown fox jumps over the lazy dog while the load test runs on.\n";
+        while (body.length() < size) {
+            body.append(line);
+        }
+        return body.toString();
+    }
+
+    private void report(List<ClientResult> results, long elapsedNanos, long heapBefore, long peakHeap, long heapAfter) {
+        int completed = 0;
+        long errors = 0;
+        long reconnects = 0;
+        long bytes = 0;
+        long allocated = 0;
+        for (ClientResult result : results) {
+            completed += result.count;
+            errors += result.errors;
+            reconnects += result.reconnects;
+            bytes += result.bytes;
+            allocated += result.allocatedBytes;
+        }
+        long[] latencies = new long[completed];
+        int offset = 0;
+        for (ClientResult result : results) {
+            System.arraycopy(result.latencies, 0, latencies, offset, result.count);
+            offset += result.count;
+        }
+        Arrays.sort(latencies);
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%nScenario %s: %d clients x %d operations, latency %d ms, failure rate %.3f, disconnect rate %.3f%n",
+                scenario, clients, operations, latencyMillis, failureRate, disconnectRate);
+        System.out.printf("  completed   %d in %.2f s (%d errors, %d reconnects)%n", completed, seconds, errors, reconnects);
+        System.out.printf("  throughput  %.1f messages/sec, %.1f MB/s%n", completed / seconds, bytes / 1e6 / seconds);
+        System.out.printf("  latency ms  p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n", percentile(latencies, 50),
+                percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 100));
+        System.out.printf("  heap MB     before %.1f, peak %.1f, after %.1f%n", heapBefore / 1e6, peakHeap / 1e6, heapAfter / 1e6);
+        if (allocated > 0) {
+            System.out.printf("  allocated   %.1f KB per operation on client threads, %.1f MB/s%n",
+                    allocated / 1024.0 / Math.max(1, completed + errors), allocated / 1e6 / seconds);
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    // What one client measured; only touched by its own thread until it is done
+    private static final class ClientResult {
+        final long[] latencies;
+        final long allocatedAtStart = allocatedBytes();
+        int count;
+        long errors;
+        long reconnects;
+        long bytes;
+        long allocatedBytes;
+
+        ClientResult(int operations) {
+            latencies = new long[operations];
+        }
+
+        void record(long nanos) {
+            latencies[count++] = nanos;
+        }
+
+        ClientResult finish() {
+            long now = allocatedBytes();
+            allocatedBytes = now < 0 ? 0 : now - allocatedAtStart;
+            return this;
+        }
+
+        // Bytes allocated by the current thread so far, or -1 where the JVM cannot tell
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.example.bench;
+
+import org.example.MailArchive;
+import org.example.MessageStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Disk footprint and single-message read latency of the {@link MailArchive} against the
+ * uncompressed {@link MessageStore}, for several block sizes.
+ *
+ * The mailbox is 600 messages from the {@link MailCorpus}: plain and HTML messages with
+ * a varying subject, and the message with 40 attachments sent to 200 recipients. The
+ * footprint of both stores is printed when each trial starts; the scores are the time
+ * to read one random message back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailArchiveBenchmark {
+    private static final int MESSAGES = 600;
+
+    @Param({"16384", "65536", "262144"})
+    public int blockSize;
+
+    private Path directory;
+    private MailArchive archive;
+    private MessageStore store;
+    private final List<String> uids = new ArrayList<>();
+    private final Random random = new Random(11);
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("archive-bench");
+        archive = new MailArchive(directory.resolve("archive"), blockSize);
+        store = new MessageStore(directory.resolve("store"));
+        String[] kinds = {"plain", "html", "attachments"};
+        byte[][] corpus = new byte[kinds.length][];
+        for (int k = 0; k < kinds.length; k++) {
+            corpus[k] = MailCorpus.message(kinds[k]);
+        }
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] message = corpus[i % kinds.length];
+            if (i % kinds.length != 2) {
+                // Every text message is a little different, as they would be
+                String text = new String(message, StandardCharsets.UTF_8);
+                message = text.replaceFirst("Subject: ([^\r]*)", "Subject: $1 #" + i).getBytes(StandardCharsets.UTF_8);
+            }
+            String uid = "uid-" + i;
+            archive.append(uid, message);
+            store.append(uid, message);
+            uids.add(uid);
+        }
+        archive.flush();
+        // Measured after closing, which trims the store's preallocated segment
+        store.close();
+        System.out.printf("%nOriginal %.1f MB, store %.1f MB, archive %.1f MB (%d attachments stored once)%n",
+                archive.getOriginalBytes() / 1e6, size(directory.resolve("store")) / 1e6,
+                archive.getDiskBytes() / 1e6, archive.getBlobCount());
+        store = new MessageStore(directory.resolve("store"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        archive.close();
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static long size(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            long total = 0;
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file)) {
+                    total += Files.size(file);
+                }
+            }
+            return total;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer archiveRead() throws IOException {
+        return archive.get(uids.get(random.nextInt(uids.size())));
+    }
+
+    @Benchmark
+    public int storeRead() {
+        // Touch every byte, as the archive has to when it inflates and copies
+        ByteBuffer raw = store.get(uids.get(random.nextInt(uids.size())));
+        int sum = 0;
+        while (raw.hasRemaining()) {
+            sum += raw.get();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,200 @@
+package org.example.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Realistic messages for the parsing benchmarks, built with CRLF line breaks as they
+ * arrive from a server.
+ *
+ * <ul>
+ *     <li>{@code plain}: a few kilobytes of plain text with the header block of a
+ *     message that went through three relays;</li>
+ *     <li>{@code html}: a newsletter with quoted-printable text and HTML alternatives;</li>
+ *     <li>{@code attachments}: a short text and 40 small base64 attachments of 1-16 KB;</li>
+ *     <li>{@code huge}: a short text and one 20 MB base64 attachment.</li>
+ * </ul>
+ * The content is generated from a fixed seed, so every run sees the same bytes.
+ */
+public final class MailCorpus {
+    public static final String[] KINDS = {"plain", "html", "attachments", "huge"};
+
+    private static final String[] WORDS = {
+            "the", "quarterly", "report", "meeting", "is", "moved", "to", "Thursday", "please", "review",
+            "attached", "figures", "before", "and", "send", "comments", "budget", "for", "next", "year",
+            "team", "update", "customer", "feedback", "release", "schedule", "on", "track", "thanks", "regards"};
+
+    private MailCorpus() {
+    }
+
+    /**
+     * Builds the message of the given kind.
+     *
+     * @param kind one of {@link #KINDS}
+     * @return the message bytes, without POP3 dot-stuffing
+     */
+    public static byte[] message(String kind) {
+        Random random = new Random(kind.hashCode());
+        switch (kind) {
+            case "plain":
+                return plain(random);
+            case "html":
+                return html(random);
+            case "attachments":
+                return attachments(random, 40, 1024, 16 * 1024);
+            case "huge":
+                return attachments(random, 1, 20 * 1024 * 1024, 20 * 1024 * 1024);
+            default:
+                throw new IllegalArgumentException("Unknown message kind " + kind);
+        }
+    }
+
+    /**
+     * Frames a message as the response to "RETR": status line, dot-stuffed lines and
+     * the terminating ".".
+     */
+    public static byte[] retrResponse(byte[] message) {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream(message.length + message.length / 64 + 64);
+        wire.writeBytes(("+OK " + message.length + " octets\r\n").getBytes(StandardCharsets.US_ASCII));
+        boolean lineStart = true;
+        for (byte b : message) {
+            if (lineStart && b == '.') {
+                wire.write('.');
+            }
+            wire.write(b);
+            lineStart = b == '\n';
+        }
+        if (!lineStart) {
+            wire.write('\r');
+            wire.write('\n');
+        }
+        wire.writeBytes(".\r\n".getBytes(StandardCharsets.US_ASCII));
+        return wire.toByteArray();
+    }
+
+    private static byte[] plain(Random random) {
+        StringBuilder message = new StringBuilder(8 * 1024);
+        headers(message, random, "Weekly status");
+        message.append("Content-Type: text/plain; charset=\"UTF-8\"\r\n");
+        message.append("Content-Transfer-Encoding: 8bit\r\n\r\n");
+        message.append("Hi all,\r\n\r\n");
+        paragraphs(message, random, 6);
+        message.append("Cheers,\r\nDaniel\r\n");
+        return message.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] html(Random random) {
+        String boundary = "----=_Alt_" + Long.toHexString(random.nextLong());
+        StringBuilder message = new StringBuilder(32 * 1024);
+        headers(message, random, "Our October newsletter");
+        message.append("MIME-Version: 1.0\r\n");
+        message.append("Content-Type: multipart/alternative; boundary=\"").append(boundary).append("\"\r\n\r\n");
+        message.append("This is a multi-part message in MIME format.\r\n\r\n");
+
+        message.append("--").append(boundary).append("\r\n");
+        message.append("Content-Type: text/plain; charset=\"UTF-8\"\r\n");
+        message.append("Content-Transfer-Encoding: quoted-printable\r\n\r\n");
+        StringBuilder text = new StringBuilder();
+        paragraphs(text, random, 10);
+        message.append(text.toString().replace("=", "=3D"));
+
+        message.append("--").append(boundary).append("\r\n");
+        message.append("Content-Type: text/html; charset=\"UTF-8\"\r\n");
+        message.append("Content-Transfer-Encoding: quoted-printable\r\n\r\n");
+        message.append("<!DOCTYPE html>\r\n<html><head><meta charset=3D\"utf-8\"><style>p{margin:0 0 1em}</style></head>\r\n");
+        message.append("<body><table width=3D\"600\" cellpadding=3D\"0\" cellspacing=3D\"0\">\r\n");
+        for (String paragraph : text.toString().split("\r\n\r\n")) {
+            message.append("<tr><td><p style=3D\"font-family:Arial\">")
+                    .append(paragraph.replace("\r\n", "=\r\n"))
+                    .append("</p></td></tr>\r\n");
+        }
+        message.append("</table></body></html>\r\n");
+        message.append("--").append(boundary).append("--\r\n");
+        return message.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] attachments(Random random, int count, int minSize, int maxSize) {
+        String boundary = "----=_Mixed_" + Long.toHexString(random.nextLong());
+        ByteArrayOutputStream message = new ByteArrayOutputStream(count * maxSize * 4 / 3 + 8 * 1024);
+        StringBuilder head = new StringBuilder();
+        headers(head, random, count == 1 ? "Backup archive" : "Scanned receipts");
+        head.append("MIME-Version: 1.0\r\n");
+        head.append("Content-Type: multipart/mixed; boundary=\"").append(boundary).append("\"\r\n\r\n");
+        head.append("--").append(boundary).append("\r\n");
+        head.append("Content-Type: text/plain; charset=\"UTF-8\"\r\n\r\n");
+        paragraphs(head, random, 1);
+        write(message, head);
+
+        Base64.Encoder encoder = Base64.getMimeEncoder();
+        for (int i = 0; i < count; i++) {
+            int size = minSize + (maxSize > minSize ? random.nextInt(maxSize - minSize) : 0);
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            String name = count == 1 ? "backup.tar.gz" : String.format("receipt-%02d.jpg", i + 1);
+            StringBuilder part = new StringBuilder();
+            part.append("--").append(boundary).append("\r\n");
+            part.append("Content-Type: ").append(count == 1 ? "application/gzip" : "image/jpeg")
+                    .append("; name=\"").append(name).append("\"\r\n");
+            part.append("Content-Transfer-Encoding: base64\r\n");
+            part.append("Content-Disposition: attachment; filename=\"").append(name).append("\"\r\n\r\n");
+            write(message, part);
+            message.writeBytes(encoder.encode(content));
+            message.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        write(message, "--" + boundary + "--\r\n");
+        return message.toByteArray();
+    }
+
+    // The header block of a message that went through a few relays
+    private static void headers(StringBuilder message, Random random, String subject) {
+        for (int hop = 3; hop > 0; hop--) {
+            message.append("Received: from mx").append(hop).append(".example.net (mx").append(hop)
+                    .append(".example.net [192.0.2.").append(10 + hop).append("])\r\n")
+                    .append("\tby mail.example.com with ESMTPS id ").append(Long.toHexString(random.nextLong()))
+                    .append("\r\n\tfor <vu@example.com>; Thu, 5 Dec 2024 05:19:3").append(hop).append(" +0000\r\n");
+        }
+        message.append("Return-Path: <daniel@example.com>\r\n");
+        message.append("DKIM-Signature: v=1; a=rsa-sha256; c=relaxed/relaxed; d=example.com; s=mail;\r\n")
+                .append("\th=from:to:subject:date:message-id;\r\n")
+                .append("\tbh=").append(Base64.getEncoder().encodeToString(longs(random, 4))).append(";\r\n")
+                .append("\tb=").append(Base64.getEncoder().encodeToString(longs(random, 16))).append("\r\n");
+        message.append("From: Daniel <daniel@example.com>\r\n");
+        message.append("To: Vu <vu@example.com>\r\n");
+        message.append("Cc: team@example.com\r\n");
+        message.append("Subject: ").append(subject).append("\r\n");
+        message.append("Date: Thu, 5 Dec 2024 05:19:38 +0000\r\n");
+        message.append("Message-ID: <").append(Long.toHexString(random.nextLong())).append("@example.com>\r\n");
+    }
+
+    private static void paragraphs(StringBuilder text, Random random, int count) {
+        for (int p = 0; p < count; p++) {
+            int lineLength = 0;
+            int words = 40 + random.nextInt(60);
+            for (int w = 0; w < words; w++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                if (lineLength + word.length() > 72) {
+                    text.append("\r\n");
+                    lineLength = 0;
+                } else if (lineLength > 0) {
+                    text.append(' ');
+                    lineLength++;
+                }
+                text.append(word);
+                lineLength += word.length();
+            }
+            text.append(".\r\n\r\n");
+        }
+    }
+
+    private static byte[] longs(Random random, int count) {
+        byte[] bytes = new byte[count * 8];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void write(ByteArrayOutputStream out, CharSequence text) {
+        out.writeBytes(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
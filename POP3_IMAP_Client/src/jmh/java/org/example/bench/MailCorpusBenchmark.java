@@ -0,0 +1,137 @@
+package org.example.bench;
+
+import org.example.Attachment;
+import org.example.Base64StreamEncoder;
+import org.example.Mail;
+import org.example.ProtocolReader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Every step of receiving a message, on each kind of message in the {@link MailCorpus}:
+ * <ul>
+ *     <li>{@code frame}: reading a "RETR" response from an in-memory stream with
+ *     {@link ProtocolReader}, as {@code fetchEmail} does, without parsing it;</li>
+ *     <li>{@code headers}: building a {@link Mail} and reading its header fields;</li>
+ *     <li>{@code multipart}: splitting the body into the text and the attachments;</li>
+ *     <li>{@code decode}: decoding every attachment of a parsed message;</li>
+ *     <li>{@code encode}: base64 encoding the same attachments for sending.</li>
+ * </ul>
+ * The plain and HTML messages have no attachments, so their decode and encode scores
+ * only show the fixed cost.
+ *
+ * Run {@code java -cp target/benchmarks.jar org.example.bench.MailCorpusBenchmark} to
+ * get the scores together with the allocation rate and bytes allocated per operation
+ * from the GC profiler, or run it through the JMH launcher with {@code -prof gc}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+public class MailCorpusBenchmark {
+
+    @Param({"plain", "html", "attachments", "huge"})
+    public String kind;
+
+    private byte[] message;
+    private byte[] response;
+    private Mail parsed;
+    private Path attachmentDirectory;
+    private final List<Path> attachmentFiles = new ArrayList<>();
+    private final Base64StreamEncoder encoder = new Base64StreamEncoder();
+    private final WritableByteChannel sink = new AttachmentEncodeBenchmark.NullChannel();
+    private final byte[] copyBuffer = new byte[64 * 1024];
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(MailCorpusBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        message = MailCorpus.message(kind);
+        response = MailCorpus.retrResponse(message);
+        parsed = new Mail(message);
+        attachmentDirectory = Files.createTempDirectory("corpus");
+        for (Attachment attachment : parsed.getAttachments().values()) {
+            attachmentFiles.add(attachment.saveTo(attachmentDirectory));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(attachmentDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(attachmentDirectory);
+    }
+
+    @Benchmark
+    public void frame(Blackhole blackhole) throws IOException {
+        ProtocolReader reader = new ProtocolReader(new ByteArrayInputStream(response));
+        blackhole.consume(reader.readLine());
+        blackhole.consume(reader.readMessage());
+    }
+
+    @Benchmark
+    public void headers(Blackhole blackhole) {
+        Mail mail = new Mail(message);
+        blackhole.consume(mail.getHeaders());
+        blackhole.consume(mail.getSubject());
+        blackhole.consume(mail.getFrom());
+        blackhole.consume(mail.getDate());
+    }
+
+    @Benchmark
+    public void multipart(Blackhole blackhole) {
+        Mail mail = new Mail(message);
+        blackhole.consume(mail.getTextBody());
+        blackhole.consume(mail.getAttachments());
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        long decoded = 0;
+        for (Attachment attachment : parsed.getAttachments().values()) {
+            try (InputStream in = attachment.openStream()) {
+                int read;
+                while ((read = in.read(copyBuffer)) > 0) {
+                    decoded += read;
+                }
+            }
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        long encoded = 0;
+        for (Path file : attachmentFiles) {
+            encoded += encoder.encode(file, sink);
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,62 @@
+package org.example.bench;
+
+import org.example.Mail;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An inbox listing over 100 messages: reading only From/Subject/Date, which leaves
+ * the bodies of the lazily parsed {@link Mail} untouched, versus materializing every
+ * message completely as the eager parser used to.
+ *
+ * Run with the GC profiler to compare allocations per listing:
+ * {@code java -jar target/benchmarks.jar MailHeaderScanBenchmark -prof gc}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailHeaderScanBenchmark {
+    private static final int MESSAGES = 100;
+
+    @Param({"10240", "1048576"})
+    public int messageSize;
+
+    private byte[][] mailbox;
+
+    @Setup
+    public void setUp() {
+        byte[] message = MailParseBenchmark.buildMessage(messageSize).replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8);
+        mailbox = new byte[MESSAGES][];
+        for (int i = 0; i < MESSAGES; i++) {
+            mailbox[i] = message.clone();
+        }
+    }
+
+    @Benchmark
+    public void headersOnly(Blackhole blackhole) {
+        for (byte[] raw : mailbox) {
+            Mail mail = new Mail(raw);
+            blackhole.consume(mail.getFrom());
+            blackhole.consume(mail.getSubject());
+            blackhole.consume(mail.getDate());
+        }
+    }
+
+    @Benchmark
+    public void fullMessage(Blackhole blackhole) {
+        for (byte[] raw : mailbox) {
+            Mail mail = new Mail(raw);
+            blackhole.consume(mail.getFrom());
+            blackhole.consume(mail.getSubject());
+            blackhole.consume(mail.getDate());
+            blackhole.consume(mail.getTextBody());
+            blackhole.consume(mail.getAttachments());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.example.bench;
+
+import org.example.Mail;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the streaming {@link org.example.MimeParser} based {@link Mail} with the
+ * former split/regex parsing path on messages of 10 KB, 1 MB and 50 MB.
+ *
+ * Run with: {@code mvn -Pbenchmark package && java -jar target/benchmarks.jar MailParseBenchmark}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailParseBenchmark {
+
+    @Param({"10240", "1048576", "52428800"})
+    public int messageSize;
+
+    private String rawEmail;
+
+    @Setup
+    public void setUp() {
+        rawEmail = buildMessage(messageSize);
+    }
+
+    @Benchmark
+    public void streamingParser(Blackhole blackhole) {
+        Mail mail = new Mail(rawEmail);
+        blackhole.consume(mail.getSubject());
+        blackhole.consume(mail.getAttachments());
+    }
+
+    @Benchmark
+    public void legacyRegexParser(Blackhole blackhole) {
+        LegacyMail mail = new LegacyMail(rawEmail);
+        blackhole.consume(mail.subject);
+        blackhole.consume(mail.attachments);
+    }
+
+    // Builds a multipart message with a short text body and one base64 attachment
+    static String buildMessage(int size) {
+        String boundary = "----=_Part_1733375978497";
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("Return-Path: daniel@example.com\n");
+        sb.append("Received: from localhost (DESKTOP-BAQ9VDA [127.0.0.1])\n");
+        sb.append("        by DESKTOP-BAQ9VDA with ESMTP\n");
+        sb.append("Content-Type: multipart/mixed; boundary=\"").append(boundary).append("\"\n");
+        sb.append("From: daniel@example.com\n");
+        sb.append("To: vu@example.com\n");
+        sb.append("Subject: benchmark\n");
+        sb.append("Date: 2024-12-05T05:19:38.521522100Z\n");
+        sb.append("\n");
+        sb.append("--").append(boundary).append("\n");
+        sb.append("Content-Type: text/plain; charset=\"UTF-8\"\n\n");
+        sb.append("Hello, please find the report attached.\n\n");
+        sb.append("--").append(boundary).append("\n");
+        sb.append("Content-Type: application/octet-stream; name=\"report.txt\"\n");
+        sb.append("Content-Transfer-Encoding: base64\n");
+        sb.append("Content-Disposition: attachment; filename=\"report.txt\"\n\n");
+
+        byte[] payload = new byte[Math.max(1, (size - sb.length()) * 57 / 78)];
+        Random random = new Random(42);
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(26));
+        }
+        String encoded = Base64.getEncoder().encodeToString(payload);
+        for (int i = 0; i < encoded.length(); i += 76) {
+            sb.append(encoded, i, Math.min(i + 76, encoded.length())).append("\n");
+        }
+        sb.append("\n--").append(boundary).append("--\n");
+        return sb.toString();
+    }
+
+    // The split/regex parser that Mail used before the streaming parser
+    static final class LegacyMail {
+        String subject;
+        String textBody;
+        final Map<String, String> attachments = new HashMap<>();
+
+        LegacyMail(String rawEmail) {
+            String headersSection = rawEmail.split("\n\n")[0];
+            String bodySection = rawEmail.substring(headersSection.length()).trim();
+            extractHeader(headersSection, "Return-Path");
+            extractHeader(headersSection, "From");
+            extractHeader(headersSection, "To");
+            subject = extractHeader(headersSection, "Subject");
+            extractHeader(headersSection, "Date");
+
+            Matcher boundaryMatcher = Pattern.compile("boundary=\"([^\"]+)\"", Pattern.MULTILINE).matcher(headersSection);
+            if (boundaryMatcher.find()) {
+                for (String part : bodySection.split(boundaryMatcher.group(1))) {
+                    if (part.contains("Content-Type: text/plain")) {
+                        Matcher matcher = Pattern.compile("Content-Type: text/plain.*?\\r?\\n\\r?\\n(.*?)\\r?\\n--", Pattern.DOTALL).matcher(part);
+                        textBody = matcher.find() ? matcher.group(1).trim() : "";
+                    } else if (part.contains("Content-Disposition: attachment")) {
+                        extractAttachment(part);
+                    }
+                }
+            }
+        }
+
+        private String extractHeader(String headers, String headerName) {
+            Matcher matcher = Pattern.compile(headerName + ": (.*)", Pattern.MULTILINE).matcher(headers);
+            return matcher.find() ? matcher.group(1).trim() : "";
+        }
+
+        private void extractAttachment(String part) {
+            Matcher nameMatcher = Pattern.compile("filename=\"([^\"]+)\"").matcher(part);
+            String filename = nameMatcher.find() ? nameMatcher.group(1).trim() : null;
+            Matcher contentMatcher = Pattern.compile("Content-Transfer-Encoding: base64.*?\\r?\\n\\r?\\n(.*?)\\r?\\n--", Pattern.DOTALL).matcher(part);
+            if (contentMatcher.find() && filename != null) {
+                byte[] decoded = Base64.getMimeDecoder().decode(contentMatcher.group(1).trim());
+                attachments.put(filename, new String(decoded, StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.example.bench;
+
+import org.example.Mail;
+import org.example.MailClient;
+import org.example.MailPipeline;
+import org.example.PipelineReport;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloading and fully parsing a 200-message mailbox of 200 KB messages from a
+ * {@link FakePop3Server}: fetching and parsing in turn on one thread, as
+ * {@code fetchEmail} does, against the staged {@link MailPipeline} with a varying
+ * number of parser threads. Both use a single session with pipelined "RETR".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MailPipelineBenchmark {
+    private static final int MESSAGES = 200;
+
+    @Param({"1", "4"})
+    public int parsers;
+
+    @Param({"2"})
+    public long latencyMillis;
+
+    private FakePop3Server server;
+    private Map<Integer, String> mailbox;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<byte[]> messages = new ArrayList<>();
+        mailbox = new LinkedHashMap<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            String message = MailParseBenchmark.buildMessage(200 * 1024).replace("\n", "\r\n");
+            messages.add(message.getBytes(StandardCharsets.UTF_8));
+            mailbox.put(i + 1, "uid-" + (i + 1));
+        }
+        server = new FakePop3Server(messages, latencyMillis);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private MailClient login() throws IOException {
+        MailClient client = new MailClient("localhost", server.getPort(), "+OK");
+        client.login("user", "secret");
+        return client;
+    }
+
+    @Benchmark
+    public void sequential(Blackhole blackhole) throws IOException {
+        MailClient client = login();
+        List<Integer> ids = new ArrayList<>(mailbox.keySet());
+        for (int from = 0; from < ids.size(); from += 64) {
+            for (Mail mail : client.fetchEmails(ids.subList(from, Math.min(from + 64, ids.size())))) {
+                blackhole.consume(mail.getHeaders());
+                blackhole.consume(mail.getTextBody());
+                blackhole.consume(mail.getAttachments());
+            }
+        }
+        client.close();
+    }
+
+    @Benchmark
+    public PipelineReport pipeline() throws IOException {
+        MailClient client = login();
+        PipelineReport report = new MailPipeline(client).setParsers(parsers).run(mailbox, (emailId, uid, mail) -> { });
+        client.close();
+        if (report.getDelivered() != MESSAGES) {
+            throw new IllegalStateException(report.toString());
+        }
+        return report;
+    }
+}
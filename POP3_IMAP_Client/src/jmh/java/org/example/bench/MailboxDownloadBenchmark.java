@@ -0,0 +1,59 @@
+package org.example.bench;
+
+import org.example.DownloadReport;
+import org.example.MailboxDownloader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to download a 200-message mailbox from a {@link FakePop3Server} with a few
+ * milliseconds of simulated latency, over one or more connections.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MailboxDownloadBenchmark {
+    private static final int MESSAGES = 200;
+
+    @Param({"1", "4", "8"})
+    public int connections;
+
+    @Param({"2"})
+    public long latencyMillis;
+
+    private FakePop3Server server;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<byte[]> mailbox = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            String message = MailParseBenchmark.buildMessage(20 * 1024).replace("\n", "\r\n");
+            mailbox.add(message.getBytes(StandardCharsets.UTF_8));
+        }
+        server = new FakePop3Server(mailbox, latencyMillis);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public DownloadReport download() throws IOException {
+        DownloadReport report = new MailboxDownloader("localhost", server.getPort(), "user", "secret")
+                .setConnections(connections)
+                .download((emailId, uid, mail) -> mail.getSubject());
+        if (report.getDownloaded() != MESSAGES) {
+            throw new IllegalStateException(report.toString());
+        }
+        return report;
+    }
+}
@@ -0,0 +1,82 @@
+package org.example.bench;
+
+import org.example.Mail;
+import org.example.MailClient;
+import org.example.MessageStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Re-reading a message from the local {@link MessageStore} versus fetching it again
+ * with "RETR" from a {@link FakePop3Server} on the loopback interface.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MessageStoreBenchmark {
+    private static final int MESSAGES = 1000;
+
+    @Param({"10240", "1048576"})
+    public int messageSize;
+
+    private Path directory;
+    private MessageStore store;
+    private FakePop3Server server;
+    private MailClient client;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("message-store-bench");
+        store = new MessageStore(directory);
+        byte[] message = MailParseBenchmark.buildMessage(messageSize).replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8);
+        List<byte[]> mailbox = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            store.append("uid-" + (i + 1), message);
+            mailbox.add(message);
+        }
+        server = new FakePop3Server(mailbox, 0);
+        client = new MailClient("localhost", server.getPort(), "+OK");
+        client.login("user", "secret");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.logout();
+        client.close();
+        server.close();
+        store.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private int nextId() {
+        next = next % MESSAGES + 1;
+        return next;
+    }
+
+    @Benchmark
+    public Mail loadFromStore() {
+        return store.load("uid-" + nextId());
+    }
+
+    @Benchmark
+    public Mail fetchFromServer() throws IOException {
+        return client.fetchEmail(nextId());
+    }
+}
@@ -0,0 +1,100 @@
+package org.example.bench;
+
+import org.example.NioMailEngine;
+import org.example.NioMailSession;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Load test for {@link NioMailEngine}: many concurrent POP3 sessions on one engine
+ * thread against a {@link FakePop3Server}.
+ *
+ * For each session count it reports throughput and the CPU time used by the engine
+ * thread, and from that how many sessions one fully busy core could drive at the
+ * same per-session rate.
+ *
+ * Usage: {@code java -cp target/benchmarks.jar org.example.bench.NioLoadTest [sessions...]}
+ */
+public class NioLoadTest {
+    private static final int MESSAGES = 50;
+    private static final int FETCHES_PER_SESSION = 20;
+
+    public static void main(String[] args) throws Exception {
+        int[] sessionCounts = args.length == 0 ? new int[]{10, 50, 100, 250, 500} : parse(args);
+
+        List<byte[]> mailbox = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            mailbox.add(MailParseBenchmark.buildMessage(4 * 1024).replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        System.out.printf("%-10s %-12s %-14s %-12s %-16s%n", "sessions", "elapsed ms", "messages/sec", "engine cpu", "sessions/core");
+        try (FakePop3Server server = new FakePop3Server(mailbox, 1)) {
+            for (int sessions : sessionCounts) {
+                run(server, sessions);
+            }
+        }
+    }
+
+    private static void run(FakePop3Server server, int sessions) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try (NioMailEngine engine = new NioMailEngine()) {
+            long engineThread = findThread(threads, "nio-mail-engine");
+            long cpuBefore = threads.getThreadCpuTime(engineThread);
+            long start = System.nanoTime();
+
+            List<CompletableFuture<Integer>> work = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                int offset = i;
+                work.add(engine.connect("localhost", server.getPort(), NioMailEngine.Protocol.POP3)
+                        .thenCompose(session -> session.login("user", "secret")
+                                .thenCompose(ok -> fetch(session, offset, 0, 0))));
+            }
+            int fetched = 0;
+            for (CompletableFuture<Integer> session : work) {
+                fetched += session.get();
+            }
+
+            long elapsed = System.nanoTime() - start;
+            long cpu = threads.getThreadCpuTime(engineThread) - cpuBefore;
+            double utilisation = (double) cpu / elapsed;
+            System.out.printf("%-10d %-12d %-14.0f %-12s %-16.0f%n", sessions, elapsed / 1_000_000,
+                    fetched * 1e9 / elapsed, String.format("%.1f%%", utilisation * 100), sessions / utilisation);
+        }
+    }
+
+    // Fetch messages one after another on the session, then log out
+    private static CompletableFuture<Integer> fetch(NioMailSession session, int offset, int done, int fetched) {
+        if (done == FETCHES_PER_SESSION) {
+            return session.send("QUIT").thenApply(bye -> {
+                session.close();
+                return fetched;
+            });
+        }
+        int emailId = (offset + done) % MESSAGES + 1;
+        return session.fetchEmail(emailId)
+                .thenCompose(mail -> fetch(session, offset, done + 1, mail == null ? fetched : fetched + 1));
+    }
+
+    private static long findThread(ThreadMXBean threads, String name) {
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().equals(name)) {
+                return info.getThreadId();
+            }
+        }
+        throw new IllegalStateException("No thread named " + name);
+    }
+
+    private static int[] parse(String[] args) {
+        int[] values = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            values[i] = Integer.parseInt(args[i]);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,75 @@
+package org.example.bench;
+
+import org.example.Mail;
+import org.example.MailClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetching 100 messages one "RETR" at a time versus pipelined, against a
+ * {@link FakePop3Server} that adds a simulated round-trip delay per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Pop3PipeliningBenchmark {
+    private static final int MESSAGES = 100;
+
+    @Param({"5"})
+    public long latencyMillis;
+
+    private FakePop3Server server;
+    private MailClient client;
+    private final List<Integer> ids = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        List<byte[]> mailbox = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            String message = MailParseBenchmark.buildMessage(10 * 1024).replace("\n", "\r\n");
+            mailbox.add(message.getBytes(StandardCharsets.UTF_8));
+            ids.add(i + 1);
+        }
+        server = new FakePop3Server(mailbox, latencyMillis);
+        client = new MailClient("localhost", server.getPort(), "+OK");
+        client.login("user", "secret");
+        client.capabilities();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.logout();
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public int sequential() throws IOException {
+        int fetched = 0;
+        for (int id : ids) {
+            if (client.fetchEmail(id) != null) {
+                fetched++;
+            }
+        }
+        return fetched;
+    }
+
+    @Benchmark
+    public int pipelined() throws IOException {
+        int fetched = 0;
+        for (Mail mail : client.fetchEmails(ids)) {
+            if (mail != null) {
+                fetched++;
+            }
+        }
+        return fetched;
+    }
+}
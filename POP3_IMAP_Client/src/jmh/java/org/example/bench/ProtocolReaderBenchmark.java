@@ -0,0 +1,75 @@
+package org.example.bench;
+
+import org.example.Mail;
+import org.example.ProtocolReader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a "RETR" response into a {@link Mail}: {@link ProtocolReader} against the
+ * former path, which read lines through a {@code BufferedReader}, joined them in a
+ * {@code StringBuilder}, trimmed the result and parsed the {@code String}.
+ *
+ * The response comes from memory, so only the client's own work is measured. Both
+ * paths read the subject and text body of the message. Run with {@code -prof gc} to
+ * compare allocation per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolReaderBenchmark {
+
+    @Param({"10240", "1048576"})
+    public int messageSize;
+
+    private byte[] response;
+
+    @Setup
+    public void setUp() {
+        String message = MailParseBenchmark.buildMessage(messageSize);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream(message.length() + 1024);
+        wire.writeBytes(("+OK " + message.length() + " octets\r\n").getBytes(StandardCharsets.US_ASCII));
+        for (String line : message.split("\n", -1)) {
+            if (line.startsWith(".")) {
+                wire.write('.');
+            }
+            wire.writeBytes((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        wire.writeBytes(".\r\n".getBytes(StandardCharsets.US_ASCII));
+        response = wire.toByteArray();
+    }
+
+    @Benchmark
+    public void protocolReader(Blackhole blackhole) throws IOException {
+        ProtocolReader reader = new ProtocolReader(new ByteArrayInputStream(response));
+        blackhole.consume(reader.readLine());
+        Mail mail = new Mail(reader.readMessage());
+        blackhole.consume(mail.getSubject());
+        blackhole.consume(mail.getTextBody());
+    }
+
+    @Benchmark
+    public void bufferedReader(Blackhole blackhole) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8));
+        blackhole.consume(reader.readLine());
+        StringBuilder content = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null && !line.equals(".")) {
+            content.append(line).append("\n");
+        }
+        Mail mail = new Mail(content.toString().trim());
+        blackhole.consume(mail.getSubject());
+        blackhole.consume(mail.getTextBody());
+    }
+}
@@ -0,0 +1,112 @@
+package org.example.bench;
+
+import org.example.Mail;
+import org.example.SearchIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build rate and query latency of {@link SearchIndex} on a synthetic mailbox.
+ *
+ * Words are drawn from a 20,000-word vocabulary with a skewed distribution, so a few
+ * words occur in most messages and most words in only a few, as in real mail.
+ * {@code build} indexes 10,000 messages into an empty index; the query benchmarks run
+ * against an index of {@code messages} messages built during setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class SearchIndexBenchmark {
+    private static final int VOCABULARY = 20_000;
+    private static final int BUILD_BATCH = 10_000;
+
+    @Param({"100000"})
+    public int messages;
+
+    private String[] words;
+    private byte[][] batch;
+    private SearchIndex index;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        words = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+
+        batch = new byte[BUILD_BATCH][];
+        for (int i = 0; i < BUILD_BATCH; i++) {
+            batch[i] = message(random, i);
+        }
+        index = new SearchIndex(null);
+        for (int i = 0; i < messages; i++) {
+            index.add("uid-" + i, new Mail(message(random, i)));
+        }
+    }
+
+    // A message of about 1 KB: five subject words and 150 body words
+    private byte[] message(Random random, int number) {
+        StringBuilder sb = new StringBuilder(1536);
+        sb.append("From: user").append(number % 500).append("@example.com\r\n");
+        sb.append("To: vu@example.com\r\n");
+        sb.append("Subject:");
+        for (int i = 0; i < 5; i++) {
+            sb.append(' ').append(word(random));
+        }
+        sb.append("\r\nDate: 2024-12-05T05:19:38.521522100Z\r\n\r\n");
+        for (int i = 0; i < 150; i++) {
+            sb.append(word(random)).append(i % 15 == 14 ? "\r\n" : " ");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Skewed towards the start of the vocabulary
+    private String word(Random random) {
+        double skew = random.nextDouble();
+        return words[(int) (skew * skew * skew * VOCABULARY)];
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public SearchIndex build() throws IOException {
+        SearchIndex fresh = new SearchIndex(null);
+        for (int i = 0; i < BUILD_BATCH; i++) {
+            fresh.add("uid-" + i, new Mail(batch[i]));
+        }
+        return fresh;
+    }
+
+    @Benchmark
+    public List<String> rareTerm() {
+        return index.search(words[VOCABULARY - 1]);
+    }
+
+    @Benchmark
+    public List<String> commonTerms() {
+        return index.search(words[1] + " " + words[2]);
+    }
+
+    @Benchmark
+    public List<String> fieldFilter() {
+        return index.search("from:user42 " + words[10]);
+    }
+
+    @Benchmark
+    public List<String> booleanQuery() {
+        return index.search("subject:" + words[3] + " " + words[50] + " OR " + words[100] + " -" + words[0]);
+    }
+}
@@ -0,0 +1,89 @@
+package org.example.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Message sizes for generated mailboxes, parsed from a short description:
+ * <ul>
+ *     <li>{@code fixed:BYTES} - every message the same size;</li>
+ *     <li>{@code uniform:MIN:MAX} - evenly spread between two sizes;</li>
+ *     <li>{@code lognormal:MEDIAN:SIGMA} - mostly small messages with a long tail of
+ *     large ones, as in real mailboxes; {@code lognormal:16384:1.5} puts about one
+ *     message in twenty above 190 KB.</li>
+ * </ul>
+ * Sizes are kept between 512 bytes and 50 MB.
+ */
+public class SizeDistribution {
+    private static final int MIN_SIZE = 512;
+    private static final int MAX_SIZE = 50 * 1024 * 1024;
+
+    private final String description;
+    private final String kind;
+    private final double first;
+    private final double second;
+
+    private SizeDistribution(String description, String kind, double first, double second) {
+        this.description = description;
+        this.kind = kind;
+        this.first = first;
+        this.second = second;
+    }
+
+    public static SizeDistribution parse(String description) {
+        String[] parts = description.split(":");
+        try {
+            switch (parts[0]) {
+                case "fixed":
+                    return new SizeDistribution(description, parts[0], Double.parseDouble(parts[1]), 0);
+                case "uniform":
+                case "lognormal":
+                    return new SizeDistribution(description, parts[0], Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                default:
+                    break;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Expected fixed:BYTES, uniform:MIN:MAX or lognormal:MEDIAN:SIGMA, got " + description);
+    }
+
+    public int next(Random random) {
+        double size;
+        switch (kind) {
+            case "fixed":
+                size = first;
+                break;
+            case "uniform":
+                size = first + random.nextDouble() * (second - first);
+                break;
+            default:
+                size = first * Math.exp(second * random.nextGaussian());
+                break;
+        }
+        return (int) Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+    }
+
+    /**
+     * Generates a mailbox of multipart messages with CRLF line endings.
+     *
+     * @param count the number of messages
+     * @param seed  makes the same sizes come out every time
+     */
+    public List<byte[]> mailbox(int count, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> mailbox = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String message = MailParseBenchmark.buildMessage(next(random)).replace("\n", "\r\n");
+            mailbox.add(message.getBytes(StandardCharsets.UTF_8));
+        }
+        return mailbox;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,104 @@
+package org.example.bench;
+
+import org.example.MailClient;
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to connect to a {@link FakePop3Server} and log in, in plain text, over implicit
+ * TLS and with "STLS", each with a full TLS handshake and with a resumed session.
+ *
+ * The server certificate is a self-signed one for "localhost", made with keytool when
+ * the trial starts. Every operation opens a new connection from the same client
+ * context; for the full handshakes the session is invalidated before the connection
+ * closes, so the next one cannot resume it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsConnectBenchmark {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    @Param({"plain", "implicit-full", "implicit-resumed", "stls-full", "stls-resumed"})
+    public String mode;
+
+    private Path keystore;
+    private FakePop3Server server;
+    private SSLContext clientContext;
+    private boolean resume;
+
+    @Setup
+    public void setUp() throws IOException, GeneralSecurityException, InterruptedException {
+        keystore = Files.createTempFile("tls-bench", ".p12");
+        Files.delete(keystore);
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "localhost", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", "changeit")
+                .redirectErrorStream(true).start();
+        String output = new String(keytool.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output);
+        }
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            keys.load(in, PASSWORD);
+        }
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keys);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+        byte[] message = MailParseBenchmark.buildMessage(1024).replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8);
+        server = new FakePop3Server(List.of(message), 0);
+        if (!mode.equals("plain")) {
+            server.setTls(serverContext, mode.startsWith("implicit"));
+        }
+        resume = mode.endsWith("resumed");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        Files.deleteIfExists(keystore);
+    }
+
+    @Benchmark
+    public boolean connectAndLogin() throws IOException {
+        MailClient client = new MailClient("localhost", server.getPort(), "+OK",
+                mode.startsWith("implicit") ? clientContext : null);
+        try {
+            if (mode.startsWith("stls")) {
+                client.startTls(clientContext);
+            }
+            boolean loggedIn = client.login("user", "secret");
+            client.logout();
+            if (!resume && client.getTlsSession() != null) {
+                client.getTlsSession().invalidate();
+            }
+            return loggedIn && (client.isTlsResumed() == resume || mode.equals("plain"));
+        } finally {
+            client.close();
+        }
+    }
+}
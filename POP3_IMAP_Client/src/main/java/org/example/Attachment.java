@@ -0,0 +1,175 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/**
+ * A file attached to a {@link Mail}.
+ *
+ * An attachment does not hold its decoded content. It only references the still
+ * encoded bytes inside the raw message and decodes them on demand, a buffer at a
+ * time, so even very large or binary attachments can be read or saved without
+ * loading them into memory.
+ */
+public class Attachment {
+    // Size of the buffer used when copying decoded content to a file
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // Longest file name saveTo() writes; file systems allow 255 bytes, and UTF-8 takes up to 3 per character here
+    private static final int MAX_FILENAME_LENGTH = 80;
+    // Names Windows reserves for devices, with or without an extension
+    private static final Pattern RESERVED_NAME = Pattern.compile("(?i)(CON|PRN|AUX|NUL|COM[0-9]|LPT[0-9])(\\..*)?");
+
+    private final String filename;
+    private final String contentType;
+    private final Charset charset;
+    private final String transferEncoding;
+    private final ByteBuffer encoded;
+    // Where the encoded content starts in the raw message
+    private final int offset;
+
+    Attachment(String filename, String contentType, Charset charset, String transferEncoding, ByteBuffer encoded,
+               int offset) {
+        this.filename = filename;
+        this.contentType = contentType;
+        this.charset = charset;
+        this.transferEncoding = transferEncoding;
+        this.encoded = encoded.asReadOnlyBuffer();
+        this.offset = offset;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    // The charset the Content-Type declares for text content; UTF-8 if it declares none
+    public Charset getCharset() {
+        return charset;
+    }
+
+    String getTransferEncoding() {
+        return transferEncoding;
+    }
+
+    // The content as it appears in the message, before decoding
+    ByteBuffer getEncoded() {
+        return encoded.duplicate();
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the size of the attachment as it appears in the message, before decoding.
+     */
+    public long getEncodedSize() {
+        return encoded.remaining();
+    }
+
+    /**
+     * Opens a stream over the decoded content of the attachment.
+     *
+     * Every call returns a new, independent stream; the content is decoded lazily
+     * while the stream is read.
+     *
+     * @return the decoded attachment content
+     */
+    public InputStream openStream() {
+        return TransferDecoder.wrap(new ByteBufferInputStream(encoded), transferEncoding);
+    }
+
+    /**
+     * Opens a channel over the decoded content of the attachment.
+     *
+     * @return the decoded attachment content
+     */
+    public ReadableByteChannel openChannel() {
+        return Channels.newChannel(openStream());
+    }
+
+    /**
+     * Decodes the attachment into a file named after it in the given directory.
+     *
+     * The content is decoded in fixed-size buffers and written straight to a
+     * {@link FileChannel}, so memory use does not depend on the attachment size.
+     * The filename comes from the sender, so it is cleaned up first: any directory
+     * part is dropped, so the file always ends up inside {@code directory}, and
+     * characters other than letters, digits, spaces and a few marks are replaced
+     * with "_", much like Main does for folder names. An attachment without a
+     * usable name is saved under a generated one.
+     *
+     * @param directory the folder to save into; it is created if missing
+     * @return the path of the written file
+     * @throws IOException if the file cannot be written
+     */
+    public Path saveTo(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        String name = safeFilename(filename);
+        Path target;
+        try {
+            target = name == null ? Files.createTempFile(directory, "attachment-", ".bin") : directory.resolve(name);
+        } catch (InvalidPathException e) {
+            throw new IOException("Cannot save attachment as " + name + ": " + e.getMessage(), e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        try (ReadableByteChannel source = openChannel();
+             FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return target;
+    }
+
+    // The last path segment of a sender's filename, made safe to create on any platform; null if nothing usable is left
+    static String safeFilename(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        // Both separators, whatever the platform: a name from a Windows sender uses "\\"
+        String name = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1);
+        // Like Main's folder names, but letters of any script and a few common marks are kept. Everything
+        // else goes: NUL and other controls, what Windows forbids, and the bidi overrides that fake an extension
+        name = name.replaceAll("[^\\p{L}\\p{M}\\p{N} @._()+,-]", "_").strip();
+        // Windows drops trailing dots, which would turn "a." into "a"; and "." or ".." are no file names
+        name = name.replaceAll("[. ]+$", "");
+        if (name.isEmpty() || name.replace("_", "").isEmpty()) {
+            return null;
+        }
+        if (RESERVED_NAME.matcher(name).matches()) {
+            name = "_" + name;
+        }
+        if (name.length() > MAX_FILENAME_LENGTH) {
+            // Keep the extension, which decides how the file is opened
+            int dot = name.lastIndexOf('.');
+            String extension = dot > 0 && name.length() - dot <= 16 ? name.substring(dot) : "";
+            name = name.substring(0, MAX_FILENAME_LENGTH - extension.length()) + extension;
+        }
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return filename + " (" + contentType + ", " + getEncodedSize() + " bytes encoded)";
+    }
+}
@@ -0,0 +1,111 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * Decodes MIME base64 (RFC 2045) a block at a time.
+ *
+ * Like the JDK's MIME decoder, it ignores line breaks and any other byte outside the
+ * base64 alphabet, and stops at the first padding character. Unlike it, it needs
+ * neither the whole part nor a stream: blocks can end anywhere, even inside a quantum.
+ *
+ * Most of the input is decoded four characters at a time, with a single table lookup
+ * per character and one check of all four; only the bytes around a line break take the
+ * slower path one character at a time.
+ */
+public final class Base64Decoder extends TransferDecoder {
+    // Value of each base64 character, -1 for every other byte
+    private static final byte[] VALUES = new byte[256];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    // The characters of the current quantum so far, 6 bits each
+    private int bits;
+    private int count;
+    // Set at the padding; nothing after it is decoded
+    private boolean ended;
+
+    @Override
+    public int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int i = offset;
+        int end = offset + length;
+        int out = dstOffset;
+        while (i < end && !ended) {
+            if (count == 0) {
+                // Whole quanta at once, up to the next byte that is not base64
+                while (i + 4 <= end) {
+                    int a = VALUES[src[i] & 0xff];
+                    int b = VALUES[src[i + 1] & 0xff];
+                    int c = VALUES[src[i + 2] & 0xff];
+                    int d = VALUES[src[i + 3] & 0xff];
+                    if ((a | b | c | d) < 0) {
+                        break;
+                    }
+                    int quantum = a << 18 | b << 12 | c << 6 | d;
+                    dst[out] = (byte) (quantum >> 16);
+                    dst[out + 1] = (byte) (quantum >> 8);
+                    dst[out + 2] = (byte) quantum;
+                    out += 3;
+                    i += 4;
+                }
+                if (i == end) {
+                    break;
+                }
+            }
+
+            int b = src[i++] & 0xff;
+            int value = VALUES[b];
+            if (value >= 0) {
+                bits = bits << 6 | value;
+                if (++count == 4) {
+                    dst[out] = (byte) (bits >> 16);
+                    dst[out + 1] = (byte) (bits >> 8);
+                    dst[out + 2] = (byte) bits;
+                    out += 3;
+                    bits = 0;
+                    count = 0;
+                }
+            } else if (b == '=') {
+                out += flush(dst, out);
+                ended = true;
+            }
+            // Anything else, line breaks above all, is skipped
+        }
+        return out - dstOffset;
+    }
+
+    @Override
+    public int finish(byte[] dst, int dstOffset) {
+        int written = flush(dst, dstOffset);
+        ended = true;
+        return written;
+    }
+
+    // Write the bytes of an incomplete quantum: two characters make one byte, three make two
+    private int flush(byte[] dst, int out) {
+        int written = 0;
+        if (count == 2) {
+            dst[out] = (byte) (bits >> 4);
+            written = 1;
+        } else if (count == 3) {
+            dst[out] = (byte) (bits >> 10);
+            dst[out + 1] = (byte) (bits >> 2);
+            written = 2;
+        }
+        // A single character carries less than a byte and is dropped
+        bits = 0;
+        count = 0;
+        return written;
+    }
+
+    @Override
+    public int maxDecodedSize(int length) {
+        return (count + length) / 4 * 3 + 2;
+    }
+}
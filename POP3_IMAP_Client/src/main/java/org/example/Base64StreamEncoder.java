@@ -0,0 +1,125 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a file as MIME base64 (RFC 2045) into a channel.
+ *
+ * The file is read through its {@link FileChannel} in fixed-size blocks and encoded
+ * into a direct {@link ByteBuffer} from the {@link BufferPool}, wrapped at 76 characters per line with
+ * CRLF line breaks. Neither the file nor its encoded form is ever held in memory as a
+ * whole, so encoding a multi-GB file uses the same few hundred kilobytes as a small one.
+ *
+ * The buffers are only held during {@link #encode}, so an idle encoder costs nothing.
+ * An encoder is not thread-safe.
+ */
+public class Base64StreamEncoder {
+    // Number of input bytes that make up one 76-character output line
+    private static final int BYTES_PER_LINE = 57;
+    private static final int CHARS_PER_LINE = 76;
+    // Lines encoded per block; the input buffer always holds whole lines
+    private static final int LINES_PER_BLOCK = 2048;
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private static final int INPUT_SIZE = BYTES_PER_LINE * LINES_PER_BLOCK;
+    private static final int OUTPUT_SIZE = (CHARS_PER_LINE + 2) * LINES_PER_BLOCK;
+
+    // Taken from the direct pool while encoding
+    private ByteBuffer input;
+    private ByteBuffer output;
+
+    /**
+     * Encodes the whole file into the channel. Every line, including the last one,
+     * is terminated by CRLF; an empty file produces no output.
+     *
+     * @param file the file to encode
+     * @param out  the channel receiving the encoded bytes
+     * @return the number of bytes written to the channel
+     * @throws IOException if reading the file or writing the channel fails
+     */
+    public long encode(Path file, WritableByteChannel out) throws IOException {
+        long written = 0;
+        BufferPool pool = BufferPool.getDirect();
+        input = pool.acquire(INPUT_SIZE);
+        output = pool.acquire(OUTPUT_SIZE);
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            boolean eof = false;
+            while (!eof) {
+                // The pooled buffers may be larger; a block is exactly a number of whole lines
+                input.clear().limit(INPUT_SIZE);
+                // Fill the block completely so that only the very last line is short
+                while (input.hasRemaining()) {
+                    if (source.read(input) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                input.flip();
+                if (!input.hasRemaining()) {
+                    break;
+                }
+
+                output.clear();
+                encodeBlock();
+                output.flip();
+                while (output.hasRemaining()) {
+                    written += out.write(output);
+                }
+            }
+        } finally {
+            pool.release(input);
+            pool.release(output);
+            input = null;
+            output = null;
+        }
+        return written;
+    }
+
+    // Encode the input buffer into the output buffer, line by line
+    private void encodeBlock() {
+        int limit = input.limit();
+        int position = 0;
+        int out = 0;
+        while (position < limit) {
+            int lineEnd = Math.min(position + BYTES_PER_LINE, limit);
+            while (position + 3 <= lineEnd) {
+                int bits = (input.get(position) & 0xFF) << 16
+                        | (input.get(position + 1) & 0xFF) << 8
+                        | (input.get(position + 2) & 0xFF);
+                output.put(out, ALPHABET[(bits >>> 18) & 0x3F]);
+                output.put(out + 1, ALPHABET[(bits >>> 12) & 0x3F]);
+                output.put(out + 2, ALPHABET[(bits >>> 6) & 0x3F]);
+                output.put(out + 3, ALPHABET[bits & 0x3F]);
+                position += 3;
+                out += 4;
+            }
+
+            // Only the last line of the file can leave one or two bytes over
+            int remaining = lineEnd - position;
+            if (remaining > 0) {
+                int bits = (input.get(position) & 0xFF) << 16;
+                if (remaining == 2) {
+                    bits |= (input.get(position + 1) & 0xFF) << 8;
+                }
+                output.put(out, ALPHABET[(bits >>> 18) & 0x3F]);
+                output.put(out + 1, ALPHABET[(bits >>> 12) & 0x3F]);
+                output.put(out + 2, remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3F] : (byte) '=');
+                output.put(out + 3, (byte) '=');
+                position += remaining;
+                out += 4;
+            }
+
+            output.put(out, (byte) '\r');
+            output.put(out + 1, (byte) '\n');
+            out += 2;
+        }
+        output.position(out);
+    }
+}
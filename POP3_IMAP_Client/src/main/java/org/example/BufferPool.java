@@ -0,0 +1,199 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A shared pool of I/O buffers in power-of-two size classes, with explicit
+ * {@link #acquire(int)} and {@link #release(ByteBuffer)}.
+ *
+ * Sessions, parsers and encoders come and go with every connection and message; taking
+ * their buffers from here instead of allocating them means many concurrent sessions
+ * reuse a few dozen buffers rather than producing garbage. A request is served from the
+ * smallest class that fits, from 4 KB to 1 MB; larger ones are allocated and dropped
+ * as usual. Each class keeps a bounded number of free buffers, so a burst of sessions
+ * does not pin its peak memory forever.
+ *
+ * There are two pools: {@link #getDirect()} for buffers handed to channels and the TLS
+ * engine, which the JDK would otherwise copy through a temporary direct buffer, and
+ * {@link #getHeap()} for code that needs a {@code byte[]}, such as the parts reading
+ * from an {@link java.io.InputStream}.
+ *
+ * With leak detection on, which the system property {@code mail.buffers.debug=true}
+ * turns on for both pools, every buffer remembers where it was acquired. A buffer that
+ * is released twice or did not come from the pool fails, and {@link #getLeaks()} lists
+ * the buffers still out.
+ */
+public class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 20;
+    // Free buffers kept per size class
+    private static final int MAX_FREE_PER_CLASS = 64;
+
+    private static final boolean DEBUG = Boolean.getBoolean("mail.buffers.debug");
+    private static final BufferPool DIRECT = new BufferPool(true).setLeakDetection(DEBUG);
+    private static final BufferPool HEAP = new BufferPool(false).setLeakDetection(DEBUG);
+
+    private final boolean direct;
+    private final List<ArrayBlockingQueue<ByteBuffer>> free = new ArrayList<>();
+    private volatile boolean leakDetection;
+    // With leak detection: every buffer out of the pool and where it was acquired
+    private final Map<ByteBuffer, Throwable> outstanding = new IdentityHashMap<>();
+
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+
+    /**
+     * Creates a pool of its own; most code should use {@link #getDirect()} or
+     * {@link #getHeap()} instead.
+     *
+     * @param direct whether the buffers are direct
+     */
+    public BufferPool(boolean direct) {
+        this.direct = direct;
+        for (int shift = MIN_CLASS_SHIFT; shift <= MAX_CLASS_SHIFT; shift++) {
+            free.add(new ArrayBlockingQueue<>(MAX_FREE_PER_CLASS));
+        }
+    }
+
+    // The pool of direct buffers shared by the whole process
+    public static BufferPool getDirect() {
+        return DIRECT;
+    }
+
+    // The pool of heap buffers shared by the whole process
+    public static BufferPool getHeap() {
+        return HEAP;
+    }
+
+    /**
+     * Records where every buffer is acquired, so that unreleased ones can be found with
+     * {@link #getLeaks()}. Costs a stack trace per acquire; meant for debugging.
+     *
+     * @return this pool
+     */
+    public BufferPool setLeakDetection(boolean enabled) {
+        this.leakDetection = enabled;
+        if (!enabled) {
+            synchronized (outstanding) {
+                outstanding.clear();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Takes a buffer with room for at least the given number of bytes. Its position is
+     * 0 and its limit is {@code size}; the capacity may be larger, up to the size class.
+     *
+     * @param size the bytes needed
+     * @return a buffer that must be given back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire(int size) {
+        acquires.increment();
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = sizeClass < 0 ? null : free.get(sizeClass).poll();
+        if (buffer == null) {
+            int capacity = sizeClass < 0 ? size : 1 << (sizeClass + MIN_CLASS_SHIFT);
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            allocations.increment();
+            allocatedBytes.add(capacity);
+        }
+        buffer.clear().limit(size);
+        if (leakDetection) {
+            synchronized (outstanding) {
+                outstanding.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here"));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. It must not be used afterwards.
+     *
+     * @param buffer a buffer from {@link #acquire(int)}, or null for nothing
+     * @throws IllegalStateException with leak detection on, if the buffer was already
+     *                               released or did not come from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (leakDetection) {
+            synchronized (outstanding) {
+                if (outstanding.remove(buffer) == null) {
+                    throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+                }
+            }
+        }
+        releases.increment();
+        int capacity = buffer.capacity();
+        // Only exact class sizes go back; larger buffers were allocated for one use
+        if (buffer.isDirect() == direct && Integer.bitCount(capacity) == 1
+                && capacity >= 1 << MIN_CLASS_SHIFT && capacity <= 1 << MAX_CLASS_SHIFT) {
+            free.get(Integer.numberOfTrailingZeros(capacity) - MIN_CLASS_SHIFT).offer(buffer);
+        }
+    }
+
+    // Index of the smallest class holding size bytes, or -1 if it is larger than every class
+    private static int sizeClass(int size) {
+        if (size > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        int shift = size <= 1 << MIN_CLASS_SHIFT ? MIN_CLASS_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * The buffers acquired and not released yet, each as the stack trace of where it was
+     * acquired. Empty unless leak detection is on.
+     */
+    public List<Throwable> getLeaks() {
+        synchronized (outstanding) {
+            return new ArrayList<>(outstanding.values());
+        }
+    }
+
+    public long getAcquires() {
+        return acquires.sum();
+    }
+
+    // Acquires that had to allocate a new buffer
+    public long getAllocations() {
+        return allocations.sum();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    // Buffers acquired and not released yet
+    public long getOutstanding() {
+        return acquires.sum() - releases.sum();
+    }
+
+    // Bytes held in free buffers, ready for reuse
+    public long getFreeBytes() {
+        long bytes = 0;
+        for (int i = 0; i < free.size(); i++) {
+            bytes += (long) free.get(i).size() << (i + MIN_CLASS_SHIFT);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        long acquired = getAcquires();
+        return String.format("%s buffers: %d acquires, %d allocations (%.1f%% reused, %.1f MB), %d outstanding, %.1f MB free",
+                direct ? "Direct" : "Heap", acquired, getAllocations(),
+                acquired == 0 ? 0 : 100.0 * (acquired - getAllocations()) / acquired,
+                getAllocatedBytes() / 1e6, getOutstanding(), getFreeBytes() / 1e6);
+    }
+}
@@ -0,0 +1,69 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a {@link MailboxDownloader} run.
+ */
+public class DownloadReport {
+    private final int downloaded;
+    private final List<Integer> failed;
+    private final List<IOException> errors;
+    private final long bytes;
+    private final int connections;
+    private final long elapsedNanos;
+
+    public DownloadReport(int downloaded, List<Integer> failed, List<IOException> errors, long bytes, int connections,
+                          long elapsedNanos) {
+        this.downloaded = downloaded;
+        this.failed = Collections.unmodifiableList(failed);
+        this.errors = Collections.unmodifiableList(errors);
+        this.bytes = bytes;
+        this.connections = connections;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    // Number of messages fetched, parsed and accepted by the sink
+    public int getDownloaded() {
+        return downloaded;
+    }
+
+    // Message numbers that could not be downloaded
+    public List<Integer> getFailed() {
+        return failed;
+    }
+
+    // Why sessions stopped before the mailbox was done, e.g. a connection that could not be reopened
+    // or a message the sink could not store
+    public List<IOException> getErrors() {
+        return errors;
+    }
+
+    // Total size of the downloaded messages, as reported by LIST
+    public long getBytes() {
+        return bytes;
+    }
+
+    // Number of sessions that took part in the download
+    public int getConnections() {
+        return connections;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // Aggregate rate over all connections
+    public double getMessagesPerSecond() {
+        return elapsedNanos == 0 ? 0 : downloaded * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        String summary = String.format("%d messages (%d bytes) in %.2f s over %d connections: %.1f messages/sec, %d failed",
+                downloaded, bytes, elapsedNanos / 1e9, connections, getMessagesPerSecond(), failed.size());
+        return errors.isEmpty() ? summary : summary + ", " + errors.size() + " sessions stopped (" + errors.get(0).getMessage() + ")";
+    }
+}
@@ -0,0 +1,78 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A byte array that grows as bytes are appended, for collecting responses whose size is
+ * not known in advance.
+ *
+ * Buffers are meant to be reused: {@link ProtocolReader} keeps one per thread and clears
+ * it for every response, so after a few messages reading one no longer allocates
+ * anything but the message itself.
+ */
+public class GrowableBuffer {
+    private byte[] array;
+    private int size;
+
+    public GrowableBuffer(int initialCapacity) {
+        array = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public void append(byte[] bytes, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(bytes, offset, array, size, length);
+        size += length;
+    }
+
+    public void append(int b) {
+        ensureCapacity(size + 1);
+        array[size++] = (byte) b;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > array.length) {
+            if (capacity < 0) {
+                throw new OutOfMemoryError("Response larger than 2 GB");
+            }
+            // Double, so appending n bytes costs O(n) copying in total
+            array = Arrays.copyOf(array, Math.max(capacity, (int) Math.min(Integer.MAX_VALUE - 8, 2L * array.length)));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return array.length;
+    }
+
+    public byte get(int index) {
+        return array[index];
+    }
+
+    // Drop the content from the given size on
+    public void truncate(int newSize) {
+        size = newSize;
+    }
+
+    // The backing array, valid up to size(); only until the buffer is changed or cleared
+    public byte[] array() {
+        return array;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // A copy of the content, sized exactly
+    public byte[] toByteArray() {
+        return Arrays.copyOf(array, size);
+    }
+
+    // The content without copying; only valid until the buffer is changed or cleared
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(array, 0, size);
+    }
+}
@@ -0,0 +1,149 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An on-disk cache of message headers, keyed by their POP3 unique ID.
+ *
+ * Unique IDs never change for a message, so once its headers have been fetched they
+ * can be reused in every later session and only new messages need a "TOP" command.
+ * The cache is loaded completely into memory and written back with {@link #save()},
+ * which replaces the file atomically. A truncated file (e.g. after a crash while
+ * saving without atomic moves) keeps every entry that could be read.
+ */
+public class HeaderCache {
+    private static final int MAGIC = 0x48445243; // "HDRC"
+    private static final int VERSION = 1;
+    // No header value comes close to this; a larger length means the file is damaged
+    private static final int MAX_STRING = 1 << 20;
+
+    private final Path file;
+    private final Map<String, MailHeader> headers = new HashMap<>();
+    private boolean dirty;
+
+    /**
+     * Opens the cache stored in the given file, loading it if it exists.
+     *
+     * @param file the cache file; its directory is created on the first save
+     * @throws IOException if the file exists but cannot be read
+     */
+    public HeaderCache(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            load();
+        }
+    }
+
+    // Read every entry; a damaged tail is dropped and rewritten on the next save
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                dirty = true;
+                return; // Not ours, or an older format: start over
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String uid = readString(in);
+                long size = in.readLong();
+                MailHeader header = new MailHeader(uid, size, readString(in), readString(in), readString(in), readString(in));
+                headers.put(uid, header);
+            }
+        } catch (EOFException e) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns the cached headers of a message, or null if they have not been fetched yet.
+     */
+    public MailHeader get(String uid) {
+        return headers.get(uid);
+    }
+
+    public void put(MailHeader header) {
+        headers.put(header.getUid(), header);
+        dirty = true;
+    }
+
+    /**
+     * Drops the entries of every message that is no longer in the mailbox.
+     *
+     * @param uids the unique IDs currently on the server
+     */
+    public void retainAll(Set<String> uids) {
+        if (headers.keySet().retainAll(uids)) {
+            dirty = true;
+        }
+    }
+
+    public int size() {
+        return headers.size();
+    }
+
+    public Collection<MailHeader> values() {
+        return headers.values();
+    }
+
+    /**
+     * Writes the cache to its file if anything changed since it was loaded or saved.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(headers.size());
+                for (MailHeader header : headers.values()) {
+                    writeString(out, header.getUid());
+                    out.writeLong(header.getSize());
+                    writeString(out, header.getFrom());
+                    writeString(out, header.getTo());
+                    writeString(out, header.getSubject());
+                    writeString(out, header.getDate());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        dirty = false;
+    }
+
+    // Length-prefixed UTF-8; unlike writeUTF this has no 64 KB limit
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING) {
+            throw new EOFException("Corrupt string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
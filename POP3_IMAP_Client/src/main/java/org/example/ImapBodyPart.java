@@ -0,0 +1,56 @@
+package org.example;
+
+/**
+ * One leaf part of a message, as described by its IMAP BODYSTRUCTURE.
+ *
+ * The section (e.g. "1", "2.1") can be fetched on its own, or a range of it at a time,
+ * without downloading the rest of the message.
+ */
+public class ImapBodyPart {
+    private final String section;
+    private final String mediaType;
+    private final String encoding;
+    private final long size;
+    private final String filename;
+
+    public ImapBodyPart(String section, String mediaType, String encoding, long size, String filename) {
+        this.section = section;
+        this.mediaType = mediaType;
+        this.encoding = encoding;
+        this.size = size;
+        this.filename = filename;
+    }
+
+    public String getSection() {
+        return section;
+    }
+
+    // Lower-cased type and subtype, e.g. "application/pdf"
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    // Content-Transfer-Encoding in lower case, e.g. "base64"
+    public String getEncoding() {
+        return encoding;
+    }
+
+    // Size of the encoded part in bytes
+    public long getSize() {
+        return size;
+    }
+
+    // The attachment file name, or null for inline parts without one
+    public String getFilename() {
+        return filename;
+    }
+
+    public boolean isAttachment() {
+        return filename != null;
+    }
+
+    @Override
+    public String toString() {
+        return section + " " + mediaType + " " + encoding + " " + size + (filename == null ? "" : " \"" + filename + "\"");
+    }
+}
@@ -0,0 +1,821 @@
+package org.example;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * An IMAP4rev1 client (RFC 3501) for reading mail without downloading whole messages.
+ *
+ * Messages are listed by UID with their envelope and body structure only; single parts,
+ * or ranges of them, are fetched on demand. IDLE lets the server push new mail, and
+ * {@link #sync(String, ImapSyncState)} uses CONDSTORE/QRESYNC (RFC 7162) so that a
+ * reconnect only transfers what changed.
+ *
+ * Connections can be encrypted from the start, as on port 993, or upgraded with
+ * {@link #startTls(SSLContext)} before logging in.
+ */
+public class ImapClient {
+    // Size of each range requested when a body part is streamed with partial fetches.
+    private static final int PART_CHUNK_SIZE = 64 * 1024;
+    // What is fetched to describe a message without downloading it.
+    private static final String SUMMARY_ITEMS = "(UID FLAGS ENVELOPE BODYSTRUCTURE)";
+
+    // This socket facilitates communication between the client and the server.
+    private Socket socket;
+    // The channel behind the socket, which TLS runs on
+    private SocketChannel channel;
+    // The TLS layer once the connection is encrypted, otherwise null
+    private TlsChannel tls;
+    // Where the socket is connected, for checking the certificate when TLS starts
+    private final String server;
+    private final int port;
+    // Longest wait for the server outside IDLE, in milliseconds; zero waits forever
+    private int readTimeout;
+    // Responses are read as bytes because literals are counted in bytes.
+    private InputStream in;
+    private OutputStream out;
+    // Holds a partly read line, so that a read timeout during IDLE loses nothing.
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    private int tagCounter;
+    // Capabilities reported by the server; null until first queried.
+    private Set<String> capabilities;
+    private boolean qresyncEnabled;
+    // The server's answer to the last command that failed
+    private String lastError;
+
+    /**
+     * Establishes a connection to the specified IMAP server and reads its greeting.
+     */
+    public ImapClient(String server, int port) throws IOException {
+        this(server, port, null);
+    }
+
+    /**
+     * Establishes a connection over implicit TLS, as on port 993, and reads the greeting.
+     *
+     * Connections made with the same context resume the TLS session of an earlier one to
+     * the same server where the server allows it.
+     *
+     * @param tls the context to take the TLS session from, or null for a plain connection
+     * @throws IOException if the connection or the handshake fails, including when the
+     *                     server's certificate is not trusted or not issued for {@code server}
+     */
+    public ImapClient(String server, int port, SSLContext tls) throws IOException {
+        this(server, port, tls, Duration.ZERO, Duration.ZERO);
+    }
+
+    /**
+     * Establishes a connection that gives up on a server that does not answer.
+     *
+     * @param tls            the context to take the TLS session from, or null for a plain connection
+     * @param connectTimeout the longest wait for the connection to be accepted, or zero to
+     *                       wait as long as the operating system does
+     * @param readTimeout    the longest wait for the server to send something, from the
+     *                       greeting on, or zero to wait forever; see {@link #setReadTimeout}
+     * @throws SocketTimeoutException if the server does not accept or greet in time
+     */
+    public ImapClient(String server, int port, SSLContext tls, Duration connectTimeout, Duration readTimeout)
+            throws IOException {
+        this.server = server;
+        this.port = port;
+        this.readTimeout = MailClient.timeoutMillis(readTimeout);
+        channel = SocketChannel.open();
+        socket = channel.socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(this.readTimeout);
+            socket.connect(new InetSocketAddress(server, port), MailClient.timeoutMillis(connectTimeout));
+            if (tls == null) {
+                useStreams(socket.getInputStream(), socket.getOutputStream());
+            } else {
+                startHandshake(tls);
+            }
+
+            ImapResponse greeting = readResponse();
+            if (!greeting.getText().startsWith("* OK") && !greeting.getText().startsWith("* PREAUTH")) {
+                throw new IOException("Server refused the connection: " + greeting.getText());
+            }
+            System.out.println(greeting.getText());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void useStreams(InputStream in, OutputStream out) {
+        this.in = new BufferedInputStream(in);
+        this.out = new BufferedOutputStream(out);
+    }
+
+    // Run the TLS handshake on the socket and switch the streams over to TLS
+    private void startHandshake(SSLContext context) throws IOException {
+        TlsChannel handshake = new TlsChannel(channel, context, server, port).setTimeout(readTimeout);
+        while (!handshake.handshake()) {
+            // Only a non-blocking socket stops early, and this one blocks
+        }
+        tls = handshake;
+        useStreams(Channels.newInputStream(tls), Channels.newOutputStream(tls));
+    }
+
+    /**
+     * Upgrades the connection to TLS with "STARTTLS" (RFC 3501, section 6.2.1).
+     *
+     * The capabilities are forgotten, as the RFC requires, and asked for again when next
+     * needed. Must be called before logging in, so the password is not sent in the clear.
+     *
+     * @param context the context to take the TLS session from
+     * @throws IOException if the server refuses or does not offer the upgrade, or the
+     *                     handshake fails
+     */
+    public void startTls(SSLContext context) throws IOException {
+        if (tls != null) {
+            throw new IOException("The connection already uses TLS");
+        }
+        if (!capabilities().contains("STARTTLS")) {
+            throw new IOException("Server does not offer STARTTLS");
+        }
+        List<ImapResponse> responses = command("STARTTLS");
+        if (!succeeded(responses)) {
+            throw new IOException("Server refused STARTTLS: " + lastError);
+        }
+        // Anything already sent after the OK would be taken as coming through TLS
+        if (in.available() > 0) {
+            throw new IOException("Server sent data before the TLS handshake");
+        }
+        startHandshake(context);
+        capabilities = null;
+    }
+
+    /**
+     * Sets the longest wait for the server to send something, after which the waiting
+     * call fails with a {@link SocketTimeoutException}. The session is unusable after
+     * that, since the late answer would be taken for the answer to the next command.
+     * {@link #idle} waits as long as it was asked to regardless.
+     *
+     * @param timeout the timeout, or zero to wait forever
+     * @return this client
+     */
+    public ImapClient setReadTimeout(Duration timeout) throws IOException {
+        readTimeout = MailClient.timeoutMillis(timeout);
+        setReadTimeout(readTimeout);
+        return this;
+    }
+
+    // The TLS session of the connection, or null while it is not encrypted
+    public SSLSession getTlsSession() {
+        return tls == null ? null : tls.getSession();
+    }
+
+    // Whether the TLS handshake resumed an earlier session instead of starting a new one
+    public boolean isTlsResumed() {
+        return tls != null && tls.isResumed();
+    }
+
+    /**
+     * Closes the connection to the server and releases resources.
+     *
+     * @throws IOException if there is an issue closing the socket
+     */
+    public void close() throws IOException {
+        if (tls != null) {
+            // Sends close_notify before the socket goes
+            tls.close();
+        }
+        socket.close();
+    }
+
+    /**
+     * The tagged response of the last command the server refused, e.g.
+     * "A0003 NO [AUTHENTICATIONFAILED] Invalid credentials", for callers that got
+     * false or null back and want to know why.
+     *
+     * @return the response, or null if no command has failed
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Authenticates with the "LOGIN" command.
+     *
+     * @return true if the server accepted the credentials, false otherwise
+     */
+    public boolean login(String username, String password) throws IOException {
+        List<ImapResponse> responses = command("LOGIN " + quote(username) + " " + quote(password));
+        capabilities = null; // servers may announce more after login
+        return succeeded(responses);
+    }
+
+    /**
+     * Ends the session with the "LOGOUT" command.
+     *
+     * @return the server's final response
+     */
+    public String logout() throws IOException {
+        List<ImapResponse> responses = command("LOGOUT");
+        return responses.get(responses.size() - 1).getText();
+    }
+
+    /**
+     * Queries the capabilities of the server, e.g. IDLE, CONDSTORE or QRESYNC.
+     *
+     * The result is cached until the next login.
+     *
+     * @return the capability names in upper case
+     */
+    public Set<String> capabilities() throws IOException {
+        if (capabilities == null) {
+            Set<String> names = new HashSet<>();
+            for (ImapResponse response : command("CAPABILITY")) {
+                List<Object> values = response.parse();
+                if (response.isUntagged() && values.size() > 1 && "CAPABILITY".equalsIgnoreCase(ImapResponse.string(values.get(1)))) {
+                    for (int i = 2; i < values.size(); i++) {
+                        names.add(ImapResponse.string(values.get(i)).toUpperCase());
+                    }
+                }
+            }
+            capabilities = names;
+        }
+        return capabilities;
+    }
+
+    /**
+     * Selects a mailbox, turning on CONDSTORE when the server supports it.
+     *
+     * @param mailbox the mailbox name, e.g. "INBOX"
+     * @return the mailbox state, or null if the mailbox could not be selected
+     */
+    public ImapMailbox select(String mailbox) throws IOException {
+        String command = "SELECT " + quote(mailbox);
+        if (capabilities().contains("CONDSTORE")) {
+            command += " (CONDSTORE)";
+        }
+        List<ImapResponse> responses = command(command);
+        return succeeded(responses) ? mailbox(mailbox, responses) : null;
+    }
+
+    /**
+     * Fetches envelope, flags and body structure of messages, but none of their content.
+     *
+     * @param uidSet the UIDs to describe, in IMAP set syntax such as "1:*" or "4,7:9"
+     * @return a summary per message, in the order the server sent them
+     */
+    public List<ImapMessageSummary> fetchSummaries(String uidSet) throws IOException {
+        List<ImapResponse> responses = command("UID FETCH " + uidSet + " " + SUMMARY_ITEMS);
+        List<ImapMessageSummary> summaries = new ArrayList<>();
+        if (!succeeded(responses)) {
+            return summaries;
+        }
+        for (ImapResponse response : responses) {
+            Map<String, Object> items = fetchItems(response);
+            if (items != null && items.containsKey("ENVELOPE")) {
+                summaries.add(summary(items));
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Fetches a range of one body section without marking the message as seen.
+     *
+     * @param uid     the message UID
+     * @param section the section to read: "" for the whole message, "HEADER", "TEXT",
+     *                or a part number such as "2" or "1.3"
+     * @param offset  the first byte of the section to return
+     * @param length  the maximum number of bytes to return
+     * @return the requested bytes (fewer at the end of the section), or null if the
+     *         message does not exist
+     */
+    public byte[] fetchPartial(long uid, String section, long offset, int length) throws IOException {
+        return fetchBody(uid, "BODY.PEEK[" + section + "]<" + offset + "." + length + ">");
+    }
+
+    /**
+     * Fetches one whole body section without marking the message as seen.
+     *
+     * @return the still transfer-encoded bytes of the section, or null if the message does not exist
+     */
+    public byte[] fetchSection(long uid, String section) throws IOException {
+        return fetchBody(uid, "BODY.PEEK[" + section + "]");
+    }
+
+    /**
+     * Opens a stream over the decoded content of a body part.
+     *
+     * The part is downloaded on demand, {@value #PART_CHUNK_SIZE} bytes at a time with
+     * partial fetches, as the stream is read, so a large attachment never has to be held
+     * in memory and reading can stop early. The client must not be used for other
+     * commands while the stream is being read.
+     *
+     * @param uid  the message UID
+     * @param part a part from the message's {@link ImapMessageSummary#getParts()}
+     * @return the decoded part content
+     */
+    public InputStream openPart(long uid, ImapBodyPart part) {
+        InputStream encoded = new InputStream() {
+            private byte[] chunk = new byte[0];
+            private int position;
+            private long offset;
+            private boolean done;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position == chunk.length) {
+                    if (done) {
+                        return -1;
+                    }
+                    chunk = fetchPartial(uid, part.getSection(), offset, PART_CHUNK_SIZE);
+                    if (chunk == null) {
+                        throw new IOException("Message " + uid + " no longer exists");
+                    }
+                    position = 0;
+                    offset += chunk.length;
+                    done = chunk.length < PART_CHUNK_SIZE;
+                    if (chunk.length == 0) {
+                        return -1;
+                    }
+                }
+                int count = Math.min(len, chunk.length - position);
+                System.arraycopy(chunk, position, b, off, count);
+                position += count;
+                return count;
+            }
+        };
+        return TransferDecoder.wrap(encoded, part.getEncoding());
+    }
+
+    /**
+     * Waits for changes in the selected mailbox with "IDLE" (RFC 2177).
+     *
+     * Every untagged response the server pushes, such as "* 12 EXISTS" for new mail or
+     * "* 3 EXPUNGE", is passed to the listener. Idling ends when the listener returns
+     * false or the timeout passes; servers drop idle clients after about 30 minutes, so
+     * callers should idle again in a loop with a timeout below that.
+     *
+     * @param listener      receives every pushed response; returns false to stop idling
+     * @param timeoutMillis the longest time to idle
+     * @return false if the server does not support IDLE
+     */
+    public boolean idle(Predicate<ImapResponse> listener, long timeoutMillis) throws IOException {
+        String tag = nextTag();
+        send(tag + " IDLE");
+        ImapResponse response = readResponse();
+        if (!response.isContinuation()) {
+            while (!response.isTagged(tag)) {
+                response = readResponse();
+            }
+            lastError = response.getText();
+            return false;
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                setReadTimeout((int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE)));
+                try {
+                    if (!listener.test(readResponse())) {
+                        break;
+                    }
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+            }
+        } finally {
+            setReadTimeout(readTimeout);
+        }
+
+        send("DONE");
+        do {
+            response = readResponse();
+        } while (!response.isTagged(tag));
+        return response.isOk();
+    }
+
+    /**
+     * Brings a local view of a mailbox up to date, transferring only what changed.
+     *
+     * With QRESYNC (RFC 7162) the SELECT itself returns the flag changes and the UIDs
+     * expunged since the previous sync. With only CONDSTORE the changed flags are asked
+     * for with CHANGEDSINCE and expunged messages are found with "UID SEARCH ALL".
+     * Without either, all flags are fetched again. In every case only messages with a
+     * UID at or above the previous UIDNEXT are described in full. If there is no
+     * previous state, or UIDVALIDITY changed, the whole mailbox is listed.
+     *
+     * @param mailbox  the mailbox name, e.g. "INBOX"
+     * @param previous the state returned by the previous sync, or null for the first one
+     * @return the changes and the state to pass to the next sync, or null if the mailbox
+     *         could not be selected
+     */
+    public ImapSyncResult sync(String mailbox, ImapSyncState previous) throws IOException {
+        boolean qresync = capabilities().contains("QRESYNC");
+        boolean condstore = qresync || capabilities().contains("CONDSTORE");
+        boolean incremental = previous != null && previous.getHighestModSeq() > 0 && condstore;
+
+        if (incremental && qresync && !qresyncEnabled) {
+            qresyncEnabled = succeeded(command("ENABLE QRESYNC"));
+        }
+        String command = "SELECT " + quote(mailbox);
+        if (incremental && qresyncEnabled) {
+            command += " (QRESYNC (" + previous.getUidValidity() + " " + previous.getHighestModSeq() + "))";
+        } else if (condstore) {
+            command += " (CONDSTORE)";
+        }
+        List<ImapResponse> selected = command(command);
+        if (!succeeded(selected)) {
+            return null;
+        }
+        ImapMailbox state = mailbox(mailbox, selected);
+
+        if (previous == null || previous.getUidValidity() != state.getUidValidity()) {
+            // Nothing known can be trusted: list the whole mailbox
+            List<ImapMessageSummary> added = state.getExists() == 0 ? new ArrayList<>() : fetchSummaries("1:*");
+            SortedSet<Long> uids = new TreeSet<>();
+            for (ImapMessageSummary summary : added) {
+                uids.add(summary.getUid());
+            }
+            List<Long> vanished = previous == null ? new ArrayList<>() : new ArrayList<>(previous.getUids());
+            return new ImapSyncResult(newState(state, uids), added, new LinkedHashMap<>(), vanished, true);
+        }
+
+        Map<Long, List<String>> changed = new LinkedHashMap<>();
+        SortedSet<Long> vanished = new TreeSet<>();
+        if (incremental && qresyncEnabled) {
+            // The server already told us everything in its answer to SELECT
+            for (ImapResponse response : selected) {
+                List<Object> values = response.parse();
+                if (values.size() > 2 && "VANISHED".equalsIgnoreCase(ImapResponse.string(values.get(1)))) {
+                    vanished.addAll(parseUidSet(ImapResponse.string(values.get(values.size() - 1))));
+                }
+                collectFlags(response, changed);
+            }
+        } else {
+            String items = incremental ? "(UID FLAGS) (CHANGEDSINCE " + previous.getHighestModSeq() + ")" : "(UID FLAGS)";
+            if (state.getExists() > 0) {
+                for (ImapResponse response : command("UID FETCH 1:* " + items)) {
+                    collectFlags(response, changed);
+                }
+            }
+            SortedSet<Long> current = new TreeSet<>();
+            for (ImapResponse response : command("UID SEARCH ALL")) {
+                List<Object> values = response.parse();
+                if (values.size() > 1 && "SEARCH".equalsIgnoreCase(ImapResponse.string(values.get(1)))) {
+                    for (int i = 2; i < values.size(); i++) {
+                        current.add(Long.parseLong(ImapResponse.string(values.get(i))));
+                    }
+                }
+            }
+            for (long uid : previous.getUids()) {
+                if (!current.contains(uid)) {
+                    vanished.add(uid);
+                }
+            }
+        }
+        vanished.retainAll(previous.getUids());
+
+        List<ImapMessageSummary> added = new ArrayList<>();
+        if (state.getUidNext() > previous.getUidNext() && state.getExists() > 0) {
+            for (ImapMessageSummary summary : fetchSummaries(previous.getUidNext() + ":*")) {
+                // "n:*" always includes the last message, even when it is older than n
+                if (summary.getUid() >= previous.getUidNext()) {
+                    added.add(summary);
+                }
+            }
+        }
+
+        SortedSet<Long> uids = new TreeSet<>(previous.getUids());
+        uids.removeAll(vanished);
+        for (ImapMessageSummary summary : added) {
+            uids.add(summary.getUid());
+            changed.remove(summary.getUid());
+        }
+        changed.keySet().retainAll(uids);
+        return new ImapSyncResult(newState(state, uids), added, changed, new ArrayList<>(vanished), false);
+    }
+
+    // A socket channel ignores SO_TIMEOUT, so over TLS the channel waits with a deadline of its own
+    private void setReadTimeout(int millis) throws IOException {
+        if (tls != null) {
+            tls.setTimeout(millis);
+        } else {
+            socket.setSoTimeout(millis);
+        }
+    }
+
+    // Send a tagged command and read every response up to and including the tagged one
+    private List<ImapResponse> command(String command) throws IOException {
+        String tag = nextTag();
+        send(tag + " " + command);
+        List<ImapResponse> responses = new ArrayList<>();
+        ImapResponse response;
+        do {
+            response = readResponse();
+            responses.add(response);
+        } while (!response.isTagged(tag));
+        return responses;
+    }
+
+    // Check the tagged response that ends a command and remember a failure
+    private boolean succeeded(List<ImapResponse> responses) {
+        ImapResponse last = responses.get(responses.size() - 1);
+        if (!last.isOk()) {
+            lastError = last.getText();
+        }
+        return last.isOk();
+    }
+
+    private String nextTag() {
+        return String.format("A%04d", ++tagCounter);
+    }
+
+    private void send(String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // Read one response line, including the literals it announces with {n}
+    private ImapResponse readResponse() throws IOException {
+        StringBuilder text = new StringBuilder();
+        List<byte[]> literals = new ArrayList<>();
+        while (true) {
+            String line = readLine();
+            text.append(line);
+            int length = literalLength(line);
+            if (length < 0) {
+                return new ImapResponse(text.toString(), literals);
+            }
+            byte[] literal = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int count = in.read(literal, read, length - read);
+                if (count < 0) {
+                    throw new EOFException("Connection closed by server");
+                }
+                read += count;
+            }
+            literals.add(literal);
+        }
+    }
+
+    private String readLine() throws IOException {
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            lineBuffer.write(b);
+        }
+        byte[] bytes = lineBuffer.toByteArray();
+        lineBuffer.reset();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // The length announced by a trailing "{n}" or "{n+}", or -1 if the line has none
+    private static int literalLength(String line) {
+        if (!line.endsWith("}")) {
+            return -1;
+        }
+        int open = line.lastIndexOf('{');
+        if (open < 0) {
+            return -1;
+        }
+        String digits = line.substring(open + 1, line.length() - 1);
+        if (digits.endsWith("+")) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            return Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Fetch one body item of a message and return its bytes
+    private byte[] fetchBody(long uid, String item) throws IOException {
+        List<ImapResponse> responses = command("UID FETCH " + uid + " (" + item + ")");
+        if (!succeeded(responses)) {
+            return null;
+        }
+        for (ImapResponse response : responses) {
+            Map<String, Object> items = fetchItems(response);
+            if (items == null) {
+                continue;
+            }
+            for (Map.Entry<String, Object> entry : items.entrySet()) {
+                if (entry.getKey().startsWith("BODY[")) {
+                    Object value = entry.getValue();
+                    if (value instanceof byte[]) {
+                        return (byte[]) value;
+                    }
+                    return value == null ? new byte[0] : ImapResponse.string(value).getBytes(StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return null;
+    }
+
+    // The item/value pairs of a "* n FETCH (...)" response, or null for any other response
+    private static Map<String, Object> fetchItems(ImapResponse response) {
+        if (!response.isUntagged()) {
+            return null;
+        }
+        List<Object> values = response.parse();
+        if (values.size() < 4 || !"FETCH".equalsIgnoreCase(ImapResponse.string(values.get(2)))
+                || !(values.get(3) instanceof List)) {
+            return null;
+        }
+        List<?> list = (List<?>) values.get(3);
+        Map<String, Object> items = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < list.size(); i += 2) {
+            items.put(ImapResponse.string(list.get(i)).toUpperCase(), list.get(i + 1));
+        }
+        return items;
+    }
+
+    // Remember the flags of a FETCH response, keyed by UID
+    private static void collectFlags(ImapResponse response, Map<Long, List<String>> flags) {
+        Map<String, Object> items = fetchItems(response);
+        if (items != null && items.containsKey("UID") && items.get("FLAGS") instanceof List) {
+            flags.put(Long.parseLong(ImapResponse.string(items.get("UID"))), strings(items.get("FLAGS")));
+        }
+    }
+
+    private static ImapMessageSummary summary(Map<String, Object> items) {
+        List<?> envelope = (List<?>) items.get("ENVELOPE");
+        List<ImapBodyPart> parts = new ArrayList<>();
+        if (items.get("BODYSTRUCTURE") instanceof List) {
+            collectParts((List<?>) items.get("BODYSTRUCTURE"), "", parts);
+        }
+        Object modSeq = items.get("MODSEQ");
+        return new ImapMessageSummary(
+                Long.parseLong(ImapResponse.string(items.get("UID"))),
+                strings(items.get("FLAGS")),
+                modSeq instanceof List && !((List<?>) modSeq).isEmpty() ? Long.parseLong(ImapResponse.string(((List<?>) modSeq).get(0))) : 0,
+                ImapResponse.string(envelope.get(0)),
+                ImapResponse.string(envelope.get(1)),
+                addresses(envelope.get(2)),
+                addresses(envelope.get(5)),
+                ImapResponse.string(envelope.get(9)),
+                parts);
+    }
+
+    // Walk a BODYSTRUCTURE and list its leaf parts with their section numbers
+    private static void collectParts(List<?> body, String section, List<ImapBodyPart> parts) {
+        if (body.isEmpty()) {
+            return;
+        }
+        if (body.get(0) instanceof List) {
+            // multipart: the child bodies come first, then the subtype and extension data
+            for (int i = 0; i < body.size() && body.get(i) instanceof List; i++) {
+                collectParts((List<?>) body.get(i), section.isEmpty() ? String.valueOf(i + 1) : section + "." + (i + 1), parts);
+            }
+            return;
+        }
+
+        String type = lower(body.get(0));
+        String subtype = lower(body.get(1));
+        // Extension data follows the basic fields, which are longer for text and message/rfc822
+        int dispositionIndex = type.equals("text") ? 9 : type.equals("message") && subtype.equals("rfc822") ? 11 : 8;
+        String filename = null;
+        if (body.size() > dispositionIndex && body.get(dispositionIndex) instanceof List) {
+            List<?> disposition = (List<?>) body.get(dispositionIndex);
+            if (disposition.size() > 1) {
+                filename = parameter(disposition.get(1), "FILENAME");
+            }
+        }
+        if (filename == null) {
+            filename = parameter(body.get(2), "NAME");
+        }
+        parts.add(new ImapBodyPart(section.isEmpty() ? "1" : section, type + "/" + subtype, lower(body.get(5)),
+                Long.parseLong(ImapResponse.string(body.get(6))), filename));
+    }
+
+    private static String parameter(Object parameters, String name) {
+        if (!(parameters instanceof List)) {
+            return null;
+        }
+        List<?> list = (List<?>) parameters;
+        for (int i = 0; i + 1 < list.size(); i += 2) {
+            if (name.equalsIgnoreCase(ImapResponse.string(list.get(i)))) {
+                return ImapResponse.string(list.get(i + 1));
+            }
+        }
+        return null;
+    }
+
+    // Format an ENVELOPE address list as "Name <mailbox@host>, ..."
+    private static String addresses(Object value) {
+        if (!(value instanceof List)) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Object item : (List<?>) value) {
+            List<?> address = (List<?>) item;
+            String name = ImapResponse.string(address.get(0));
+            String email = ImapResponse.string(address.get(2)) + "@" + ImapResponse.string(address.get(3));
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(name == null ? email : name + " <" + email + ">");
+        }
+        return sb.toString();
+    }
+
+    private static List<String> strings(Object value) {
+        List<String> strings = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                strings.add(ImapResponse.string(item));
+            }
+        }
+        return strings;
+    }
+
+    private static String lower(Object value) {
+        String string = ImapResponse.string(value);
+        return string == null ? "" : string.toLowerCase();
+    }
+
+    // Read the mailbox state out of the untagged responses to SELECT
+    private static ImapMailbox mailbox(String name, List<ImapResponse> responses) {
+        long exists = 0;
+        long uidValidity = 0;
+        long uidNext = 0;
+        long highestModSeq = 0;
+        for (ImapResponse response : responses) {
+            String text = response.getText();
+            if (text.endsWith(" EXISTS")) {
+                exists = Long.parseLong(text.substring(2, text.length() - " EXISTS".length()).trim());
+            } else {
+                uidValidity = Math.max(uidValidity, responseCode(text, "UIDVALIDITY"));
+                uidNext = Math.max(uidNext, responseCode(text, "UIDNEXT"));
+                highestModSeq = Math.max(highestModSeq, responseCode(text, "HIGHESTMODSEQ"));
+            }
+        }
+        return new ImapMailbox(name, exists, uidValidity, uidNext, highestModSeq);
+    }
+
+    // The number in a "[CODE n]" response code, or 0 if the line has none
+    private static long responseCode(String text, String code) {
+        int start = text.indexOf("[" + code + " ");
+        if (start < 0) {
+            return 0;
+        }
+        start += code.length() + 2;
+        int end = text.indexOf(']', start);
+        return Long.parseLong(text.substring(start, end).trim());
+    }
+
+    private static ImapSyncState newState(ImapMailbox mailbox, SortedSet<Long> uids) {
+        return new ImapSyncState(mailbox.getUidValidity(), mailbox.getUidNext(), mailbox.getHighestModSeq(), uids);
+    }
+
+    /**
+     * Expands an IMAP UID set such as "3:5,9" into its UIDs.
+     */
+    public static List<Long> parseUidSet(String set) {
+        List<Long> uids = new ArrayList<>();
+        for (String range : set.split(",")) {
+            int colon = range.indexOf(':');
+            if (colon < 0) {
+                uids.add(Long.parseLong(range.trim()));
+            } else {
+                long first = Long.parseLong(range.substring(0, colon).trim());
+                long last = Long.parseLong(range.substring(colon + 1).trim());
+                for (long uid = Math.min(first, last); uid <= Math.max(first, last); uid++) {
+                    uids.add(uid);
+                }
+            }
+        }
+        return uids;
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,50 @@
+package org.example;
+
+/**
+ * The state of a mailbox as reported by an IMAP SELECT.
+ */
+public class ImapMailbox {
+    private final String name;
+    private final long exists;
+    private final long uidValidity;
+    private final long uidNext;
+    private final long highestModSeq;
+
+    public ImapMailbox(String name, long exists, long uidValidity, long uidNext, long highestModSeq) {
+        this.name = name;
+        this.exists = exists;
+        this.uidValidity = uidValidity;
+        this.uidNext = uidNext;
+        this.highestModSeq = highestModSeq;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Number of messages in the mailbox
+    public long getExists() {
+        return exists;
+    }
+
+    // UIDs are only comparable across sessions while this value stays the same
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    // The UID the next delivered message will get
+    public long getUidNext() {
+        return uidNext;
+    }
+
+    // The mod-sequence of the latest change (CONDSTORE); 0 if the server does not track it
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d messages, UIDVALIDITY %d, UIDNEXT %d, HIGHESTMODSEQ %d",
+                name, exists, uidValidity, uidNext, highestModSeq);
+    }
+}
@@ -0,0 +1,76 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What an IMAP "UID FETCH (UID FLAGS ENVELOPE BODYSTRUCTURE)" tells about a message,
+ * without any of its content.
+ */
+public class ImapMessageSummary {
+    private final long uid;
+    private final List<String> flags;
+    private final long modSeq;
+    private final String date;
+    private final String subject;
+    private final String from;
+    private final String to;
+    private final String messageId;
+    private final List<ImapBodyPart> parts;
+
+    public ImapMessageSummary(long uid, List<String> flags, long modSeq, String date, String subject,
+                              String from, String to, String messageId, List<ImapBodyPart> parts) {
+        this.uid = uid;
+        this.flags = Collections.unmodifiableList(flags);
+        this.modSeq = modSeq;
+        this.date = date;
+        this.subject = subject;
+        this.from = from;
+        this.to = to;
+        this.messageId = messageId;
+        this.parts = Collections.unmodifiableList(parts);
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    public List<String> getFlags() {
+        return flags;
+    }
+
+    // The mod-sequence of the last change to the message; 0 without CONDSTORE
+    public long getModSeq() {
+        return modSeq;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    // The leaf parts of the message, in section order
+    public List<ImapBodyPart> getParts() {
+        return parts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UID %d %s From: %s Subject: %s (%d parts)", uid, flags, from, subject, parts.size());
+    }
+}
@@ -0,0 +1,148 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One IMAP response line as read by {@link ImapClient}, together with the literals
+ * ({@code {n}} followed by n raw bytes) it contained.
+ *
+ * The text keeps the {@code {n}} markers in place of the literal data; {@link #parse()}
+ * turns the line into nested values where each marker is replaced by its bytes.
+ */
+public class ImapResponse {
+    private final String text;
+    private final List<byte[]> literals;
+
+    public ImapResponse(String text, List<byte[]> literals) {
+        this.text = text;
+        this.literals = Collections.unmodifiableList(literals);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public List<byte[]> getLiterals() {
+        return literals;
+    }
+
+    // "* ..." responses carry data that was not directly asked for by tag
+    public boolean isUntagged() {
+        return text.startsWith("* ");
+    }
+
+    // "+ ..." asks the client to continue, e.g. after IDLE
+    public boolean isContinuation() {
+        return text.startsWith("+");
+    }
+
+    public boolean isTagged(String tag) {
+        return text.startsWith(tag + " ");
+    }
+
+    // For a tagged response: whether the command completed with OK
+    public boolean isOk() {
+        String[] parts = text.split(" ", 3);
+        return parts.length > 1 && parts[1].equalsIgnoreCase("OK");
+    }
+
+    /**
+     * Parses the response into values: atoms and quoted strings become {@code String},
+     * NIL becomes null, literals become {@code byte[]} and parenthesized lists become
+     * {@code List<Object>}. Atoms such as {@code BODY[1.2]<0>} are kept whole, including
+     * any spaces inside the brackets.
+     *
+     * @return the values of the line in order, e.g. ["*", "3", "FETCH", [ "UID", "17", ... ]]
+     */
+    public List<Object> parse() {
+        Tokenizer tokenizer = new Tokenizer();
+        List<Object> values = new ArrayList<>();
+        while (tokenizer.skipSpaces()) {
+            values.add(tokenizer.value());
+        }
+        return values;
+    }
+
+    // Walks the text once, handing out literal bytes as their markers are reached
+    private class Tokenizer {
+        private int position;
+        private int literal;
+
+        boolean skipSpaces() {
+            while (position < text.length() && text.charAt(position) == ' ') {
+                position++;
+            }
+            return position < text.length();
+        }
+
+        Object value() {
+            char c = text.charAt(position);
+            if (c == '(') {
+                position++;
+                List<Object> list = new ArrayList<>();
+                while (skipSpaces() && text.charAt(position) != ')') {
+                    list.add(value());
+                }
+                position++; // skip ')'
+                return list;
+            }
+            if (c == '"') {
+                StringBuilder quoted = new StringBuilder();
+                position++;
+                while (position < text.length() && text.charAt(position) != '"') {
+                    char q = text.charAt(position++);
+                    if (q == '\\' && position < text.length()) {
+                        q = text.charAt(position++);
+                    }
+                    quoted.append(q);
+                }
+                position++; // skip closing quote
+                return quoted.toString();
+            }
+            if (c == '{') {
+                int end = text.indexOf('}', position);
+                position = end + 1;
+                return literal < literals.size() ? literals.get(literal++) : new byte[0];
+            }
+
+            int start = position;
+            int brackets = 0;
+            while (position < text.length()) {
+                char a = text.charAt(position);
+                if (a == '[') {
+                    brackets++;
+                } else if (a == ']') {
+                    brackets--;
+                } else if (brackets == 0 && (a == ' ' || a == '(' || a == ')')) {
+                    break;
+                }
+                position++;
+            }
+            if (position == start) {
+                position++; // a stray ')' outside any list
+                return "";
+            }
+            String atom = text.substring(start, position);
+            return atom.equalsIgnoreCase("NIL") ? null : atom;
+        }
+    }
+
+    /**
+     * Converts a parsed value back to text: strings as they are, literals decoded as
+     * UTF-8, NIL as null.
+     */
+    public static String string(Object value) {
+        if (value instanceof byte[]) {
+            return new String((byte[]) value, StandardCharsets.UTF_8);
+        }
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,56 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes found by {@link ImapClient#sync(String, ImapSyncState)}.
+ */
+public class ImapSyncResult {
+    private final ImapSyncState state;
+    private final List<ImapMessageSummary> added;
+    private final Map<Long, List<String>> changedFlags;
+    private final List<Long> vanished;
+    private final boolean fullResync;
+
+    public ImapSyncResult(ImapSyncState state, List<ImapMessageSummary> added, Map<Long, List<String>> changedFlags,
+                          List<Long> vanished, boolean fullResync) {
+        this.state = state;
+        this.added = Collections.unmodifiableList(added);
+        this.changedFlags = Collections.unmodifiableMap(changedFlags);
+        this.vanished = Collections.unmodifiableList(vanished);
+        this.fullResync = fullResync;
+    }
+
+    // The state to pass to the next sync
+    public ImapSyncState getState() {
+        return state;
+    }
+
+    // Messages that arrived since the previous sync
+    public List<ImapMessageSummary> getAdded() {
+        return added;
+    }
+
+    // New flags of known messages whose flags changed, keyed by UID
+    public Map<Long, List<String>> getChangedFlags() {
+        return changedFlags;
+    }
+
+    // UIDs of known messages that are no longer in the mailbox
+    public List<Long> getVanished() {
+        return vanished;
+    }
+
+    // True if the mailbox had to be listed from scratch (first sync or UIDVALIDITY changed)
+    public boolean isFullResync() {
+        return fullResync;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%d added, %d changed, %d vanished", fullResync ? "full resync: " : "",
+                added.size(), changedFlags.size(), vanished.size());
+    }
+}
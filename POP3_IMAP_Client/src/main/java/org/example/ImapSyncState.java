@@ -0,0 +1,40 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * What a client knows about a mailbox after a sync; handed back to
+ * {@link ImapClient#sync(String, ImapSyncState)} so the next sync only transfers changes.
+ */
+public class ImapSyncState {
+    private final long uidValidity;
+    private final long uidNext;
+    private final long highestModSeq;
+    private final SortedSet<Long> uids;
+
+    public ImapSyncState(long uidValidity, long uidNext, long highestModSeq, SortedSet<Long> uids) {
+        this.uidValidity = uidValidity;
+        this.uidNext = uidNext;
+        this.highestModSeq = highestModSeq;
+        this.uids = Collections.unmodifiableSortedSet(new TreeSet<>(uids));
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public long getUidNext() {
+        return uidNext;
+    }
+
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    // The UIDs of every message known to be in the mailbox
+    public SortedSet<Long> getUids() {
+        return uids;
+    }
+}
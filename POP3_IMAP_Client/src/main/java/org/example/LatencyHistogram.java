@@ -0,0 +1,92 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-bucket latency histogram that can be updated from many threads without locking.
+ *
+ * The buckets grow roughly by 2.5x from 100 microseconds to 10 seconds, which covers
+ * everything from a loopback round trip to a slow mailbox download. Recording costs an
+ * array scan over 16 bounds and two atomic increments.
+ */
+public class LatencyHistogram {
+    // Upper bounds of the buckets in seconds; one more bucket takes everything above
+    static final double[] BOUNDS_SECONDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+            0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * 1e9);
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        sumNanos.add(nanos);
+        if (nanos > maxNanos.get()) {
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanMillis() {
+        long n = getCount();
+        return n == 0 ? 0 : getSumNanos() / 1e6 / n;
+    }
+
+    // Number of values in the given bucket; the last bucket is everything above 10 seconds
+    long getBucket(int index) {
+        return buckets.get(index);
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket it falls into.
+     *
+     * @param percentile between 0 and 100
+     * @return the estimate in milliseconds, or 0 if nothing was recorded
+     */
+    public double getPercentileMillis(double percentile) {
+        long total = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            total += buckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(BOUNDS_NANOS[i], getMaxNanos()) / 1e6;
+            }
+        }
+        return getMaxNanos() / 1e6;
+    }
+}
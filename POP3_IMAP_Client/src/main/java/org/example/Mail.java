@@ -1,150 +1,225 @@
 package org.example;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 import java.util.*;
-import java.util.regex.*;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Base64;
 
 public class Mail {
-    private String returnPath;
-    private String from;
-    private String to;
-    private String subject;
-    private String date;
+    // Parsers keep their buffers between messages; one per thread since they are not thread-safe
+    private static final ThreadLocal<MimeParser> PARSERS = ThreadLocal.withInitial(MimeParser::new);
+
+    // The raw message; headers, body and attachments are all read from it on demand
+    private final ByteBuffer raw;
+    // Every header of the message, in order of appearance, keyed case-insensitively; null until first used
+    private Map<String, List<String>> headers;
+    // The decoded text and HTML bodies and the attachments; only valid once bodyParsed is set
     private String textBody;
-    private Map<String, String> attachments;
+    private String htmlBody;
+    private Map<String, Attachment> attachments;
+    private boolean bodyParsed;
 
     // Constructor to parse the raw email content
     public Mail(String rawEmail) {
-        this.attachments = new HashMap<>();
-        parseEmail(rawEmail);
-    }
-
-    // Parse the email content into headers, body, and attachments
-    private void parseEmail(String rawEmail) {
-        String headersSection = rawEmail.split("\n\n")[0]; // The header part comes before an empty line
-        String bodySection = rawEmail.substring(headersSection.length()).trim();
-
-        // Regular expressions to extract headers
-        this.returnPath = extractHeader(headersSection, "Return-Path");
-        this.from = extractHeader(headersSection, "From");
-        this.to = extractHeader(headersSection, "To");
-        this.subject = extractHeader(headersSection, "Subject");
-        this.date = extractHeader(headersSection, "Date");
-
-        // Now, extract multipart sections (body and attachments)
-        String boundary = extractBoundary(headersSection);
-        if (boundary != null) {
-            parseMultipartBody(bodySection, boundary);
-        }
+        this(rawEmail.getBytes(StandardCharsets.UTF_8));
     }
 
-    // Extract header value by header name
-    private String extractHeader(String headers, String headerName) {
-        Pattern pattern = Pattern.compile(headerName + ": (.*)", Pattern.MULTILINE);
-        Matcher matcher = pattern.matcher(headers);
-        if (matcher.find()) {
-            return matcher.group(1).trim();
-        }
-        return "";
+    // Constructor to parse the raw email bytes, as received from the server
+    public Mail(byte[] rawEmail) {
+        this(ByteBuffer.wrap(rawEmail));
+    }
+
+    // Constructor to parse the raw email from a buffer; nothing is parsed until a getter needs it
+    public Mail(ByteBuffer rawEmail) {
+        this.raw = rawEmail.slice().asReadOnlyBuffer();
     }
 
-    // Extract boundary from the Content-Type header
-    private String extractBoundary(String headers) {
-        Pattern pattern = Pattern.compile("boundary=\"([^\"]+)\"", Pattern.MULTILINE);
-        Matcher matcher = pattern.matcher(headers);
-        if (matcher.find()) {
-            return matcher.group(1);
+    // Index the header block of the message, without touching the body
+    private synchronized Map<String, List<String>> headers() {
+        if (headers == null) {
+            long start = System.nanoTime();
+            ByteBuffer headerBlock = raw.duplicate();
+            headerBlock.limit(headerBlockEnd());
+            Map<String, List<String>> parsed = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            parse(headerBlock, new MimeHandler() {
+                @Override
+                public void header(String name, String value) {
+                    parsed.computeIfAbsent(name, key -> new ArrayList<>(1)).add(value);
+                }
+            });
+            headers = parsed;
+            MailMetrics.getDefault().recordParse("headers", System.nanoTime() - start);
         }
-        return null;
-    }
-
-    // Parse multipart body and attachments
-    private void parseMultipartBody(String bodySection, String boundary) {
-        String[] parts = bodySection.split(boundary);
-        System.out.println(parts.length);
-        for (String part : parts) {
-            if (part.contains("Content-Type: text/plain")) {
-                // Extract the text body of the email
-                this.textBody = extractTextBody(part);
-            } else if (part.contains("Content-Disposition: attachment")) {
-                // Extract attachments
-                String attachment = extractAttachment(part);
-                if (!attachment.isEmpty()) {
-                    this.attachments.put("Attachment", attachment);
+        return headers;
+    }
+
+    // Position just past the line break that ends the last header line
+    private int headerBlockEnd() {
+        int limit = raw.limit();
+        for (int i = 0; i < limit - 1; i++) {
+            if (raw.get(i) == '\n') {
+                byte next = raw.get(i + 1);
+                if (next == '\n' || (next == '\r' && i + 2 < limit && raw.get(i + 2) == '\n')) {
+                    return i + 1;
                 }
             }
         }
+        return limit;
     }
 
-    // Extract text body from a multipart part
-    private String extractTextBody(String part) {
-        Pattern pattern = Pattern.compile("Content-Type: text/plain.*?\\r?\\n\\r?\\n(.*?)\\r?\\n--", Pattern.DOTALL);
-        Matcher matcher = pattern.matcher(part);
-        if (matcher.find()) {
-            return matcher.group(1).trim();
+    // Walk the whole message once to find the text body and the attachments
+    private synchronized void parseBody() {
+        if (!bodyParsed) {
+            long start = System.nanoTime();
+            attachments = new LinkedHashMap<>();
+            parse(raw.duplicate(), new MailBuilder());
+            bodyParsed = true;
+            MailMetrics.getDefault().recordParse("body", System.nanoTime() - start);
         }
-        return "";
     }
 
+    private static void parse(ByteBuffer content, MimeHandler handler) {
+        try {
+            PARSERS.get().parse(new ByteBufferInputStream(content), handler);
+        } catch (IOException e) {
+            // A buffer backed stream never fails
+            throw new UncheckedIOException(e);
+        }
+    }
 
+    // Collects the text body and attachments of one message into this Mail
+    private class MailBuilder implements MimeHandler {
+        private int depth;
+        private String contentType;
+        private String transferEncoding;
+        private String disposition;
+        private long bodyStart = -1;
+
+        @Override
+        public void startPart(int depth) {
+            this.depth = depth;
+            this.contentType = null;
+            this.transferEncoding = null;
+            this.disposition = null;
+            this.bodyStart = -1;
+        }
 
-    private String extractAttachment(String part) {
-        Pattern namePattern = Pattern.compile("filename=\"([^\"]+)\"");
-        Matcher nameMatcher = namePattern.matcher(part);
-        String filename = null; // Default to null if not found
-        if (nameMatcher.find()) {
-            filename = nameMatcher.group(1).trim();
+        @Override
+        public void header(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Type")) {
+                contentType = value;
+            } else if (name.equalsIgnoreCase("Content-Transfer-Encoding")) {
+                transferEncoding = value.trim().toLowerCase();
+            } else if (name.equalsIgnoreCase("Content-Disposition")) {
+                disposition = value;
+            }
         }
 
-        Pattern contentPattern = Pattern.compile("Content-Transfer-Encoding: base64.*?\\r?\\n\\r?\\n(.*?)\\r?\\n--", Pattern.DOTALL);
-        Matcher contentMatcher = contentPattern.matcher(part);
-        if (contentMatcher.find() && filename != null) { // Only process if filename is found
-            String encodedAttachment = contentMatcher.group(1).trim();
-            String decodedContent = decodeBase64(encodedAttachment);
-            attachments.put(filename, decodedContent); // Save attachment with its filename
+        @Override
+        public void startBody(long offset) {
+            bodyStart = offset;
         }
-        return filename;
+
+        @Override
+        public void endPart(long offset) {
+            if (bodyStart < 0) {
+                return; // a container, or a part without body
+            }
+            // Only remember where the content is; nothing is copied here
+            ByteBuffer content = raw.duplicate();
+            content.limit((int) offset).position((int) bodyStart);
+            content = content.slice();
+            int contentStart = (int) bodyStart;
+            bodyStart = -1;
+
+            if (isAttachment()) {
+                String type = contentType == null ? "application/octet-stream" : MimeParser.mediaType(contentType);
+                Charset charset = MimeParser.charset(contentType);
+                attachments.put(filename(), new Attachment(filename(), type, charset, transferEncoding, content, contentStart));
+            } else if (textBody == null && isTextBody()) {
+                textBody = TransferDecoder.decodeText(content, transferEncoding, contentType).trim();
+            } else if (htmlBody == null && MimeParser.mediaType(contentType).equals("text/html")) {
+                htmlBody = TransferDecoder.decodeText(content, transferEncoding, contentType).trim();
+            }
+        }
+
+        private boolean isTextBody() {
+            String type = MimeParser.mediaType(contentType);
+            return type.equals("text/plain") || (depth == 0 && type.isEmpty());
+        }
+
+        private boolean isAttachment() {
+            return MimeParser.mediaType(disposition).equals("attachment") && filename() != null;
+        }
+
+        private String filename() {
+            String filename = MimeParser.parameter(disposition, "filename");
+            if (filename == null) {
+                filename = MimeParser.parameter(contentType, "name");
+            }
+            return filename == null ? null : filename.trim();
+        }
+    }
+
+    // Returns the first value of the given header, or an empty string if it is absent
+    public String getHeader(String name) {
+        List<String> values = headers().get(name);
+        return values == null ? "" : values.get(0);
     }
 
-    // Decode base64 content to a human-readable string (assuming it’s text-based for simplicity)
-    private String decodeBase64(String encodedString) {
-        byte[] decodedBytes = Base64.getDecoder().decode(encodedString);
-        return new String(decodedBytes, StandardCharsets.UTF_8);
+    // Returns every header of the message; names are matched case-insensitively
+    public Map<String, List<String>> getHeaders() {
+        return Collections.unmodifiableMap(headers());
+    }
+
+    // Returns the raw message exactly as it was parsed
+    public ByteBuffer getRaw() {
+        return raw.duplicate();
     }
 
     // Getters for different parts of the email
     public String getReturnPath() {
-        return returnPath;
+        return getHeader("Return-Path");
     }
 
     public String getFrom() {
-        return from;
+        return getHeader("From");
     }
 
     public String getTo() {
-        return to;
+        return getHeader("To");
     }
 
     public String getSubject() {
-        return subject;
+        return getHeader("Subject");
     }
 
     public String getDate() {
-        return date;
+        return getHeader("Date");
     }
 
+    // Decoded on first use and kept
     public String getTextBody() {
+        parseBody();
         return textBody;
     }
 
-    public Map<String, String> getAttachments() {
+    // The first HTML part, decoded on first use and kept; null if there is none
+    public String getHtmlBody() {
+        parseBody();
+        return htmlBody;
+    }
+
+    // Found on first use; each attachment still decodes its content only when read
+    public Map<String, Attachment> getAttachments() {
+        parseBody();
         return attachments;
     }
 
@@ -152,23 +227,23 @@ public class Mail {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("From: ").append(from).append("\n");
-        sb.append("To: ").append(to).append("\n");
-        sb.append("Subject: ").append(subject).append("\n");
+        sb.append("From: ").append(getFrom()).append("\n");
+        sb.append("To: ").append(getTo()).append("\n");
+        sb.append("Subject: ").append(getSubject()).append("\n");
         
         // Format the date into a human-readable format
-        ZonedDateTime dateTime = ZonedDateTime.parse(date);
+        ZonedDateTime dateTime = ZonedDateTime.parse(getDate());
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MMMM dd, yyyy HH:mm:ss");
         String formattedDate = dateTime.format(formatter);
 
 
         sb.append("Date: ").append(formattedDate).append("\n");
-        sb.append("\n" + textBody +"\n");
+        sb.append("\n" + getTextBody() +"\n");
 
-        if (!attachments.isEmpty()) {
+        if (!getAttachments().isEmpty()) {
             sb.append("\nAttachments:\n");
-            for (String filename : attachments.keySet()) {
-                sb.append(" - ").append(filename).append("\n").append(attachments.get(filename)).append("\n");
+            for (Attachment attachment : getAttachments().values()) {
+                sb.append(" - ").append(attachment).append("\n");
             }
         }
         return sb.toString();
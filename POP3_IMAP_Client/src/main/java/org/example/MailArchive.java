@@ -0,0 +1,570 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed archive of messages, keyed by their POP3 unique ID, that stores every
+ * distinct attachment only once.
+ *
+ * <ul>
+ *   <li>Base64 attachments of at least {@link #MIN_SHARED_SIZE} bytes are decoded and
+ *       stored in {@code blobs/}, named by the SHA-256 of their content, so the same PDF
+ *       sent to many recipients takes its space once. The archived message keeps a
+ *       reference in place of the encoded attachment. An attachment is only replaced
+ *       when encoding its content as standard MIME base64 gives back its exact bytes,
+ *       so every message is returned byte for byte as it was archived.</li>
+ *   <li>The rest of the messages is collected into blocks of about
+ *       {@link #DEFAULT_BLOCK_SIZE} bytes, compressed with {@link Deflater#BEST_SPEED} and
+ *       appended to {@code messages.dat}. Every block starts with an uncompressed
+ *       directory of its messages, so opening the archive reads only the directories,
+ *       and reading a message inflates only the block that holds it.</li>
+ * </ul>
+ *
+ * Block layout: {@code [magic][entries][directory length][compressed length]
+ * [uncompressed length][directory CRC32][payload CRC32][directory][payload]}, each
+ * header field an int. A directory entry is {@code [uid length: 2 bytes][uid: UTF-8]
+ * [offset][length][original length]}.
+ *
+ * Messages appended since the last {@link #flush()} are kept in memory, and readable
+ * from there, until their block is full. A block torn by a crash fails its checksum
+ * and is cut off when the archive is opened. The archive is thread-safe.
+ */
+public class MailArchive implements Closeable {
+    // Uncompressed size at which a block is written
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    // Attachments smaller than this stay in the message, where the block compression handles them
+    public static final int MIN_SHARED_SIZE = 4 * 1024;
+
+    private static final int BLOCK_MAGIC = 0x4D415243; // "MARC"
+    private static final int BLOCK_HEADER_SIZE = 28;
+    private static final String MESSAGES_FILE = "messages.dat";
+    private static final String BLOBS_DIRECTORY = "blobs";
+    // A blob is stored as is when deflating does not make it smaller
+    private static final byte BLOB_STORED = 0;
+    private static final byte BLOB_DEFLATED = 1;
+    private static final int HASH_SIZE = 32;
+
+    // Where one archived message is kept; block is -1 while it waits in the pending block
+    private static final class Entry {
+        final long block;
+        final int offset;
+        final int length;
+        final int originalLength;
+
+        Entry(long block, int offset, int length, int originalLength) {
+            this.block = block;
+            this.offset = offset;
+            this.length = length;
+            this.originalLength = originalLength;
+        }
+    }
+
+    // An attachment replaced by a reference to its blob
+    private static final class Reference {
+        final int offset;
+        final int length;
+        final byte[] hash;
+
+        Reference(int offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    private final Path directory;
+    private final Path blobs;
+    private final int blockSize;
+    private final FileChannel messages;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final MessageDigest sha256;
+
+    // The block being filled and the unique IDs in it, in order
+    private final GrowableBuffer pending = new GrowableBuffer(DEFAULT_BLOCK_SIZE);
+    private final Set<String> pendingUids = new LinkedHashSet<>();
+    // The last block read, since neighbouring messages are often read together
+    private long cachedBlock = -1;
+    private byte[] cachedPayload;
+
+    private long blobBytes;
+    private int blobCount;
+
+    /**
+     * Opens (or creates) the archive in the given directory with the default block size.
+     */
+    public MailArchive(Path directory) throws IOException {
+        this(directory, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Opens (or creates) the archive in the given directory.
+     *
+     * @param directory where the blocks and blobs are kept
+     * @param blockSize the uncompressed size at which a block is written; larger blocks
+     *                  compress better, smaller ones make reading one message cheaper
+     * @throws IOException if the directory or its files cannot be opened
+     */
+    public MailArchive(Path directory, int blockSize) throws IOException {
+        this.directory = directory;
+        this.blobs = directory.resolve(BLOBS_DIRECTORY);
+        this.blockSize = blockSize;
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+        Files.createDirectories(blobs);
+        messages = FileChannel.open(directory.resolve(MESSAGES_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        scan();
+        try (Stream<Path> files = Files.walk(blobs)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file) && !file.getFileName().toString().endsWith(".tmp")) {
+                    blobBytes += Files.size(file);
+                    blobCount++;
+                }
+            }
+        }
+    }
+
+    // Load the directory of every complete block; cut off a torn one at the end
+    private void scan() throws IOException {
+        long size = messages.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        while (position + BLOCK_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int magic = header.getInt();
+            int entries = header.getInt();
+            int directoryLength = header.getInt();
+            int compressedLength = header.getInt();
+            header.getInt(); // uncompressed length, only needed to inflate
+            int directoryCrc = header.getInt();
+            if (magic != BLOCK_MAGIC || entries < 0 || directoryLength < 0 || compressedLength < 0
+                    || position + BLOCK_HEADER_SIZE + directoryLength + compressedLength > size) {
+                break;
+            }
+            ByteBuffer entryDirectory = ByteBuffer.allocate(directoryLength);
+            readFully(entryDirectory, position + BLOCK_HEADER_SIZE);
+            entryDirectory.flip();
+            if (crc(entryDirectory.array(), 0, directoryLength) != directoryCrc) {
+                break;
+            }
+            for (int i = 0; i < entries; i++) {
+                byte[] uid = new byte[entryDirectory.getShort() & 0xffff];
+                entryDirectory.get(uid);
+                index.put(new String(uid, StandardCharsets.UTF_8),
+                        new Entry(position, entryDirectory.getInt(), entryDirectory.getInt(), entryDirectory.getInt()));
+            }
+            position += BLOCK_HEADER_SIZE + directoryLength + compressedLength;
+        }
+        if (position < size) {
+            messages.truncate(position);
+        }
+        messages.position(position);
+    }
+
+    /**
+     * Archives a raw message, replacing any message archived under the same unique ID.
+     *
+     * @param uid the unique ID of the message, as reported by "UIDL"
+     * @param raw the raw RFC 822 message; its remaining bytes are archived
+     * @throws IOException if a blob or a full block cannot be written
+     */
+    public synchronized void append(String uid, ByteBuffer raw) throws IOException {
+        ByteBuffer message = raw.slice();
+        if (uid.getBytes(StandardCharsets.UTF_8).length > 0xffff) {
+            throw new IOException("Unique ID too long: " + uid);
+        }
+        List<Reference> references = share(new Mail(message));
+
+        // [references][reference: offset, length, hash]... then the message without the referenced ranges
+        int offset = pending.size();
+        appendInt(references.size());
+        for (Reference reference : references) {
+            appendInt(reference.offset);
+            appendInt(reference.length);
+            pending.append(reference.hash, 0, HASH_SIZE);
+        }
+        int from = 0;
+        for (Reference reference : references) {
+            appendBytes(message, from, reference.offset - from);
+            from = reference.offset + reference.length;
+        }
+        appendBytes(message, from, message.remaining() - from);
+
+        index.put(uid, new Entry(-1, offset, pending.size() - offset, message.remaining()));
+        pendingUids.remove(uid);
+        pendingUids.add(uid);
+        if (pending.size() >= blockSize) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Archives a raw message, replacing any message archived under the same unique ID.
+     */
+    public void append(String uid, byte[] raw) throws IOException {
+        append(uid, ByteBuffer.wrap(raw));
+    }
+
+    // Move every large base64 attachment that re-encodes exactly into a blob
+    private List<Reference> share(Mail mail) throws IOException {
+        List<Reference> references = new ArrayList<>();
+        for (Attachment attachment : mail.getAttachments().values()) {
+            if (!"base64".equals(attachment.getTransferEncoding()) || attachment.getEncodedSize() < MIN_SHARED_SIZE) {
+                continue;
+            }
+            byte[] content;
+            try (InputStream in = attachment.openStream()) {
+                // Decoding skips what is not base64, so such an attachment fails the comparison below
+                content = in.readAllBytes();
+            }
+            byte[] encoded = Base64.getMimeEncoder().encode(content);
+            if (!matches(attachment.getEncoded(), encoded)) {
+                continue;
+            }
+            byte[] hash = sha256.digest(content);
+            writeBlob(hash, content);
+            references.add(new Reference(attachment.getOffset(), encoded.length, hash));
+        }
+        references.sort((a, b) -> Integer.compare(a.offset, b.offset));
+        return references;
+    }
+
+    // Whether the attachment is exactly the re-encoded content, up to the line break before the boundary
+    private static boolean matches(ByteBuffer original, byte[] encoded) {
+        if (original.remaining() < encoded.length || original.slice(0, encoded.length).compareTo(ByteBuffer.wrap(encoded)) != 0) {
+            return false;
+        }
+        for (int i = original.position() + encoded.length; i < original.limit(); i++) {
+            byte b = original.get(i);
+            if (b != '\r' && b != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Store the content under its hash unless an identical attachment is already stored
+    private void writeBlob(byte[] hash, byte[] content) throws IOException {
+        Path file = blobPath(hash);
+        if (Files.exists(file)) {
+            return;
+        }
+        byte[] compressed = deflate(content, 0, content.length);
+        boolean deflated = compressed.length < content.length;
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, ByteBuffer.wrap(new byte[]{deflated ? BLOB_DEFLATED : BLOB_STORED}));
+            writeFully(out, ByteBuffer.wrap(deflated ? compressed : content));
+            // On disk before any block that refers to it
+            out.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        blobBytes += Files.size(file);
+        blobCount++;
+    }
+
+    private byte[] readBlob(byte[] hash) throws IOException {
+        byte[] stored = Files.readAllBytes(blobPath(hash));
+        if (stored.length == 0) {
+            throw new IOException("Damaged attachment " + HexFormat.of().formatHex(hash));
+        }
+        if (stored[0] == BLOB_STORED) {
+            return Arrays.copyOfRange(stored, 1, stored.length);
+        }
+        return inflate(stored, 1, stored.length - 1, -1);
+    }
+
+    // Blobs are spread over 256 folders named by the first byte of their hash
+    private Path blobPath(byte[] hash) {
+        String name = HexFormat.of().formatHex(hash);
+        return blobs.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    /**
+     * Returns a stored message exactly as it was archived.
+     *
+     * @return the message, or null if it is not archived
+     * @throws IOException if its block or one of its attachments cannot be read
+     */
+    public synchronized ByteBuffer get(String uid) throws IOException {
+        Entry entry = index.get(uid);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer stored = entry.block < 0 ? pending.asByteBuffer() : ByteBuffer.wrap(readBlock(entry.block));
+        stored.limit(entry.offset + entry.length).position(entry.offset);
+
+        int count = stored.getInt();
+        List<Reference> references = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int offset = stored.getInt();
+            int length = stored.getInt();
+            byte[] hash = new byte[HASH_SIZE];
+            stored.get(hash);
+            references.add(new Reference(offset, length, hash));
+        }
+
+        byte[] message = new byte[entry.originalLength];
+        int position = 0;
+        for (Reference reference : references) {
+            int gap = reference.offset - position;
+            stored.get(message, position, gap);
+            byte[] encoded = Base64.getMimeEncoder().encode(readBlob(reference.hash));
+            if (encoded.length != reference.length) {
+                throw new IOException("Attachment does not match message " + uid);
+            }
+            System.arraycopy(encoded, 0, message, reference.offset, encoded.length);
+            position = reference.offset + reference.length;
+        }
+        stored.get(message, position, message.length - position);
+        return ByteBuffer.wrap(message);
+    }
+
+    /**
+     * Builds a {@link Mail} from an archived message.
+     *
+     * @return the message, or null if it is not archived
+     */
+    public Mail load(String uid) throws IOException {
+        ByteBuffer raw = get(uid);
+        return raw == null ? null : new Mail(raw);
+    }
+
+    // Read and inflate the block at the given position, or return it from the cache
+    private byte[] readBlock(long position) throws IOException {
+        if (position == cachedBlock) {
+            return cachedPayload;
+        }
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        readFully(header, position);
+        header.flip();
+        header.getInt();
+        header.getInt();
+        int directoryLength = header.getInt();
+        int compressedLength = header.getInt();
+        int uncompressedLength = header.getInt();
+        header.getInt();
+        int payloadCrc = header.getInt();
+
+        ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+        readFully(compressed, position + BLOCK_HEADER_SIZE + directoryLength);
+        if (crc(compressed.array(), 0, compressedLength) != payloadCrc) {
+            throw new IOException("Damaged block at " + position);
+        }
+        cachedPayload = inflate(compressed.array(), 0, compressedLength, uncompressedLength);
+        cachedBlock = position;
+        return cachedPayload;
+    }
+
+    // Compress the pending block and append it with its directory
+    private void writeBlock() throws IOException {
+        if (pendingUids.isEmpty()) {
+            return;
+        }
+        ByteBuffer payload = pending.asByteBuffer();
+        byte[] compressed = deflate(payload.array(), 0, payload.remaining());
+
+        ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream(pendingUids.size() * 32);
+        DataOutputStream entryDirectory = new DataOutputStream(directoryBytes);
+        for (String uid : pendingUids) {
+            Entry entry = index.get(uid);
+            byte[] bytes = uid.getBytes(StandardCharsets.UTF_8);
+            entryDirectory.writeShort(bytes.length);
+            entryDirectory.write(bytes);
+            entryDirectory.writeInt(entry.offset);
+            entryDirectory.writeInt(entry.length);
+            entryDirectory.writeInt(entry.originalLength);
+        }
+        byte[] directoryArray = directoryBytes.toByteArray();
+
+        long position = messages.position();
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.putInt(BLOCK_MAGIC).putInt(pendingUids.size()).putInt(directoryArray.length).putInt(compressed.length)
+                .putInt(payload.remaining()).putInt(crc(directoryArray, 0, directoryArray.length))
+                .putInt(crc(compressed, 0, compressed.length)).flip();
+        writeFully(messages, header);
+        writeFully(messages, ByteBuffer.wrap(directoryArray));
+        writeFully(messages, ByteBuffer.wrap(compressed));
+
+        for (String uid : pendingUids) {
+            Entry entry = index.get(uid);
+            index.put(uid, new Entry(position, entry.offset, entry.length, entry.originalLength));
+        }
+        pending.clear();
+        pendingUids.clear();
+    }
+
+    private byte[] deflate(byte[] input, int offset, int length) {
+        deflater.reset();
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+        GrowableBuffer out = new GrowableBuffer(Math.max(64, length / 2));
+        byte[] chunk = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(chunk);
+            out.append(chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    // Inflate into an array of the expected size, or of whatever size it turns out to be if that is -1
+    private byte[] inflate(byte[] input, int offset, int length, int expected) throws IOException {
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+        try {
+            if (expected >= 0) {
+                byte[] out = new byte[expected];
+                int count = 0;
+                while (count < expected && !inflater.finished()) {
+                    int inflated = inflater.inflate(out, count, expected - count);
+                    if (inflated == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    count += inflated;
+                }
+                if (count != expected) {
+                    throw new IOException("Damaged archive data");
+                }
+                return out;
+            }
+            GrowableBuffer out = new GrowableBuffer(length * 2);
+            byte[] chunk = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(chunk);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IOException("Damaged archive data");
+                }
+                out.append(chunk, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged archive data", e);
+        }
+    }
+
+    public synchronized boolean contains(String uid) {
+        return index.containsKey(uid);
+    }
+
+    public synchronized Set<String> uids() {
+        return Set.copyOf(index.keySet());
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    // Total size of the archived messages as they were received
+    public synchronized long getOriginalBytes() {
+        long total = 0;
+        for (Entry entry : index.values()) {
+            total += entry.originalLength;
+        }
+        return total;
+    }
+
+    // Space taken on disk by the blocks written so far and the attachments
+    public synchronized long getDiskBytes() throws IOException {
+        return messages.size() + blobBytes;
+    }
+
+    // Number of distinct attachments stored
+    public synchronized int getBlobCount() {
+        return blobCount;
+    }
+
+    /**
+     * Writes the pending block, even if it is not full, and forces it to the disk.
+     */
+    public synchronized void flush() throws IOException {
+        writeBlock();
+        messages.force(false);
+    }
+
+    /**
+     * Writes the pending block and releases the files.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        messages.close();
+        deflater.end();
+        inflater.end();
+        index.clear();
+    }
+
+    private void appendInt(int value) {
+        pending.append(value >>> 24);
+        pending.append(value >>> 16);
+        pending.append(value >>> 8);
+        pending.append(value);
+    }
+
+    private final byte[] copyBuffer = new byte[64 * 1024];
+
+    // Copy a range of a buffer that may be read-only or direct
+    private void appendBytes(ByteBuffer source, int offset, int length) {
+        ByteBuffer range = source.slice(offset, length);
+        while (range.hasRemaining()) {
+            int count = Math.min(copyBuffer.length, range.remaining());
+            range.get(copyBuffer, 0, count);
+            pending.append(copyBuffer, 0, count);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (messages.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + directory.resolve(MESSAGES_FILE));
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
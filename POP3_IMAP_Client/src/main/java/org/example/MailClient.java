@@ -1,18 +1,62 @@
 package org.example;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class MailClient {
     // This socket facilitates communication between the client and the server.
     private Socket socket;
-    // A buffered reader for reading data from the mail server.
-    private BufferedReader reader;
+    // The channel behind the socket
+    private SocketChannel channel;
+    // What the reader and writer run on: the socket channel, or TLS over it; attachments are written to it directly
+    private ByteChannel transport;
+    // The TLS layer once the connection is encrypted, otherwise null
+    private TlsChannel tls;
+    // Where the socket is connected, for checking the certificate when TLS starts
+    private final String server;
+    private final int port;
+    // Reads responses from the mail server as bytes.
+    private ProtocolReader reader;
     // A buffered writer for sending data to the mail server.
     private BufferedWriter writer;
+    // Encodes attachments straight into the socket; created on first use.
+    private Base64StreamEncoder attachmentEncoder;
+    // POP3 capabilities reported by CAPA; null until first queried.
+    private Set<String> capabilities;
+    // SMTP extensions reported by EHLO; null until the session has been greeted.
+    private Set<String> smtpExtensions;
+
+    // "pop3" or "smtp", the label of this session's measurements
+    private final String protocol;
+    private final MailMetrics metrics = MailMetrics.getDefault();
+    // A multi-line response whose timing ends once it has been read up to its "."
+    private String pendingCommand;
+    private long pendingStart;
+
+    // A fetched message larger than this goes to a temporary file instead of the heap
+    private long messageBufferLimit = DEFAULT_MESSAGE_BUFFER_LIMIT;
+    // Where such files are created; null for the system's temporary directory
+    private Path spillDirectory;
+
+    public static final long DEFAULT_MESSAGE_BUFFER_LIMIT = 32L * 1024 * 1024;
+
+    // Number of commands written before their responses are read when pipelining
+    private static final int PIPELINE_WINDOW = 64;
 
     /**
      * Establishes a connection to the specified mail server.
@@ -22,11 +66,73 @@ public class MailClient {
      * Additionally, it sets up input and output streams for communication with the server.
      */
     public MailClient(String server, int port, String response) throws IOException {
-        socket = new Socket(server, port);
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        this(server, port, response, null);
+    }
+
+    /**
+     * Establishes a connection over implicit TLS, as on ports 995 (POP3) and 465 (SMTP).
+     *
+     * The TLS handshake takes place before the server's greeting. Connections made with
+     * the same context resume the TLS session of an earlier one to the same server
+     * where the server allows it, which saves a round trip and the certificate check.
+     *
+     * @param tls the context to take the TLS session from, or null for a plain connection
+     * @throws IOException if the connection or the handshake fails, including when the
+     *                     server's certificate is not trusted or not issued for {@code server}
+     */
+    public MailClient(String server, int port, String response, SSLContext tls) throws IOException {
+        this(server, port, response, tls, Duration.ZERO, Duration.ZERO);
+    }
+
+    /**
+     * Establishes a connection that gives up on a server that does not answer.
+     *
+     * @param tls            the context to take the TLS session from, or null for a plain connection
+     * @param connectTimeout the longest wait for the connection to be accepted, or zero to
+     *                       wait as long as the operating system does
+     * @param readTimeout    the longest wait for the server to send something, from the
+     *                       greeting on, or zero to wait forever; see {@link #setReadTimeout}
+     * @throws SocketTimeoutException if the server does not accept or greet in time
+     */
+    public MailClient(String server, int port, String response, SSLContext tls, Duration connectTimeout, Duration readTimeout)
+            throws IOException {
+        this.server = server;
+        this.port = port;
+        channel = SocketChannel.open();
+        socket = channel.socket();
+        try {
+            // Writes are buffered into whole commands already; don't let Nagle's algorithm hold
+            // back the tail of a message until the server's delayed ACK
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis(readTimeout));
+            socket.connect(new InetSocketAddress(server, port), timeoutMillis(connectTimeout));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        protocol = response.startsWith("+OK") ? "pop3" : "smtp";
+        if (tls == null) {
+            useTransport(channel);
+        } else {
+            try {
+                startHandshake(tls);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
 
-        String serverGreeting = reader.readLine();
+        String serverGreeting;
+        try {
+            serverGreeting = reader.readLine();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        if (serverGreeting == null) {
+            close();
+            throw new EOFException("Connection closed before the server greeting");
+        }
         if (serverGreeting.startsWith(response)) {
             System.out.println(serverGreeting);
         } else {
@@ -34,22 +140,163 @@ public class MailClient {
         }
     }
 
+    // Put the reader and writer on top of the given transport: the socket itself, or TLS over it
+    private void useTransport(ByteChannel transport) throws IOException {
+        this.transport = transport;
+        if (reader != null) {
+            reader.discard();
+        }
+        InputStream in = transport == channel ? socket.getInputStream() : Channels.newInputStream(transport);
+        OutputStream out = transport == channel ? socket.getOutputStream() : Channels.newOutputStream(transport);
+        reader = new ProtocolReader(metrics.countInput(protocol, in));
+        writer = new BufferedWriter(new OutputStreamWriter(metrics.countOutput(protocol, out)));
+    }
+
+    // Run the TLS handshake on the socket and switch the reader and writer over to TLS
+    private void startHandshake(SSLContext context) throws IOException {
+        TlsChannel handshake = new TlsChannel(channel, context, server, port).setTimeout(socket.getSoTimeout());
+        long start = System.nanoTime();
+        while (!handshake.handshake()) {
+            // Only a non-blocking socket stops early, and this one blocks
+        }
+        metrics.recordCommand(protocol, "TLS", System.nanoTime() - start, "+OK");
+        tls = handshake;
+        useTransport(tls);
+    }
+
+    /**
+     * Upgrades the connection to TLS: "STLS" for POP3 (RFC 2595), "STARTTLS" for SMTP
+     * (RFC 3207), then the TLS handshake.
+     *
+     * What the server said about itself before is forgotten, as both RFCs require, so
+     * the capabilities and SMTP extensions are asked for again when next needed. Must be
+     * called before logging in, so the password is not sent in the clear.
+     *
+     * @param context the context to take the TLS session from
+     * @throws IOException if the server refuses, does not offer the upgrade, or the
+     *                     handshake fails
+     */
+    public void startTls(SSLContext context) throws IOException {
+        if (tls != null) {
+            throw new IOException("The connection already uses TLS");
+        }
+        String response;
+        if (protocol.equals("pop3")) {
+            response = sendCommand("STLS");
+            if (!response.startsWith("+OK")) {
+                throw new IOException("Server refused STLS: " + response);
+            }
+        } else {
+            if (!ehlo().contains("STARTTLS")) {
+                throw new IOException("Server does not offer STARTTLS");
+            }
+            response = smtpCommand("STARTTLS");
+            if (!response.startsWith("220")) {
+                throw new IOException("Server refused STARTTLS: " + response);
+            }
+        }
+        startHandshake(context);
+        capabilities = null;
+        smtpExtensions = null;
+    }
+
+    // The TLS session of the connection, or null while it is not encrypted
+    public SSLSession getTlsSession() {
+        return tls == null ? null : tls.getSession();
+    }
+
+    // Whether the TLS handshake resumed an earlier session instead of starting a new one
+    public boolean isTlsResumed() {
+        return tls != null && tls.isResumed();
+    }
+
+    /**
+     * Sets the most bytes of one fetched message kept on the heap. A larger message is
+     * written to a temporary file while it downloads and handed out mapped from that
+     * file, so one huge message cannot exhaust the heap.
+     *
+     * @param bytes the limit, at least 1
+     * @return this client
+     */
+    public MailClient setMessageBufferLimit(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("The message buffer limit must be positive");
+        }
+        this.messageBufferLimit = bytes;
+        return this;
+    }
+
+    /**
+     * Sets the longest wait for the server to send something, after which the waiting
+     * call fails with a {@link SocketTimeoutException}. The session is unusable after
+     * that, since the late answer would be taken for the answer to the next command.
+     *
+     * @param timeout the timeout, or zero to wait forever
+     * @return this client
+     */
+    public MailClient setReadTimeout(Duration timeout) throws IOException {
+        int millis = timeoutMillis(timeout);
+        socket.setSoTimeout(millis);
+        if (tls != null) {
+            tls.setTimeout(millis);
+        }
+        return this;
+    }
+
+    // A timeout in whole milliseconds as sockets take it; a positive one is at least 1 ms
+    static int timeoutMillis(Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("Negative timeout: " + timeout);
+        }
+        if (timeout.isZero()) {
+            return 0;
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, timeout.toMillis()));
+    }
+
+    // Where messages over the buffer limit are spilled; null for the system's temporary directory
+    public MailClient setSpillDirectory(Path directory) {
+        this.spillDirectory = directory;
+        return this;
+    }
+
     /**
      * Sends a command to the mail server and returns the server's response.
      *
      * This method writes the specified command to the mail server, followed by a
      * carriage return and newline (`\r\n`) as required by the POP3/SMTP protocol.
      * It then flushes the output stream to ensure the command is sent immediately
-     * and reads the server's response.
+     * and reads the server's response. The time until the complete response has been
+     * read is recorded in {@link MailMetrics}.
      *
      * @param command the command to send to the mail server
      * @return the first line of the server's response to the command
-     * @throws IOException if there is an issue with writing to or reading from the server
+     * @throws IOException if there is an issue with writing to or reading from the server,
+     *                     or the server closed the connection
      */
     public String sendCommand(String command) throws IOException {
-        writer.write(command + "\r\n");
-        writer.flush();
-        return reader.readLine();
+        String verb = MailMetrics.verb(command);
+        long start = System.nanoTime();
+        String response;
+        try {
+            writer.write(command + "\r\n");
+            writer.flush();
+            response = reader.readLine();
+            if (response == null) {
+                throw new EOFException("Connection closed by server");
+            }
+        } catch (IOException e) {
+            metrics.recordError(protocol, verb);
+            throw e;
+        }
+        if (response.startsWith("+OK") && isMultiline(command)) {
+            // The caller reads the rest; completePending() records the command when it is done
+            pendingCommand = verb;
+            pendingStart = start;
+        } else {
+            metrics.recordCommand(protocol, verb, System.nanoTime() - start, response);
+        }
+        return response;
     }
 
     /**
@@ -58,11 +305,20 @@ public class MailClient {
      * @throws IOException if there is an issue closing the streams or the socket
      */
     public void close() throws IOException {
+        if (tls != null) {
+            // Sends close_notify; closing the streams first would close the socket under it
+            tls.close();
+        }
         writer.close();
         reader.close();
         socket.close();
     }
 
+    // Whether the socket is still open; says nothing about whether the server still answers
+    boolean isOpen() {
+        return socket.isConnected() && !socket.isClosed();
+    }
+
     /**
      * Authenticates the user with the mail server using a username and password.
      *
@@ -106,33 +362,278 @@ public class MailClient {
      */
     public String listEmails() throws IOException {
         StringBuilder emailTable = new StringBuilder();
-        emailTable.append(String.format("%-10s %-10s\n", "Email ID", "Size (bytes)"));  // Table headers
-    
-        String response = sendCommand("LIST");
-    
-        if (response.startsWith("+OK")) {
-            String line;
-            while (!(line = reader.readLine()).equals(".")) {
-                String[] parts = line.split("\\s+");  // Split on whitespace (spaces or tabs)
-                if (parts.length == 2) {
-                    String emailId = parts[0];
-                    String size = parts[1];
-    
-                    // Format each email ID and size into a row in the table
-                    emailTable.append(String.format("%-10s %-10s\n", emailId, size));
-                }
+        listEmails(emailTable);
+        return emailTable.toString();
+    }
+
+    /**
+     * Writes the table of {@link #listEmails()} to the given output row by row as the
+     * listing arrives, so a mailbox of any size can be printed without holding it.
+     *
+     * @param out where the table goes, e.g. {@code System.out}
+     * @throws IOException if there is an issue with server communication or the output
+     */
+    public void listEmails(Appendable out) throws IOException {
+        appendColumn(out, "Email ID").append(' ');
+        appendColumn(out, "Size (bytes)").append('\n');  // Table headers
+        try (Pop3Listing listing = streamSizes()) {
+            while (listing.hasNext()) {
+                appendColumn(out, Integer.toString(listing.nextInt())).append(' ');
+                appendColumn(out, Long.toString(listing.getSize())).append('\n');
             }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-    
-        return emailTable.toString();
     }
-    
+
+    // Append a value left-aligned in a column of ten, as "%-10s" would
+    private static Appendable appendColumn(Appendable out, String value) throws IOException {
+        out.append(value);
+        for (int i = value.length(); i < 10; i++) {
+            out.append(' ');
+        }
+        return out;
+    }
+
+    /**
+     * Lists the size of every message with "LIST", reading the listing as it is iterated
+     * instead of all at once. Nothing else can be sent until the listing is read to its
+     * end or closed.
+     *
+     * @return the listing; empty if the command was rejected
+     * @throws IOException if there is an issue with server communication
+     * @see Pop3Listing
+     */
+    public Pop3Listing streamSizes() throws IOException {
+        return streamListing("LIST");
+    }
+
+    /**
+     * Lists the unique ID of every message with "UIDL", reading the listing as it is
+     * iterated instead of all at once. Nothing else can be sent until the listing is
+     * read to its end or closed.
+     *
+     * @return the listing; empty if the command was rejected
+     * @throws IOException if there is an issue with server communication
+     * @see Pop3Listing
+     */
+    public Pop3Listing streamUids() throws IOException {
+        return streamListing("UIDL");
+    }
+
+    private Pop3Listing streamListing(String command) throws IOException {
+        String response = sendCommand(command);
+        boolean uids = command.equals("UIDL");
+        if (!response.startsWith("+OK")) {
+            printError(response);
+            return Pop3Listing.empty(uids);
+        }
+        return new Pop3Listing(reader, uids, this::completePending);
+    }
+
+    /**
+     * Opens the content of an email as a stream, read from the server as it is consumed,
+     * for messages too large to hold in memory. Nothing else can be sent until the stream
+     * is read to its end or closed.
+     *
+     * @param emailId the ID of the email (as listed by the "LIST" command)
+     * @return the raw content, dot-unstuffed; null if the server refused the "RETR"
+     * @throws IOException if there is an issue with server communication
+     */
+    public InputStream openEmail(int emailId) throws IOException {
+        String response = sendCommand("RETR " + emailId);
+        if (!response.startsWith("+OK")) {
+            System.out.println("Failed to fetch email with ID: " + emailId);
+            return null;
+        }
+        return reader.openMultiline(this::completePending);
+    }
+
+    /**
+     * Retrieves the size of every message using the "LIST" command.
+     *
+     * @return message numbers mapped to their size in bytes, in the order the server
+     *         listed them; empty if the command was rejected
+     * @throws IOException if there is an issue with server communication
+     */
+    public Map<Integer, Long> listSizes() throws IOException {
+        Map<Integer, Long> sizes = new LinkedHashMap<>();
+        try (Pop3Listing listing = streamSizes()) {
+            while (listing.hasNext()) {
+                sizes.put(listing.nextInt(), listing.getSize());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return sizes;
+    }
+
+    /**
+     * Retrieves the unique ID of every message using the "UIDL" command.
+     *
+     * Unlike message numbers, unique IDs stay the same across sessions, so they can be
+     * used to recognize messages that were already downloaded.
+     *
+     * @return message numbers mapped to their unique IDs, in the order the server
+     *         listed them; empty if the command was rejected
+     * @throws IOException if there is an issue with server communication
+     */
+    public Map<Integer, String> listUids() throws IOException {
+        String response = sendCommand("UIDL");
+        if (!response.startsWith("+OK")) {
+            printError(response);
+            return new LinkedHashMap<>();
+        }
+        return readUids();
+    }
+
+    // Like listUids(), but a refused UIDL is an error rather than an empty mailbox
+    Map<Integer, String> requireUids() throws IOException {
+        String response = sendCommand("UIDL");
+        if (!response.startsWith("+OK")) {
+            throw new IOException("Server refused UIDL: " + response);
+        }
+        return readUids();
+    }
+
+    private Map<Integer, String> readUids() throws IOException {
+        Map<Integer, String> uids = new LinkedHashMap<>();
+        try (Pop3Listing listing = new Pop3Listing(reader, true, this::completePending)) {
+            while (listing.hasNext()) {
+                uids.put(listing.nextInt(), listing.getUid());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return uids;
+    }
+
+    /**
+     * Lists the headers of every message without downloading any body.
+     *
+     * The mailbox is listed with "UIDL". Headers of messages already in the cache are
+     * taken from it; for the others "LIST n" and "TOP n 0" are pipelined (see
+     * {@link #pipeline(List)}) and the result is added to the cache. Entries of messages
+     * that left the mailbox are dropped and the cache is saved, so a mailbox that did not
+     * change costs a single "UIDL" round trip.
+     *
+     * "UIDL" is optional in POP3. A server that refuses it is listed with "LIST" and
+     * "TOP n 0" for every message instead; without unique IDs the cache is neither
+     * used nor changed.
+     *
+     * @param cache the header cache of this mailbox
+     * @return the headers in mailbox order, with their message numbers set
+     * @throws IOException if there is an issue with server communication or the cache file
+     */
+    public List<MailHeader> listHeaders(HeaderCache cache) throws IOException {
+        String response = sendCommand("UIDL");
+        if (!response.startsWith("+OK")) {
+            return listHeaders();
+        }
+        Map<Integer, String> uids = readUids();
+
+        List<Integer> missing = new ArrayList<>();
+        List<String> commands = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : uids.entrySet()) {
+            if (cache.get(entry.getValue()) == null) {
+                missing.add(entry.getKey());
+                commands.add("LIST " + entry.getKey());
+                commands.add("TOP " + entry.getKey() + " 0");
+            }
+        }
+
+        List<Pop3Response> responses = commands.isEmpty() ? List.of() : pipeline(commands);
+        for (int i = 0; i < missing.size(); i++) {
+            int emailId = missing.get(i);
+            Pop3Response list = responses.get(2 * i);
+            Pop3Response top = responses.get(2 * i + 1);
+            if (!list.isOk() || !top.isOk()) {
+                System.out.println("Failed to fetch headers of email with ID: " + emailId);
+                continue;
+            }
+            long size = listedSize(list.getStatus());
+            if (size < 0) {
+                System.out.println("Failed to read the size of email with ID: " + emailId);
+                continue;
+            }
+            cache.put(toHeader(uids.get(emailId), size, top.getBodyBytes()));
+        }
+
+        List<MailHeader> headers = new ArrayList<>(uids.size());
+        for (Map.Entry<Integer, String> entry : uids.entrySet()) {
+            MailHeader header = cache.get(entry.getValue());
+            if (header != null) {
+                header.setEmailId(entry.getKey());
+                headers.add(header);
+            }
+        }
+        cache.retainAll(new HashSet<>(uids.values()));
+        cache.save();
+        return headers;
+    }
+
+    // Uncached listing for servers without UIDL: sizes from one LIST, headers from pipelined TOPs
+    private List<MailHeader> listHeaders() throws IOException {
+        Map<Integer, Long> sizes = listSizes();
+        List<String> commands = new ArrayList<>(sizes.size());
+        for (int emailId : sizes.keySet()) {
+            commands.add("TOP " + emailId + " 0");
+        }
+
+        List<Pop3Response> responses = commands.isEmpty() ? List.of() : pipeline(commands);
+        List<MailHeader> headers = new ArrayList<>(sizes.size());
+        int i = 0;
+        for (Map.Entry<Integer, Long> entry : sizes.entrySet()) {
+            Pop3Response top = responses.get(i++);
+            if (!top.isOk()) {
+                System.out.println("Failed to fetch headers of email with ID: " + entry.getKey());
+                continue;
+            }
+            MailHeader header = toHeader(null, entry.getValue(), top.getBodyBytes());
+            header.setEmailId(entry.getKey());
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    // The size in a "+OK 1 1200" reply to "LIST n"; servers may append text after it. -1 if missing
+    private static long listedSize(String status) {
+        String[] fields = status.trim().split("\\s+");
+        if (fields.length < 3) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Pick the listed fields out of a header block
+    private static MailHeader toHeader(String uid, long size, ByteBuffer headerBlock) {
+        Map<String, String> fields = new HashMap<>();
+        try {
+            new MimeParser().parse(new ByteBufferInputStream(headerBlock), new MimeHandler() {
+                @Override
+                public void header(String name, String value) {
+                    fields.putIfAbsent(name.toLowerCase(), value);
+                }
+            });
+        } catch (IOException e) {
+            // A buffer stream never fails
+            throw new UncheckedIOException(e);
+        }
+        return new MailHeader(uid, size, fields.getOrDefault("from", ""), fields.getOrDefault("to", ""),
+                fields.getOrDefault("subject", ""), fields.getOrDefault("date", ""));
+    }
+
     /**
      * Fetches the full content of a specific email from the server using its ID.
      *
      * This method sends the "RETR" command to the POP3 server to retrieve the email
-     * with the specified ID. It reads the response line by line until it encounters
-     * a single period (".") on a line, which indicates the end of the email content.
+     * with the specified ID. The response is read as bytes up to the single period (".")
+     * on a line that indicates the end of the email content, and the message is parsed
+     * from those bytes without decoding them first.
      *
      * @param emailId emailId the ID of the email to fetch (as listed by the "LIST" command)
      * @return a String containing the full raw content of the email, including headers and body
@@ -140,7 +641,6 @@ public class MailClient {
      */
 
     public Mail fetchEmail(int emailId) throws IOException {
-        StringBuilder emailContent = new StringBuilder();
         String response = sendCommand("RETR " + emailId);
 
         // Kiểm tra phản hồi từ máy chủ
@@ -150,25 +650,80 @@ public class MailClient {
         }
 
         // Đọc nội dung email
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (line.equals(".")) { // Dòng kết thúc
-                break;
-            }
-            emailContent.append(line).append("\n");
+        return toMail(emailId, readMessage());
+    }
+
+    /**
+     * Fetches an email, reading it from a local store when it was downloaded before.
+     *
+     * The unique ID of the message is asked with "UIDL n". A stored message is parsed
+     * from the store's mapped bytes without downloading it again; otherwise it is
+     * fetched with "RETR" and appended to the store.
+     *
+     * @param emailId the ID of the email to fetch (as listed by the "LIST" command)
+     * @param store   the local message store of this mailbox
+     * @return the email, or null if it does not exist or cannot be parsed
+     * @throws IOException if there is an issue with server communication or the store
+     */
+    public Mail fetchEmail(int emailId, MessageStore store) throws IOException {
+        String response = sendCommand("UIDL " + emailId);
+        String[] parts = response.trim().split("\\s+");
+        if (!response.startsWith("+OK") || parts.length < 3) {
+            return fetchEmail(emailId); // No unique ID to key the store with
         }
 
-        String emailString = emailContent.toString().trim(); // Loại bỏ khoảng trắng thừa
+        String uid = parts[2];
+        Mail stored = store.load(uid);
+        if (stored != null) {
+            return stored;
+        }
+        Mail email = fetchEmail(emailId);
+        if (email != null) {
+            store.append(uid, email.getRaw());
+        }
+        return email;
+    }
 
+    /**
+     * Fetches several emails, pipelining the "RETR" commands when the server allows it.
+     *
+     * @param emailIds the IDs of the emails to fetch
+     * @return the emails in the same order as the IDs; an entry is null if that email
+     *         could not be fetched or parsed
+     * @throws IOException if there is an issue with the server communication
+     * @see #pipeline(List)
+     */
+    public List<Mail> fetchEmails(List<Integer> emailIds) throws IOException {
+        List<String> commands = new ArrayList<>(emailIds.size());
+        for (int emailId : emailIds) {
+            commands.add("RETR " + emailId);
+        }
+
+        List<Pop3Response> responses = pipeline(commands);
+        List<Mail> emails = new ArrayList<>(responses.size());
+        for (int i = 0; i < responses.size(); i++) {
+            Pop3Response response = responses.get(i);
+            if (!response.isOk()) {
+                System.out.println("Failed to fetch email with ID: " + emailIds.get(i));
+                emails.add(null);
+            } else {
+                emails.add(toMail(emailIds.get(i), response.getBodyBytes()));
+            }
+        }
+        return emails;
+    }
+
+    // Parse fetched content into a Mail, or return null if it is empty or unparseable
+    private Mail toMail(int emailId, ByteBuffer content) {
         // Kiểm tra email rỗng
-        if (emailString.isEmpty()) {
+        if (isBlank(content)) {
             System.out.println("Email content is empty for ID: " + emailId);
             return null;
         }
 
         try {
             // Phân tích email
-            return new Mail(emailString);
+            return new Mail(content);
         } catch (Exception e) {
             System.err.println("Failed to parse email content for ID: " + emailId);
             e.printStackTrace();
@@ -176,34 +731,249 @@ public class MailClient {
         }
     }
 
+    private static boolean isBlank(ByteBuffer content) {
+        for (int i = content.position(); i < content.limit(); i++) {
+            byte b = content.get(i);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Read the lines of a multi-line text response up to the terminating ".", joined with "\n"
+    private String readMultiline() throws IOException {
+        String content = reader.readMultilineText();
+        completePending();
+        return content;
+    }
+
+    // Read a multi-line response such as a message as the bytes the server sent
+    private ByteBuffer readMessage() throws IOException {
+        ByteBuffer content = reader.readMessage(messageBufferLimit, spillDirectory);
+        completePending();
+        return content;
+    }
+
+    private void completePending() {
+        if (pendingCommand != null) {
+            metrics.recordCommand(protocol, pendingCommand, System.nanoTime() - pendingStart, ".");
+            pendingCommand = null;
+        }
+    }
+
+    /**
+     * Queries the capabilities of the POP3 server with the "CAPA" command (RFC 2449).
+     *
+     * The result is cached for the lifetime of the connection.
+     *
+     * @return the capability names in upper case (e.g. "PIPELINING", "UIDL", "TOP");
+     *         empty if the server does not support CAPA
+     * @throws IOException if there is an issue with server communication
+     */
+    public Set<String> capabilities() throws IOException {
+        if (capabilities == null) {
+            Set<String> names = new HashSet<>();
+            String response = sendCommand("CAPA");
+            if (response.startsWith("+OK")) {
+                for (String line : readMultiline().split("\n")) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (!parts[0].isEmpty()) {
+                        names.add(parts[0].toUpperCase());
+                    }
+                }
+            }
+            capabilities = names;
+        }
+        return capabilities;
+    }
+
+    /**
+     * Sends a batch of POP3 commands and returns their responses in order.
+     *
+     * If the server advertises "PIPELINING", the commands are written in windows of
+     * {@value #PIPELINE_WINDOW} and flushed together, and the responses are read back
+     * afterwards, so a whole window costs a single round trip. Otherwise the commands
+     * are sent one at a time. Multi-line responses (RETR, TOP, CAPA, and LIST or UIDL
+     * without an argument) are read up to their terminating ".".
+     *
+     * @param commands the commands to send, e.g. "RETR 1", "TOP 2 0", "DELE 3"
+     * @return one response per command, in the same order
+     * @throws IOException if there is an issue with server communication
+     */
+    public List<Pop3Response> pipeline(List<String> commands) throws IOException {
+        List<Pop3Response> responses = new ArrayList<>(commands.size());
+        int window = capabilities().contains("PIPELINING") ? PIPELINE_WINDOW : 1;
+
+        for (int start = 0; start < commands.size(); start += window) {
+            int end = Math.min(start + window, commands.size());
+            // Keep each window small so the server never blocks on responses we are not reading yet
+            for (int i = start; i < end; i++) {
+                writer.write(commands.get(i) + "\r\n");
+            }
+            writer.flush();
+            long sent = System.nanoTime();
+
+            for (int i = start; i < end; i++) {
+                String verb = MailMetrics.verb(commands.get(i));
+                String status = reader.readLine();
+                if (status == null) {
+                    metrics.recordError(protocol, verb);
+                    throw new EOFException("Connection closed by server");
+                }
+                ByteBuffer body = status.startsWith("+OK") && isMultiline(commands.get(i))
+                        ? reader.readMessage(messageBufferLimit, spillDirectory) : null;
+                // Measured from the flush of the window, which is what the caller waited for
+                metrics.recordCommand(protocol, verb, System.nanoTime() - sent, status);
+                responses.add(new Pop3Response(status, body));
+            }
+        }
+        return responses;
+    }
+
+    // Whether the successful response to a command spans several lines
+    static boolean isMultiline(String command) {
+        String[] parts = command.trim().split("\\s+");
+        switch (parts[0].toUpperCase()) {
+            case "RETR":
+            case "TOP":
+            case "CAPA":
+                return true;
+            case "LIST":
+            case "UIDL":
+                return parts.length == 1;
+            default:
+                return false;
+        }
+    }
 
     public boolean sendEmailWithAttachment(String from, String to, String subject, String body, ArrayList<String> attachmentPaths) throws IOException {
-        // Tạo boundary cho MIME
-        String boundary = "----=_Part_" + System.currentTimeMillis();
+        OutgoingMail mail = new OutgoingMail(from, List.of(to), subject, body, attachmentPaths);
+        String missing = missingAttachment(mail);
+        if (missing != null) {
+            throw new IOException("Attachment file not found: " + missing);
+        }
 
-        sendCommand("EHLO localhost");
-    
-        // Now, read all the lines in the EHLO response
-        String line;
-        while ((line = reader.readLine()) != null && !line.startsWith("250 ")) {
-            //System.out.println(line); // Optionally print the response
+        SmtpMessageResult result = sendBatch(List.of(mail)).getResults().get(0);
+        if (!result.isAccepted()) {
+            printError(result.getReply());
         }
+        return result.isAccepted();  // Return true if email was accepted successfully
+    }
 
-        // Gửi lệnh MAIL FROM
-        String response = sendCommand("MAIL FROM:<" + from + ">");
-        //System.out.println(response);
+    /**
+     * Sends several messages over this SMTP session, each to any number of recipients.
+     *
+     * The session is greeted with "EHLO" once and then reused for every message. When
+     * the server advertises "PIPELINING" (RFC 2920), the MAIL FROM, RCPT TO and DATA
+     * commands of a message are sent together and their replies read afterwards;
+     * otherwise they are sent one at a time and the message is abandoned at the first
+     * rejection. Every reply code is checked, and a failed transaction is cleared with
+     * "RSET" so the next message starts clean.
+     *
+     * @param mails the messages to send
+     * @return the result of every message and every recipient
+     * @throws IOException if there is an issue with server communication
+     */
+    public SmtpSendReport sendBatch(List<OutgoingMail> mails) throws IOException {
+        long start = System.nanoTime();
+        boolean pipelining = ehlo().contains("PIPELINING");
+
+        List<SmtpMessageResult> results = new ArrayList<>(mails.size());
+        for (OutgoingMail mail : mails) {
+            results.add(sendMessage(mail, pipelining));
+        }
+        return new SmtpSendReport(results, System.nanoTime() - start);
+    }
+
+    // Run the MAIL/RCPT/DATA transaction for one message
+    private SmtpMessageResult sendMessage(OutgoingMail mail, boolean pipelining) throws IOException {
+        Map<String, String> recipientReplies = new LinkedHashMap<>();
+        String missing = missingAttachment(mail);
+        if (missing != null) {
+            return new SmtpMessageResult(mail, false, "Attachment file not found: " + missing, recipientReplies);
+        }
 
-        response = sendCommand("RCPT TO:<" + to + ">");
-        //System.out.println(response);
+        String mailReply;
+        String dataReply;
+        if (pipelining) {
+            // Send the whole envelope in one go, then collect the replies in order
+            writer.write("MAIL FROM:<" + mail.getFrom() + ">\r\n");
+            for (String recipient : mail.getRecipients()) {
+                writer.write("RCPT TO:<" + recipient + ">\r\n");
+            }
+            writer.write("DATA\r\n");
+            writer.flush();
+            long sent = System.nanoTime();
+
+            mailReply = readReply();
+            metrics.recordCommand(protocol, "MAIL", System.nanoTime() - sent, mailReply);
+            for (String recipient : mail.getRecipients()) {
+                String reply = readReply();
+                metrics.recordCommand(protocol, "RCPT", System.nanoTime() - sent, reply);
+                recipientReplies.put(recipient, reply);
+            }
+            dataReply = readReply();
+            metrics.recordCommand(protocol, "DATA", System.nanoTime() - sent, dataReply);
+        } else {
+            mailReply = smtpCommand("MAIL FROM:<" + mail.getFrom() + ">");
+            if (!mailReply.startsWith("250")) {
+                reset();
+                return new SmtpMessageResult(mail, false, mailReply, recipientReplies);
+            }
+            for (String recipient : mail.getRecipients()) {
+                recipientReplies.put(recipient, smtpCommand("RCPT TO:<" + recipient + ">"));
+            }
+            if (acceptedReply(recipientReplies) == null) {
+                reset();
+                return new SmtpMessageResult(mail, false, "No recipient accepted", recipientReplies);
+            }
+            dataReply = smtpCommand("DATA"); // Expecting "354 OK, send"
+        }
 
-        response = sendCommand("DATA");
-        //System.out.println(response); // Expecting "354 OK, send"
+        if (!dataReply.startsWith("354")) {
+            reset();
+            String reply = mailReply.startsWith("250") ? dataReply : mailReply;
+            return new SmtpMessageResult(mail, false, reply, recipientReplies);
+        }
+        if (!mailReply.startsWith("250") || acceptedReply(recipientReplies) == null) {
+            // The server wants content it can deliver to nobody; end the data right away
+            writer.write(".\r\n");
+            writer.flush();
+            readReply();
+            reset();
+            String reply = mailReply.startsWith("250") ? "No recipient accepted" : mailReply;
+            return new SmtpMessageResult(mail, false, reply, recipientReplies);
+        }
+
+        long start = System.nanoTime();
+        writeMessageContent(mail);
+        // End the email content
+        writer.write(".\r\n");
+
+        // Send the email content
+        writer.flush();
+
+        // Read the server response to ensure it was accepted
+        String response = readReply();
+        metrics.recordCommand(protocol, "MESSAGE", System.nanoTime() - start, response);
+        boolean accepted = response.startsWith("250");
+        if (!accepted) {
+            reset();
+        }
+        return new SmtpMessageResult(mail, accepted, response, recipientReplies);
+    }
+
+    // Write the MIME content of a message, up to but excluding the terminating "."
+    private void writeMessageContent(OutgoingMail mail) throws IOException {
+        // Tạo boundary cho MIME
+        String boundary = "----=_Part_" + System.currentTimeMillis();
 
         // Write email headers
         writer.write("Content-Type: multipart/mixed; boundary=\"" + boundary + "\"\r\n");
-        writer.write("From: " + from + "\r\n");
-        writer.write("To: " + to + "\r\n");
-        writer.write("Subject: " + subject + "\r\n");
+        writer.write("From: " + mail.getFrom() + "\r\n");
+        writer.write("To: " + String.join(", ", mail.getRecipients()) + "\r\n");
+        writer.write("Subject: " + mail.getSubject() + "\r\n");
         writer.write("Date: " + java.time.Instant.now().toString() + "\r\n");
         writer.write("\r\n"); // Empty line separating headers from body
 
@@ -211,48 +981,135 @@ public class MailClient {
         writer.write("--" + boundary + "\r\n");
         writer.write("Content-Type: text/plain; charset=\"UTF-8\"\r\n");
         writer.write("\r\n");
-        writer.write(body + "\r\n");
+        for (String line : mail.getBody().split("\r?\n", -1)) {
+            // A line starting with "." would otherwise end the message early
+            writer.write(line.startsWith(".") ? "." + line + "\r\n" : line + "\r\n");
+        }
         writer.write("\r\n");
 
         // If there's an attachment, handle it
-        if (attachmentPaths != null && !attachmentPaths.isEmpty()) {
-            for (String attachmentPath : attachmentPaths) {
-                File attachment = new File(attachmentPath);
-                if (attachment.exists()) {
-                    byte[] fileBytes = Files.readAllBytes(attachment.toPath());
-                    String encodedFile = Base64.getEncoder().encodeToString(fileBytes);
-    
-                    // Add attachment part
-                    writer.write("--" + boundary + "\r\n");
-                    writer.write("Content-Type: application/octet-stream; name=\"" + attachment.getName() + "\"\r\n");
-                    writer.write("Content-Transfer-Encoding: base64\r\n");
-                    writer.write("Content-Disposition: attachment; filename=\"" + attachment.getName() + "\"\r\n");
-                    writer.write("\r\n");
-    
-                    // Write Base64 encoded file content
-                    int chunkSize = 76; // SMTP requires chunks of 76 characters
-    
-                    for (int i = 0; i < encodedFile.length(); i += chunkSize) {
-                        writer.write(encodedFile, i, Math.min(i + chunkSize, encodedFile.length()));
-                        writer.write("\r\n");
-                    }
-                    writer.write("\r\n");
-                } else {
-                    throw new IOException("Attachment file not found: " + attachmentPath);
-                }
+        for (String attachmentPath : mail.getAttachmentPaths()) {
+            File attachment = new File(attachmentPath);
+
+            // Add attachment part
+            writer.write("--" + boundary + "\r\n");
+            writer.write("Content-Type: application/octet-stream; name=\"" + attachment.getName() + "\"\r\n");
+            writer.write("Content-Transfer-Encoding: base64\r\n");
+            writer.write("Content-Disposition: attachment; filename=\"" + attachment.getName() + "\"\r\n");
+            writer.write("\r\n");
+            writer.flush();
+
+            // Stream the file as base64 lines of 76 characters directly to the socket
+            if (attachmentEncoder == null) {
+                attachmentEncoder = new Base64StreamEncoder();
             }
+            // Written past the counting stream, so counted here
+            metrics.recordBytesOut(protocol, attachmentEncoder.encode(attachment.toPath(), transport));
+            writer.write("\r\n");
         }
-        // End the email content
         writer.write("--" + boundary + "--\r\n");
-        writer.write(".\r\n");
-        
-        // Send the email content
-        writer.flush();
-        
-        // Read the server response to ensure it was accepted
-        response = reader.readLine();
-        
-        return response.startsWith("250");  // Return true if email was accepted successfully
+    }
+
+    // Return the path of the first attachment that does not exist, or null if all do
+    private static String missingAttachment(OutgoingMail mail) {
+        for (String attachmentPath : mail.getAttachmentPaths()) {
+            if (!new File(attachmentPath).exists()) {
+                return attachmentPath;
+            }
+        }
+        return null;
+    }
+
+    // Return one positive RCPT reply (250 or 251), or null if every recipient was refused
+    private static String acceptedReply(Map<String, String> recipientReplies) {
+        for (String reply : recipientReplies.values()) {
+            if (reply.startsWith("25")) {
+                return reply;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Greets the SMTP server with "EHLO" and returns the extensions it advertises.
+     *
+     * The greeting is only sent once per connection; later calls return the cached
+     * extensions. Servers that do not understand EHLO are greeted with "HELO" instead
+     * and report no extensions.
+     *
+     * @return the extension keywords in upper case, e.g. "PIPELINING", "SIZE", "8BITMIME"
+     * @throws IOException if there is an issue with server communication
+     */
+    public Set<String> ehlo() throws IOException {
+        if (smtpExtensions == null) {
+            Set<String> extensions = new HashSet<>();
+            long start = System.nanoTime();
+            writer.write("EHLO localhost\r\n");
+            writer.flush();
+
+            // Now, read all the lines in the EHLO response
+            String line = reader.readLine();
+            boolean first = true;
+            while (line != null) {
+                if (!line.startsWith("250")) {
+                    break;
+                }
+                if (!first && line.length() > 4) {
+                    extensions.add(line.substring(4).trim().split("\\s+")[0].toUpperCase());
+                }
+                first = false;
+                if (line.length() < 4 || line.charAt(3) != '-') {
+                    break;
+                }
+                line = reader.readLine();
+            }
+            metrics.recordCommand(protocol, "EHLO", System.nanoTime() - start, line);
+            if (line == null) {
+                throw new EOFException("Connection closed by server");
+            }
+            if (!line.startsWith("250")) {
+                String response = smtpCommand("HELO localhost");
+                if (!response.startsWith("250")) {
+                    printError(response);
+                }
+            }
+            smtpExtensions = extensions;
+        }
+        return smtpExtensions;
+    }
+
+    // Send an SMTP command and return the last line of its (possibly multi-line) reply
+    private String smtpCommand(String command) throws IOException {
+        String verb = MailMetrics.verb(command);
+        long start = System.nanoTime();
+        String reply;
+        try {
+            writer.write(command + "\r\n");
+            writer.flush();
+            reply = readReply();
+        } catch (IOException e) {
+            metrics.recordError(protocol, verb);
+            throw e;
+        }
+        metrics.recordCommand(protocol, verb, System.nanoTime() - start, reply);
+        return reply;
+    }
+
+    // Read an SMTP reply, skipping continuation lines such as "250-..."
+    private String readReply() throws IOException {
+        String line = reader.readLine();
+        while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+            line = reader.readLine();
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed by server");
+        }
+        return line;
+    }
+
+    // Abort the current mail transaction so the session can be reused
+    private void reset() throws IOException {
+        smtpCommand("RSET");
     }
 
     public String logout() throws IOException {
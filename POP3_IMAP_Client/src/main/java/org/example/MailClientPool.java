@@ -0,0 +1,479 @@
+package org.example;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe pool of connected, logged-in {@link MailClient} sessions.
+ *
+ * Sessions are kept per server (and per user for POP3), at most
+ * {@link #setMaxPerServer(int) maxPerServer} at a time; borrowers beyond that wait.
+ * A background thread keeps idle sessions alive with "NOOP" and closes the ones that
+ * were idle or open for too long. A session that was idle for a while is checked with
+ * "NOOP" before it is handed out, and a broken one is replaced by a new connection
+ * that is greeted and logged in again.
+ *
+ * The simplest use is {@link #withPop3} or {@link #withSmtp}, which borrow a session,
+ * run the given operation and return the session. If the operation fails on a reused
+ * session, which is usually one the server timed out, it is run once more on a new
+ * session, so it should be safe to repeat.
+ *
+ * Note that a POP3 server shows the mailbox as it was at login. Sessions are therefore
+ * replaced after {@link #setMaxLifetime(Duration) maxLifetime} so new mail shows up.
+ */
+public class MailClientPool implements Closeable {
+
+    /**
+     * An operation run on a borrowed session.
+     */
+    public interface Session<T> {
+        T apply(MailClient client) throws IOException;
+    }
+
+    // Every session of one server, user and protocol
+    private static final class Endpoint {
+        final String server;
+        final int port;
+        final String greeting;
+        final String username;
+        final String password;
+        final Semaphore permits;
+        // Most recently returned first, so the warmest session is reused
+        final LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<>();
+
+        Endpoint(String server, int port, String greeting, String username, String password, int limit) {
+            this.server = server;
+            this.port = port;
+            this.greeting = greeting;
+            this.username = username;
+            this.password = password;
+            this.permits = new Semaphore(limit, true);
+        }
+
+        @Override
+        public String toString() {
+            return (username == null ? "" : username + "@") + server + ":" + port;
+        }
+    }
+
+    // A pooled session and its timestamps
+    private static final class Entry {
+        final MailClient client;
+        final Endpoint endpoint;
+        final long createdNanos;
+        volatile long lastUsedNanos;
+        volatile long lastCheckedNanos;
+        // Number of times the session was handed out
+        int uses;
+
+        Entry(MailClient client, Endpoint endpoint) {
+            this.client = client;
+            this.endpoint = endpoint;
+            this.createdNanos = System.nanoTime();
+            this.lastUsedNanos = createdNanos;
+            this.lastCheckedNanos = createdNanos;
+        }
+    }
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<MailClient, Entry> leased = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    private volatile int maxPerServer = 4;
+    private volatile long borrowTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private volatile long validateAfterNanos = TimeUnit.SECONDS.toNanos(2);
+    private volatile long keepaliveNanos = TimeUnit.SECONDS.toNanos(30);
+    private volatile long idleTimeoutNanos = TimeUnit.MINUTES.toNanos(5);
+    private volatile long maxLifetimeNanos = TimeUnit.MINUTES.toNanos(10);
+    private volatile Duration connectTimeout = Duration.ofSeconds(10);
+    private volatile Duration readTimeout = Duration.ofSeconds(60);
+    private volatile SSLContext tlsContext;
+    private volatile TlsMode tlsMode = TlsMode.NONE;
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder connectNanos = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder failedChecks = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    public MailClientPool() {
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mail-client-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets how many sessions each server may have at once. Applies to servers first
+     * used after the call.
+     */
+    public MailClientPool setMaxPerServer(int maxPerServer) {
+        if (maxPerServer < 1) {
+            throw new IllegalArgumentException("At least one session per server is required");
+        }
+        this.maxPerServer = maxPerServer;
+        return this;
+    }
+
+    // How long a borrower waits for a server at its limit before failing
+    public MailClientPool setBorrowTimeout(Duration timeout) {
+        this.borrowTimeoutNanos = timeout.toNanos();
+        return this;
+    }
+
+    // Idle time after which a session is checked with NOOP before it is handed out
+    public MailClientPool setValidateAfter(Duration validateAfter) {
+        this.validateAfterNanos = validateAfter.toNanos();
+        return this;
+    }
+
+    // Interval of the NOOP sent to idle sessions so the server does not drop them
+    public MailClientPool setKeepaliveInterval(Duration interval) {
+        this.keepaliveNanos = interval.toNanos();
+        return this;
+    }
+
+    // Idle time after which a session is closed
+    public MailClientPool setIdleTimeout(Duration timeout) {
+        this.idleTimeoutNanos = timeout.toNanos();
+        return this;
+    }
+
+    // Age after which a session is no longer reused
+    public MailClientPool setMaxLifetime(Duration lifetime) {
+        this.maxLifetimeNanos = lifetime.toNanos();
+        return this;
+    }
+
+    // Longest wait for a new connection to be accepted; zero waits as long as the operating system does
+    public MailClientPool setConnectTimeout(Duration timeout) {
+        this.connectTimeout = Objects.requireNonNull(timeout);
+        return this;
+    }
+
+    /**
+     * Sets the longest wait for a server to answer on the connections opened after the
+     * call, over TLS as well. A session whose server does not answer in time, including a
+     * NOOP check, is closed without a goodbye and replaced.
+     *
+     * @param timeout the timeout, or zero to wait forever
+     */
+    public MailClientPool setReadTimeout(Duration timeout) {
+        this.readTimeout = Objects.requireNonNull(timeout);
+        return this;
+    }
+
+    /**
+     * Encrypts the connections opened after the call. All of them take their TLS session
+     * from the one context, so a new connection to a server resumes the session of an
+     * earlier one instead of repeating the full handshake.
+     *
+     * @param context where the sessions come from; its trust store decides which
+     *                server certificates are accepted
+     * @param mode    TLS from the start, or upgraded before logging in
+     */
+    public MailClientPool setTls(SSLContext context, TlsMode mode) {
+        if (mode != TlsMode.NONE && context == null) {
+            throw new IllegalArgumentException("TLS needs a context");
+        }
+        this.tlsContext = context;
+        this.tlsMode = mode;
+        return this;
+    }
+
+    /**
+     * Runs an operation on a logged-in POP3 session of the given user.
+     *
+     * @throws IOException if no session could be obtained, or the operation failed twice
+     */
+    public <T> T withPop3(String server, int port, String username, String password, Session<T> session) throws IOException {
+        return execute(endpoint(server, port, "+OK", username, password), session);
+    }
+
+    /**
+     * Runs an operation on an SMTP session.
+     *
+     * @throws IOException if no session could be obtained, or the operation failed twice
+     */
+    public <T> T withSmtp(String server, int port, Session<T> session) throws IOException {
+        return execute(endpoint(server, port, "220", null, null), session);
+    }
+
+    /**
+     * Borrows a logged-in POP3 session. It must be given back with {@link #release} or,
+     * if it broke, {@link #invalidate}.
+     */
+    public MailClient borrowPop3(String server, int port, String username, String password) throws IOException {
+        return borrow(endpoint(server, port, "+OK", username, password), false);
+    }
+
+    /**
+     * Borrows an SMTP session. It must be given back with {@link #release} or, if it
+     * broke, {@link #invalidate}.
+     */
+    public MailClient borrowSmtp(String server, int port) throws IOException {
+        return borrow(endpoint(server, port, "220", null, null), false);
+    }
+
+    /**
+     * Returns a borrowed session to the pool.
+     */
+    public void release(MailClient client) {
+        Entry entry = leased.remove(client);
+        if (entry == null) {
+            throw new IllegalArgumentException("Session was not borrowed from this pool");
+        }
+        entry.lastUsedNanos = System.nanoTime();
+        if (closed || !client.isOpen()) {
+            discard(entry);
+        } else {
+            entry.endpoint.idle.offerFirst(entry);
+        }
+        entry.endpoint.permits.release();
+    }
+
+    /**
+     * Closes a borrowed session that should not be reused, e.g. after an error.
+     */
+    public void invalidate(MailClient client) {
+        Entry entry = leased.remove(client);
+        if (entry == null) {
+            throw new IllegalArgumentException("Session was not borrowed from this pool");
+        }
+        discard(entry);
+        entry.endpoint.permits.release();
+    }
+
+    public PoolMetrics getMetrics() {
+        int idle = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            idle += endpoint.idle.size();
+        }
+        return new PoolMetrics(borrows.sum(), connects.sum(), connectNanos.sum(), waitNanos.sum(), maxWaitNanos.get(),
+                timeouts.sum(), failedChecks.sum(), evictions.sum(), reconnects.sum(), leased.size(), idle);
+    }
+
+    /**
+     * Closes every idle session. Borrowed sessions are closed when they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        maintenance.shutdownNow();
+        for (Endpoint endpoint : endpoints.values()) {
+            Entry entry;
+            while ((entry = endpoint.idle.pollFirst()) != null) {
+                discard(entry);
+            }
+        }
+    }
+
+    private Endpoint endpoint(String server, int port, String greeting, String username, String password) {
+        String key = greeting + " " + (username == null ? "" : username + "@") + server + ":" + port;
+        Endpoint endpoint = endpoints.computeIfAbsent(key,
+                ignored -> new Endpoint(server, port, greeting, username, password, maxPerServer));
+        if (!Objects.equals(endpoint.password, password)) {
+            throw new IllegalArgumentException("Different password for pooled sessions of " + endpoint);
+        }
+        return endpoint;
+    }
+
+    private <T> T execute(Endpoint endpoint, Session<T> session) throws IOException {
+        MailClient client = borrow(endpoint, false);
+        boolean reused = leased.get(client).uses > 1;
+        try {
+            T result = session.apply(client);
+            release(client);
+            return result;
+        } catch (IOException e) {
+            abandonIfTimedOut(client, e);
+            invalidate(client);
+            if (!reused) {
+                throw e; // a new session failing is not a timed-out one
+            }
+        } catch (RuntimeException e) {
+            invalidate(client);
+            throw e;
+        }
+
+        // The server probably dropped the reused session; try again once on a new one
+        reconnects.increment();
+        client = borrow(endpoint, true);
+        try {
+            T result = session.apply(client);
+            release(client);
+            return result;
+        } catch (IOException e) {
+            abandonIfTimedOut(client, e);
+            invalidate(client);
+            throw e;
+        } catch (RuntimeException e) {
+            invalidate(client);
+            throw e;
+        }
+    }
+
+    private MailClient borrow(Endpoint endpoint, boolean fresh) throws IOException {
+        if (closed) {
+            throw new IOException("Pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!endpoint.permits.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                timeouts.increment();
+                throw new IOException("Timed out waiting for a session to " + endpoint);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a session to " + endpoint, e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        try {
+            Entry entry = null;
+            if (!fresh) {
+                while ((entry = endpoint.idle.pollFirst()) != null && !usable(entry)) {
+                    discard(entry);
+                }
+            }
+            if (entry == null) {
+                entry = connect(endpoint);
+            }
+            entry.uses++;
+            leased.put(entry.client, entry);
+            borrows.increment();
+            return entry.client;
+        } catch (IOException | RuntimeException e) {
+            endpoint.permits.release();
+            throw e;
+        }
+    }
+
+    // Check an idle session before handing it out
+    private boolean usable(Entry entry) {
+        long now = System.nanoTime();
+        if (now - entry.createdNanos > maxLifetimeNanos) {
+            evictions.increment();
+            return false;
+        }
+        if (now - entry.lastUsedNanos > validateAfterNanos && !ping(entry)) {
+            failedChecks.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean ping(Entry entry) {
+        try {
+            String response = entry.client.sendCommand("NOOP");
+            entry.lastCheckedNanos = System.nanoTime();
+            return response != null && (response.startsWith("+OK") || response.startsWith("250"));
+        } catch (IOException e) {
+            abandonIfTimedOut(entry.client, e);
+            return false;
+        }
+    }
+
+    // Close a session whose server stopped answering, so that discarding it does not wait out another timeout on QUIT
+    private static void abandonIfTimedOut(MailClient client, IOException e) {
+        if (e instanceof SocketTimeoutException) {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // the socket is closed anyway
+            }
+        }
+    }
+
+    private Entry connect(Endpoint endpoint) throws IOException {
+        long start = System.nanoTime();
+        TlsMode mode = tlsMode;
+        MailClient client = new MailClient(endpoint.server, endpoint.port, endpoint.greeting,
+                mode == TlsMode.IMPLICIT ? tlsContext : null, connectTimeout, readTimeout);
+        if (mode == TlsMode.STARTTLS) {
+            try {
+                client.startTls(tlsContext);
+            } catch (IOException e) {
+                client.close();
+                throw e;
+            }
+        }
+        if (endpoint.username != null && !client.login(endpoint.username, endpoint.password)) {
+            client.close();
+            throw new IOException("Login failed for " + endpoint);
+        }
+        connects.increment();
+        connectNanos.add(System.nanoTime() - start);
+        return new Entry(client, endpoint);
+    }
+
+    // Say goodbye if the server still listens, then close
+    private void discard(Entry entry) {
+        try {
+            if (entry.client.isOpen()) {
+                entry.client.logout();
+            }
+        } catch (IOException e) {
+            // the connection is already gone
+        }
+        try {
+            entry.client.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+
+    // Runs every second: close stale idle sessions and keep the others alive
+    private void maintain() {
+        long now = System.nanoTime();
+        for (Endpoint endpoint : endpoints.values()) {
+            for (Entry entry : endpoint.idle) {
+                boolean stale = now - entry.lastUsedNanos > idleTimeoutNanos || now - entry.createdNanos > maxLifetimeNanos;
+                boolean due = now - entry.lastCheckedNanos > keepaliveNanos;
+                // A session taken out of the idle list still counts against maxPerServer, or a
+                // borrower finding the list empty would open one more; skip it if all are in use
+                if (!(stale || due) || !endpoint.permits.tryAcquire()) {
+                    continue;
+                }
+                try {
+                    // Only touch sessions that are still idle; a borrower may have taken it meanwhile
+                    if (endpoint.idle.remove(entry)) {
+                        if (stale) {
+                            evictions.increment();
+                            discard(entry);
+                        } else if (ping(entry)) {
+                            endpoint.idle.offerLast(entry);
+                        } else {
+                            failedChecks.increment();
+                            discard(entry);
+                        }
+                    }
+                } finally {
+                    endpoint.permits.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.example;
+
+/**
+ * The headers of one message as shown in an inbox listing, without its body.
+ *
+ * Instances are built from "TOP n 0" responses and kept in a {@link HeaderCache},
+ * keyed by the unique ID reported by "UIDL".
+ */
+public class MailHeader {
+    private final String uid;
+    private final long size;
+    private final String from;
+    private final String to;
+    private final String subject;
+    private final String date;
+    // Message number in the current session; not persisted, since it changes between sessions
+    private int emailId;
+
+    public MailHeader(String uid, long size, String from, String to, String subject, String date) {
+        this.uid = uid;
+        this.size = size;
+        this.from = from;
+        this.to = to;
+        this.subject = subject;
+        this.date = date;
+    }
+
+    // Null when the server does not support UIDL
+    public String getUid() {
+        return uid;
+    }
+
+    // Size of the whole message in bytes, as reported by LIST
+    public long getSize() {
+        return size;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public int getEmailId() {
+        return emailId;
+    }
+
+    // Called when the message is listed, so the header can be used with RETR or DELE
+    void setEmailId(int emailId) {
+        this.emailId = emailId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-10d %-30s %-40s %s", emailId, from, subject, date);
+    }
+}
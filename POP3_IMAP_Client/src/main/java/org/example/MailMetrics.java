@@ -0,0 +1,292 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Protocol-level measurements of every {@link MailClient} and {@link Mail} in the process.
+ *
+ * For each protocol and command (USER, PASS, LIST, RETR, MAIL, RCPT, DATA, ...) it
+ * keeps a {@link LatencyHistogram} of the time from sending the command until its
+ * complete response was read, and a count of the commands that failed ("-ERR", a 4xx or
+ * 5xx reply, or a broken connection). The transfer of a message after "DATA", up to the
+ * server's final reply, is recorded as "MESSAGE". It also counts the bytes sent and
+ * received per protocol and times the header and body parsing of {@link Mail}.
+ *
+ * Everything can be exported in the Prometheus text format or as a JSON snapshot, and
+ * {@link #serve(int)} publishes both over HTTP.
+ */
+public class MailMetrics {
+    private static final MailMetrics DEFAULT = new MailMetrics();
+
+    private final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytesIn = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytesOut = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> parsing = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the metrics shared by every client in this process.
+     */
+    public static MailMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Records how long a command took, and counts it as failed if its status says so.
+     *
+     * @param protocol "pop3" or "smtp"
+     * @param command  the command verb, e.g. "RETR"
+     * @param nanos    time from sending the command until its response was read
+     * @param status   the status line of the response, or null if there was none
+     */
+    public void recordCommand(String protocol, String command, long nanos, String status) {
+        commands.computeIfAbsent(key(protocol, command), key -> new LatencyHistogram()).record(nanos);
+        if (status == null || status.startsWith("-ERR") || status.startsWith("4") || status.startsWith("5")) {
+            recordError(protocol, command);
+        }
+    }
+
+    public void recordError(String protocol, String command) {
+        errors.computeIfAbsent(key(protocol, command), key -> new LongAdder()).increment();
+    }
+
+    public void recordBytesOut(String protocol, long bytes) {
+        bytesOut.computeIfAbsent(protocol, key -> new LongAdder()).add(bytes);
+    }
+
+    /**
+     * Records the time spent parsing a message.
+     *
+     * @param phase "headers" or "body"
+     */
+    public void recordParse(String phase, long nanos) {
+        parsing.computeIfAbsent(phase, key -> new LatencyHistogram()).record(nanos);
+    }
+
+    public LatencyHistogram getCommandLatency(String protocol, String command) {
+        return commands.get(key(protocol, command));
+    }
+
+    public long getErrors(String protocol, String command) {
+        LongAdder count = errors.get(key(protocol, command));
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Wraps a socket stream so every byte read is counted for the protocol.
+     */
+    public InputStream countInput(String protocol, InputStream in) {
+        LongAdder counter = bytesIn.computeIfAbsent(protocol, key -> new LongAdder());
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    counter.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    counter.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wraps a socket stream so every byte written is counted for the protocol.
+     */
+    public OutputStream countOutput(String protocol, OutputStream out) {
+        LongAdder counter = bytesOut.computeIfAbsent(protocol, key -> new LongAdder());
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                counter.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                counter.add(len);
+            }
+        };
+    }
+
+    // Command verbs come from the wire; keep them short and plain so they are safe as labels
+    static String verb(String command) {
+        StringBuilder verb = new StringBuilder(8);
+        for (int i = 0; i < command.length() && verb.length() < 16; i++) {
+            char c = Character.toUpperCase(command.charAt(i));
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            verb.append(c);
+        }
+        return verb.length() == 0 ? "UNKNOWN" : verb.toString();
+    }
+
+    private static String key(String protocol, String command) {
+        return protocol + " " + command;
+    }
+
+    /**
+     * Clears every measurement.
+     */
+    public void reset() {
+        commands.clear();
+        errors.clear();
+        bytesIn.clear();
+        bytesOut.clear();
+        parsing.clear();
+    }
+
+    /**
+     * Renders every measurement in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("# HELP mail_command_duration_seconds Time from sending a command until its response was read.\n");
+        sb.append("# TYPE mail_command_duration_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commands).entrySet()) {
+            String[] key = entry.getKey().split(" ", 2);
+            appendHistogram(sb, "mail_command_duration_seconds",
+                    "protocol=\"" + key[0] + "\",command=\"" + key[1] + "\"", entry.getValue());
+        }
+
+        sb.append("# HELP mail_command_errors_total Commands that were refused or lost their connection.\n");
+        sb.append("# TYPE mail_command_errors_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(errors).entrySet()) {
+            String[] key = entry.getKey().split(" ", 2);
+            sb.append("mail_command_errors_total{protocol=\"").append(key[0]).append("\",command=\"").append(key[1])
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        appendCounters(sb, "mail_bytes_received_total", "Bytes read from mail servers.", bytesIn);
+        appendCounters(sb, "mail_bytes_sent_total", "Bytes written to mail servers.", bytesOut);
+
+        sb.append("# HELP mail_parse_duration_seconds Time spent parsing messages.\n");
+        sb.append("# TYPE mail_parse_duration_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(parsing).entrySet()) {
+            appendHistogram(sb, "mail_parse_duration_seconds", "phase=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static void appendHistogram(StringBuilder sb, String name, String labels, LatencyHistogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BOUNDS_SECONDS.length; i++) {
+            cumulative += histogram.getBucket(i);
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(LatencyHistogram.BOUNDS_SECONDS[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += histogram.getBucket(LatencyHistogram.BOUNDS_SECONDS.length);
+        sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSumNanos() / 1e9).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    private static void appendCounters(StringBuilder sb, String name, String help, Map<String, LongAdder> counters) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            sb.append(name).append("{protocol=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    /**
+     * Renders a snapshot of every measurement as JSON, with latencies in milliseconds.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("{\"commands\":[");
+        boolean first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commands).entrySet()) {
+            String[] key = entry.getKey().split(" ", 2);
+            LongAdder failed = errors.get(entry.getKey());
+            sb.append(first ? "" : ",").append("{\"protocol\":\"").append(key[0]).append("\",\"command\":\"").append(key[1])
+                    .append("\",\"errors\":").append(failed == null ? 0 : failed.sum()).append(',');
+            appendLatency(sb, entry.getValue());
+            sb.append('}');
+            first = false;
+        }
+        sb.append("],\"bytes\":{");
+        first = true;
+        TreeMap<String, long[]> traffic = new TreeMap<>();
+        bytesIn.forEach((protocol, count) -> traffic.computeIfAbsent(protocol, key -> new long[2])[0] = count.sum());
+        bytesOut.forEach((protocol, count) -> traffic.computeIfAbsent(protocol, key -> new long[2])[1] = count.sum());
+        for (Map.Entry<String, long[]> entry : traffic.entrySet()) {
+            sb.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":{\"in\":").append(entry.getValue()[0])
+                    .append(",\"out\":").append(entry.getValue()[1]).append('}');
+            first = false;
+        }
+        sb.append("},\"parse\":[");
+        first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(parsing).entrySet()) {
+            sb.append(first ? "" : ",").append("{\"phase\":\"").append(entry.getKey()).append("\",");
+            appendLatency(sb, entry.getValue());
+            sb.append('}');
+            first = false;
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void appendLatency(StringBuilder sb, LatencyHistogram histogram) {
+        sb.append(String.format(Locale.ROOT, "\"count\":%d,\"mean_ms\":%.3f,\"p50_ms\":%.3f,\"p99_ms\":%.3f,\"max_ms\":%.3f",
+                histogram.getCount(), histogram.getMeanMillis(), histogram.getPercentileMillis(50),
+                histogram.getPercentileMillis(99), histogram.getMaxNanos() / 1e6));
+    }
+
+    /**
+     * Starts an HTTP server publishing {@code /metrics} (Prometheus) and
+     * {@code /metrics.json} on the loopback interface only, since the metrics name the
+     * mail servers in use and nothing guards them. Stop it with {@code stop(0)}.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @see #serve(InetAddress, int)
+     */
+    public HttpServer serve(int port) throws IOException {
+        return serve(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Starts the metrics HTTP server on the given address, e.g. one reachable by a
+     * Prometheus server on another host.
+     *
+     * @param address the local address to listen on; the wildcard address listens on all of them
+     * @param port    the port to listen on, or 0 for any free port
+     */
+    public HttpServer serve(InetAddress address, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", exchange -> {
+            boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+            byte[] body = (json ? toJson() : toPrometheus()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
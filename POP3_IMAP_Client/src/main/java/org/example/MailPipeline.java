@@ -0,0 +1,331 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Downloads messages over one POP3 session and parses them on other threads.
+ *
+ * The work is split into three stages connected by bounded queues:
+ * <ol>
+ *     <li>the reader, on the calling thread, pipelines "RETR" commands and puts the raw
+ *     bytes of every message on the raw queue;</li>
+ *     <li>a pool of parser threads takes raw messages, parses headers, text body and
+ *     attachments into a {@link Mail} and puts it on the parsed queue;</li>
+ *     <li>a single sink thread hands the parsed messages to a
+ *     {@link MailboxDownloader.MessageSink}, one at a time, so the sink needs no locking.</li>
+ * </ol>
+ * A slow stage fills the queue in front of it, which blocks the stage before it; when
+ * the raw queue is full the reader stops reading and TCP flow control holds the server
+ * back. The reader therefore never waits for parsing unless the parsers are saturated,
+ * and the busy and blocked time of every stage is reported so the bottleneck is visible.
+ */
+public class MailPipeline {
+    // Put on the queues after the last message
+    private static final Item END = new Item(0, null, null, null);
+
+    private final MailClient client;
+    private int rawQueueSize = 256;
+    private int parsedQueueSize = 256;
+    private int parsers = Runtime.getRuntime().availableProcessors();
+    private int batchSize = 64;
+
+    /**
+     * @param client a logged in POP3 session, used by the calling thread only
+     */
+    public MailPipeline(MailClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Sets how many downloaded messages may wait for a parser.
+     *
+     * @return this pipeline
+     */
+    public MailPipeline setRawQueueSize(int rawQueueSize) {
+        this.rawQueueSize = requirePositive(rawQueueSize, "queue size");
+        return this;
+    }
+
+    /**
+     * Sets how many parsed messages may wait for the sink.
+     *
+     * @return this pipeline
+     */
+    public MailPipeline setParsedQueueSize(int parsedQueueSize) {
+        this.parsedQueueSize = requirePositive(parsedQueueSize, "queue size");
+        return this;
+    }
+
+    /**
+     * Sets the number of parser threads; by default one per processor.
+     *
+     * @return this pipeline
+     */
+    public MailPipeline setParsers(int parsers) {
+        this.parsers = requirePositive(parsers, "number of parsers");
+        return this;
+    }
+
+    /**
+     * Sets how many "RETR" commands the reader pipelines at a time.
+     *
+     * @return this pipeline
+     */
+    public MailPipeline setBatchSize(int batchSize) {
+        this.batchSize = requirePositive(batchSize, "batch size");
+        return this;
+    }
+
+    private static int requirePositive(int value, String name) {
+        if (value < 1) {
+            throw new IllegalArgumentException("The " + name + " must be at least 1");
+        }
+        return value;
+    }
+
+    /**
+     * Downloads, parses and delivers every message of the mailbox.
+     *
+     * @see #run(Map, MailboxDownloader.MessageSink)
+     */
+    public PipelineReport run(MailboxDownloader.MessageSink sink) throws IOException {
+        return run(client.listUids(), sink);
+    }
+
+    /**
+     * Downloads, parses and delivers the given messages.
+     *
+     * @param messages message numbers mapped to their unique IDs (which may be null)
+     * @param sink     receives the parsed messages on the sink thread, in download order
+     *                 for a single parser and roughly in that order otherwise
+     * @return counts and per-stage timing
+     * @throws IOException if the session breaks; the messages read before that are still
+     *                     parsed and delivered
+     */
+    public PipelineReport run(Map<Integer, String> messages, MailboxDownloader.MessageSink sink) throws IOException {
+        long start = System.nanoTime();
+        BlockingQueue<Item> raw = new ArrayBlockingQueue<>(rawQueueSize);
+        BlockingQueue<Item> parsed = new ArrayBlockingQueue<>(parsedQueueSize);
+        Stage reader = new Stage();
+        Stage parser = new Stage();
+        Stage writer = new Stage();
+        List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger delivered = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+
+        ExecutorService threads = Executors.newFixedThreadPool(parsers + 1, new StageThreads());
+        List<Future<?>> running = new ArrayList<>();
+        AtomicInteger parsersLeft = new AtomicInteger(parsers);
+        for (int i = 0; i < parsers; i++) {
+            running.add(threads.submit(() -> {
+                parse(raw, parsed, parser, failed);
+                if (parsersLeft.decrementAndGet() == 0) {
+                    parser.put(parsed, END);
+                }
+                return null;
+            }));
+        }
+        running.add(threads.submit(() -> {
+            deliver(parsed, sink, writer, failed, delivered, bytes);
+            return null;
+        }));
+
+        IOException readFailure = null;
+        List<Integer> ids = new ArrayList<>(messages.keySet());
+        try {
+            read(ids, messages, raw, reader, failed);
+        } catch (IOException e) {
+            readFailure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            readFailure = new IOException("Pipeline interrupted", e);
+        } finally {
+            // Let every parser drain the queue and stop, even when reading failed
+            for (int i = 0; i < parsers; i++) {
+                putUninterruptibly(raw, END);
+            }
+        }
+
+        try {
+            for (Future<?> stage : running) {
+                stage.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Pipeline interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Pipeline stage failed", e.getCause());
+        } finally {
+            threads.shutdownNow();
+        }
+        if (readFailure != null) {
+            throw readFailure;
+        }
+        return new PipelineReport(delivered.get(), failed, bytes.get(), parsers, System.nanoTime() - start,
+                reader.snapshot("read"), parser.snapshot("parse"), writer.snapshot("sink"));
+    }
+
+    // Reader stage: fetch the messages a batch at a time and queue their raw bytes
+    private void read(List<Integer> ids, Map<Integer, String> uids, BlockingQueue<Item> raw, Stage stage,
+                      List<Integer> failed) throws IOException, InterruptedException {
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<Integer> batch = ids.subList(from, Math.min(from + batchSize, ids.size()));
+            List<String> commands = new ArrayList<>(batch.size());
+            for (int emailId : batch) {
+                commands.add("RETR " + emailId);
+            }
+
+            long busy = System.nanoTime();
+            List<Pop3Response> responses;
+            try {
+                responses = client.pipeline(commands);
+            } catch (IOException e) {
+                failed.addAll(ids.subList(from, ids.size()));
+                throw e;
+            }
+            stage.busy(System.nanoTime() - busy);
+
+            for (int i = 0; i < batch.size(); i++) {
+                int emailId = batch.get(i);
+                Pop3Response response = responses.get(i);
+                if (!response.isOk()) {
+                    failed.add(emailId);
+                    continue;
+                }
+                stage.processed();
+                stage.put(raw, new Item(emailId, uids.get(emailId), response.getBodyBytes(), null));
+            }
+        }
+    }
+
+    // Parser stage: parse everything now, so the sink only ever sees finished messages
+    private static void parse(BlockingQueue<Item> raw, BlockingQueue<Item> parsed, Stage stage,
+                              List<Integer> failed) throws InterruptedException {
+        Item item;
+        while ((item = stage.take(raw)) != END) {
+            long busy = System.nanoTime();
+            Mail mail;
+            try {
+                mail = new Mail(item.raw);
+                mail.getHeaders();
+                mail.getTextBody();
+                mail.getAttachments();
+            } catch (RuntimeException e) {
+                failed.add(item.emailId);
+                continue;
+            } finally {
+                stage.busy(System.nanoTime() - busy);
+            }
+            stage.processed();
+            stage.put(parsed, new Item(item.emailId, item.uid, item.raw, mail));
+        }
+    }
+
+    // Sink stage: deliver the parsed messages one at a time
+    private static void deliver(BlockingQueue<Item> parsed, MailboxDownloader.MessageSink sink, Stage stage,
+                                List<Integer> failed, AtomicInteger delivered, AtomicLong bytes) throws InterruptedException {
+        Item item;
+        while ((item = stage.take(parsed)) != END) {
+            long busy = System.nanoTime();
+            try {
+                sink.accept(item.emailId, item.uid, item.mail);
+                delivered.incrementAndGet();
+                bytes.addAndGet(item.raw.remaining());
+                stage.processed();
+            } catch (IOException | RuntimeException e) {
+                // Keep draining; a sink that stopped taking messages would block every stage
+                failed.add(item.emailId);
+            } finally {
+                stage.busy(System.nanoTime() - busy);
+            }
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<Item> queue, Item item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A message on its way through the stages
+    private static final class Item {
+        final int emailId;
+        final String uid;
+        final ByteBuffer raw;
+        final Mail mail;
+
+        Item(int emailId, String uid, ByteBuffer raw, Mail mail) {
+            this.emailId = emailId;
+            this.uid = uid;
+            this.raw = raw;
+            this.mail = mail;
+        }
+    }
+
+    // Time one stage spends working and blocked on its queues, summed over its threads
+    private static final class Stage {
+        final LongAdder items = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+
+        void busy(long nanos) {
+            busyNanos.add(nanos);
+        }
+
+        void processed() {
+            items.increment();
+        }
+
+        void put(BlockingQueue<Item> queue, Item item) throws InterruptedException {
+            long start = System.nanoTime();
+            queue.put(item);
+            waitNanos.add(System.nanoTime() - start);
+        }
+
+        Item take(BlockingQueue<Item> queue) throws InterruptedException {
+            long start = System.nanoTime();
+            Item item = queue.take();
+            waitNanos.add(System.nanoTime() - start);
+            return item;
+        }
+
+        PipelineReport.StageTiming snapshot(String name) {
+            return new PipelineReport.StageTiming(name, items.sum(), busyNanos.sum(), waitNanos.sum());
+        }
+    }
+
+    private static final class StageThreads implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mail-pipeline-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a whole POP3 mailbox over several connections at once.
+ *
+ * One session lists the mailbox with "UIDL" and "LIST". The message numbers are then
+ * queued largest first and shared by a pool of authenticated {@link MailClient}
+ * sessions, each running on its own worker thread. Every worker fetches, parses and
+ * hands its messages to a {@link MessageSink} independently, so slow messages on one
+ * connection do not hold up the others.
+ *
+ * Many POP3 servers lock the maildrop for the first session. When additional sessions
+ * cannot log in, the download simply continues with the ones that could. A session whose
+ * connection breaks is reopened up to {@value #MAX_RECONNECTS} times; after that, if
+ * reopening fails, or if the sink cannot store a message, its worker stops and the
+ * others carry on. Why it stopped is in {@link DownloadReport#getErrors()}.
+ */
+public class MailboxDownloader {
+    // How often one worker reopens its connection before it gives up
+    private static final int MAX_RECONNECTS = 3;
+
+    /**
+     * Receives every downloaded message. Called concurrently from the worker threads.
+     */
+    public interface MessageSink {
+        void accept(int emailId, String uid, Mail mail) throws IOException;
+    }
+
+    private final String server;
+    private final int port;
+    private final String username;
+    private final String password;
+    private int connections = 4;
+
+    public MailboxDownloader(String server, int port, String username, String password) {
+        this.server = server;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Sets the maximum number of simultaneous connections to the server.
+     *
+     * @param connections the connection limit, at least 1
+     * @return this downloader
+     */
+    public MailboxDownloader setConnections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection is required");
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * Downloads every message of the mailbox and hands it to the sink.
+     *
+     * @param sink where the parsed messages go
+     * @return counts and throughput of the download, and why any sessions stopped early
+     * @throws IOException if the first session cannot connect, log in or list the mailbox,
+     *                     or a worker failed unexpectedly, e.g. the sink threw an unchecked
+     *                     exception; the other workers are finished first
+     */
+    public DownloadReport download(MessageSink sink) throws IOException {
+        long start = System.nanoTime();
+
+        MailClient planner = openSession();
+        Map<Integer, String> uids;
+        Map<Integer, Long> sizes;
+        try {
+            uids = planner.listUids();
+            sizes = planner.listSizes();
+        } catch (IOException e) {
+            planner.close();
+            throw e;
+        }
+
+        // Largest messages first, so that no worker ends up alone with a big one at the end
+        List<Integer> ids = new ArrayList<>(sizes.keySet());
+        ids.sort(Comparator.comparingLong((Integer id) -> sizes.get(id)).reversed());
+        ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<>(ids);
+
+        List<MailClient> sessions = new ArrayList<>();
+        sessions.add(planner);
+        for (int i = 1; i < Math.min(connections, ids.size()); i++) {
+            try {
+                sessions.add(openSession());
+            } catch (IOException e) {
+                break; // the server does not allow more sessions
+            }
+        }
+
+        AtomicInteger downloaded = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+        List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+
+        ExecutorService workers = Executors.newFixedThreadPool(sessions.size());
+        IOException failure = null;
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (MailClient session : sessions) {
+                running.add(workers.submit(() -> {
+                    drain(session, queue, uids, sizes, sink, downloaded, bytes, failed, errors);
+                    return null;
+                }));
+            }
+            // Wait for every worker, so none is still feeding the sink when this returns
+            for (Future<?> worker : running) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new IOException("Download worker failed", e.getCause());
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", e);
+        } finally {
+            workers.shutdown();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        // Anything still queued was left behind by workers whose session broke
+        failed.addAll(queue);
+        return new DownloadReport(downloaded.get(), failed, errors, bytes.get(), sessions.size(), System.nanoTime() - start);
+    }
+
+    // Fetch messages from the shared queue until it is empty
+    private void drain(MailClient session, ConcurrentLinkedQueue<Integer> queue, Map<Integer, String> uids,
+                       Map<Integer, Long> sizes, MessageSink sink, AtomicInteger downloaded, AtomicLong bytes,
+                       List<Integer> failed, List<IOException> errors) {
+        int reconnects = 0;
+        try {
+            Integer emailId;
+            while ((emailId = queue.poll()) != null) {
+                Mail mail;
+                try {
+                    mail = session.fetchEmail(emailId);
+                } catch (IOException e) {
+                    // The connection is gone; reopen it a few times, then leave the rest to the other workers
+                    failed.add(emailId);
+                    session.close();
+                    if (++reconnects > MAX_RECONNECTS) {
+                        throw new IOException("Connection lost " + reconnects + " times: " + e.getMessage(), e);
+                    }
+                    session = openSession();
+                    continue;
+                }
+                if (mail == null) {
+                    failed.add(emailId);
+                    continue;
+                }
+
+                try {
+                    sink.accept(emailId, uids.get(emailId), mail);
+                } catch (IOException e) {
+                    // A full disk or unwritable folder fails every message alike, so stop here
+                    failed.add(emailId);
+                    throw new IOException("Could not store email " + emailId + ": " + e.getMessage(), e);
+                }
+                downloaded.incrementAndGet();
+                bytes.addAndGet(sizes.getOrDefault(emailId, 0L));
+            }
+            session.logout();
+        } catch (IOException e) {
+            errors.add(e);
+        } finally {
+            try {
+                session.close();
+            } catch (IOException e) {
+                // already disconnected
+            }
+        }
+    }
+
+    // Connect and log in a new session
+    private MailClient openSession() throws IOException {
+        MailClient client = new MailClient(server, port, "+OK");
+        if (!client.login(username, password)) {
+            client.close();
+            throw new IOException("Login failed for " + username);
+        }
+        return client;
+    }
+
+    /**
+     * Returns a sink that writes every raw message to {@code <uid>.eml} in the directory.
+     *
+     * @param directory the folder to save into; it is created if missing
+     */
+    public static MessageSink toDirectory(Path directory) {
+        return (emailId, uid, mail) -> {
+            Files.createDirectories(directory);
+            String name = (uid == null ? String.valueOf(emailId) : uid).replaceAll("[^a-zA-Z0-9@.-]", "_");
+            ByteBuffer raw = mail.getRaw();
+            try (FileChannel file = FileChannel.open(directory.resolve(name + ".eml"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (raw.hasRemaining()) {
+                    file.write(raw);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a sink that appends every raw message to a {@link MessageStore}.
+     *
+     * @param store the store to fill; messages without a unique ID are keyed by number
+     */
+    public static MessageSink toStore(MessageStore store) {
+        return (emailId, uid, mail) -> store.append(uid == null ? String.valueOf(emailId) : uid, mail.getRaw());
+    }
+
+    /**
+     * Returns a sink that compresses every raw message into a {@link MailArchive}.
+     *
+     * @param archive the archive to fill; messages without a unique ID are keyed by number
+     */
+    public static MessageSink toArchive(MailArchive archive) {
+        return (emailId, uid, mail) -> archive.append(uid == null ? String.valueOf(emailId) : uid, mail.getRaw());
+    }
+
+    /**
+     * Returns a sink that adds every message to a {@link SearchIndex}. Additions to the
+     * index are serialized, so it is best fed from a single thread such as the sink stage
+     * of a {@link MailPipeline}, where the messages arrive already parsed.
+     *
+     * @param index the index to fill; messages without a unique ID are keyed by number
+     */
+    public static MessageSink toIndex(SearchIndex index) {
+        return (emailId, uid, mail) -> index.add(uid == null ? String.valueOf(emailId) : uid, mail);
+    }
+}
@@ -1,24 +1,27 @@
 package org.example;
 
 import java.io.Console;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Main {
     public static void main(String[] args) {
         try {
             Scanner scanner = new Scanner(System.in);
 
-            // Create a new MailClient instance (connect to SMTP/POP3 server)
+            // Create a new MailClient instance (connect to POP3 server)
             MailClient pop3MailClient = new MailClient("localhost", 110, "+OK");  // Use POP3 server and port
-            MailClient smtpMailClient = new MailClient("localhost", 25, "220");  // Use SMTP server and port
-
-            printSuccess("Successfully connected to server.");
+            printSuccess("Successfully connected to POP3 server.");
+            // SMTP sessions come from a pool, which connects on the first send and reconnects when the server dropped an idle one
+            MailClientPool smtpPool = new MailClientPool().setMaxPerServer(1);
 
             String userMail = null;
             boolean loggedIn = false;
@@ -40,14 +43,29 @@ public class Main {
 
             printSuccess("Successfully logged in!");
 
+            // Local files of this mailbox are named after the user
+            String mailboxName = userMail.replaceAll("[^a-zA-Z0-9@.-]", "_");
+            // Messages read before are kept locally and not downloaded again
+            MessageStore messageStore = new MessageStore(Path.of("store", mailboxName));
+            // Full-text index over the stored messages, brought up to date before each search
+            SearchIndex searchIndex = new SearchIndex(Path.of("cache", mailboxName + ".search"));
+            // Unique IDs of the messages already synced, so a sync only downloads new mail
+            SeenUids seenUids = new SeenUids(Path.of("cache", mailboxName + ".seen"));
+            // Outgoing mail is spooled to disk and retried until the server takes it
+            SmtpSendQueue sendQueue = new SmtpSendQueue(Path.of("spool", mailboxName + ".spool"), smtpPool, "localhost", 25)
+                    .setWorkers(1)
+                    .start();
+
             int command = -1;
-            while (command != 5) {
+            while (command != 7) {
                 System.out.println("--- COMMANDS ---");
                 System.out.println("1. View Inbox");
                 System.out.println("2. Retrieve a specific mail by ID");
                 System.out.println("3. Send a mail");
                 System.out.println("4. Dowload attachement from a mail");
-                System.out.println("5. Logout");
+                System.out.println("5. Search downloaded mail");
+                System.out.println("6. Sync mailbox");
+                System.out.println("7. Logout");
 
                 command = scanner.nextInt();
                 scanner.nextLine(); // consume new line
@@ -55,19 +73,24 @@ public class Main {
                 switch (command) {
                     case 1:
                         printLine(25);
-                        String emails = pop3MailClient.listEmails();
-                        if (emails.isEmpty()) {
+                        // Headers already seen in an earlier session come from the local cache
+                        HeaderCache headerCache = new HeaderCache(Path.of("cache", mailboxName + ".headers"));
+                        List<MailHeader> headers = pop3MailClient.listHeaders(headerCache);
+                        if (headers.isEmpty()) {
                             System.out.println("No emails to display");
                         } else {
-                            System.out.println(emails);
-                        }     
+                            System.out.println(String.format("%-10s %-30s %-40s %s", "Email ID", "From", "Subject", "Date"));
+                            for (MailHeader header : headers) {
+                                System.out.println(header);
+                            }
+                        }
                         break;
                     case 2:
                         System.out.print("Email id: ");
                         int emailId = scanner.nextInt();
                         scanner.nextLine(); // consume newline
                         printLine(25);
-                        Mail email = pop3MailClient.fetchEmail(emailId);
+                        Mail email = pop3MailClient.fetchEmail(emailId, messageStore);
                         if (email == null) {
                             printError("Email with id does not exist");
                         } else {
@@ -91,11 +114,20 @@ public class Main {
                             System.out.print("Do you want to add another attachement (y/n): ");
                             att = scanner.nextLine();
                         }
-                        boolean success = smtpMailClient.sendEmailWithAttachment(userMail, destination, subject, body, attachmentPaths);
-                        if (success) {
-                            printSuccess("Email sent successfully");
-                        } else {
-                            printError("Something went wrong");
+                        OutgoingMail outgoing = new OutgoingMail(userMail, List.of(destination), subject, body, attachmentPaths);
+                        CompletableFuture<SmtpMessageResult> sending = sendQueue.submit(outgoing);
+                        try {
+                            // Wait a little for the outcome; the queue keeps retrying after that
+                            SmtpMessageResult result = sending.get(10, TimeUnit.SECONDS);
+                            if (result.isAccepted()) {
+                                printSuccess("Email sent successfully");
+                            } else {
+                                printError("Email could not be sent: " + result.getReply());
+                            }
+                        } catch (TimeoutException e) {
+                            printSuccess("Email queued; it will be sent as soon as the server accepts it");
+                        } catch (ExecutionException | InterruptedException e) {
+                            printError("Email could not be sent: " + e.getMessage());
                         }
                         break;
                     case 4:
@@ -103,11 +135,11 @@ public class Main {
                         int attachmentEmailId = scanner.nextInt();
                         scanner.nextLine(); // consume newline
 
-                        Mail emailWithAttachments = pop3MailClient.fetchEmail(attachmentEmailId);
+                        Mail emailWithAttachments = pop3MailClient.fetchEmail(attachmentEmailId, messageStore);
                         if (emailWithAttachments == null) {
                             printError("Email with id does not exist");
                         } else {
-                            Map<String, String> attachments = emailWithAttachments.getAttachments();
+                            Map<String, Attachment> attachments = emailWithAttachments.getAttachments();
                             if (attachments.isEmpty()) {
                                 printError("No attachments found in this email.");
                             } else {
@@ -120,20 +152,18 @@ public class Main {
 
                                 // Replace invalid characters in folder name
                                 emailFolder = emailFolder.replaceAll("[^a-zA-Z0-9@.-]", "_");
-                                File folder = new File("downloads/" + emailFolder);
-                                folder.mkdirs(); // Create the folder if it doesn't exist
+                                Path folder = Path.of("downloads", emailFolder);
 
-                                for (Map.Entry<String, String> entry : attachments.entrySet()) {
-                                    String fileName = entry.getKey(); // Use the original filename
-                                    if (fileName == null || fileName.isEmpty() || fileName.equalsIgnoreCase("Attachment")) {
-                                        continue; // Skip invalid attachment names like "Attachment"
+                                for (Attachment attachment : attachments.values()) {
+                                    String fileName = attachment.getFilename(); // Use the original filename
+                                    if (fileName == null || fileName.isEmpty()) {
+                                        continue; // Skip attachments without a usable name
                                     }
-                                    String fileContent = entry.getValue();
 
-                                    File outputFile = new File(folder, fileName); // Save to folder
-                                    try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                                        fos.write(fileContent.getBytes());
-                                        printSuccess("Attachment downloaded: " + outputFile.getPath());
+                                    // The attachment is decoded straight into the file, a buffer at a time
+                                    try {
+                                        Path outputFile = attachment.saveTo(folder);
+                                        printSuccess("Attachment downloaded: " + outputFile);
                                     } catch (IOException e) {
                                         printError("Failed to save attachment: " + fileName);
                                     }
@@ -142,6 +172,28 @@ public class Main {
                         }
                         break;
                     case 5:
+                        System.out.print("Search (e.g. from:daniel report -draft): ");
+                        String query = scanner.nextLine();
+                        printLine(25);
+                        searchIndex.addAll(messageStore);
+                        searchIndex.save();
+                        List<String> matches = searchIndex.search(query);
+                        if (matches.isEmpty()) {
+                            System.out.println("No downloaded emails match");
+                        }
+                        for (String uid : matches) {
+                            Mail match = messageStore.load(uid);
+                            if (match != null) {
+                                System.out.println(String.format("%-30s %-40s %s", match.getFrom(), match.getSubject(), match.getDate()));
+                            }
+                        }
+                        break;
+                    case 6:
+                        printLine(25);
+                        Pop3SyncResult syncResult = new Pop3Sync(pop3MailClient, seenUids, messageStore).sync();
+                        printSuccess("Synced: " + syncResult);
+                        break;
+                    case 7:
                         loggedIn = false;
                         pop3MailClient.logout();
                         break;
@@ -152,7 +204,10 @@ public class Main {
             }
             
             scanner.close();
-            smtpMailClient.close();
+            seenUids.close();
+            messageStore.close();
+            sendQueue.close();
+            smtpPool.close();
             pop3MailClient.close();
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,505 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A local store of raw messages, keyed by their POP3 unique ID.
+ *
+ * Messages are appended to segment files that are memory-mapped, so reading a stored
+ * message hands out a slice of the mapping and {@link #load(String)} builds a
+ * {@link Mail} straight on top of it; nothing is read or copied up front. Every record
+ * carries its unique ID and a CRC32, which makes the segments self-describing:
+ * <ul>
+ *   <li>An index file maps each unique ID to its segment and offset, and records where
+ *       the records of every segment end. It is written on {@link #close()} and
+ *       {@link #compact()} together with the position it covers, and only the records
+ *       appended after that position are scanned on open.</li>
+ *   <li>If the index is missing or damaged, every segment is scanned instead, up to the
+ *       zeros that follow its last record. A record cut short by a crash fails its
+ *       checksum, and appending resumes before it.</li>
+ *   <li>Deleting a message appends a tombstone record. {@link #compact()} rewrites the
+ *       live messages into fresh segments and retires the old ones.</li>
+ * </ul>
+ *
+ * A file cannot be shrunk or deleted while it is mapped on Windows, and a mapping is only
+ * released when its buffer is garbage collected. Segment files therefore keep their full
+ * size, and retired segments are deleted the next time the store is opened.
+ *
+ * Appended records survive a crash of the process as soon as they are written, and a
+ * crash of the machine once {@link #sync()} has returned. The store is thread-safe.
+ */
+public class MessageStore implements Closeable {
+    // Default size of a segment; larger messages get a segment of their own
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int RECORD_MAGIC = 0x4D534731; // "MSG1"
+    private static final int INDEX_MAGIC = 0x4D534932; // "MSI2"
+    // Magic, unique ID length, content length and CRC32, one int each
+    private static final int RECORD_HEADER_SIZE = 16;
+    // Content length of a record that deletes its unique ID
+    private static final int TOMBSTONE = -1;
+    private static final String INDEX_FILE = "index";
+
+    // One segment file and its mapping
+    private static final class Segment {
+        final int id;
+        final FileChannel channel;
+        MappedByteBuffer buffer;
+        int position;
+
+        Segment(int id, FileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    // Where the content of a live message is stored
+    private static final class Location {
+        final int segment;
+        final int record;
+        final int content;
+        final int length;
+
+        Location(int segment, int record, int content, int length) {
+            this.segment = segment;
+            this.record = record;
+            this.content = content;
+            this.length = length;
+        }
+
+        int recordSize() {
+            return content - record + length;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, Location> index = new HashMap<>();
+    private Segment active;
+    // Segments below this one were retired by compact() and are deleted on open
+    private int firstLiveSegment = 1;
+    // Bytes used in all segments, and the part of it taken by live messages
+    private long usedBytes;
+    private long liveBytes;
+
+    /**
+     * Opens (or creates) the store in the given directory with the default segment size.
+     */
+    public MessageStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens (or creates) the store in the given directory.
+     *
+     * @param directory   where segments and the index are kept
+     * @param segmentSize the size at which a new segment is started
+     * @throws IOException if the directory or its files cannot be opened
+     */
+    public MessageStore(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.matches("segment-\\d+\\.dat"))
+                    .forEach(name -> ids.add(Integer.parseInt(name.substring(8, name.length() - 4))));
+        }
+        ids.sort(Comparator.naturalOrder());
+        Map<Integer, Integer> ends = new HashMap<>();
+        int[] checkpoint = loadIndex(ends);
+        if (checkpoint != null) {
+            firstLiveSegment = checkpoint[2];
+            while (!ids.isEmpty() && ids.get(0) < firstLiveSegment) {
+                Files.deleteIfExists(segmentPath(ids.remove(0)));
+            }
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            boolean last = i == ids.size() - 1;
+            Segment segment = openSegment(ids.get(i), last ? segmentSize : 0);
+            segments.put(segment.id, segment);
+        }
+        recover(checkpoint, ends);
+        if (segments.isEmpty()) {
+            active = openSegment(1, segmentSize);
+            segments.put(active.id, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    // Rebuild the index from the loaded index file and the records written after it
+    private void recover(int[] checkpoint, Map<Integer, Integer> ends) {
+        int fromSegment = 0;
+        int fromPosition = 0;
+        if (checkpoint != null && covers(checkpoint[0], ends)) {
+            fromSegment = checkpoint[0];
+            fromPosition = checkpoint[1];
+        } else {
+            index.clear();
+        }
+
+        for (Segment segment : segments.values()) {
+            if (segment.id > fromSegment) {
+                segment.position = scan(segment, 0);
+            } else if (segment.id == fromSegment) {
+                segment.position = scan(segment, fromPosition);
+            } else {
+                segment.position = ends.get(segment.id);
+            }
+            usedBytes += segment.position;
+        }
+        for (Location location : index.values()) {
+            liveBytes += location.recordSize();
+        }
+    }
+
+    // Whether the index knows where every segment up to the checkpoint ends, and its entries lie within that
+    private boolean covers(int checkpointSegment, Map<Integer, Integer> ends) {
+        if (!segments.containsKey(checkpointSegment)) {
+            return false;
+        }
+        for (Segment segment : segments.headMap(checkpointSegment, true).values()) {
+            Integer end = ends.get(segment.id);
+            if (end == null || end > segment.buffer.capacity()) {
+                return false;
+            }
+        }
+        for (Location location : index.values()) {
+            Integer end = ends.get(location.segment);
+            if (end == null || location.segment > checkpointSegment || !segments.containsKey(location.segment)
+                    || (long) location.content + location.length > end) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Apply every valid record from the given position on; returns where the valid records end.
+    // Segments are never truncated, so the records are followed by zeros, whose magic ends the scan.
+    private int scan(Segment segment, int from) {
+        ByteBuffer buffer = segment.buffer;
+        int position = from;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity() && buffer.getInt(position) == RECORD_MAGIC) {
+            int uidLength = buffer.getInt(position + 4);
+            int length = buffer.getInt(position + 8);
+            int dataLength = length == TOMBSTONE ? 0 : length;
+            int content = position + RECORD_HEADER_SIZE + uidLength;
+            if (uidLength <= 0 || dataLength < 0 || (long) content + dataLength > buffer.capacity()
+                    || buffer.getInt(position + 12) != checksum(buffer, position + RECORD_HEADER_SIZE, uidLength + dataLength)) {
+                break; // a record cut short by a crash, or garbage after the last record
+            }
+
+            byte[] uid = new byte[uidLength];
+            buffer.get(position + RECORD_HEADER_SIZE, uid);
+            String key = new String(uid, StandardCharsets.UTF_8);
+            if (length == TOMBSTONE) {
+                index.remove(key);
+            } else {
+                index.put(key, new Location(segment.id, position, content, length));
+            }
+            position = content + dataLength;
+        }
+        return position;
+    }
+
+    /**
+     * Stores a raw message, replacing any message stored under the same unique ID.
+     *
+     * @param uid the unique ID of the message, as reported by "UIDL"
+     * @param raw the raw RFC 822 message; its remaining bytes are stored
+     * @throws IOException if a new segment cannot be created
+     */
+    public synchronized void append(String uid, ByteBuffer raw) throws IOException {
+        Location previous = index.get(uid);
+        if (previous != null) {
+            liveBytes -= previous.recordSize();
+        }
+        Location location = writeRecord(uid.getBytes(StandardCharsets.UTF_8), raw.duplicate(), raw.remaining());
+        index.put(uid, location);
+        liveBytes += location.recordSize();
+    }
+
+    /**
+     * Stores a raw message, replacing any message stored under the same unique ID.
+     */
+    public void append(String uid, byte[] raw) throws IOException {
+        append(uid, ByteBuffer.wrap(raw));
+    }
+
+    /**
+     * Deletes a message. Its space is reclaimed by the next {@link #compact()}.
+     *
+     * @return true if the message was stored
+     */
+    public synchronized boolean delete(String uid) throws IOException {
+        Location location = index.remove(uid);
+        if (location == null) {
+            return false;
+        }
+        liveBytes -= location.recordSize();
+        writeRecord(uid.getBytes(StandardCharsets.UTF_8), null, TOMBSTONE);
+        return true;
+    }
+
+    // Write one record at the end of the active segment; the magic goes last so a torn write never looks valid
+    private Location writeRecord(byte[] uid, ByteBuffer content, int length) throws IOException {
+        int dataLength = length == TOMBSTONE ? 0 : length;
+        long recordSize = (long) RECORD_HEADER_SIZE + uid.length + dataLength;
+        if (recordSize > Integer.MAX_VALUE) {
+            throw new IOException("Message too large for a segment: " + length + " bytes");
+        }
+        if (active.position + recordSize > active.buffer.capacity()) {
+            roll((int) Math.max(segmentSize, recordSize));
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int record = active.position;
+        int start = record + RECORD_HEADER_SIZE;
+        buffer.put(start, uid);
+        if (content != null) {
+            buffer.put(start + uid.length, content, content.position(), dataLength);
+        }
+        buffer.putInt(record + 4, uid.length);
+        buffer.putInt(record + 8, length);
+        buffer.putInt(record + 12, checksum(buffer, start, uid.length + dataLength));
+        buffer.putInt(record, RECORD_MAGIC);
+
+        active.position += (int) recordSize;
+        usedBytes += recordSize;
+        return new Location(active.id, record, start + uid.length, length);
+    }
+
+    // Seal the active segment and start a new one with the given capacity
+    private void roll(int capacity) throws IOException {
+        seal(active);
+        active = openSegment(active.id + 1, capacity);
+        segments.put(active.id, active);
+    }
+
+    // Flush a full segment; it keeps its size and mapping, and its end is recorded in the index
+    private void seal(Segment segment) {
+        segment.buffer.force();
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("segment-%06d.dat", id));
+    }
+
+    private Segment openSegment(int id, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, channel);
+        long size = Math.max(channel.size(), capacity);
+        segment.buffer = capacity > 0
+                ? channel.map(FileChannel.MapMode.READ_WRITE, 0, size)
+                : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return segment;
+    }
+
+    /**
+     * Returns the raw bytes of a stored message as a read-only slice of its segment.
+     *
+     * The buffer stays valid until the store is closed.
+     *
+     * @return the message, or null if it is not stored
+     */
+    public synchronized ByteBuffer get(String uid) {
+        Location location = index.get(uid);
+        if (location == null) {
+            return null;
+        }
+        return segments.get(location.segment).buffer.slice(location.content, location.length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Builds a {@link Mail} directly on the mapped bytes of a stored message.
+     *
+     * @return the message, or null if it is not stored
+     */
+    public Mail load(String uid) {
+        ByteBuffer raw = get(uid);
+        return raw == null ? null : new Mail(raw);
+    }
+
+    public synchronized boolean contains(String uid) {
+        return index.containsKey(uid);
+    }
+
+    public synchronized Set<String> uids() {
+        return Set.copyOf(index.keySet());
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    // Bytes taken by deleted or replaced messages, reclaimed by compact()
+    public synchronized long getDeadBytes() {
+        return usedBytes - liveBytes;
+    }
+
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Rewrites every live message into new segments and retires the old ones.
+     *
+     * The new segments come after all old ones, so an interrupted compaction is
+     * recovered like any other crash. The old segment files stay mapped, and buffers
+     * returned by {@link #get(String)} before compacting stay readable; the files are
+     * deleted the next time the store is opened.
+     *
+     * @return the number of bytes reclaimed
+     * @throws IOException if the new segments cannot be written
+     */
+    public synchronized long compact() throws IOException {
+        long before = usedBytes;
+        List<Segment> old = new ArrayList<>(segments.values());
+        roll(segmentSize);
+
+        // Copy in storage order, so reads of the old segments stay sequential
+        List<Map.Entry<String, Location>> live = new ArrayList<>(index.entrySet());
+        live.sort(Comparator.comparingInt((Map.Entry<String, Location> entry) -> entry.getValue().segment)
+                .thenComparingInt(entry -> entry.getValue().record));
+        for (Map.Entry<String, Location> entry : live) {
+            Location location = entry.getValue();
+            ByteBuffer content = segments.get(location.segment).buffer.slice(location.content, location.length);
+            index.put(entry.getKey(), writeRecord(entry.getKey().getBytes(StandardCharsets.UTF_8), content, location.length));
+        }
+
+        // The index written below no longer covers the old segments, so the copies must be on disk first
+        active.buffer.force();
+        firstLiveSegment = old.get(old.size() - 1).id + 1;
+        for (Segment segment : old) {
+            segments.remove(segment.id);
+            usedBytes -= segment.position;
+            segment.channel.close();
+        }
+        saveIndex();
+        return before - usedBytes;
+    }
+
+    /**
+     * Forces every appended record to the storage device.
+     */
+    public synchronized void sync() throws IOException {
+        active.buffer.force();
+    }
+
+    /**
+     * Writes the index and releases the files.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        active.buffer.force();
+        saveIndex();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+        index.clear();
+    }
+
+    // Write the index, the position it covers and the end of every segment, replacing the previous index atomically
+    private void saveIndex() throws IOException {
+        Path temp = Files.createTempFile(directory, INDEX_FILE, ".tmp");
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)), new CRC32());
+            try (DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(active.id);
+                out.writeInt(active.position);
+                out.writeInt(firstLiveSegment);
+                out.writeInt(segments.size());
+                for (Segment segment : segments.values()) {
+                    out.writeInt(segment.id);
+                    out.writeInt(segment.position);
+                }
+                out.writeInt(index.size());
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    Location location = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(location.segment);
+                    out.writeInt(location.record);
+                    out.writeInt(location.content);
+                    out.writeInt(location.length);
+                }
+                out.writeLong(checked.getChecksum().getValue());
+            }
+            Files.move(temp, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Load the index file and the segment ends; returns the covered segment and position and the
+    // first live segment, or null if it is unusable
+    private int[] loadIndex(Map<Integer, Integer> ends) throws IOException {
+        Path file = directory.resolve(INDEX_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != INDEX_MAGIC) {
+                return null;
+            }
+            int[] checkpoint = {in.readInt(), in.readInt(), in.readInt()};
+            int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                ends.put(in.readInt(), in.readInt());
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String uid = in.readUTF();
+                index.put(uid, new Location(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                index.clear();
+                ends.clear();
+                return null;
+            }
+            return checkpoint;
+        } catch (EOFException e) {
+            index.clear();
+            ends.clear();
+            return null;
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,59 @@
+package org.example;
+
+/**
+ * Receives the events produced by {@link MimeParser} while it walks a message.
+ *
+ * Every entity (the message itself and each part of a multipart body) is reported
+ * as {@code startPart}, its unfolded headers, {@code startBody} and finally
+ * {@code endPart}. Parts of a multipart body are reported between the
+ * {@code startPart}/{@code endPart} pair of their parent, so nesting can be
+ * followed by depth. Only leaf entities receive {@code bodyContent} events;
+ * multipart containers are split by the parser itself.
+ *
+ * Offsets are absolute byte positions in the parsed stream, which lets a handler
+ * remember where a part lives instead of copying its content.
+ */
+public interface MimeHandler {
+
+    /**
+     * Called when a new entity begins.
+     *
+     * @param depth 0 for the message itself, 1 for its parts, and so on
+     */
+    default void startPart(int depth) {
+    }
+
+    /**
+     * Called once per header of the current entity, in order of appearance.
+     *
+     * @param name  the header name as it appeared in the message
+     * @param value the unfolded, trimmed header value
+     */
+    default void header(String name, String value) {
+    }
+
+    /**
+     * Called after the blank line that ends the header block of the current entity.
+     *
+     * @param offset the position of the first byte of the body
+     */
+    default void startBody(long offset) {
+    }
+
+    /**
+     * Called with raw (still transfer-encoded) content of a leaf entity.
+     *
+     * The array is reused by the parser, so handlers must copy what they keep.
+     */
+    default void bodyContent(byte[] data, int offset, int length) {
+    }
+
+    /**
+     * Called when the current entity ends.
+     *
+     * @param offset the position just past the last byte of the body; the line break
+     *               that precedes a boundary belongs to the boundary and is excluded
+     */
+    default void endPart(long offset) {
+    }
+}
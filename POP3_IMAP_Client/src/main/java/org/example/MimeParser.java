@@ -0,0 +1,446 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single-pass, event-driven MIME parser.
+ *
+ * The parser reads the raw message from an {@link InputStream} exactly once, line by
+ * line, and reports what it finds to a {@link MimeHandler}. Headers are unfolded,
+ * multipart bodies are split on their boundaries (including nested multiparts) and
+ * leaf bodies are handed out as raw bytes, so nothing is copied into an intermediate
+ * {@code String} and no regular expression is involved.
+ *
+ * Both CRLF and bare LF line endings are accepted. The read buffer is taken from the
+ * {@link BufferPool} for the duration of a parse. A parser instance can be reused, but
+ * it is not thread-safe.
+ */
+public class MimeParser {
+    // Size of the read buffer used to pull bytes from the stream
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Body lines longer than this are handed to the handler in several chunks
+    private static final int MAX_BODY_CHUNK = 8192;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LF = {'\n'};
+
+    private enum State { HEADERS, BODY, SKIP }
+
+    // One open entity; containers remember the delimiter ("--" + boundary) of their parts
+    private static final class Frame {
+        byte[] delimiter;
+    }
+
+    // Taken from the heap pool while parsing
+    private ByteBuffer pooled;
+    private byte[] buffer;
+    private byte[] line = new byte[256];
+
+    private InputStream in;
+    private int bufferPosition;
+    private int bufferLimit;
+
+    private int lineLength;
+    private int terminatorLength;
+    private long lineStart;
+    private long position;
+    private boolean midLine;
+    private boolean continuation;
+    private boolean heldCarriageReturn;
+
+    private MimeHandler handler;
+    private final List<Frame> stack = new ArrayList<>();
+    private State state;
+    private String headerName;
+    private final StringBuilder headerValue = new StringBuilder();
+    private String boundary;
+    private byte[] pendingTerminator;
+    private long bodyEnd;
+
+    /**
+     * Parses a complete message from the given stream.
+     *
+     * The stream is read up to its end but not closed.
+     *
+     * @param input   the raw RFC 822 message
+     * @param handler the handler receiving the parse events
+     * @throws IOException if reading from the stream fails
+     */
+    public void parse(InputStream input, MimeHandler handler) throws IOException {
+        this.in = input;
+        this.handler = handler;
+        bufferPosition = 0;
+        bufferLimit = 0;
+        position = 0;
+        midLine = false;
+        continuation = false;
+        heldCarriageReturn = false;
+        stack.clear();
+
+        pooled = BufferPool.getHeap().acquire(READ_BUFFER_SIZE);
+        buffer = pooled.array();
+        try {
+            openPart();
+            while (readLine(state == State.BODY)) {
+                switch (state) {
+                    case HEADERS:
+                        headerLine();
+                        break;
+                    case BODY:
+                        if (!boundaryLine()) {
+                            bodyLine();
+                        }
+                        break;
+                    default:
+                        boundaryLine();
+                        break;
+                }
+            }
+            if (state == State.BODY && pendingTerminator != null) {
+                handler.bodyContent(pendingTerminator, 0, pendingTerminator.length);
+                bodyEnd = position;
+            }
+            closeFramesAbove(-1, position);
+        } finally {
+            this.in = null;
+            this.handler = null;
+            stack.clear();
+            BufferPool.getHeap().release(pooled);
+            pooled = null;
+            buffer = null;
+        }
+    }
+
+    // Handle one line of a header block
+    private void headerLine() {
+        if (lineLength == 0) {
+            flushHeader();
+            handler.startBody(position);
+            if (boundary != null) {
+                stack.get(stack.size() - 1).delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+                state = State.SKIP;
+            } else {
+                state = State.BODY;
+                pendingTerminator = null;
+                bodyEnd = position;
+            }
+            boundary = null;
+            return;
+        }
+
+        if ((line[0] == ' ' || line[0] == '\t') && headerName != null) {
+            // Folded header: the continuation belongs to the previous header
+            headerValue.append(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+            return;
+        }
+
+        flushHeader();
+        int colon = indexOf(line, lineLength, (byte) ':');
+        if (colon <= 0) {
+            return; // Not a header line, ignore it
+        }
+        headerName = new String(line, 0, colon, StandardCharsets.UTF_8).trim();
+        headerValue.append(new String(line, colon + 1, lineLength - colon - 1, StandardCharsets.UTF_8));
+    }
+
+    // Report the header collected so far, if any
+    private void flushHeader() {
+        if (headerName == null) {
+            return;
+        }
+        String value = headerValue.toString().trim();
+        if (headerName.equalsIgnoreCase("Content-Type") && mediaType(value).startsWith("multipart/")) {
+            boundary = parameter(value, "boundary");
+        }
+        handler.header(headerName, value);
+        headerName = null;
+        headerValue.setLength(0);
+    }
+
+    // Handle one line (or chunk of a long line) of a leaf body
+    private void bodyLine() {
+        if (pendingTerminator != null) {
+            handler.bodyContent(pendingTerminator, 0, pendingTerminator.length);
+        }
+        if (lineLength > 0) {
+            handler.bodyContent(line, 0, lineLength);
+        }
+        bodyEnd = lineStart + lineLength;
+        if (terminatorLength == 2) {
+            pendingTerminator = CRLF;
+        } else if (terminatorLength == 1) {
+            pendingTerminator = LF;
+        } else {
+            pendingTerminator = null;
+        }
+    }
+
+    // Check the current line against every open boundary and act on a match
+    private boolean boundaryLine() {
+        if (continuation || midLine || lineLength < 2 || line[0] != '-' || line[1] != '-') {
+            return false;
+        }
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            byte[] delimiter = stack.get(i).delimiter;
+            if (delimiter == null || !startsWith(line, lineLength, delimiter)) {
+                continue;
+            }
+            int rest = delimiter.length;
+            boolean close = false;
+            if (rest + 1 < lineLength && line[rest] == '-' && line[rest + 1] == '-') {
+                close = true;
+                rest += 2;
+            }
+            if (!isWhitespace(line, rest, lineLength)) {
+                continue;
+            }
+
+            closeFramesAbove(i, lineStart);
+            if (close) {
+                handler.endPart(lineStart);
+                stack.remove(i);
+                state = State.SKIP;
+            } else {
+                openPart();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Start a new entity below the current top of the stack
+    private void openPart() {
+        stack.add(new Frame());
+        handler.startPart(stack.size() - 1);
+        state = State.HEADERS;
+        headerName = null;
+        headerValue.setLength(0);
+        boundary = null;
+    }
+
+    // End every entity above the given stack index, innermost first
+    private void closeFramesAbove(int index, long offset) {
+        for (int i = stack.size() - 1; i > index; i--) {
+            if (i == stack.size() - 1 && state == State.BODY) {
+                handler.endPart(bodyEnd);
+            } else {
+                if (i == stack.size() - 1 && state == State.HEADERS) {
+                    flushHeader();
+                }
+                handler.endPart(offset);
+            }
+            stack.remove(i);
+            state = State.SKIP;
+        }
+    }
+
+    /**
+     * Reads the next line into {@code line}, without its terminator.
+     *
+     * When {@code chunked} is set, lines longer than {@link #MAX_BODY_CHUNK} are returned
+     * in pieces and {@code midLine} tells whether the next call continues the same line.
+     *
+     * @return false once the stream is exhausted
+     */
+    private boolean readLine(boolean chunked) throws IOException {
+        continuation = midLine;
+        lineStart = position;
+        lineLength = 0;
+        terminatorLength = 0;
+        if (heldCarriageReturn) {
+            line[lineLength++] = '\r';
+            heldCarriageReturn = false;
+        }
+        int limit = chunked ? MAX_BODY_CHUNK : Integer.MAX_VALUE;
+
+        while (true) {
+            if (bufferPosition == bufferLimit && !fill()) {
+                position += lineLength;
+                midLine = false;
+                return lineLength > 0 || continuation;
+            }
+
+            int start = bufferPosition;
+            int end = bufferLimit;
+            int room = limit - lineLength;
+            if (end - start > room) {
+                end = start + room;
+            }
+            int i = start;
+            while (i < end && buffer[i] != '\n') {
+                i++;
+            }
+            append(start, i - start);
+            bufferPosition = i;
+
+            if (i < end) {
+                bufferPosition++;
+                terminatorLength = 1;
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                    terminatorLength = 2;
+                }
+                position += lineLength + terminatorLength;
+                midLine = false;
+                return true;
+            }
+
+            if (lineLength >= limit) {
+                // Keep a trailing CR back so that a CRLF split across chunks stays a terminator
+                if (line[lineLength - 1] == '\r') {
+                    lineLength--;
+                    heldCarriageReturn = true;
+                }
+                position += lineLength;
+                midLine = true;
+                return true;
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        bufferPosition = 0;
+        bufferLimit = read;
+        return true;
+    }
+
+    private void append(int offset, int length) {
+        if (lineLength + length > line.length) {
+            byte[] grown = new byte[Math.max(line.length * 2, lineLength + length)];
+            System.arraycopy(line, 0, grown, 0, lineLength);
+            line = grown;
+        }
+        System.arraycopy(buffer, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private static int indexOf(byte[] data, int length, byte value) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] != ' ' && data[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the lower-cased media type of a Content-Type value, without parameters.
+     *
+     * @param contentType a Content-Type header value such as {@code text/plain; charset="UTF-8"}
+     * @return the media type (e.g. {@code text/plain}), or an empty string if the value is null
+     */
+    public static String mediaType(String contentType) {
+        if (contentType == null) {
+            return "";
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = semicolon < 0 ? contentType : contentType.substring(0, semicolon);
+        return type.trim().toLowerCase();
+    }
+
+    /**
+     * Extracts a parameter from a structured header value such as Content-Type or
+     * Content-Disposition. Quoted values are unquoted.
+     *
+     * @param headerValue the header value, e.g. {@code attachment; filename="a.txt"}
+     * @param name        the parameter name, matched case-insensitively
+     * @return the parameter value, or null if the parameter is absent
+     */
+    public static String parameter(String headerValue, String name) {
+        if (headerValue == null) {
+            return null;
+        }
+        int length = headerValue.length();
+        int i = headerValue.indexOf(';');
+        while (i >= 0 && i < length) {
+            i++; // skip ';'
+            int nameStart = i;
+            while (i < length && headerValue.charAt(i) != '=' && headerValue.charAt(i) != ';') {
+                i++;
+            }
+            String attribute = headerValue.substring(nameStart, i).trim();
+            if (i >= length || headerValue.charAt(i) == ';') {
+                continue; // parameter without value
+            }
+            i++; // skip '='
+            while (i < length && Character.isWhitespace(headerValue.charAt(i))) {
+                i++;
+            }
+
+            String value;
+            if (i < length && headerValue.charAt(i) == '"') {
+                StringBuilder quoted = new StringBuilder();
+                i++;
+                while (i < length && headerValue.charAt(i) != '"') {
+                    char c = headerValue.charAt(i);
+                    if (c == '\\' && i + 1 < length) {
+                        c = headerValue.charAt(++i);
+                    }
+                    quoted.append(c);
+                    i++;
+                }
+                value = quoted.toString();
+                i = headerValue.indexOf(';', i);
+            } else {
+                int end = headerValue.indexOf(';', i);
+                value = headerValue.substring(i, end < 0 ? length : end).trim();
+                i = end;
+            }
+
+            if (attribute.equalsIgnoreCase(name)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the charset a Content-Type value declares for its text.
+     *
+     * @param contentType a Content-Type header value such as {@code text/plain; charset="ISO-8859-1"}
+     * @return the charset; UTF-8 if none is declared or it is not supported here, so a
+     *         bad label never makes a message unreadable
+     */
+    public static Charset charset(String contentType) {
+        String name = parameter(contentType, "charset");
+        if (name != null) {
+            try {
+                return Charset.forName(name.trim());
+            } catch (IllegalArgumentException e) {
+                // unknown or illegal name; fall back below
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
@@ -0,0 +1,178 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking mail client engine driving many POP3 or SMTP sessions from one thread.
+ *
+ * Every session is a non-blocking {@link SocketChannel} registered with a single
+ * {@link Selector}. The engine thread reads whatever the server sent into each
+ * session's buffer and parses CRLF lines and dot-terminated responses straight from
+ * it, so an idle or slow connection costs no thread at all. To use several cores,
+ * create one engine per core and spread the sessions over them.
+ *
+ * Session methods may be called from any thread; their futures are completed on the
+ * engine thread, so heavy work should be chained with the {@code *Async} variants.
+ */
+public class NioMailEngine implements Closeable {
+
+    public enum Protocol { POP3, SMTP }
+
+    // Work for the engine thread, with the future to fail if the engine stops before running it
+    private static final class Task {
+        final Runnable action;
+        final CompletableFuture<?> future;
+
+        Task(Runnable action, CompletableFuture<?> future) {
+            this.action = action;
+            this.future = future;
+        }
+    }
+
+    private final Selector selector;
+    private final Thread loop;
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    public NioMailEngine() throws IOException {
+        selector = Selector.open();
+        loop = new Thread(this::run, "nio-mail-engine");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * Opens a session to a mail server.
+     *
+     * @param server   the host name of the server
+     * @param port     the port of the server
+     * @param protocol the protocol spoken on the connection
+     * @return a future completed with the session once the server greeting has been
+     *         received, or exceptionally if the connection or greeting fails
+     */
+    public CompletableFuture<NioMailSession> connect(String server, int port, Protocol protocol) {
+        CompletableFuture<NioMailSession> connected = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                NioMailSession session = new NioMailSession(this, channel, protocol);
+                boolean done = channel.connect(new InetSocketAddress(server, port));
+                SelectionKey key = channel.register(selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, session);
+                session.attach(key);
+                session.greeting().whenComplete((greeting, error) -> {
+                    if (error != null) {
+                        connected.completeExceptionally(error);
+                    } else if (!greeting.isOk()) {
+                        session.close();
+                        connected.completeExceptionally(new IOException("Server refused connection: " + greeting));
+                    } else {
+                        connected.complete(session);
+                    }
+                });
+            } catch (IOException e) {
+                connected.completeExceptionally(e);
+            }
+        }, connected);
+        return connected;
+    }
+
+    // Run a task on the engine thread; future, if any, fails should the engine stop first
+    void execute(Runnable action, CompletableFuture<?> future) {
+        if (closed) {
+            throw new IllegalStateException("Engine is closed");
+        }
+        Task task = new Task(action, future);
+        tasks.add(task);
+        if (closed && tasks.remove(task)) {
+            // The loop stopped between the check and the add and will never see it
+            abort(task);
+            return;
+        }
+        selector.wakeup();
+    }
+
+    private static void abort(Task task) {
+        if (task.future != null) {
+            task.future.completeExceptionally(new IOException("Engine closed"));
+        }
+    }
+
+    // True when called from the engine thread itself
+    boolean inLoop() {
+        return Thread.currentThread() == loop;
+    }
+
+    /**
+     * Stops the engine and closes every session; pending responses and connections
+     * fail, as do commands that were submitted but not yet sent.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                Task task;
+                while ((task = tasks.poll()) != null) {
+                    task.action.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioMailSession session = (NioMailSession) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            session.onConnectable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            session.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.onWritable();
+                        }
+                    } catch (IOException e) {
+                        session.fail(e);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("Mail engine stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioMailSession) key.attachment()).fail(new IOException("Engine closed"));
+            }
+            Task task;
+            while ((task = tasks.poll()) != null) {
+                abort(task);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One POP3 or SMTP connection driven by a {@link NioMailEngine}.
+ *
+ * Commands can be sent from any thread and are written in order; their responses are
+ * matched to them in the same order, so several commands may be in flight at once.
+ * Responses are parsed directly from the receive buffer: lines are found by scanning
+ * for LF, multi-line POP3 responses are dot-unstuffed and collected until the "."
+ * terminator, and SMTP continuation lines ("250-...") are gathered until the last one.
+ * The receive buffer is a direct one from the {@link BufferPool}, given back when the
+ * session closes.
+ */
+public class NioMailSession {
+    // Initial size of the receive buffer; it grows if a single line does not fit
+    private static final int READ_BUFFER_SIZE = 32 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    // A command waiting for its response
+    private static final class Pending {
+        final CompletableFuture<NioResponse> future = new CompletableFuture<>();
+        final boolean multiline;
+        String status;
+        ByteArrayOutputStream body;
+
+        Pending(boolean multiline) {
+            this.multiline = multiline;
+        }
+    }
+
+    private final NioMailEngine engine;
+    private final SocketChannel channel;
+    private final NioMailEngine.Protocol protocol;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private final CompletableFuture<NioResponse> greeting;
+    private SelectionKey key;
+
+    private ByteBuffer input = BufferPool.getDirect().acquire(READ_BUFFER_SIZE).clear();
+    private ByteBuffer output = ByteBuffer.allocate(1024);
+    private byte[] scratch = new byte[1024];
+
+    NioMailSession(NioMailEngine engine, SocketChannel channel, NioMailEngine.Protocol protocol) {
+        this.engine = engine;
+        this.channel = channel;
+        this.protocol = protocol;
+        // The server speaks first; its greeting is the answer to no command
+        Pending first = new Pending(false);
+        pending.add(first);
+        this.greeting = first.future;
+    }
+
+    CompletableFuture<NioResponse> greeting() {
+        return greeting;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    public NioMailEngine.Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Sends a command; the command is queued behind any that are still in flight.
+     *
+     * @param command the command without line terminator, e.g. "RETR 1" or "MAIL FROM:<a@b.c>"
+     * @return a future completed with the server's response
+     */
+    public CompletableFuture<NioResponse> send(String command) {
+        boolean multiline = protocol == NioMailEngine.Protocol.POP3 && MailClient.isMultiline(command);
+        Pending request = new Pending(multiline);
+        byte[] bytes = (command + "\r\n").getBytes(StandardCharsets.UTF_8);
+        Runnable enqueue = () -> {
+            if (!channel.isOpen()) {
+                request.future.completeExceptionally(new IOException("Session is closed"));
+                return;
+            }
+            pending.add(request);
+            write(bytes);
+        };
+        if (engine.inLoop()) {
+            enqueue.run();
+        } else {
+            engine.execute(enqueue, request.future);
+        }
+        return request.future;
+    }
+
+    /**
+     * Logs in to a POP3 server with "USER" and "PASS", sent back to back.
+     *
+     * @return a future completed with true if both commands were accepted
+     */
+    public CompletableFuture<Boolean> login(String username, String password) {
+        CompletableFuture<NioResponse> user = send("USER " + username);
+        CompletableFuture<NioResponse> pass = send("PASS " + password);
+        return user.thenCombine(pass, (userResponse, passResponse) -> userResponse.isOk() && passResponse.isOk());
+    }
+
+    /**
+     * Fetches and parses one message with "RETR". Parsing happens off the engine thread.
+     *
+     * @return a future completed with the message, or null if the server refused it
+     */
+    public CompletableFuture<Mail> fetchEmail(int emailId) {
+        return send("RETR " + emailId).thenApplyAsync(response -> response.isOk() ? new Mail(response.getBody()) : null);
+    }
+
+    /**
+     * Closes the connection; responses still pending fail.
+     */
+    public void close() {
+        Runnable shutdown = () -> fail(new IOException("Session closed"));
+        if (engine.inLoop()) {
+            shutdown.run();
+        } else {
+            engine.execute(shutdown, null);
+        }
+    }
+
+    void onConnectable() throws IOException {
+        channel.finishConnect();
+        key.interestOps(output.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    void onReadable() throws IOException {
+        if (input == null) {
+            return; // failed while the selector already reported it readable
+        }
+        int read = channel.read(input);
+        if (read < 0) {
+            throw new EOFException("Connection closed by server");
+        }
+        input.flip();
+        while (pending.peek() != null && decodeLine()) {
+            // keep decoding complete lines
+        }
+        input.compact();
+        if (!input.hasRemaining()) {
+            // A single line fills the whole buffer: make room for the rest of it
+            ByteBuffer grown = BufferPool.getDirect().acquire(input.capacity() * 2).clear();
+            input.flip();
+            grown.put(input);
+            BufferPool.getDirect().release(input);
+            input = grown;
+        }
+    }
+
+    void onWritable() throws IOException {
+        output.flip();
+        channel.write(output);
+        output.compact();
+        if (output.position() == 0 && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // Fail every pending response and close the channel
+    void fail(IOException cause) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        if (input != null) {
+            // Only once: the engine may still see the cancelled key when it shuts down
+            BufferPool.getDirect().release(input);
+            input = null;
+        }
+        Pending request;
+        while ((request = pending.poll()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    // Queue bytes for writing and ask the selector to tell us when the socket can take them
+    private void write(byte[] bytes) {
+        if (output.remaining() < bytes.length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + bytes.length));
+            output.flip();
+            grown.put(output);
+            output = grown;
+        }
+        output.put(bytes);
+        if (key != null && key.isValid() && channel.isConnected()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Consume one complete line from the input buffer, or return false if there is none yet
+    private boolean decodeLine() {
+        int start = input.position();
+        int limit = input.limit();
+        for (int i = start; i < limit; i++) {
+            if (input.get(i) == '\n') {
+                int end = i > start && input.get(i - 1) == '\r' ? i - 1 : i;
+                handleLine(start, end);
+                input.position(i + 1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Apply one received line to the response currently being read
+    private void handleLine(int start, int end) {
+        Pending request = pending.peek();
+        if (protocol == NioMailEngine.Protocol.SMTP || request.status == null) {
+            String line = ascii(start, end);
+            if (protocol == NioMailEngine.Protocol.SMTP) {
+                if (line.length() > 3 && line.charAt(3) == '-') {
+                    // A continuation line of a multi-line SMTP reply
+                    if (request.body == null) {
+                        request.body = new ByteArrayOutputStream();
+                    }
+                    request.body.write(line.getBytes(StandardCharsets.ISO_8859_1), 0, line.length());
+                    request.body.write(CRLF, 0, CRLF.length);
+                } else {
+                    complete(line, request.body);
+                }
+            } else if (request.multiline && line.startsWith("+OK")) {
+                request.status = line;
+                request.body = new ByteArrayOutputStream();
+            } else {
+                complete(line, null);
+            }
+            return;
+        }
+
+        // Inside a multi-line POP3 response
+        int length = end - start;
+        if (length == 1 && input.get(start) == '.') {
+            complete(request.status, request.body);
+            return;
+        }
+        if (length > 0 && input.get(start) == '.') {
+            start++; // dot-unstuffing
+            length--;
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(scratch.length * 2, length)];
+        }
+        input.get(start, scratch, 0, length);
+        request.body.write(scratch, 0, length);
+        request.body.write(CRLF, 0, CRLF.length);
+    }
+
+    private void complete(String status, ByteArrayOutputStream body) {
+        Pending request = pending.poll();
+        request.future.complete(new NioResponse(status, body == null ? null : body.toByteArray()));
+    }
+
+    private String ascii(int start, int end) {
+        int length = end - start;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(scratch.length * 2, length)];
+        }
+        input.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+    }
+}
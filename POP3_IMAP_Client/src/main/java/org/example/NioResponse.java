@@ -0,0 +1,44 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A response read by a {@link NioMailSession}.
+ *
+ * For POP3 the status is the "+OK"/"-ERR" line and the body holds the dot-unstuffed
+ * lines of a multi-line response, each ending in CRLF. For SMTP the status is the
+ * last line of the reply and the body holds the continuation lines before it.
+ */
+public class NioResponse {
+    private final String status;
+    private final byte[] body;
+
+    public NioResponse(String status, byte[] body) {
+        this.status = status;
+        this.body = body;
+    }
+
+    // True for "+OK" (POP3) and 2xx/3xx (SMTP) replies
+    public boolean isOk() {
+        return status.startsWith("+OK") || status.startsWith("2") || status.startsWith("3");
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    // The raw body bytes, or null if the response had a single line
+    public byte[] getBody() {
+        return body;
+    }
+
+    // The body decoded as UTF-8, or null if the response had a single line
+    public String getBodyText() {
+        return body == null ? null : new String(body, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return status;
+    }
+}
@@ -0,0 +1,49 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A message to be sent over SMTP, possibly to several recipients at once.
+ */
+public class OutgoingMail {
+    private final String from;
+    private final List<String> recipients;
+    private final String subject;
+    private final String body;
+    private final List<String> attachmentPaths;
+
+    public OutgoingMail(String from, List<String> recipients, String subject, String body, List<String> attachmentPaths) {
+        if (recipients == null || recipients.isEmpty()) {
+            throw new IllegalArgumentException("At least one recipient is required");
+        }
+        this.from = from;
+        this.recipients = Collections.unmodifiableList(new ArrayList<>(recipients));
+        this.subject = subject;
+        this.body = body;
+        this.attachmentPaths = attachmentPaths == null
+                ? Collections.emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(attachmentPaths));
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public List<String> getAttachmentPaths() {
+        return attachmentPaths;
+    }
+}
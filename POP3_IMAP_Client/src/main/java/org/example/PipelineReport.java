@@ -0,0 +1,123 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a {@link MailPipeline} run, with the timing of every stage.
+ */
+public class PipelineReport {
+
+    /**
+     * Where the threads of one stage spent their time. Busy time is work on messages;
+     * blocked time is waiting for the queue in front (nothing to do) or behind (the next
+     * stage is too slow). Both are summed over the threads of the stage.
+     */
+    public static class StageTiming {
+        private final String name;
+        private final long messages;
+        private final long busyNanos;
+        private final long blockedNanos;
+
+        public StageTiming(String name, long messages, long busyNanos, long blockedNanos) {
+            this.name = name;
+            this.messages = messages;
+            this.busyNanos = busyNanos;
+            this.blockedNanos = blockedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Messages that passed this stage
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        public long getBlockedNanos() {
+            return blockedNanos;
+        }
+
+        // Busy time per message
+        public double getAverageMillis() {
+            return messages == 0 ? 0 : busyNanos / 1e6 / messages;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-6s %d messages, busy %.1f ms (%.3f ms/message), blocked %.1f ms",
+                    name, messages, busyNanos / 1e6, getAverageMillis(), blockedNanos / 1e6);
+        }
+    }
+
+    private final int delivered;
+    private final List<Integer> failed;
+    private final long bytes;
+    private final int parsers;
+    private final long elapsedNanos;
+    private final StageTiming read;
+    private final StageTiming parse;
+    private final StageTiming sink;
+
+    public PipelineReport(int delivered, List<Integer> failed, long bytes, int parsers, long elapsedNanos,
+                          StageTiming read, StageTiming parse, StageTiming sink) {
+        this.delivered = delivered;
+        this.failed = Collections.unmodifiableList(failed);
+        this.bytes = bytes;
+        this.parsers = parsers;
+        this.elapsedNanos = elapsedNanos;
+        this.read = read;
+        this.parse = parse;
+        this.sink = sink;
+    }
+
+    // Messages parsed and accepted by the sink
+    public int getDelivered() {
+        return delivered;
+    }
+
+    // Message numbers that could not be fetched, parsed or delivered
+    public List<Integer> getFailed() {
+        return failed;
+    }
+
+    // Total size of the delivered messages as received
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getParsers() {
+        return parsers;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getMessagesPerSecond() {
+        return elapsedNanos == 0 ? 0 : delivered * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    public StageTiming getRead() {
+        return read;
+    }
+
+    public StageTiming getParse() {
+        return parse;
+    }
+
+    public StageTiming getSink() {
+        return sink;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d messages (%d bytes) in %.2f s with %d parsers: %.1f messages/sec, %d failed%n  %s%n  %s%n  %s",
+                delivered, bytes, elapsedNanos / 1e9, parsers, getMessagesPerSecond(), failed.size(), read, parse, sink);
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+/**
+ * A snapshot of the counters of a {@link MailClientPool}.
+ */
+public class PoolMetrics {
+    private final long borrows;
+    private final long connects;
+    private final long connectNanos;
+    private final long waitNanos;
+    private final long maxWaitNanos;
+    private final long timeouts;
+    private final long failedChecks;
+    private final long evictions;
+    private final long reconnects;
+    private final int active;
+    private final int idle;
+
+    public PoolMetrics(long borrows, long connects, long connectNanos, long waitNanos, long maxWaitNanos, long timeouts,
+                       long failedChecks, long evictions, long reconnects, int active, int idle) {
+        this.borrows = borrows;
+        this.connects = connects;
+        this.connectNanos = connectNanos;
+        this.waitNanos = waitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.timeouts = timeouts;
+        this.failedChecks = failedChecks;
+        this.evictions = evictions;
+        this.reconnects = reconnects;
+        this.active = active;
+        this.idle = idle;
+    }
+
+    // Sessions handed out, whether reused or new
+    public long getBorrows() {
+        return borrows;
+    }
+
+    // New connections opened, including greeting and login
+    public long getConnects() {
+        return connects;
+    }
+
+    public double getAverageConnectMillis() {
+        return connects == 0 ? 0 : connectNanos / 1e6 / connects;
+    }
+
+    // Time spent waiting for the per-server limit, averaged over all borrows
+    public double getAverageWaitMillis() {
+        return borrows == 0 ? 0 : waitNanos / 1e6 / borrows;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos / 1e6;
+    }
+
+    // Borrows that gave up because the server stayed at its limit
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    // Idle sessions that did not answer NOOP and were replaced
+    public long getFailedChecks() {
+        return failedChecks;
+    }
+
+    // Sessions closed for being idle or old for too long
+    public long getEvictions() {
+        return evictions;
+    }
+
+    // Operations retried on a fresh session after their session broke
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    // Sessions currently borrowed
+    public int getActive() {
+        return active;
+    }
+
+    // Sessions waiting in the pool
+    public int getIdle() {
+        return idle;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d active, %d idle; %d borrows (wait avg %.2f ms, max %.2f ms, %d timeouts); "
+                        + "%d connects (avg %.2f ms); %d failed checks, %d evictions, %d reconnects",
+                active, idle, borrows, getAverageWaitMillis(), getMaxWaitMillis(), timeouts,
+                connects, getAverageConnectMillis(), failedChecks, evictions, reconnects);
+    }
+}
@@ -0,0 +1,219 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A "LIST" or "UIDL" listing read from the server as it is iterated.
+ *
+ * Entries are parsed straight from the response bytes into primitive arrays, a window
+ * of at most {@link #WINDOW} entries at a time, so listing a mailbox of any size takes
+ * the same small amount of memory. The iterator yields message numbers; the size or
+ * unique ID of the current entry is available from {@link #getSize()} and
+ * {@link #getUid()}.
+ *
+ * The connection is busy until the listing has been read to its end. Closing it early
+ * reads and skips the rest, so the session can be used for the next command.
+ */
+public class Pop3Listing implements PrimitiveIterator.OfInt, Closeable {
+    // Entries parsed ahead of the caller
+    public static final int WINDOW = 1024;
+
+    private final ProtocolReader reader;
+    private final boolean uids;
+    private final Runnable whenDone;
+    private final int[] ids = new int[WINDOW];
+    private final long[] sizes;
+    // The unique IDs of the window back to back; entry i ends at uidEnds[i]
+    private final GrowableBuffer uidBytes;
+    private final int[] uidEnds;
+    private final GrowableBuffer line = new GrowableBuffer(128);
+    private int count;
+    private int index = -1;
+    private boolean done;
+
+    /**
+     * Reads the listing that follows a "+OK" to "LIST" or "UIDL" from the reader.
+     *
+     * @param uids     whether the lines carry unique IDs ("UIDL") rather than sizes ("LIST")
+     * @param whenDone run once the end of the listing has been read, or null
+     */
+    Pop3Listing(ProtocolReader reader, boolean uids, Runnable whenDone) {
+        this.reader = reader;
+        this.uids = uids;
+        this.whenDone = whenDone;
+        this.sizes = uids ? null : new long[WINDOW];
+        this.uidBytes = uids ? new GrowableBuffer(WINDOW * 16) : null;
+        this.uidEnds = uids ? new int[WINDOW] : null;
+    }
+
+    // A listing without entries, for a refused command
+    static Pop3Listing empty(boolean uids) {
+        Pop3Listing listing = new Pop3Listing(null, uids, null);
+        listing.done = true;
+        return listing;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (index + 1 < count) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+        try {
+            fill();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return count > 0;
+    }
+
+    /**
+     * Moves to the next entry.
+     *
+     * @return its message number
+     * @throws UncheckedIOException if reading from the server fails
+     */
+    @Override
+    public int nextInt() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return ids[++index];
+    }
+
+    // The size in bytes of the current entry of a "LIST"
+    public long getSize() {
+        if (uids) {
+            throw new IllegalStateException("A UIDL listing has no sizes");
+        }
+        return sizes[current()];
+    }
+
+    // The unique ID of the current entry of a "UIDL"
+    public String getUid() {
+        if (!uids) {
+            throw new IllegalStateException("A LIST listing has no unique IDs");
+        }
+        int entry = current();
+        int start = entry == 0 ? 0 : uidEnds[entry - 1];
+        return new String(uidBytes.array(), start, uidEnds[entry] - start, StandardCharsets.UTF_8);
+    }
+
+    private int current() {
+        if (index < 0) {
+            throw new IllegalStateException("No current entry; call next() first");
+        }
+        return index;
+    }
+
+    /**
+     * The message numbers as a stream, read from the server as the stream is consumed.
+     * Closing the stream closes the listing.
+     */
+    public IntStream stream() {
+        Spliterator.OfInt entries = Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+        return StreamSupport.intStream(entries, false).onClose(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Parse the next window of entries, replacing the current one
+    private void fill() throws IOException {
+        count = 0;
+        index = -1;
+        if (uids) {
+            uidBytes.clear();
+        }
+        while (count < WINDOW && !done) {
+            line.clear();
+            if (!reader.readMultilineLine(line)) {
+                end();
+                break;
+            }
+            parse();
+        }
+    }
+
+    // Add "<number> <size>" or "<number> <uid>" to the window; anything else is skipped
+    private void parse() {
+        byte[] bytes = line.array();
+        int length = line.size();
+        int i = skipSpaces(bytes, 0, length);
+        int idStart = i;
+        long id = 0;
+        while (i < length && bytes[i] >= '0' && bytes[i] <= '9' && id <= Integer.MAX_VALUE) {
+            id = id * 10 + (bytes[i++] - '0');
+        }
+        if (i == idStart || id > Integer.MAX_VALUE || i == length || bytes[i] != ' ' && bytes[i] != '\t') {
+            return;
+        }
+        int valueStart = skipSpaces(bytes, i, length);
+        int valueEnd = valueStart;
+        while (valueEnd < length && bytes[valueEnd] != ' ' && bytes[valueEnd] != '\t') {
+            valueEnd++;
+        }
+        if (valueEnd == valueStart || skipSpaces(bytes, valueEnd, length) != length) {
+            return;
+        }
+
+        if (uids) {
+            uidBytes.append(bytes, valueStart, valueEnd - valueStart);
+            uidEnds[count] = uidBytes.size();
+        } else {
+            long size = 0;
+            for (int j = valueStart; j < valueEnd; j++) {
+                if (bytes[j] < '0' || bytes[j] > '9') {
+                    return;
+                }
+                size = size * 10 + (bytes[j] - '0');
+            }
+            sizes[count] = size;
+        }
+        ids[count++] = (int) id;
+    }
+
+    private static int skipSpaces(byte[] bytes, int from, int to) {
+        while (from < to && (bytes[from] == ' ' || bytes[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    private void end() {
+        done = true;
+        if (whenDone != null) {
+            whenDone.run();
+        }
+    }
+
+    /**
+     * Skips the entries not read yet, up to the end of the listing.
+     */
+    @Override
+    public void close() throws IOException {
+        while (!done) {
+            line.clear();
+            if (!reader.readMultilineLine(line)) {
+                end();
+            }
+        }
+        count = 0;
+        index = -1;
+    }
+}
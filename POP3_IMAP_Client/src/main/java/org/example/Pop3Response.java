@@ -0,0 +1,54 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A POP3 server response: the status line and, for multi-line responses such as
+ * RETR, TOP, LIST or UIDL, the lines that followed it up to the terminating ".".
+ *
+ * The body is kept as the dot-unstuffed bytes the server sent, so a fetched message
+ * can be parsed without being decoded first.
+ */
+public class Pop3Response {
+    private final String status;
+    private final ByteBuffer body;
+
+    public Pop3Response(String status, String body) {
+        this(status, body == null ? null : ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public Pop3Response(String status, ByteBuffer body) {
+        this.status = status;
+        this.body = body;
+    }
+
+    // True if the server answered "+OK"
+    public boolean isOk() {
+        return status != null && status.startsWith("+OK");
+    }
+
+    // The first line of the response, e.g. "+OK 1200 octets"
+    public String getStatus() {
+        return status;
+    }
+
+    // The lines of a multi-line response decoded as UTF-8 and joined with "\n", or null for single-line responses
+    public String getBody() {
+        if (body == null) {
+            return null;
+        }
+        String text = StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+        return text.indexOf('\r') < 0 ? text : text.replace("\r\n", "\n");
+    }
+
+    // The raw bytes of a multi-line response with their line endings, or null for single-line responses
+    public ByteBuffer getBodyBytes() {
+        return body == null ? null : body.duplicate();
+    }
+
+    @Override
+    public String toString() {
+        return body == null ? status : status + "\n" + getBody();
+    }
+}
@@ -0,0 +1,138 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Brings a local {@link MessageStore} up to date with a POP3 mailbox.
+ *
+ * The server's "UIDL" list is compared with the {@link SeenUids} of the account: only
+ * messages never retrieved before are fetched, and retrieved messages the server no
+ * longer lists are forgotten and reported. A mailbox that did not change therefore
+ * costs the single "UIDL" command.
+ *
+ * New messages are fetched in pipelined batches. Each batch is committed in order: the
+ * messages are appended to the store, the store is synced to disk, and only then are
+ * their UIDs recorded as seen and synced. An interrupted run loses at most the batch in
+ * flight, which the next run fetches again; messages the store already holds are not
+ * downloaded twice. With {@link #setDeleteAfterCommit(boolean)} every committed message
+ * is also marked with "DELE". POP3 servers only delete marked messages when the session
+ * ends with "QUIT", so messages still listed after an interrupted session are simply
+ * marked again by the next run.
+ */
+public class Pop3Sync {
+    private final MailClient client;
+    private final SeenUids seen;
+    private final MessageStore store;
+    private boolean deleteAfterCommit;
+    private int batchSize = 64;
+
+    /**
+     * @param client a logged in POP3 session
+     * @param seen   the UIDs already retrieved from this account
+     * @param store  where new messages are stored
+     */
+    public Pop3Sync(MailClient client, SeenUids seen, MessageStore store) {
+        this.client = client;
+        this.seen = seen;
+        this.store = store;
+    }
+
+    /**
+     * Sets whether retrieved messages are deleted from the server once they are stored.
+     *
+     * @return this sync
+     */
+    public Pop3Sync setDeleteAfterCommit(boolean deleteAfterCommit) {
+        this.deleteAfterCommit = deleteAfterCommit;
+        return this;
+    }
+
+    /**
+     * Sets how many messages are fetched and committed together.
+     *
+     * @param batchSize the batch size, at least 1
+     * @return this sync
+     */
+    public Pop3Sync setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Runs one sync.
+     *
+     * @return what was added, found gone, deleted and failed
+     * @throws IOException if the server refuses UIDL, the connection breaks or the store
+     *                     cannot be written; everything committed before stays committed
+     */
+    public Pop3SyncResult sync() throws IOException {
+        long start = System.nanoTime();
+        Map<Integer, String> uids = client.requireUids();
+
+        List<String> vanished = new ArrayList<>(seen.retainAll(uids.values()));
+        List<Integer> fetch = new ArrayList<>();
+        List<Integer> delete = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : uids.entrySet()) {
+            String uid = entry.getValue();
+            if (!seen.contains(uid) && store.contains(uid)) {
+                // Stored by an earlier run that stopped before recording it, or fetched on its own
+                seen.add(uid);
+            }
+            if (!seen.contains(uid)) {
+                fetch.add(entry.getKey());
+            } else if (deleteAfterCommit) {
+                delete.add(entry.getKey());
+            }
+        }
+        seen.sync();
+
+        List<String> added = new ArrayList<>(fetch.size());
+        List<String> failed = new ArrayList<>();
+        for (int from = 0; from < fetch.size(); from += batchSize) {
+            List<Integer> batch = fetch.subList(from, Math.min(from + batchSize, fetch.size()));
+            List<Mail> mails = client.fetchEmails(batch);
+
+            List<String> committed = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                String uid = uids.get(batch.get(i));
+                if (mails.get(i) == null) {
+                    failed.add(uid);
+                    continue;
+                }
+                store.append(uid, mails.get(i).getRaw());
+                committed.add(uid);
+                if (deleteAfterCommit) {
+                    delete.add(batch.get(i));
+                }
+            }
+            // The store first: a UID must never be recorded as seen before its message is on disk
+            store.sync();
+            for (String uid : committed) {
+                seen.add(uid);
+            }
+            seen.sync();
+            added.addAll(committed);
+        }
+
+        List<String> deleted = new ArrayList<>(delete.size());
+        if (!delete.isEmpty()) {
+            List<String> commands = new ArrayList<>(delete.size());
+            for (int emailId : delete) {
+                commands.add("DELE " + emailId);
+            }
+            List<Pop3Response> responses = client.pipeline(commands);
+            for (int i = 0; i < responses.size(); i++) {
+                if (responses.get(i).isOk()) {
+                    deleted.add(uids.get(delete.get(i)));
+                }
+            }
+        }
+        return new Pop3SyncResult(added, vanished, deleted, failed, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,54 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes found and applied by a {@link Pop3Sync} run.
+ */
+public class Pop3SyncResult {
+    private final List<String> added;
+    private final List<String> vanished;
+    private final List<String> deleted;
+    private final List<String> failed;
+    private final long elapsedNanos;
+
+    public Pop3SyncResult(List<String> added, List<String> vanished, List<String> deleted, List<String> failed,
+                          long elapsedNanos) {
+        this.added = Collections.unmodifiableList(added);
+        this.vanished = Collections.unmodifiableList(vanished);
+        this.deleted = Collections.unmodifiableList(deleted);
+        this.failed = Collections.unmodifiableList(failed);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    // Unique IDs of the messages downloaded and stored by this run
+    public List<String> getAdded() {
+        return added;
+    }
+
+    // Unique IDs of retrieved messages the server no longer lists, including ones deleted by an earlier run
+    public List<String> getVanished() {
+        return vanished;
+    }
+
+    // Unique IDs of the messages marked with "DELE"; the server removes them when the session ends with QUIT
+    public List<String> getDeleted() {
+        return deleted;
+    }
+
+    // Unique IDs of new messages that could not be fetched or parsed; the next run tries them again
+    public List<String> getFailed() {
+        return failed;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d added, %d vanished, %d deleted, %d failed in %.2f s",
+                added.size(), vanished.size(), deleted.size(), failed.size(), elapsedNanos / 1e9);
+    }
+}
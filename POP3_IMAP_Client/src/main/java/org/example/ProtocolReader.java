@@ -0,0 +1,384 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads POP3 and SMTP responses as raw bytes from a socket stream.
+ *
+ * Status lines are decoded one at a time. Multi-line responses are scanned once: lines
+ * are copied from the read buffer into a {@link GrowableBuffer} in bulk, a leading dot
+ * is removed from dot-stuffed lines and the terminating "." line is recognized whether
+ * lines end in CRLF or a bare LF. The bytes are kept exactly as the server sent them,
+ * line endings included, so 8-bit content in any charset reaches the parser unchanged.
+ *
+ * A response can also be read a piece at a time, through {@link #readMultilineLine} or
+ * {@link #openMultiline}, and a message larger than a given limit is spilled to a
+ * temporary file instead of the heap; see {@link #readMessage(long, Path)}.
+ */
+public class ProtocolReader implements Closeable {
+    // Collects multi-line responses; one per thread, since a client is used by one thread at a time
+    private static final ThreadLocal<GrowableBuffer> BUFFERS = ThreadLocal.withInitial(() -> new GrowableBuffer(64 * 1024));
+    // A buffer grown beyond this is handed over with its message instead of being kept
+    private static final int MAX_POOLED = 4 * 1024 * 1024;
+
+    private final InputStream in;
+    // The read buffer, from the heap pool until the reader is closed
+    private ByteBuffer pooled;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    // Holds a status line that spans two reads
+    private final GrowableBuffer line = new GrowableBuffer(256);
+    // Whether the next byte of the multi-line response being read starts a line
+    private boolean atLineStart;
+
+    public ProtocolReader(InputStream in) {
+        this(in, 8192);
+    }
+
+    public ProtocolReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.pooled = BufferPool.getHeap().acquire(bufferSize);
+        this.buffer = pooled.array();
+    }
+
+    /**
+     * Reads one line and decodes it as UTF-8, without its line ending.
+     *
+     * @return the line, or null if the stream ended before any byte of it
+     * @throws IOException if reading fails
+     */
+    public String readLine() throws IOException {
+        line.clear();
+        while (true) {
+            if (position == limit && fill() < 0) {
+                return line.size() == 0 ? null : decodeLine(line.asByteBuffer().array(), 0, line.size());
+            }
+            int lf = indexOf('\n', position, limit);
+            if (lf >= 0) {
+                String result;
+                if (line.size() == 0) {
+                    result = decodeLine(buffer, position, lf - position); // the common case: no copy
+                } else {
+                    line.append(buffer, position, lf - position);
+                    result = decodeLine(line.asByteBuffer().array(), 0, line.size());
+                }
+                position = lf + 1;
+                return result;
+            }
+            line.append(buffer, position, limit - position);
+            position = limit;
+        }
+    }
+
+    private static String decodeLine(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the lines of a multi-line response up to the terminating "." line and
+     * appends them, dot-unstuffed and with their line endings, to the given buffer.
+     *
+     * @param out the buffer to append to
+     * @return the number of bytes appended
+     * @throws EOFException if the stream ends before the terminating line
+     * @throws IOException  if reading fails
+     */
+    public int readMultiline(GrowableBuffer out) throws IOException {
+        int start = out.size();
+        atLineStart = true;
+        readLines(out, Integer.MAX_VALUE);
+        return out.size() - start;
+    }
+
+    /**
+     * Reads the next line of a multi-line response, so that a long listing can be
+     * processed one line at a time. The first call after the status line starts the
+     * response.
+     *
+     * @param out the buffer to append the dot-unstuffed line to, without its line ending
+     * @return false once the terminating "." line has been read, with nothing appended
+     * @throws EOFException if the stream ends before the terminating line
+     * @throws IOException  if reading fails
+     */
+    public boolean readMultilineLine(GrowableBuffer out) throws IOException {
+        int start = out.size();
+        atLineStart = true;
+        if (readLines(out, start + 1, true)) {
+            return false;
+        }
+        int end = out.size();
+        while (end > start && (out.get(end - 1) == '\n' || out.get(end - 1) == '\r')) {
+            end--;
+        }
+        out.truncate(end);
+        return true;
+    }
+
+    // Append the response until its terminator (true) or until out holds at least stopAt bytes (false)
+    private boolean readLines(GrowableBuffer out, int stopAt) throws IOException {
+        return readLines(out, stopAt, false);
+    }
+
+    // As above; with oneLine, stop at the end of a line instead of after stopAt bytes
+    private boolean readLines(GrowableBuffer out, int stopAt, boolean oneLine) throws IOException {
+        while (oneLine ? !atLineStart || out.size() < stopAt : out.size() < stopAt) {
+            if (position == limit && fill() < 0) {
+                throw new EOFException("Connection closed before the end of the response");
+            }
+            if (atLineStart) {
+                atLineStart = false;
+                if (buffer[position] == '.') {
+                    if (isTerminator()) {
+                        return true;
+                    }
+                    position++; // a dot-stuffed line; the dot is not part of the content
+                    if (position == limit) {
+                        continue;
+                    }
+                }
+            }
+            int lf = indexOf('\n', position, limit);
+            int end = lf < 0 ? limit : lf + 1;
+            out.append(buffer, position, end - position);
+            position = end;
+            atLineStart = lf >= 0;
+        }
+        return false;
+    }
+
+    // With a '.' at the position: consume and return true if it is the line ".", CRLF or LF
+    private boolean isTerminator() throws IOException {
+        if (!request(2)) {
+            throw new EOFException("Connection closed before the end of the response");
+        }
+        if (buffer[position + 1] == '\n') {
+            position += 2;
+            return true;
+        }
+        if (buffer[position + 1] == '\r' && request(3) && buffer[position + 2] == '\n') {
+            position += 3;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a multi-line response such as the content of a "RETR" as bytes.
+     *
+     * The response is collected in this thread's buffer and then copied out at its exact
+     * size; a response too large to keep the buffer for takes the buffer with it.
+     *
+     * @return the dot-unstuffed content, as sent by the server
+     * @throws IOException if reading fails or the stream ends early
+     */
+    public ByteBuffer readMessage() throws IOException {
+        return readMessage(Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Reads a multi-line response such as the content of a "RETR", keeping at most
+     * {@code maxBuffered} bytes of it on the heap.
+     *
+     * A larger response is written to a temporary file as it arrives, and returned
+     * mapped from that file. The file is deleted once the mapping exists, so it takes
+     * disk space only until the returned buffer is garbage collected.
+     *
+     * @param maxBuffered the most bytes to collect on the heap
+     * @param spillDirectory where to create the temporary file, or null for the default
+     * @return the dot-unstuffed content, as sent by the server
+     * @throws IOException if reading fails, the stream ends early, the temporary file
+     *                     cannot be written, or the response is larger than 2 GB
+     */
+    public ByteBuffer readMessage(long maxBuffered, Path spillDirectory) throws IOException {
+        GrowableBuffer collected = BUFFERS.get();
+        collected.clear();
+        atLineStart = true;
+        if (readLines(collected, (int) Math.min(maxBuffered, Integer.MAX_VALUE - 8))) {
+            if (collected.capacity() > MAX_POOLED) {
+                BUFFERS.remove();
+                return collected.asByteBuffer();
+            }
+            return ByteBuffer.wrap(collected.toByteArray());
+        }
+
+        Path file = spillDirectory == null ? Files.createTempFile("mail", ".eml")
+                : Files.createTempFile(spillDirectory, "mail", ".eml");
+        try (FileChannel spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+            boolean done = false;
+            while (true) {
+                ByteBuffer chunk = collected.asByteBuffer();
+                while (chunk.hasRemaining()) {
+                    spill.write(chunk);
+                }
+                collected.clear();
+                if (done) {
+                    break;
+                }
+                // Keep what is on the heap to one read buffer or so from here on
+                done = readLines(collected, buffer.length);
+            }
+            if (spill.size() > Integer.MAX_VALUE) {
+                throw new IOException("Message larger than 2 GB");
+            }
+            return spill.map(FileChannel.MapMode.READ_ONLY, 0, spill.size());
+        } finally {
+            if (collected.capacity() > MAX_POOLED) {
+                BUFFERS.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the rest of a multi-line response as a stream, dot-unstuffed, holding no
+     * more than one read buffer of it in memory at a time.
+     *
+     * The stream ends at the terminating "." line. Nothing else may be read from this
+     * reader until it has; closing the stream early skips the rest of the response.
+     *
+     * @param whenDone run once the terminating line has been read, or null
+     */
+    public InputStream openMultiline(Runnable whenDone) {
+        atLineStart = true;
+        return new InputStream() {
+            private final GrowableBuffer chunk = new GrowableBuffer(buffer.length);
+            private int offset;
+            private boolean done;
+
+            @Override
+            public int read() throws IOException {
+                return available() > 0 || more() ? chunk.get(offset++) & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (available() == 0 && !more()) {
+                    return -1;
+                }
+                int count = Math.min(len, available());
+                System.arraycopy(chunk.array(), offset, bytes, off, count);
+                offset += count;
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return chunk.size() - offset;
+            }
+
+            // Read the next piece of the response; false at its end
+            private boolean more() throws IOException {
+                while (!done && available() == 0) {
+                    chunk.clear();
+                    offset = 0;
+                    finish(readLines(chunk, 1));
+                }
+                return available() > 0;
+            }
+
+            private void finish(boolean terminated) {
+                if (terminated) {
+                    done = true;
+                    if (whenDone != null) {
+                        whenDone.run();
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                while (!done) {
+                    chunk.clear();
+                    finish(readLines(chunk, buffer.length));
+                }
+                chunk.clear();
+                offset = 0;
+            }
+        };
+    }
+
+    /**
+     * Reads a multi-line text response such as "LIST", "UIDL" or "CAPA" and decodes it
+     * as UTF-8, with every line ending in "\n".
+     *
+     * @return the lines of the response
+     * @throws IOException if reading fails or the stream ends early
+     */
+    public String readMultilineText() throws IOException {
+        GrowableBuffer collected = BUFFERS.get();
+        collected.clear();
+        readMultiline(collected);
+        String text = new String(collected.asByteBuffer().array(), 0, collected.size(), StandardCharsets.UTF_8);
+        if (collected.capacity() > MAX_POOLED) {
+            BUFFERS.remove();
+        }
+        return text.indexOf('\r') < 0 ? text : text.replace("\r\n", "\n");
+    }
+
+    private int indexOf(int b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Read more input after the unread bytes; returns the number read, or -1 at the end
+    private int fill() throws IOException {
+        if (position == limit) {
+            position = 0;
+            limit = 0;
+        } else if (limit == buffer.length) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read > 0) {
+            limit += read;
+        }
+        return read;
+    }
+
+    // Make at least n unread bytes available; false if the stream ends first
+    private boolean request(int n) throws IOException {
+        while (limit - position < n) {
+            if (fill() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Give the read buffer back without closing the stream, when the stream is replaced as for STARTTLS
+    void discard() {
+        BufferPool.getHeap().release(pooled);
+        pooled = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            discard();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * Decodes quoted-printable (RFC 2045, section 6.7) a block at a time.
+ *
+ * "=XX" escapes become the byte they stand for, soft line breaks ("=" at the end of a
+ * line) are removed, and whitespace at the end of a line, which the encoding does not
+ * allow and transports may have added, is dropped. Hard line breaks are kept as they
+ * are, CRLF or LF. Malformed escapes are kept literally rather than rejected, as the
+ * RFC recommends. Runs of plain bytes, including single spaces between words, are
+ * copied in bulk, and complete escapes inside a block are decoded without going
+ * through the state kept between blocks.
+ */
+public final class QuotedPrintableDecoder extends TransferDecoder {
+    // Whitespace held back to see whether it ends a line; longer runs are kept as they are
+    private static final int MAX_PENDING_WHITESPACE = 256;
+
+    // Where in an escape the previous block ended
+    private static final int TEXT = 0;
+    private static final int EQUALS = 1;
+    private static final int FIRST_DIGIT = 2;
+    private static final int SOFT_BREAK = 3;
+    private static final int SOFT_BREAK_CR = 4;
+
+    // Bytes that end a run of plain text: '=', whitespace and line breaks
+    private static final boolean[] SPECIAL = new boolean[256];
+    // Value of each hexadecimal digit, either case, -1 for every other byte
+    private static final byte[] DIGITS = new byte[256];
+
+    static {
+        SPECIAL['='] = SPECIAL[' '] = SPECIAL['\t'] = SPECIAL['\r'] = SPECIAL['\n'] = true;
+        Arrays.fill(DIGITS, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            DIGITS["0123456789ABCDEF".charAt(i)] = (byte) i;
+            DIGITS["0123456789abcdef".charAt(i)] = (byte) i;
+        }
+    }
+
+    private int state = TEXT;
+    private byte firstDigit;
+    private final byte[] whitespace = new byte[MAX_PENDING_WHITESPACE];
+    private int pendingWhitespace;
+
+    @Override
+    public int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int i = offset;
+        int end = offset + length;
+        int out = dstOffset;
+        while (i < end) {
+            byte b = src[i];
+            switch (state) {
+                case TEXT:
+                    if (pendingWhitespace == 0 && !isSpecial(b)) {
+                        // Copy the run of plain bytes up to the next one that needs a look;
+                        // whitespace followed by plain text cannot end a line and stays in the run
+                        int runEnd = i + 1;
+                        while (runEnd < end && (!isSpecial(src[runEnd])
+                                || (src[runEnd] == ' ' || src[runEnd] == '\t') && runEnd + 1 < end && !isSpecial(src[runEnd + 1]))) {
+                            runEnd++;
+                        }
+                        System.arraycopy(src, i, dst, out, runEnd - i);
+                        out += runEnd - i;
+                        i = runEnd;
+                        continue;
+                    }
+                    if (b == '=' && pendingWhitespace == 0 && i + 2 < end) {
+                        int high = DIGITS[src[i + 1] & 0xff];
+                        int low = DIGITS[src[i + 2] & 0xff];
+                        if ((high | low) >= 0) {
+                            // A whole escape within the block
+                            dst[out++] = (byte) (high << 4 | low);
+                            i += 3;
+                            continue;
+                        }
+                    }
+                    if (b == ' ' || b == '\t') {
+                        if (pendingWhitespace == MAX_PENDING_WHITESPACE) {
+                            out = writeWhitespace(dst, out);
+                        }
+                        whitespace[pendingWhitespace++] = b;
+                    } else if (b == '\r' || b == '\n') {
+                        pendingWhitespace = 0; // trailing whitespace is not content
+                        dst[out++] = b;
+                    } else {
+                        out = writeWhitespace(dst, out);
+                        if (b == '=') {
+                            state = EQUALS;
+                        } else {
+                            dst[out++] = b;
+                        }
+                    }
+                    i++;
+                    break;
+                case EQUALS:
+                    if (digit(b) >= 0) {
+                        firstDigit = b;
+                        state = FIRST_DIGIT;
+                    } else if (b == '\r') {
+                        state = SOFT_BREAK_CR;
+                    } else if (b == '\n') {
+                        state = TEXT;
+                    } else if (b == ' ' || b == '\t') {
+                        state = SOFT_BREAK; // "=" followed by trailing whitespace, or by a space in text
+                        whitespace[pendingWhitespace++] = b;
+                    } else {
+                        dst[out++] = '=';
+                        state = TEXT;
+                        continue; // the byte is text
+                    }
+                    i++;
+                    break;
+                case FIRST_DIGIT:
+                    state = TEXT;
+                    if (digit(b) >= 0) {
+                        dst[out++] = (byte) (digit(firstDigit) << 4 | digit(b));
+                        i++;
+                    } else {
+                        dst[out++] = '=';
+                        dst[out++] = firstDigit;
+                    }
+                    break;
+                case SOFT_BREAK:
+                    if ((b == ' ' || b == '\t') && pendingWhitespace < MAX_PENDING_WHITESPACE) {
+                        whitespace[pendingWhitespace++] = b;
+                        i++;
+                    } else if (b == '\r' || b == '\n') {
+                        pendingWhitespace = 0;
+                        state = b == '\r' ? SOFT_BREAK_CR : TEXT;
+                        i++;
+                    } else {
+                        // Not a line end after all: the "=" and the whitespace are text
+                        dst[out++] = '=';
+                        out = writeWhitespace(dst, out);
+                        state = TEXT;
+                    }
+                    break;
+                default: // SOFT_BREAK_CR
+                    state = TEXT;
+                    if (b == '\n') {
+                        i++;
+                    }
+                    break;
+            }
+        }
+        return out - dstOffset;
+    }
+
+    @Override
+    public int finish(byte[] dst, int dstOffset) {
+        int out = dstOffset;
+        // A "=" that ends the content is a soft line break, as at the end of any line
+        if (state == FIRST_DIGIT) {
+            dst[out++] = '=';
+            dst[out++] = firstDigit;
+        }
+        // Whitespace at the very end is trailing too
+        pendingWhitespace = 0;
+        state = TEXT;
+        return out - dstOffset;
+    }
+
+    private int writeWhitespace(byte[] dst, int out) {
+        System.arraycopy(whitespace, 0, dst, out, pendingWhitespace);
+        out += pendingWhitespace;
+        pendingWhitespace = 0;
+        return out;
+    }
+
+    private static boolean isSpecial(byte b) {
+        return SPECIAL[b & 0xff];
+    }
+
+    // Value of a hexadecimal digit, either case, or -1
+    private static int digit(byte b) {
+        return DIGITS[b & 0xff];
+    }
+
+    @Override
+    public int maxDecodedSize(int length) {
+        // Held whitespace and a broken escape can come out on top of the input
+        return length + MAX_PENDING_WHITESPACE + 2;
+    }
+}
@@ -0,0 +1,448 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A full-text index over downloaded mail, built incrementally as messages arrive.
+ *
+ * Every message gets the next document number, and each word of its subject, sender,
+ * recipients, text body and text attachments is added to the posting list of that word
+ * in that {@link Field}. Because document numbers only grow, a posting list is stored
+ * as the gaps between its document numbers in a variable-length byte encoding, which
+ * usually takes one byte per entry.
+ *
+ * Queries are words separated by spaces, all of which must match. {@code OR} separates
+ * alternatives, {@code -word} or {@code NOT word} excludes, and a {@code field:} prefix
+ * ({@code subject:}, {@code from:}, {@code to:} or {@code body:}) restricts a word to one
+ * field, e.g. {@code from:daniel report OR invoice -draft}.
+ *
+ * The index is thread-safe and is saved to and loaded from a single file.
+ */
+public class SearchIndex {
+
+    /** The parts of a message that are indexed separately. */
+    public enum Field { SUBJECT, FROM, TO, BODY }
+
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int VERSION = 1;
+    // Longer words are not indexed; they are almost always encoded data
+    private static final int MAX_TERM_LENGTH = 64;
+    // How much of a text attachment is indexed
+    private static final int MAX_ATTACHMENT_TEXT = 1024 * 1024;
+    private static final int[] NO_DOCUMENTS = new int[0];
+
+    // Document numbers of one term: delta-encoded varints in a growable array
+    private static final class PostingList {
+        byte[] data = new byte[4];
+        int length;
+        int count;
+        int last = -1;
+
+        void add(int document) {
+            if (document == last) {
+                return; // the term occurs again in the same document
+            }
+            int gap = document - last;
+            last = document;
+            count++;
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+            }
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+        }
+
+        int[] decode() {
+            int[] documents = new int[count];
+            int document = -1;
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                document += gap;
+                documents[i] = document;
+            }
+            return documents;
+        }
+    }
+
+    private final Path file;
+    private final Map<Field, Map<String, PostingList>> postings = new EnumMap<>(Field.class);
+    // Unique ID of every document, by document number
+    private final List<String> uids = new ArrayList<>();
+    private final Map<String, Integer> documents = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+
+    /**
+     * Opens the index stored in the given file, loading it if it exists.
+     *
+     * @param file the index file; its directory is created on the first save
+     * @throws IOException if the file exists but cannot be read
+     */
+    public SearchIndex(Path file) throws IOException {
+        this.file = file;
+        for (Field field : Field.values()) {
+            postings.put(field, new HashMap<>());
+        }
+        if (file != null && Files.exists(file)) {
+            load();
+        }
+    }
+
+    /**
+     * Adds a message to the index. A message that is already indexed is left alone.
+     *
+     * @param uid  the unique ID of the message, returned by {@link #search(String)}
+     * @param mail the message
+     * @return true if the message was added
+     */
+    public synchronized boolean add(String uid, Mail mail) {
+        if (documents.containsKey(uid)) {
+            return false;
+        }
+        int document = uids.size();
+        uids.add(uid);
+        documents.put(uid, document);
+
+        index(Field.SUBJECT, mail.getSubject(), document);
+        index(Field.FROM, mail.getFrom(), document);
+        index(Field.TO, mail.getTo(), document);
+        index(Field.BODY, mail.getTextBody(), document);
+        for (Attachment attachment : mail.getAttachments().values()) {
+            if (attachment.getContentType().startsWith("text/")) {
+                try (InputStream in = attachment.openStream()) {
+                    index(Field.BODY, new String(in.readNBytes(MAX_ATTACHMENT_TEXT), attachment.getCharset()), document);
+                } catch (IOException e) {
+                    // A damaged attachment is simply not searchable
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds every message of the store that is not indexed yet.
+     *
+     * @return the number of messages added
+     */
+    public int addAll(MessageStore store) {
+        int added = 0;
+        for (String uid : store.uids()) {
+            if (!contains(uid)) {
+                Mail mail = store.load(uid);
+                if (mail != null && add(uid, mail)) {
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Removes a message from the results of later searches.
+     *
+     * @return true if the message was indexed
+     */
+    public synchronized boolean remove(String uid) {
+        Integer document = documents.remove(uid);
+        if (document == null) {
+            return false;
+        }
+        deleted.set(document);
+        return true;
+    }
+
+    public synchronized boolean contains(String uid) {
+        return documents.containsKey(uid);
+    }
+
+    // Number of searchable messages
+    public synchronized int size() {
+        return documents.size();
+    }
+
+    private void index(Field field, String text, int document) {
+        if (text == null) {
+            return;
+        }
+        Map<String, PostingList> terms = postings.get(field);
+        for (String term : tokenize(text)) {
+            terms.computeIfAbsent(term, key -> new PostingList()).add(document);
+        }
+    }
+
+    // Split text into lower-cased runs of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean word = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Finds the messages matching a query.
+     *
+     * @param query words, optionally with {@code field:} prefixes, {@code OR}, {@code NOT} and {@code -}
+     * @return the unique IDs of the matching messages, in the order they were indexed
+     */
+    public synchronized List<String> search(String query) {
+        int[] result = NO_DOCUMENTS;
+        for (String clause : query.trim().split("\\s+OR\\s+")) {
+            result = union(result, evaluate(clause));
+        }
+
+        List<String> matches = new ArrayList<>(result.length);
+        for (int document : result) {
+            if (!deleted.get(document)) {
+                matches.add(uids.get(document));
+            }
+        }
+        return matches;
+    }
+
+    // Documents matching every positive word of a clause and none of its negative ones
+    private int[] evaluate(String clause) {
+        int[] included = null;
+        int[] excluded = null;
+        boolean negate = false;
+        for (String word : clause.trim().split("\\s+")) {
+            if (word.isEmpty() || word.equals("AND")) {
+                continue;
+            }
+            if (word.equals("NOT")) {
+                negate = true;
+                continue;
+            }
+            if (word.startsWith("-") && word.length() > 1) {
+                negate = true;
+                word = word.substring(1);
+            }
+
+            Field field = null;
+            int colon = word.indexOf(':');
+            if (colon > 0) {
+                try {
+                    field = Field.valueOf(word.substring(0, colon).toUpperCase(Locale.ROOT));
+                    word = word.substring(colon + 1);
+                } catch (IllegalArgumentException e) {
+                    // not a field name, search the word as it is
+                }
+            }
+
+            // "daniel@example.com" must match all of its parts
+            int[] matching = null;
+            for (String term : tokenize(word)) {
+                int[] documents = lookup(field, term);
+                matching = matching == null ? documents : intersect(matching, documents);
+            }
+            if (matching == null) {
+                negate = false;
+                continue;
+            }
+            if (negate) {
+                excluded = excluded == null ? matching : union(excluded, matching);
+            } else {
+                included = included == null ? matching : intersect(included, matching);
+            }
+            negate = false;
+        }
+
+        if (included == null) {
+            if (excluded == null) {
+                return NO_DOCUMENTS; // nothing searchable in this clause
+            }
+            // Only exclusions: start from every document
+            included = new int[uids.size()];
+            for (int i = 0; i < included.length; i++) {
+                included[i] = i;
+            }
+        }
+        return excluded == null ? included : subtract(included, excluded);
+    }
+
+    private int[] lookup(Field field, String term) {
+        if (field != null) {
+            PostingList list = postings.get(field).get(term);
+            return list == null ? NO_DOCUMENTS : list.decode();
+        }
+        int[] documents = NO_DOCUMENTS;
+        for (Map<String, PostingList> terms : postings.values()) {
+            PostingList list = terms.get(term);
+            if (list != null) {
+                documents = union(documents, list.decode());
+            }
+        }
+        return documents;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static int[] subtract(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        int[] result = new int[a.length];
+        int j = 0, n = 0;
+        for (int document : a) {
+            while (j < b.length && b[j] < document) {
+                j++;
+            }
+            if (j == b.length || b[j] != document) {
+                result[n++] = document;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Writes the index to its file, replacing the previous one atomically.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(uids.size());
+                for (int document = 0; document < uids.size(); document++) {
+                    out.writeUTF(uids.get(document));
+                    out.writeBoolean(deleted.get(document));
+                }
+                for (Field field : Field.values()) {
+                    Map<String, PostingList> terms = postings.get(field);
+                    out.writeInt(terms.size());
+                    for (Map.Entry<String, PostingList> entry : terms.entrySet()) {
+                        PostingList list = entry.getValue();
+                        out.writeUTF(entry.getKey());
+                        out.writeInt(list.count);
+                        out.writeInt(list.last);
+                        out.writeInt(list.length);
+                        out.write(list.data, 0, list.length);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Read the file written by save(); a damaged file leaves the index empty
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int document = 0; document < count; document++) {
+                String uid = in.readUTF();
+                uids.add(uid);
+                if (in.readBoolean()) {
+                    deleted.set(document);
+                } else {
+                    documents.put(uid, document);
+                }
+            }
+            for (Field field : Field.values()) {
+                Map<String, PostingList> terms = postings.get(field);
+                int termCount = in.readInt();
+                for (int i = 0; i < termCount; i++) {
+                    String term = in.readUTF();
+                    PostingList list = new PostingList();
+                    list.count = in.readInt();
+                    list.last = in.readInt();
+                    list.length = in.readInt();
+                    list.data = new byte[Math.max(4, list.length)];
+                    in.readFully(list.data, 0, list.length);
+                    terms.put(term, list);
+                }
+            }
+        } catch (EOFException e) {
+            uids.clear();
+            documents.clear();
+            deleted.clear();
+            for (Map<String, PostingList> terms : postings.values()) {
+                terms.clear();
+            }
+        }
+    }
+}
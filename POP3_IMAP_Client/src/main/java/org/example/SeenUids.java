@@ -0,0 +1,221 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The POP3 unique IDs of every message already retrieved from one account.
+ *
+ * The set lives in memory and is persisted as a journal: marking a UID as seen or
+ * forgetting it appends a small record to the file, so recording a message costs one
+ * write however large the set is. {@link #sync()} forces the records to disk. On
+ * opening, the journal is replayed; a record torn by a crash is dropped, which only
+ * means that message is fetched once more. The journal is rewritten from the set when
+ * it has grown much larger than the set itself.
+ *
+ * Record layout: {@code [op: 1 byte][uid length: 2 bytes][uid: UTF-8]}.
+ */
+public class SeenUids implements Closeable {
+    private static final int MAGIC = 0x5345454e; // "SEEN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    // UIDL allows at most 70 characters; a longer record means the file is damaged
+    private static final int MAX_UID_BYTES = 1024;
+
+    private final Path file;
+    private final Set<String> uids = new HashSet<>();
+    private FileChannel journal;
+    private int records;
+    private final ByteBuffer record = ByteBuffer.allocate(3 + MAX_UID_BYTES);
+
+    /**
+     * Opens the set stored in the given file, creating it if it does not exist.
+     *
+     * @param file the journal file; its directory is created if missing
+     * @throws IOException if the file cannot be read or created
+     */
+    public SeenUids(Path file) throws IOException {
+        this.file = file;
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        if (!replay()) {
+            rewrite(); // new, damaged or of another version: start from what could be read
+        }
+        journal = FileChannel.open(file, StandardOpenOption.WRITE);
+        journal.position(journal.size());
+    }
+
+    // Load every complete record; false if the file has to be rewritten
+    private boolean replay() throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.getInt() != VERSION) {
+            return false;
+        }
+        while (data.remaining() >= 3) {
+            int start = data.position();
+            byte op = data.get();
+            int length = data.getShort() & 0xffff;
+            if ((op != ADD && op != REMOVE) || length > MAX_UID_BYTES || data.remaining() < length) {
+                // A torn tail; cut it off so new records follow the last complete one
+                truncate(start);
+                return true;
+            }
+            String uid = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+            data.position(data.position() + length);
+            if (op == ADD) {
+                uids.add(uid);
+            } else {
+                uids.remove(uid);
+            }
+            records++;
+        }
+        if (data.hasRemaining()) {
+            truncate(data.position());
+        }
+        return true;
+    }
+
+    private void truncate(long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    public boolean contains(String uid) {
+        return uids.contains(uid);
+    }
+
+    public int size() {
+        return uids.size();
+    }
+
+    // Every UID in the set, in no particular order
+    public Set<String> uids() {
+        return Collections.unmodifiableSet(uids);
+    }
+
+    /**
+     * Records that a message has been retrieved. The record reaches the disk on the next
+     * {@link #sync()} at the latest.
+     */
+    public void add(String uid) throws IOException {
+        if (uids.add(uid)) {
+            append(ADD, uid);
+        }
+    }
+
+    /**
+     * Forgets a message, typically because it is no longer on the server.
+     */
+    public void remove(String uid) throws IOException {
+        if (uids.remove(uid)) {
+            append(REMOVE, uid);
+        }
+    }
+
+    /**
+     * Forgets every message that is not in the given set.
+     *
+     * @param keep the UIDs to keep, e.g. the ones the server still lists
+     * @return the UIDs that were forgotten
+     */
+    public Set<String> retainAll(Collection<String> keep) throws IOException {
+        Set<String> kept = keep instanceof Set ? (Set<String>) keep : new HashSet<>(keep);
+        Set<String> removed = new HashSet<>();
+        for (String uid : uids) {
+            if (!kept.contains(uid)) {
+                removed.add(uid);
+            }
+        }
+        for (String uid : removed) {
+            remove(uid);
+        }
+        return removed;
+    }
+
+    private void append(byte op, String uid) throws IOException {
+        byte[] bytes = uid.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_UID_BYTES) {
+            throw new IOException("Unique ID too long: " + uid);
+        }
+        record.clear();
+        record.put(op).putShort((short) bytes.length).put(bytes).flip();
+        while (record.hasRemaining()) {
+            journal.write(record);
+        }
+        records++;
+        // Removals and re-additions pile up; keep the journal within a few times the set
+        if (records > 1024 && records > 4 * uids.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Forces every record written so far to the disk.
+     */
+    public void sync() throws IOException {
+        journal.force(false);
+    }
+
+    /**
+     * Rewrites the journal so it holds one record per UID in the set.
+     */
+    public void compact() throws IOException {
+        journal.close();
+        rewrite();
+        journal = FileChannel.open(file, StandardOpenOption.WRITE);
+        journal.position(journal.size());
+    }
+
+    // Write the set to a temporary file and move it over the journal
+    private void rewrite() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            for (String uid : uids) {
+                byte[] bytes = uid.getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < 3 + bytes.length) {
+                    writeFully(out, buffer);
+                }
+                buffer.put(ADD).putShort((short) bytes.length).put(bytes);
+            }
+            writeFully(out, buffer);
+            out.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = uids.size();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.force(false);
+        journal.close();
+    }
+}
@@ -0,0 +1,66 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the SMTP server said about one message of a batch.
+ */
+public class SmtpMessageResult {
+    private final OutgoingMail mail;
+    private final boolean accepted;
+    private final String reply;
+    private final Map<String, String> recipientReplies;
+
+    public SmtpMessageResult(OutgoingMail mail, boolean accepted, String reply, Map<String, String> recipientReplies) {
+        this.mail = mail;
+        this.accepted = accepted;
+        this.reply = reply;
+        this.recipientReplies = Collections.unmodifiableMap(recipientReplies);
+    }
+
+    public OutgoingMail getMail() {
+        return mail;
+    }
+
+    // True if the server accepted the message for delivery to at least one recipient
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    // The reply that decided the outcome: the final reply after DATA, or the first rejection
+    public String getReply() {
+        return reply;
+    }
+
+    // The reply to each RCPT TO command, keyed by recipient address
+    public Map<String, String> getRecipientReplies() {
+        return recipientReplies;
+    }
+
+    // Recipients the server agreed to deliver to (reply 250 or 251)
+    public List<String> getAcceptedRecipients() {
+        List<String> recipients = new ArrayList<>();
+        for (Map.Entry<String, String> entry : recipientReplies.entrySet()) {
+            if (entry.getValue().startsWith("25")) {
+                recipients.add(entry.getKey());
+            }
+        }
+        return recipients;
+    }
+
+    // Recipients the server refused
+    public List<String> getRejectedRecipients() {
+        List<String> recipients = new ArrayList<>(recipientReplies.keySet());
+        recipients.removeAll(getAcceptedRecipients());
+        return recipients;
+    }
+
+    @Override
+    public String toString() {
+        return (accepted ? "accepted" : "rejected") + " \"" + mail.getSubject() + "\": " + reply
+                + (getRejectedRecipients().isEmpty() ? "" : ", refused recipients " + getRejectedRecipients());
+    }
+}
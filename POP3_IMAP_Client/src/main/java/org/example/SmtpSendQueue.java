@@ -0,0 +1,923 @@
+package org.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A durable outbound queue that sends messages over pooled SMTP sessions in the
+ * background.
+ *
+ * {@link #submit(OutgoingMail)} returns at once with a future of the result. The message
+ * is split into one delivery per recipient domain. A spool thread writes the deliveries
+ * to the spool file in batches, with one disk flush per batch, and hands them to worker
+ * threads that each send on a session borrowed from a {@link MailClientPool}:
+ * <ul>
+ *   <li>a 4xx reply or a broken connection is retried after an exponential backoff with
+ *       jitter, up to {@link #setMaxAttempts(int) maxAttempts} times; recipients refused
+ *       with a 4xx reply while others were accepted are retried on their own;</li>
+ *   <li>a 5xx reply fails the delivery at once;</li>
+ *   <li>every domain has a rate limit and a cap on concurrent deliveries, so one busy
+ *       domain neither floods its server nor takes every worker.</li>
+ * </ul>
+ * A delivery leaves the spool when it was accepted or failed for good. Deliveries still
+ * in the spool when the queue is started, left by {@link #close()} or a crash, are sent
+ * again. Their removal is recorded after the server accepted them, so a crash in between
+ * sends a message twice rather than never.
+ *
+ * Attachments are copied on submit into a directory next to the spool file, named like
+ * it with ".attachments" added, and the spool refers to the copies. A message can then
+ * be sent after its original files were moved or deleted, also after a restart. The
+ * copies are deleted once every delivery of the message left the spool; copies that no
+ * spooled delivery refers to, left by a crash, are deleted on {@link #start()}.
+ *
+ * Spool record: {@code [op: 1 byte][id: 8 bytes][payload length: 4 bytes][payload][CRC32: 4 bytes]}.
+ */
+public class SmtpSendQueue implements Closeable {
+    private static final byte ENQUEUE = 1;
+    private static final byte DONE = 2;
+    private static final int RECORD_HEADER_SIZE = 13;
+
+    // How fast, and how many at once, messages may go to one domain
+    private static final class Limit {
+        final double perSecond;
+        final int maxConcurrent;
+
+        Limit(double perSecond, int maxConcurrent) {
+            if (!(perSecond > 0) || maxConcurrent < 1) {
+                throw new IllegalArgumentException("The rate must be positive and the concurrency at least 1");
+            }
+            this.perSecond = perSecond;
+            this.maxConcurrent = maxConcurrent;
+        }
+    }
+
+    // One submitted message, complete when every domain had its delivery
+    private static final class Submission {
+        final OutgoingMail mail;
+        final CompletableFuture<SmtpMessageResult> future = new CompletableFuture<>();
+        final Map<String, String> recipientReplies = new LinkedHashMap<>();
+        int partsLeft;
+        boolean accepted;
+        String reply;
+
+        Submission(OutgoingMail mail, int parts) {
+            this.mail = mail;
+            this.partsLeft = parts;
+        }
+
+        synchronized void complete(Delivery delivery) {
+            recipientReplies.putAll(delivery.recipientReplies);
+            // The reply that explains a failure wins over one that reports success
+            if (reply == null || !delivery.accepted) {
+                reply = delivery.reply;
+            }
+            accepted |= delivery.accepted;
+            if (--partsLeft == 0) {
+                future.complete(new SmtpMessageResult(mail, accepted, reply, recipientReplies));
+            }
+        }
+    }
+
+    // The recipients of one message in one domain
+    private static final class Delivery {
+        final long id;
+        final String domain;
+        // Null for deliveries recovered from the spool, which nobody waits for
+        final Submission submission;
+        // The recipients still to be sent to
+        OutgoingMail mail;
+        final Map<String, String> recipientReplies = new LinkedHashMap<>();
+        boolean accepted;
+        String reply;
+        int attempts;
+        long notBefore;
+
+        Delivery(long id, String domain, OutgoingMail mail, Submission submission) {
+            this.id = id;
+            this.domain = domain;
+            this.mail = mail;
+            this.submission = submission;
+        }
+    }
+
+    // The deliveries waiting for one domain and what it is allowed right now
+    private final class Domain {
+        final String name;
+        final PriorityQueue<Delivery> waiting = new PriorityQueue<>(
+                Comparator.comparingLong((Delivery delivery) -> delivery.notBefore).thenComparingLong(delivery -> delivery.id));
+        int inFlight;
+        double tokens;
+        long refilledAt = System.nanoTime();
+
+        Domain(String name) {
+            this.name = name;
+            this.tokens = burst(limit(name));
+        }
+
+        // When the next token is available, refilling the bucket up to now first
+        long nextToken(long now, Limit limit) {
+            tokens = Math.min(burst(limit), tokens + (now - refilledAt) * limit.perSecond / 1e9);
+            refilledAt = now;
+            if (tokens >= 1) {
+                return now;
+            }
+            return now + (long) Math.ceil((1 - tokens) / limit.perSecond * 1e9);
+        }
+    }
+
+    // Work for the spool thread: a record to write, or a point every earlier record must reach first
+    private static final class SpoolOp {
+        final byte op;
+        final Delivery delivery;
+        final CompletableFuture<Void> flushed;
+
+        SpoolOp(byte op, Delivery delivery, CompletableFuture<Void> flushed) {
+            this.op = op;
+            this.delivery = delivery;
+            this.flushed = flushed;
+        }
+    }
+
+    private final Path spoolFile;
+    private final Path attachmentDirectory;
+    // Per message directory of copied attachments: the deliveries in the spool that still need it
+    private final Map<Path, Integer> attachmentUsers = new ConcurrentHashMap<>();
+    private final MailClientPool pool;
+    private final String server;
+    private final int port;
+
+    private int workers = 4;
+    private volatile int maxAttempts = 8;
+    private volatile long initialBackoffNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile long maxBackoffNanos = TimeUnit.MINUTES.toNanos(10);
+    private volatile Limit defaultLimit = new Limit(10, 2);
+    private final Map<String, Limit> domainLimits = new ConcurrentHashMap<>();
+
+    private final LinkedBlockingQueue<SpoolOp> spoolOps = new LinkedBlockingQueue<>();
+    // Encoded payload of every delivery still in the spool; only used by the spool thread
+    private final Map<Long, byte[]> spooled = new HashMap<>();
+    private FileChannel spool;
+    private long records;
+    private final AtomicLong nextId = new AtomicLong();
+
+    // Guards the domains and everything in them
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<String, Domain> domains = new HashMap<>();
+    private final List<Domain> rotation = new ArrayList<>();
+    private int cursor;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private Thread spooler;
+    private volatile boolean started;
+    private volatile boolean closed;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private int recovered;
+
+    /**
+     * @param spoolFile where queued deliveries are kept until sent; its directory is created if missing
+     * @param pool      lends the SMTP sessions
+     * @param server    the SMTP server every message is handed to
+     * @param port      its port
+     */
+    public SmtpSendQueue(Path spoolFile, MailClientPool pool, String server, int port) {
+        this.spoolFile = spoolFile;
+        this.attachmentDirectory = spoolFile.toAbsolutePath().resolveSibling(spoolFile.getFileName() + ".attachments");
+        this.pool = pool;
+        this.server = server;
+        this.port = port;
+    }
+
+    /**
+     * Sets the number of worker threads, and so of SMTP sessions used at most. Must be
+     * called before {@link #start()}.
+     *
+     * @return this queue
+     */
+    public SmtpSendQueue setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is required");
+        }
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * Sets how often a delivery is tried before it fails for good.
+     *
+     * @return this queue
+     */
+    public SmtpSendQueue setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is required");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Sets the wait before the first retry, which doubles with every further retry up to
+     * the given maximum.
+     *
+     * @return this queue
+     */
+    public SmtpSendQueue setBackoff(Duration initial, Duration max) {
+        this.initialBackoffNanos = initial.toNanos();
+        this.maxBackoffNanos = Math.max(initial.toNanos(), max.toNanos());
+        return this;
+    }
+
+    /**
+     * Sets the limits of every domain without limits of its own.
+     *
+     * @param perSecond     deliveries started per second, with bursts of up to as many
+     * @param maxConcurrent deliveries sent at the same time
+     * @return this queue
+     */
+    public SmtpSendQueue setDefaultLimit(double perSecond, int maxConcurrent) {
+        this.defaultLimit = new Limit(perSecond, maxConcurrent);
+        return this;
+    }
+
+    /**
+     * Sets the limits of one recipient domain.
+     *
+     * @see #setDefaultLimit(double, int)
+     * @return this queue
+     */
+    public SmtpSendQueue setDomainLimit(String domain, double perSecond, int maxConcurrent) {
+        domainLimits.put(domain.toLowerCase(), new Limit(perSecond, maxConcurrent));
+        return this;
+    }
+
+    private Limit limit(String domain) {
+        return domainLimits.getOrDefault(domain, defaultLimit);
+    }
+
+    private static double burst(Limit limit) {
+        return Math.max(1, limit.perSecond);
+    }
+
+    /**
+     * Loads the deliveries left in the spool and starts the spool and worker threads.
+     *
+     * @return this queue
+     * @throws IOException if the spool file cannot be read or created
+     */
+    public synchronized SmtpSendQueue start() throws IOException {
+        if (started) {
+            throw new IllegalStateException("Send queue already started");
+        }
+        if (spoolFile.getParent() != null) {
+            Files.createDirectories(spoolFile.getParent());
+        }
+        replay();
+        spool = FileChannel.open(spoolFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        spool.position(spool.size());
+        List<Delivery> deliveries = new ArrayList<>();
+        for (Map.Entry<Long, byte[]> entry : spooled.entrySet()) {
+            Delivery delivery = decode(entry.getKey(), entry.getValue());
+            Path copies = attachmentCopies(delivery.mail);
+            if (copies != null) {
+                attachmentUsers.merge(copies, 1, Integer::sum);
+            }
+            deliveries.add(delivery);
+        }
+        deleteUnusedCopies();
+        for (Delivery delivery : deliveries) {
+            outstanding.incrementAndGet();
+            recovered++;
+            schedule(delivery, System.nanoTime());
+        }
+
+        started = true;
+        spooler = new Thread(this::runSpool, "smtp-spool");
+        spooler.setDaemon(true);
+        spooler.start();
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::runWorker, "smtp-send-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+            threads.add(worker);
+        }
+        return this;
+    }
+
+    /**
+     * Queues a message for sending. Only waits for its attachments to be copied: the
+     * message is written to the spool and sent by the background threads.
+     *
+     * @return completes with the outcome for every recipient once each domain's delivery
+     *         was accepted or failed for good, or exceptionally if the queue is closed first
+     *         or an attachment cannot be copied
+     */
+    public CompletableFuture<SmtpMessageResult> submit(OutgoingMail mail) {
+        if (!started || closed) {
+            return CompletableFuture.failedFuture(new IOException("Send queue is not running"));
+        }
+        Map<String, List<String>> byDomain = new LinkedHashMap<>();
+        for (String recipient : mail.getRecipients()) {
+            byDomain.computeIfAbsent(domainOf(recipient), key -> new ArrayList<>()).add(recipient);
+        }
+        List<String> attachmentPaths;
+        try {
+            attachmentPaths = copyAttachments(mail, byDomain.size());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Submission submission = new Submission(mail, byDomain.size());
+        List<Delivery> deliveries = new ArrayList<>(byDomain.size());
+        for (Map.Entry<String, List<String>> entry : byDomain.entrySet()) {
+            OutgoingMail part = new OutgoingMail(mail.getFrom(), entry.getValue(),
+                    mail.getSubject(), mail.getBody(), attachmentPaths);
+            deliveries.add(new Delivery(nextId.incrementAndGet(), entry.getKey(), part, submission));
+        }
+        // Same lock as close(): the spool thread only stops once every delivery queued here is written
+        synchronized (this) {
+            if (!closed) {
+                for (Delivery delivery : deliveries) {
+                    outstanding.incrementAndGet();
+                    spoolOps.add(new SpoolOp(ENQUEUE, delivery, null));
+                }
+                return submission.future;
+            }
+        }
+        Path copies = attachmentCopies(deliveries.get(0).mail);
+        if (copies != null) {
+            attachmentUsers.remove(copies);
+            try {
+                deleteRecursively(copies);
+            } catch (IOException e) {
+                // Not referred to by the spool; the next start deletes what is left
+            }
+        }
+        return CompletableFuture.failedFuture(new IOException("Send queue is not running"));
+    }
+
+    // Copy the attachments into a directory of the message's own, used by the given number of deliveries
+    private List<String> copyAttachments(OutgoingMail mail, int deliveries) throws IOException {
+        if (mail.getAttachmentPaths().isEmpty()) {
+            return mail.getAttachmentPaths();
+        }
+        Files.createDirectories(attachmentDirectory);
+        Path copies = Files.createTempDirectory(attachmentDirectory, "mail-");
+        List<String> paths = new ArrayList<>();
+        try {
+            // One directory per attachment keeps its file name, which names it in the message
+            for (int i = 0; i < mail.getAttachmentPaths().size(); i++) {
+                Path original = Path.of(mail.getAttachmentPaths().get(i));
+                Path copy = Files.createDirectory(copies.resolve(String.valueOf(i))).resolve(original.getFileName());
+                Files.copy(original, copy);
+                paths.add(copy.toString());
+            }
+        } catch (IOException e) {
+            deleteRecursively(copies);
+            throw new IOException("Cannot copy the attachments into the spool: " + e.getMessage(), e);
+        }
+        attachmentUsers.put(copies, deliveries);
+        return paths;
+    }
+
+    // The directory of attachment copies a delivery refers to, or null if it has none
+    private Path attachmentCopies(OutgoingMail mail) {
+        for (String path : mail.getAttachmentPaths()) {
+            Path copy = Path.of(path);
+            if (copy.startsWith(attachmentDirectory) && copy.getNameCount() > attachmentDirectory.getNameCount()) {
+                return attachmentDirectory.resolve(copy.getName(attachmentDirectory.getNameCount()));
+            }
+        }
+        return null;
+    }
+
+    // A delivery left the spool for good; delete its attachment copies once no other one needs them
+    private void releaseAttachments(Delivery delivery) {
+        Path copies = attachmentCopies(delivery.mail);
+        if (copies != null && attachmentUsers.merge(copies, -1, Integer::sum) <= 0) {
+            attachmentUsers.remove(copies);
+            try {
+                deleteRecursively(copies);
+            } catch (IOException e) {
+                // Not referred to any more; the next start deletes what is left
+            }
+        }
+    }
+
+    // Delete the copies of messages that no spooled delivery refers to
+    private void deleteUnusedCopies() throws IOException {
+        if (!Files.isDirectory(attachmentDirectory)) {
+            return;
+        }
+        List<Path> unused = new ArrayList<>();
+        try (Stream<Path> directories = Files.list(attachmentDirectory)) {
+            directories.filter(directory -> !attachmentUsers.containsKey(directory)).forEach(unused::add);
+        }
+        for (Path directory : unused) {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(path)) {
+            walk.forEach(paths::add);
+        }
+        // Children before their directory
+        for (int i = paths.size() - 1; i >= 0; i--) {
+            Files.deleteIfExists(paths.get(i));
+        }
+    }
+
+    private static String domainOf(String recipient) {
+        int at = recipient.lastIndexOf('@');
+        return at < 0 ? "" : recipient.substring(at + 1).toLowerCase();
+    }
+
+    /**
+     * Waits until every message submitted so far is on the disk.
+     */
+    public void flush() throws IOException {
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        synchronized (this) {
+            if (!started || closed) {
+                throw new IOException("Send queue is not running");
+            }
+            spoolOps.add(new SpoolOp((byte) 0, null, flushed));
+        }
+        try {
+            flushed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing the spool", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Spool write failed", e.getCause());
+        }
+    }
+
+    // Deliveries submitted or recovered and not yet accepted or failed for good
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    // Deliveries found in the spool on start
+    public int getRecovered() {
+        return recovered;
+    }
+
+    // Spool thread: write what was queued in one go, then let the workers have it
+    private void runSpool() {
+        List<SpoolOp> batch = new ArrayList<>();
+        while (true) {
+            try {
+                SpoolOp first = spoolOps.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && spoolOps.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                spoolOps.drainTo(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+            spool(batch);
+            batch.clear();
+        }
+    }
+
+    // Write a batch of records, then act on each of them
+    private void spool(List<SpoolOp> batch) {
+        IOException failure = null;
+        try {
+            writeRecords(batch);
+        } catch (IOException e) {
+            failure = e;
+        }
+        long now = System.nanoTime();
+        for (SpoolOp op : batch) {
+            if (op.flushed != null) {
+                if (failure == null) {
+                    op.flushed.complete(null);
+                } else {
+                    op.flushed.completeExceptionally(failure);
+                }
+            } else if (op.op == ENQUEUE && op.delivery.attempts == 0) {
+                // Sent even if it could not be spooled; it is only at risk of a crash
+                schedule(op.delivery, now);
+            } else if (op.op == DONE && failure == null) {
+                // Only once the spool no longer refers to them
+                releaseAttachments(op.delivery);
+            }
+        }
+    }
+
+    private void writeRecords(List<SpoolOp> batch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(batch.size() * 256);
+        for (SpoolOp op : batch) {
+            if (op.delivery == null) {
+                continue;
+            }
+            byte[] payload = new byte[0];
+            if (op.op == ENQUEUE) {
+                payload = encode(op.delivery);
+                spooled.put(op.delivery.id, payload);
+            } else {
+                spooled.remove(op.delivery.id);
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length + 4);
+            record.put(op.op).putLong(op.delivery.id).putInt(payload.length).put(payload);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, record.position());
+            record.putInt((int) crc.getValue());
+            out.write(record.array(), 0, record.position());
+            records++;
+        }
+        if (out.size() > 0) {
+            ByteBuffer bytes = ByteBuffer.wrap(out.toByteArray());
+            while (bytes.hasRemaining()) {
+                spool.write(bytes);
+            }
+            spool.force(false);
+        }
+        // Finished deliveries pile up; keep the file within a few times what is still queued
+        if (records > 1024 && records > 4L * spooled.size()) {
+            compact();
+        }
+    }
+
+    // Rewrite the spool with only the deliveries still queued
+    private void compact() throws IOException {
+        Path temp = spoolFile.resolveSibling(spoolFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<Long, byte[]> entry : spooled.entrySet()) {
+                byte[] payload = entry.getValue();
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length + 4);
+                record.put(ENQUEUE).putLong(entry.getKey()).putInt(payload.length).put(payload);
+                CRC32 crc = new CRC32();
+                crc.update(record.array(), 0, record.position());
+                record.putInt((int) crc.getValue()).flip();
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            out.force(false);
+        }
+        spool.close();
+        Files.move(temp, spoolFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        spool = FileChannel.open(spoolFile, StandardOpenOption.WRITE);
+        spool.position(spool.size());
+        records = spooled.size();
+    }
+
+    // Load the deliveries still queued; a record torn by a crash is cut off
+    private void replay() throws IOException {
+        if (!Files.exists(spoolFile)) {
+            return;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(spoolFile));
+        long maxId = 0;
+        while (data.remaining() >= RECORD_HEADER_SIZE + 4) {
+            int start = data.position();
+            byte op = data.get();
+            long id = data.getLong();
+            int length = data.getInt();
+            if ((op != ENQUEUE && op != DONE) || length < 0 || data.remaining() < length + 4) {
+                data.position(start);
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data.array(), start, RECORD_HEADER_SIZE + length);
+            byte[] payload = new byte[length];
+            data.get(payload);
+            if (data.getInt() != (int) crc.getValue()) {
+                data.position(start);
+                break;
+            }
+            if (op == ENQUEUE) {
+                spooled.put(id, payload);
+            } else {
+                spooled.remove(id);
+            }
+            maxId = Math.max(maxId, id);
+            records++;
+        }
+        if (data.hasRemaining()) {
+            try (FileChannel channel = FileChannel.open(spoolFile, StandardOpenOption.WRITE)) {
+                channel.truncate(data.position());
+            }
+        }
+        nextId.set(maxId);
+    }
+
+    private static byte[] encode(Delivery delivery) throws IOException {
+        OutgoingMail mail = delivery.mail;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + mail.getBody().length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, delivery.domain);
+        writeString(out, mail.getFrom());
+        out.writeInt(mail.getRecipients().size());
+        for (String recipient : mail.getRecipients()) {
+            writeString(out, recipient);
+        }
+        writeString(out, mail.getSubject());
+        writeString(out, mail.getBody());
+        out.writeInt(mail.getAttachmentPaths().size());
+        for (String path : mail.getAttachmentPaths()) {
+            writeString(out, path);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Delivery decode(long id, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String domain = readString(in);
+        String from = readString(in);
+        List<String> recipients = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            recipients.add(readString(in));
+        }
+        String subject = readString(in);
+        String body = readString(in);
+        List<String> attachmentPaths = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            attachmentPaths.add(readString(in));
+        }
+        return new Delivery(id, domain, new OutgoingMail(from, recipients, subject, body, attachmentPaths), null);
+    }
+
+    // Unlike writeUTF, not limited to 64 KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Put a delivery in its domain's line, to be taken no earlier than the given time
+    private void schedule(Delivery delivery, long notBefore) {
+        lock.lock();
+        try {
+            delivery.notBefore = notBefore;
+            domain(delivery.domain).waiting.add(delivery);
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Domain domain(String name) {
+        Domain domain = domains.get(name);
+        if (domain == null) {
+            domain = new Domain(name);
+            domains.put(name, domain);
+            rotation.add(domain);
+        }
+        return domain;
+    }
+
+    // Wait for a delivery whose domain is within its limits; null once the queue is closed
+    private Delivery take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed) {
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                // Start at a different domain every time, so none is starved
+                int count = rotation.size();
+                for (int i = 0; i < count; i++) {
+                    Domain domain = rotation.get((cursor + i) % count);
+                    Delivery head = domain.waiting.peek();
+                    Limit limit = limit(domain.name);
+                    if (head == null || domain.inFlight >= limit.maxConcurrent) {
+                        continue;
+                    }
+                    long at = Math.max(head.notBefore, domain.nextToken(now, limit));
+                    if (at <= now) {
+                        domain.waiting.poll();
+                        domain.tokens -= 1;
+                        domain.inFlight++;
+                        cursor = (cursor + i + 1) % count;
+                        return head;
+                    }
+                    wait = Math.min(wait, at - now);
+                }
+                if (wait == Long.MAX_VALUE) {
+                    changed.await();
+                } else {
+                    changed.awaitNanos(wait);
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Worker thread: send deliveries until the queue is closed
+    private void runWorker() {
+        while (true) {
+            Delivery delivery;
+            try {
+                delivery = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (delivery == null) {
+                return;
+            }
+            delivery.attempts++;
+            SmtpMessageResult result = null;
+            try {
+                MailClient client = pool.borrowSmtp(server, port);
+                try {
+                    result = client.sendBatch(List.of(delivery.mail)).getResults().get(0);
+                    pool.release(client);
+                } catch (IOException | RuntimeException e) {
+                    pool.invalidate(client);
+                    throw e;
+                }
+            } catch (IOException | RuntimeException e) {
+                delivery.reply = "Connection failed: " + e.getMessage();
+            }
+            finish(delivery, result);
+        }
+    }
+
+    // Record the outcome, and either retry the recipients that may still work or finish the delivery
+    private void finish(Delivery delivery, SmtpMessageResult result) {
+        List<String> retry = new ArrayList<>();
+        if (result == null) {
+            retry.addAll(delivery.mail.getRecipients()); // the connection broke
+        } else {
+            delivery.recipientReplies.putAll(result.getRecipientReplies());
+            delivery.accepted |= result.isAccepted();
+            delivery.reply = result.getReply();
+            if (!result.isAccepted() && result.getReply().startsWith("4")) {
+                retry.addAll(delivery.mail.getRecipients());
+            } else {
+                for (Map.Entry<String, String> entry : result.getRecipientReplies().entrySet()) {
+                    if (entry.getValue().startsWith("4")) {
+                        retry.add(entry.getKey());
+                    }
+                }
+            }
+        }
+
+        long now = System.nanoTime();
+        boolean again = !retry.isEmpty() && delivery.attempts < maxAttempts && !closed;
+        if (again) {
+            retries.increment();
+            if (!retry.equals(delivery.mail.getRecipients())) {
+                OutgoingMail mail = delivery.mail;
+                delivery.mail = new OutgoingMail(mail.getFrom(), retry, mail.getSubject(), mail.getBody(), mail.getAttachmentPaths());
+                // Replaces the spooled recipients, so a restart does not send to the others again
+                spoolOps.add(new SpoolOp(ENQUEUE, delivery, null));
+            }
+        } else if (!closed || retry.isEmpty()) {
+            spoolOps.add(new SpoolOp(DONE, delivery, null));
+            outstanding.decrementAndGet();
+            if (delivery.accepted) {
+                delivered.increment();
+            } else {
+                failed.increment();
+            }
+            if (delivery.submission != null) {
+                delivery.submission.complete(delivery);
+            }
+        }
+
+        lock.lock();
+        try {
+            domain(delivery.domain).inFlight--;
+            if (again) {
+                delivery.notBefore = now + backoff(delivery.attempts);
+                domain(delivery.domain).waiting.add(delivery);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (!again && closed && !retry.isEmpty() && delivery.submission != null) {
+            delivery.submission.future.completeExceptionally(
+                    new IOException("Send queue closed; the message stays in the spool"));
+        }
+    }
+
+    // Doubles with every attempt up to the maximum; the jitter keeps retries of one outage apart
+    private long backoff(int attempts) {
+        long backoff = initialBackoffNanos << Math.min(attempts - 1, 30);
+        if (backoff <= 0 || backoff > maxBackoffNanos) {
+            backoff = maxBackoffNanos;
+        }
+        return (long) (backoff * (0.5 + ThreadLocalRandom.current().nextDouble() / 2));
+    }
+
+    /**
+     * Stops the workers after their current delivery and writes the spool. Messages not
+     * sent yet stay in the spool for the next {@link #start()}, and their futures
+     * complete exceptionally.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!started || closed) {
+                closed = true;
+                return;
+            }
+            closed = true;
+        }
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            spooler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the send queue", e);
+        }
+        // A worker may have finished a delivery after the spool thread last looked
+        List<SpoolOp> leftover = new ArrayList<>();
+        spoolOps.drainTo(leftover);
+        spool(leftover);
+
+        lock.lock();
+        try {
+            for (Domain domain : rotation) {
+                for (Delivery delivery : domain.waiting) {
+                    if (delivery.submission != null) {
+                        delivery.submission.future.completeExceptionally(
+                                new IOException("Send queue closed; the message stays in the spool"));
+                    }
+                }
+                domain.waiting.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+        spool.force(false);
+        spool.close();
+    }
+}
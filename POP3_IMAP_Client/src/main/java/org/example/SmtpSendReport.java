@@ -0,0 +1,53 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of {@link MailClient#sendBatch(List)}: one result per message.
+ */
+public class SmtpSendReport {
+    private final List<SmtpMessageResult> results;
+    private final long elapsedNanos;
+
+    public SmtpSendReport(List<SmtpMessageResult> results, long elapsedNanos) {
+        this.results = Collections.unmodifiableList(results);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    // Results in the order the messages were given
+    public List<SmtpMessageResult> getResults() {
+        return results;
+    }
+
+    public int getAcceptedCount() {
+        int count = 0;
+        for (SmtpMessageResult result : results) {
+            if (result.isAccepted()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getRejectedCount() {
+        return results.size() - getAcceptedCount();
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d of %d messages accepted in %.2f s%n",
+                getAcceptedCount(), results.size(), elapsedNanos / 1e9));
+        for (SmtpMessageResult result : results) {
+            if (!result.isAccepted() || !result.getRejectedRecipients().isEmpty()) {
+                sb.append(" - ").append(result).append(String.format("%n"));
+            }
+        }
+        return sb.toString();
+    }
+}
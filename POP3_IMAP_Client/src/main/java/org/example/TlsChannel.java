@@ -0,0 +1,369 @@
+package org.example;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS over a {@link SocketChannel}, driven by an {@link SSLEngine}.
+ *
+ * The channel works on a blocking socket, where {@link #handshake()}, {@link #read}
+ * and {@link #write} block like the socket does, and on a non-blocking one, where
+ * they return early instead: {@code handshake()} returns false, {@code read} returns
+ * 0, and {@code write} keeps whatever the socket did not take yet and sends it on the
+ * next call, or on {@link #flush()}. The caller then waits for the socket to become
+ * readable or writable and calls again.
+ *
+ * A blocking socket ignores its SO_TIMEOUT once it is used as a channel, so with
+ * {@link #setTimeout(int)} the channel waits for the socket itself instead: the socket
+ * is switched to non-blocking mode, every call blocks with a {@link Selector} until
+ * the socket is ready, and a wait longer than the timeout fails with a
+ * {@link SocketTimeoutException}.
+ *
+ * Engines are created from the given {@link SSLContext} for the server's host name
+ * and port, so a later connection to the same server resumes the TLS session from the
+ * context's session cache and skips the certificate exchange. The server's host name
+ * is checked against its certificate. The record buffers are direct ones from the
+ * {@link BufferPool}, given back when the channel is closed.
+ */
+public class TlsChannel implements ByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // Records received and not yet unwrapped; kept ready for writing into
+    private ByteBuffer netIn;
+    // Records wrapped and not yet sent; kept ready for writing into
+    private ByteBuffer netOut;
+    // Plaintext unwrapped and not yet read; kept ready for writing into
+    private ByteBuffer appIn;
+    private boolean handshakeStarted;
+    private boolean inboundDone;
+    private boolean closed;
+    private long handshakeStartMillis;
+    // With a timeout: how long to wait for the socket, and the selector to wait with
+    private int timeoutMillis;
+    private Selector selector;
+    private SelectionKey key;
+
+    /**
+     * Starts TLS as the client on a connected socket; nothing is sent until the first
+     * call to {@link #handshake()}.
+     *
+     * @param channel a connected socket, blocking or not
+     * @param context where the engine and cached sessions come from
+     * @param host    the server's host name, to check its certificate against
+     * @param port    the server's port, part of the session cache key
+     */
+    public TlsChannel(SocketChannel channel, SSLContext context, String host, int port) {
+        this.channel = channel;
+        this.engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+
+        SSLSession session = engine.getSession();
+        BufferPool pool = BufferPool.getDirect();
+        netIn = pool.acquire(session.getPacketBufferSize()).clear();
+        netOut = pool.acquire(session.getPacketBufferSize()).clear();
+        appIn = pool.acquire(session.getApplicationBufferSize()).clear();
+    }
+
+    /**
+     * Makes every call wait at most the given time for the socket, as SO_TIMEOUT does for
+     * a socket's streams. The socket must be blocking; it is switched to non-blocking
+     * mode, and back with a timeout of 0.
+     *
+     * @param millis the longest wait for the socket to become readable or writable, or
+     *               0 to wait as long as it takes
+     * @return this channel
+     */
+    public TlsChannel setTimeout(int millis) throws IOException {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Negative timeout: " + millis);
+        }
+        if (millis > 0 && timeoutMillis == 0) {
+            channel.configureBlocking(false);
+            if (selector == null) {
+                selector = Selector.open();
+                key = channel.register(selector, 0);
+            }
+        } else if (millis == 0 && timeoutMillis > 0) {
+            key.cancel();
+            selector.selectNow(); // deregisters the channel, which it must be to block again
+            selector.close();
+            selector = null;
+            channel.configureBlocking(true);
+        }
+        timeoutMillis = millis;
+        return this;
+    }
+
+    public int getTimeout() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Runs the TLS handshake as far as the socket allows.
+     *
+     * @return true once the handshake is complete; false if a non-blocking socket has
+     *         to become readable or writable first
+     * @throws IOException if the handshake fails, e.g. because the certificate is not
+     *                     trusted or does not match the host name
+     */
+    public boolean handshake() throws IOException {
+        if (!handshakeStarted) {
+            handshakeStarted = true;
+            handshakeStartMillis = System.currentTimeMillis();
+            engine.beginHandshake();
+        }
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (!unwrap()) {
+                        return false;
+                    }
+                    if (inboundDone) {
+                        throw new EOFException("Connection closed during the TLS handshake");
+                    }
+                    break;
+                default:
+                    return flush();
+            }
+        }
+    }
+
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    /**
+     * Whether the handshake resumed a session from the cache instead of negotiating a
+     * new one; a resumed session keeps the creation time of the one it continues.
+     */
+    public boolean isResumed() {
+        return handshakeStarted && engine.getSession().getCreationTime() < handshakeStartMillis;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        while (appIn.position() == 0) {
+            if (inboundDone) {
+                return -1;
+            }
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && !handshake()) {
+                return 0;
+            }
+            // A record may carry no data, such as a TLS 1.3 session ticket; then keep reading
+            if (!unwrap()) {
+                return 0;
+            }
+        }
+        appIn.flip();
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer part = appIn.slice(appIn.position(), count);
+        dst.put(part);
+        appIn.position(appIn.position() + count);
+        appIn.compact();
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (!flush()) {
+            return 0;
+        }
+        int written = 0;
+        while (src.hasRemaining()) {
+            written += wrap(src);
+            if (!flush()) {
+                break; // the rest is sent on the next call
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Sends the records that a non-blocking socket did not take yet.
+     *
+     * @return true if nothing is left to send
+     */
+    public boolean flush() throws IOException {
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    if (timeoutMillis == 0) {
+                        return false;
+                    }
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+            return true;
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    // Wrap one record into netOut; returns the plaintext bytes it took
+    private int wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(src, netOut);
+            switch (result.getStatus()) {
+                case OK:
+                    return result.bytesConsumed();
+                case BUFFER_OVERFLOW:
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    break;
+                case CLOSED:
+                    if (result.bytesProduced() > 0) {
+                        return result.bytesConsumed(); // our close_notify
+                    }
+                    throw new SSLException("TLS connection already closed");
+                default:
+                    throw new SSLException("Unexpected TLS wrap status " + result.getStatus());
+            }
+        }
+    }
+
+    // Unwrap one record into appIn; false if a non-blocking socket has no complete record yet
+    private boolean unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    return true;
+                case CLOSED:
+                    inboundDone = true;
+                    return true;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    int count = channel.read(netIn);
+                    if (count < 0) {
+                        // Mail servers often drop the connection without close_notify after QUIT
+                        inboundDone = true;
+                        return true;
+                    }
+                    if (count == 0) {
+                        if (timeoutMillis == 0) {
+                            return false;
+                        }
+                        await(SelectionKey.OP_READ);
+                    }
+                    break;
+                default:
+                    throw new SSLException("Unexpected TLS unwrap status " + result.getStatus());
+            }
+        }
+    }
+
+    // Wait until the socket is ready for the given operation, for at most the timeout
+    private void await(int operation) throws IOException {
+        key.interestOps(operation);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            // select() may also return early without the socket being ready, e.g. when interrupted
+            while (selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))) == 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while waiting for the server");
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    throw new SocketTimeoutException("No answer from the server within " + timeoutMillis + " ms");
+                }
+            }
+        } finally {
+            selector.selectedKeys().clear();
+            key.interestOps(0);
+        }
+    }
+
+    // A buffer with room for at least the given number of bytes more, holding what the old one held
+    private static ByteBuffer grow(ByteBuffer buffer, int room) {
+        ByteBuffer bigger = BufferPool.getDirect().acquire(Math.max(buffer.capacity() * 2, buffer.position() + room)).clear();
+        buffer.flip();
+        bigger.put(buffer);
+        BufferPool.getDirect().release(buffer);
+        return bigger;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify, as far as the socket takes it, and closes the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (channel.isOpen() && handshakeStarted && !engine.isOutboundDone()) {
+                engine.closeOutbound();
+                while (!engine.isOutboundDone()) {
+                    wrap(EMPTY);
+                }
+                flush();
+            }
+        } catch (IOException e) {
+            // The server may be gone already; the socket is closed anyway
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+            channel.close();
+            BufferPool pool = BufferPool.getDirect();
+            pool.release(netIn);
+            pool.release(netOut);
+            pool.release(appIn);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.example;
+
+/**
+ * How a connection to a mail server is encrypted.
+ */
+public enum TlsMode {
+    // Plain text, as on ports 110 and 25
+    NONE,
+    // TLS from the first byte, as on ports 995 (POP3) and 465 (SMTP)
+    IMPLICIT,
+    // Plain text upgraded with "STLS" (POP3) or "STARTTLS" (SMTP) before logging in, as on ports 110 and 587
+    STARTTLS
+}
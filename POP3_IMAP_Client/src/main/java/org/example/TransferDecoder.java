@@ -0,0 +1,215 @@
+package org.example;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes a MIME content transfer encoding (RFC 2045) incrementally.
+ *
+ * Encoded bytes are fed in blocks of any size with {@link #decode}, straight from the
+ * raw message: line breaks are skipped as they come instead of being stripped first,
+ * and a base64 quantum or a quoted-printable escape may be split across blocks. After
+ * the last block, {@link #finish} returns whatever was still held back.
+ *
+ * {@link #forEncoding(String)} picks the decoder for a Content-Transfer-Encoding
+ * value, and the static helpers decode a whole part, wrap a stream, or turn a text
+ * part into a {@code String} in the charset its Content-Type declares.
+ *
+ * A decoder keeps state between blocks and is not thread-safe.
+ */
+public abstract class TransferDecoder {
+    // Block size of the streams returned by wrap()
+    private static final int STREAM_BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Returns a new decoder for the given Content-Transfer-Encoding.
+     *
+     * @param encoding the header value, e.g. {@code base64} or {@code quoted-printable}
+     * @return the decoder, or null if the content is not encoded (7bit, 8bit, binary,
+     *         no header, or an encoding that is not known here)
+     */
+    public static TransferDecoder forEncoding(String encoding) {
+        if (encoding == null) {
+            return null;
+        }
+        switch (encoding.trim().toLowerCase()) {
+            case "base64":
+                return new Base64Decoder();
+            case "quoted-printable":
+                return new QuotedPrintableDecoder();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decodes a block of encoded bytes.
+     *
+     * @param src       the encoded bytes
+     * @param offset    where they start in {@code src}
+     * @param length    how many there are
+     * @param dst       where the decoded bytes go; it needs room for at least
+     *                  {@link #maxDecodedSize(int) maxDecodedSize(length)} bytes
+     * @param dstOffset where they start in {@code dst}
+     * @return the number of decoded bytes written
+     */
+    public abstract int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset);
+
+    /**
+     * Ends the input, writing what was held back for a following block.
+     *
+     * @param dst       where the decoded bytes go; it needs room for
+     *                  {@link #maxDecodedSize(int) maxDecodedSize(0)} bytes
+     * @param dstOffset where they start in {@code dst}
+     * @return the number of decoded bytes written
+     */
+    public abstract int finish(byte[] dst, int dstOffset);
+
+    /**
+     * The most bytes one call to {@link #decode} with the given input length can write
+     * in the decoder's current state, or {@link #finish} with a length of 0.
+     */
+    public abstract int maxDecodedSize(int length);
+
+    /**
+     * Decodes a whole part.
+     *
+     * @param content  the encoded part; its position is not changed
+     * @param encoding the Content-Transfer-Encoding value, or null
+     * @return the decoded bytes; the content itself if it is not encoded
+     */
+    public static ByteBuffer decode(ByteBuffer content, String encoding) {
+        TransferDecoder decoder = forEncoding(encoding);
+        if (decoder == null) {
+            return content.duplicate();
+        }
+        int length = content.remaining();
+        byte[] decoded = new byte[decoder.maxDecodedSize(length) + decoder.maxDecodedSize(0)];
+        int size;
+        if (content.hasArray()) {
+            size = decoder.decode(content.array(), content.arrayOffset() + content.position(), length, decoded, 0);
+        } else {
+            // A mapped message: copy it through a pooled block at a time
+            ByteBuffer source = content.duplicate();
+            ByteBuffer pooled = BufferPool.getHeap().acquire(STREAM_BLOCK_SIZE);
+            try {
+                byte[] block = pooled.array();
+                size = 0;
+                while (source.hasRemaining()) {
+                    int count = Math.min(block.length, source.remaining());
+                    source.get(block, 0, count);
+                    size += decoder.decode(block, 0, count, decoded, size);
+                }
+            } finally {
+                BufferPool.getHeap().release(pooled);
+            }
+        }
+        size += decoder.finish(decoded, size);
+        return ByteBuffer.wrap(decoded, 0, size);
+    }
+
+    /**
+     * Decodes a text part into a string, in the charset its Content-Type declares.
+     * Bytes that are not valid in that charset become U+FFFD.
+     *
+     * @param content     the encoded part; its position is not changed
+     * @param encoding    the Content-Transfer-Encoding value, or null
+     * @param contentType the Content-Type value, or null
+     * @return the text
+     * @see MimeParser#charset(String)
+     */
+    public static String decodeText(ByteBuffer content, String encoding, String contentType) {
+        ByteBuffer decoded = decode(content, encoding);
+        Charset charset = MimeParser.charset(contentType);
+        if (decoded.hasArray()) {
+            return new String(decoded.array(), decoded.arrayOffset() + decoded.position(), decoded.remaining(), charset);
+        }
+        return charset.decode(decoded).toString();
+    }
+
+    /**
+     * Wraps a stream of encoded bytes into one of decoded bytes, decoding a block at a
+     * time as it is read.
+     *
+     * @param in       the encoded content
+     * @param encoding the Content-Transfer-Encoding value, or null
+     * @return the decoded content; {@code in} itself if it is not encoded
+     */
+    public static InputStream wrap(InputStream in, String encoding) {
+        TransferDecoder decoder = forEncoding(encoding);
+        return decoder == null ? in : decoder.wrap(in);
+    }
+
+    /**
+     * Wraps a stream of encoded bytes into one of decoded bytes, decoding with this
+     * decoder a block at a time as it is read.
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            private final byte[] encoded = new byte[STREAM_BLOCK_SIZE];
+            private final byte[] decoded = new byte[maxDecodedSize(STREAM_BLOCK_SIZE) + maxDecodedSize(0)];
+            private int position;
+            private int limit;
+            private boolean finished;
+
+            @Override
+            public int read() throws IOException {
+                return position < limit || fill() ? decoded[position++] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position == limit && !fill()) {
+                    return -1;
+                }
+                int count = Math.min(len, limit - position);
+                System.arraycopy(decoded, position, b, off, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return limit - position;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = 0;
+                while (skipped < n && (position < limit || fill())) {
+                    int count = (int) Math.min(n - skipped, limit - position);
+                    position += count;
+                    skipped += count;
+                }
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            // Decode the next block; false at the end of the content
+            private boolean fill() throws IOException {
+                position = 0;
+                limit = 0;
+                while (limit == 0 && !finished) {
+                    int read = in.read(encoded, 0, encoded.length);
+                    if (read < 0) {
+                        limit = finish(decoded, 0);
+                        finished = true;
+                    } else {
+                        limit = decode(encoded, 0, read, decoded, 0);
+                    }
+                }
+                return limit > 0;
+            }
+        };
+    }
+}